@@ -21,7 +21,9 @@ import static dev.nokee.companion.CompilationOutputs.noneRecompiled;
 import static dev.nokee.companion.CompilationOutputs.recompiledFiles;
 import static dev.nokee.companion.fixtures.GradleTestKitMatchers.*;
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
 import static org.hamcrest.Matchers.not;
+import static org.hamcrest.io.FileMatchers.anExistingFileOrDirectory;
 
 public interface AbstractNativeLanguageIncrementalCompilationAfterFailureFunctionalTester {
 	@Test
@@ -73,4 +75,75 @@ public interface AbstractNativeLanguageIncrementalCompilationAfterFailureFunctio
 		assertThat(result.task(taskUnderTest), not(performsFullRebuild()));
 		assertThat(snap, recompiledFiles(aFileBaseNamed("main"), aFileBaseNamed("broken")));
 	}
+
+	@Test
+	default void keepsUntouchedObjectsOnFailedIncrementalBuild(TaskUnderTest taskUnderTest, @TempDir Path testDirectory, @GradleProject("project-with-sources") GradleBuildElement project) throws IOException {
+		GradleBuildElement build = project.writeToDirectory(testDirectory);
+		build.getBuildFile().append(groovyDsl("""
+			tasks.withType(CppCompile).configureEach {
+				options.incrementalAfterFailure = true
+			}
+		"""));
+		GradleRunner runner = GradleRunner.create().withProjectDir(build.getLocation().toFile()).withPluginClasspath().forwardOutput();
+		GradleRunnerArguments args = GradleRunnerArguments.create().withInfoLogging();
+
+		CompilationOutputs outputs = CompilationOutputs.from(build.dir("build/objs")).withExtensions("o", "obj");
+		CompilationOutputs.Snapshot snap = outputs.snapshot(() -> succeeds(runner.withArguments(args.withTasks(taskUnderTest).toList())));
+
+		Files.write(build.file("src/main/cpp/main.cpp"), Arrays.asList("", "", ""), StandardOpenOption.APPEND);
+		Files.write(build.file("src/main/cpp/broken.cpp"), Arrays.asList("broken!"));
+		ExecutedBuild result = fails(runner.withArguments(args.withTasks(taskUnderTest).toList()));
+		assertThat(result.task(taskUnderTest), not(performsFullRebuild()));
+		assertThat("rolled back, including the recompiled main.cpp", snap, noneRecompiled());
+		assertThat(build.dir("build/objs"), hasDescendants(aFileBaseNamed("message"), aFileBaseNamed("split"), aFileBaseNamed("destructor"), aFileBaseNamed("remove"), aFileBaseNamed("join"), aFileBaseNamed("add"), aFileBaseNamed("get"), aFileBaseNamed("main"), aFileBaseNamed("copy_ctor_assign"), aFileBaseNamed("size")));
+	}
+
+	@Test
+	default void restoresCommittedTranslationUnitsOfFailedBuild(TaskUnderTest taskUnderTest, @TempDir Path testDirectory, @GradleProject("project-with-sources") GradleBuildElement project) throws IOException {
+		GradleBuildElement build = project.writeToDirectory(testDirectory);
+		build.getBuildFile().append(groovyDsl("""
+			tasks.withType(CppCompile).configureEach {
+				options.incrementalAfterFailure = true
+			}
+		"""));
+		GradleRunner runner = GradleRunner.create().withProjectDir(build.getLocation().toFile()).withPluginClasspath().forwardOutput();
+		GradleRunnerArguments args = GradleRunnerArguments.create().withInfoLogging();
+		ExecutedBuild result;
+
+		succeeds(runner.withArguments(args.withTasks(taskUnderTest).toList()));
+
+		Files.write(build.file("src/main/cpp/main.cpp"), Arrays.asList("", "", ""), StandardOpenOption.APPEND);
+		Files.write(build.file("src/main/cpp/broken.cpp"), Arrays.asList("broken!"));
+		result = fails(runner.withArguments(args.withTasks(taskUnderTest).toList()));
+		assertThat(result.task(taskUnderTest), output(containsString("Committed 1 successfully compiled translation unit(s).")));
+
+		Files.write(build.file("src/main/cpp/broken.cpp"), Arrays.asList("int foo() { return 52; }"));
+		result = succeeds(runner.withArguments(args.withTasks(taskUnderTest).toList()));
+		assertThat(result.task(taskUnderTest), not(performsFullRebuild()));
+		assertThat("main.cpp compiled by the failed build", result.task(taskUnderTest), output(containsString("Restored 1 translation unit(s) committed by the previous compilation.")));
+		assertThat(build.dir("build/objs"), hasDescendants(aFileBaseNamed("message"), aFileBaseNamed("split"), aFileBaseNamed("destructor"), aFileBaseNamed("remove"), aFileBaseNamed("join"), aFileBaseNamed("add"), aFileBaseNamed("get"), aFileBaseNamed("main"), aFileBaseNamed("copy_ctor_assign"), aFileBaseNamed("size"), aFileBaseNamed("broken")));
+	}
+
+	@Test
+	default void discardsTransactionOnSuccessfulBuild(TaskUnderTest taskUnderTest, @TempDir Path testDirectory, @GradleProject("project-with-sources") GradleBuildElement project) throws IOException {
+		GradleBuildElement build = project.writeToDirectory(testDirectory);
+		build.getBuildFile().append(groovyDsl("""
+			tasks.withType(CppCompile).configureEach {
+				options.incrementalAfterFailure = true
+			}
+		"""));
+		GradleRunner runner = GradleRunner.create().withProjectDir(build.getLocation().toFile()).withPluginClasspath().forwardOutput();
+		GradleRunnerArguments args = GradleRunnerArguments.create();
+
+		succeeds(runner.withArguments(args.withTasks(taskUnderTest).toList()));
+
+		Files.write(build.file("src/main/cpp/main.cpp"), Arrays.asList("", "", ""), StandardOpenOption.APPEND);
+		Files.write(build.file("src/main/cpp/broken.cpp"), Arrays.asList("broken!"));
+		fails(runner.withArguments(args.withTasks(taskUnderTest).toList()));
+
+		Files.write(build.file("src/main/cpp/broken.cpp"), Arrays.asList("int foo() { return 52; }"));
+		succeeds(runner.withArguments(args.withTasks(taskUnderTest).toList()));
+		assertThat(build.dir("build/tmp/compile/compile-transaction").toFile(), not(anExistingFileOrDirectory()));
+		assertThat(build.dir("build/tmp/compile/compile-transaction-committed").toFile(), not(anExistingFileOrDirectory()));
+	}
 }
@@ -35,6 +35,7 @@ import java.util.Arrays;
 
 import static dev.gradleplugins.buildscript.syntax.Syntax.groovyDsl;
 import static dev.nokee.commons.hamcrest.gradle.FileSystemMatchers.*;
+import static dev.nokee.companion.CompilationOutputs.recompiledFiles;
 import static dev.nokee.companion.fixtures.GradleTestKitMatchers.*;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.*;
@@ -257,4 +258,35 @@ public interface AbstractNativeLanguageIncrementalCompilationFunctionalTester {
 		result = succeeds(runner.withArguments(args.withInfoLogging().toList()));
 		assertThat(result.task(taskUnderTest), performsFullRebuild());
 	}
+
+	@Test
+	default void recompilesSourceReferencingChangedMacroThroughHeaderSearchPathInCompilerArgs(TaskUnderTest taskUnderTest, @TempDir Path testDirectory, @GradleProject("project-with-header-search-path-in-compiler-args") GradleBuildElement project) {
+		GradleBuildElement build = project.writeToDirectory(testDirectory);
+		GradleRunner runner = GradleRunner.create().withProjectDir(build.getLocation().toFile()).withPluginClasspath().forwardOutput();
+		GradleRunnerArguments args = GradleRunnerArguments.create().withInfoLogging();
+
+		succeeds(runner.withArguments(args.withTasks(taskUnderTest).toList()));
+
+		// only extra.h, outside the include graph, references the macro
+		ExecutedBuild result = fails(runner.withArguments(args.withTasks(taskUnderTest).append("-Pextra-value=2").toList()));
+		assertThat("restoring uses-extra.cpp object file would succeed", result.task(taskUnderTest), failed());
+	}
+
+	@Test
+	default void keepsIncrementalCompilationStateAcrossDaemons(TaskUnderTest taskUnderTest, @TempDir Path testDirectory, @GradleProject("project-with-sources") GradleBuildElement project) throws IOException {
+		GradleBuildElement build = project.writeToDirectory(testDirectory);
+		GradleRunner runner = GradleRunner.create().withProjectDir(build.getLocation().toFile()).withPluginClasspath().forwardOutput();
+		GradleRunnerArguments args = GradleRunnerArguments.create().withInfoLogging();
+
+		CompilationOutputs outputs = CompilationOutputs.from(build.dir("build/objs")).withExtensions("o", "obj");
+		CompilationOutputs.Snapshot snap = outputs.snapshot(() -> succeeds(runner.withArguments(args.withTasks(taskUnderTest).toList())));
+
+		// incompatible JVM arguments spawns a new daemon, only the compilation state on disk remains
+		Files.writeString(build.file("gradle.properties"), "\norg.gradle.jvmargs=-Xmx768m -Dnew-daemon=true", StandardOpenOption.APPEND);
+		Files.write(build.file("src/main/cpp/main.cpp"), Arrays.asList("", "", ""), StandardOpenOption.APPEND);
+
+		ExecutedBuild result = succeeds(runner.withArguments(args.withTasks(taskUnderTest).toList()));
+		assertThat(result.task(taskUnderTest), not(performsFullRebuild()));
+		assertThat(snap, recompiledFiles(aFileBaseNamed("main")));
+	}
 }
@@ -0,0 +1,106 @@
+package dev.nokee.companion;
+
+import dev.nokee.commons.fixtures.GradleProject;
+import dev.nokee.commons.fixtures.GradleProjectExtension;
+import dev.nokee.commons.fixtures.GradleTaskUnderTestExtension;
+import dev.nokee.commons.fixtures.TaskUnderTest;
+import dev.nokee.commons.sources.GradleBuildElement;
+import dev.nokee.companion.fixtures.GradleRunnerArguments;
+import org.gradle.testkit.runner.GradleRunner;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static dev.gradleplugins.buildscript.syntax.Syntax.groovyDsl;
+import static dev.nokee.companion.fixtures.GradleTestKitMatchers.*;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.not;
+
+@ExtendWith({GradleProjectExtension.class, GradleTaskUnderTestExtension.class})
+public interface AbstractNativeLanguageMacroIncrementalCompilationFunctionalTester {
+	@Test
+	default void restoresTranslationUnitsNotReferencingChangedMacro(TaskUnderTest taskUnderTest, @TempDir Path testDirectory, @GradleProject("project-with-macro-references") GradleBuildElement project) {
+		GradleBuildElement build = project.writeToDirectory(testDirectory);
+		GradleRunner runner = GradleRunner.create().withProjectDir(build.getLocation().toFile()).withPluginClasspath().forwardOutput();
+		GradleRunnerArguments args = GradleRunnerArguments.create().withInfoLogging();
+
+		succeeds(runner.withArguments(args.withTasks(taskUnderTest).toList()));
+
+		ExecutedBuild result = succeeds(runner.withArguments(args.withTasks(taskUnderTest).append("-Punused-value=2").toList()));
+		assertThat(result.task(taskUnderTest), executed());
+		assertThat(result.task(taskUnderTest), output(containsString("from the object cache.")));
+	}
+
+	@Test
+	default void recompilesTranslationUnitsReferencingMacroThroughAnotherMacroDefinition(TaskUnderTest taskUnderTest, @TempDir Path testDirectory, @GradleProject("project-with-macro-references") GradleBuildElement project) {
+		GradleBuildElement build = project.writeToDirectory(testDirectory);
+		GradleRunner runner = GradleRunner.create().withProjectDir(build.getLocation().toFile()).withPluginClasspath().forwardOutput();
+		GradleRunnerArguments args = GradleRunnerArguments.create().withInfoLogging();
+
+		succeeds(runner.withArguments(args.withTasks(taskUnderTest).toList()));
+
+		// uses-foo.cpp only references FOO, defined as BAR
+		ExecutedBuild result = fails(runner.withArguments(args.withTasks(taskUnderTest).append("-Pbar-value=2").toList()));
+		assertThat("restoring uses-foo.cpp object file would succeed", result.task(taskUnderTest), failed());
+		assertThat(result.task(taskUnderTest), output(containsString("unexpected FOO value")));
+	}
+
+	@Test
+	default void recompilesTranslationUnitsReferencingChangedFunctionLikeMacro(TaskUnderTest taskUnderTest, @TempDir Path testDirectory, @GradleProject("project-with-macro-references") GradleBuildElement project) {
+		GradleBuildElement build = project.writeToDirectory(testDirectory);
+		GradleRunner runner = GradleRunner.create().withProjectDir(build.getLocation().toFile()).withPluginClasspath().forwardOutput();
+		GradleRunnerArguments args = GradleRunnerArguments.create().withInfoLogging();
+
+		succeeds(runner.withArguments(args.withTasks(taskUnderTest).toList()));
+
+		ExecutedBuild result = fails(runner.withArguments(args.withTasks(taskUnderTest).append("-Psquare-value=((x)+(x))").toList()));
+		assertThat("restoring uses-square.cpp object file would succeed", result.task(taskUnderTest), failed());
+		assertThat(result.task(taskUnderTest), output(containsString("unexpected SQUARE value")));
+	}
+
+	@Test
+	default void recompilesAllTranslationUnitsWhenMacroDebugInformationIsEmbedded(TaskUnderTest taskUnderTest, @TempDir Path testDirectory, @GradleProject("project-with-macro-references") GradleBuildElement project) {
+		GradleBuildElement build = project.writeToDirectory(testDirectory);
+		build.getBuildFile().append(groovyDsl("""
+			compileTask.compilerArgs.add('-g3')
+		"""));
+		GradleRunner runner = GradleRunner.create().withProjectDir(build.getLocation().toFile()).withPluginClasspath().forwardOutput();
+		GradleRunnerArguments args = GradleRunnerArguments.create().withInfoLogging();
+
+		succeeds(runner.withArguments(args.withTasks(taskUnderTest).toList()));
+
+		// the object files embeds every macro, even the unreferenced ones
+		ExecutedBuild result = succeeds(runner.withArguments(args.withTasks(taskUnderTest).append("-Punused-value=2").toList()));
+		assertThat(result.task(taskUnderTest), executed());
+		assertThat(result.task(taskUnderTest), not(output(containsString("from the object cache."))));
+	}
+
+	@Test
+	default void recompilesAllTranslationUnitsWhenHeaderIsForceIncluded(TaskUnderTest taskUnderTest, @TempDir Path testDirectory, @GradleProject("project-with-macro-references") GradleBuildElement project) throws IOException {
+		GradleBuildElement build = project.writeToDirectory(testDirectory);
+		Files.createDirectories(build.file("src/main/forced"));
+		Files.writeString(build.file("src/main/forced/forced.h"), """
+			#pragma once
+			#if UNUSED_VALUE != 1
+			#  error "unexpected UNUSED_VALUE value"
+			#endif
+		""".stripIndent());
+		build.getBuildFile().append(groovyDsl("""
+			compileTask.compilerArgs.addAll('-include', file('src/main/forced/forced.h').absolutePath)
+		"""));
+		GradleRunner runner = GradleRunner.create().withProjectDir(build.getLocation().toFile()).withPluginClasspath().forwardOutput();
+		GradleRunnerArguments args = GradleRunnerArguments.create().withInfoLogging();
+
+		succeeds(runner.withArguments(args.withTasks(taskUnderTest).toList()));
+
+		// only forced.h, outside the include graph, references the macro
+		ExecutedBuild result = fails(runner.withArguments(args.withTasks(taskUnderTest).append("-Punused-value=2").toList()));
+		assertThat("restoring any object file would succeed", result.task(taskUnderTest), failed());
+		assertThat(result.task(taskUnderTest), not(output(containsString("from the object cache."))));
+	}
+}
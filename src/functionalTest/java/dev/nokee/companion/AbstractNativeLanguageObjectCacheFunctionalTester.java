@@ -0,0 +1,121 @@
+package dev.nokee.companion;
+
+import dev.nokee.commons.fixtures.GradleProject;
+import dev.nokee.commons.fixtures.GradleProjectExtension;
+import dev.nokee.commons.fixtures.GradleTaskUnderTestExtension;
+import dev.nokee.commons.fixtures.TaskUnderTest;
+import dev.nokee.commons.sources.GradleBuildElement;
+import dev.nokee.companion.fixtures.GradleRunnerArguments;
+import org.gradle.testkit.runner.GradleRunner;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static dev.nokee.commons.hamcrest.gradle.FileSystemMatchers.*;
+import static dev.nokee.companion.fixtures.GradleTestKitMatchers.*;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+@ExtendWith({GradleProjectExtension.class, GradleTaskUnderTestExtension.class})
+public interface AbstractNativeLanguageObjectCacheFunctionalTester {
+	@Test
+	default void restoresObjectFilesFromObjectCacheAcrossCleanBuilds(TaskUnderTest taskUnderTest, @TempDir Path testDirectory, @GradleProject("project-with-sources") GradleBuildElement project) throws IOException {
+		GradleBuildElement build = withProjectObjectCache(project.writeToDirectory(testDirectory), 5 * 1024);
+		GradleRunner runner = GradleRunner.create().withProjectDir(build.getLocation().toFile()).withPluginClasspath().forwardOutput();
+		GradleRunnerArguments args = GradleRunnerArguments.create().withInfoLogging().withTasks(taskUnderTest.cleanIt(), taskUnderTest.toString());
+
+		assertThat(succeeds(runner.withArguments(args.toList())).task(taskUnderTest), not(output(containsString("from the object cache."))));
+		assertThat(cachedObjectFiles(build), not(empty()));
+
+		ExecutedBuild result = succeeds(runner.withArguments(args.toList()));
+		assertThat(result.task(taskUnderTest), executed());
+		assertThat(result.task(taskUnderTest), output(containsString("Restored " + cachedObjectFiles(build).size() + " object file(s) from the object cache.")));
+		assertThat(build.getLocation().resolve("build/objs"), aFile(hasDescendants(hasItem(withRelativePath(endsWith(".o"))))));
+	}
+
+	@Test
+	default void evictsEntriesPastMaximumCacheSize(TaskUnderTest taskUnderTest, @TempDir Path testDirectory, @GradleProject("project-with-sources") GradleBuildElement project) throws IOException {
+		GradleBuildElement build = withProjectObjectCache(project.writeToDirectory(testDirectory), 0);
+		GradleRunner runner = GradleRunner.create().withProjectDir(build.getLocation().toFile()).withPluginClasspath().forwardOutput();
+		GradleRunnerArguments args = GradleRunnerArguments.create().withInfoLogging().withTasks(taskUnderTest.cleanIt(), taskUnderTest.toString());
+
+		succeeds(runner.withArguments(args.toList()));
+		assertThat("evicts each entry as it is stored", cachedObjectFiles(build), empty());
+
+		ExecutedBuild result = succeeds(runner.withArguments(args.toList()));
+		assertThat(result.task(taskUnderTest), executed());
+		assertThat(result.task(taskUnderTest), not(output(containsString("from the object cache."))));
+		assertThat(build.getLocation().resolve("build/objs"), aFile(hasDescendants(hasItem(withRelativePath(endsWith(".o"))))));
+	}
+
+	@Test
+	default void compilesSourceFilesOfCorruptedObjectCacheEntries(TaskUnderTest taskUnderTest, @TempDir Path testDirectory, @GradleProject("project-with-sources") GradleBuildElement project) throws IOException {
+		GradleBuildElement build = withProjectObjectCache(project.writeToDirectory(testDirectory), 5 * 1024);
+		GradleRunner runner = GradleRunner.create().withProjectDir(build.getLocation().toFile()).withPluginClasspath().forwardOutput();
+		GradleRunnerArguments args = GradleRunnerArguments.create().withInfoLogging().withTasks(taskUnderTest.cleanIt(), taskUnderTest.toString());
+		ExecutedBuild result;
+
+		succeeds(runner.withArguments(args.toList()));
+		for (Path cachedObjectFile : cachedObjectFiles(build)) {
+			Files.writeString(cachedObjectFile, "corrupted");
+		}
+
+		result = succeeds(runner.withArguments(args.toList()));
+		assertThat(result.task(taskUnderTest), output(containsString("Could not restore cached object file")));
+		assertThat(result.task(taskUnderTest), not(output(containsString("from the object cache."))));
+		try (Stream<Path> objectFiles = Files.walk(build.getLocation().resolve("build/objs"))) {
+			for (Path objectFile : objectFiles.filter(it -> it.toString().endsWith(".o")).collect(Collectors.toList())) {
+				assertThat(Files.readString(objectFile, StandardCharsets.ISO_8859_1), not(equalTo("corrupted")));
+			}
+		}
+
+		// the compiled object files replace the corrupted entries
+		result = succeeds(runner.withArguments(args.toList()));
+		assertThat(result.task(taskUnderTest), output(containsString("from the object cache.")));
+	}
+
+	@Test
+	default void compilesSourceFilesOfMissingObjectCacheEntries(TaskUnderTest taskUnderTest, @TempDir Path testDirectory, @GradleProject("project-with-sources") GradleBuildElement project) throws IOException {
+		GradleBuildElement build = withProjectObjectCache(project.writeToDirectory(testDirectory), 5 * 1024);
+		GradleRunner runner = GradleRunner.create().withProjectDir(build.getLocation().toFile()).withPluginClasspath().forwardOutput();
+		GradleRunnerArguments args = GradleRunnerArguments.create().withInfoLogging().withTasks(taskUnderTest.cleanIt(), taskUnderTest.toString());
+
+		succeeds(runner.withArguments(args.toList()));
+		for (Path cachedObjectFile : cachedObjectFiles(build)) {
+			Files.delete(cachedObjectFile);
+		}
+
+		ExecutedBuild result = succeeds(runner.withArguments(args.toList()));
+		assertThat(result.task(taskUnderTest), executed());
+		assertThat(result.task(taskUnderTest), not(output(containsString("from the object cache."))));
+		assertThat(build.getLocation().resolve("build/objs"), aFile(hasDescendants(hasItem(withRelativePath(endsWith(".o"))))));
+	}
+
+	private static GradleBuildElement withProjectObjectCache(GradleBuildElement build, long maxSizeInMegabytes) throws IOException {
+		Files.writeString(build.file("gradle.properties"), """
+
+			systemProp.dev.nokee.internal.native.compile.object-cache.directory=project
+			systemProp.dev.nokee.internal.native.compile.object-cache.max-size=%d
+			""".stripIndent().formatted(maxSizeInMegabytes), StandardOpenOption.APPEND);
+		return build;
+	}
+
+	private static List<Path> cachedObjectFiles(GradleBuildElement build) throws IOException {
+		Path cacheDirectory = build.getLocation().resolve(".gradle/nokee-companion/objects");
+		if (!Files.exists(cacheDirectory)) {
+			return List.of();
+		}
+		try (Stream<Path> files = Files.walk(cacheDirectory)) {
+			return files.filter(it -> it.toString().endsWith(".o")).collect(Collectors.toList());
+		}
+	}
+}
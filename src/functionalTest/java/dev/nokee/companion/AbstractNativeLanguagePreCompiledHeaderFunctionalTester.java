@@ -0,0 +1,88 @@
+package dev.nokee.companion;
+
+import dev.nokee.commons.fixtures.GradleProject;
+import dev.nokee.commons.fixtures.GradleProjectExtension;
+import dev.nokee.commons.fixtures.GradleTaskUnderTestExtension;
+import dev.nokee.commons.fixtures.TaskUnderTest;
+import dev.nokee.commons.sources.GradleBuildElement;
+import dev.nokee.companion.fixtures.GradleRunnerArguments;
+import org.gradle.testkit.runner.GradleRunner;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static dev.gradleplugins.buildscript.syntax.Syntax.groovyDsl;
+import static dev.nokee.companion.fixtures.GradleTestKitMatchers.*;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+@ExtendWith({GradleProjectExtension.class, GradleTaskUnderTestExtension.class})
+public interface AbstractNativeLanguagePreCompiledHeaderFunctionalTester {
+	@Test
+	default void sharesDefaultPreCompiledHeaderWithBucketsOfWarningFlags(TaskUnderTest taskUnderTest, @TempDir Path testDirectory, @GradleProject("project-with-precompiled-header") GradleBuildElement project) {
+		GradleBuildElement build = project.writeToDirectory(testDirectory);
+		build.getBuildFile().append(groovyDsl("""
+			compileTask.source('src/main/cpp/b.cpp') { compilerArgs.addAll('-Wall', '-Wno-unused-function') }
+			compileTask.source('src/main/cpp/c.cpp') { compilerArgs.add('-w') }
+		"""));
+		GradleRunner runner = GradleRunner.create().withProjectDir(build.getLocation().toFile()).withPluginClasspath().forwardOutput();
+		GradleRunnerArguments args = GradleRunnerArguments.create().withInfoLogging();
+
+		ExecutedBuild result = succeeds(runner.withArguments(args.withTasks(taskUnderTest).toList()));
+		assertThat(result.task(taskUnderTest), executed());
+		assertThat("no bucket compiles its own precompiled header", Files.exists(build.file("build/objs/pch")), is(false));
+	}
+
+	@Test
+	default void compilesDedicatedPreCompiledHeaderForBucketsOfIncompatibleFlags(TaskUnderTest taskUnderTest, @TempDir Path testDirectory, @GradleProject("project-with-precompiled-header") GradleBuildElement project) throws IOException {
+		GradleBuildElement build = project.writeToDirectory(testDirectory);
+		build.getBuildFile().append(groovyDsl("""
+			compileTask.source('src/main/cpp/b.cpp') { compilerArgs.add('-DBUCKET=2') }
+			compileTask.source('src/main/cpp/c.cpp') { compilerArgs.add('-O2') }
+		"""));
+		GradleRunner runner = GradleRunner.create().withProjectDir(build.getLocation().toFile()).withPluginClasspath().forwardOutput();
+		GradleRunnerArguments args = GradleRunnerArguments.create().withInfoLogging();
+
+		ExecutedBuild result = succeeds(runner.withArguments(args.withTasks(taskUnderTest).toList()));
+		assertThat(result.task(taskUnderTest), executed());
+		assertThat("one precompiled header per distinct flags", childrenOf(build.file("build/objs/pch")), hasSize(2));
+	}
+
+	@Test
+	default void reusesDedicatedPreCompiledHeaderOfUnchangedHeaderGraph(TaskUnderTest taskUnderTest, @TempDir Path testDirectory, @GradleProject("project-with-precompiled-header") GradleBuildElement project) throws IOException {
+		GradleBuildElement build = project.writeToDirectory(testDirectory);
+		build.getBuildFile().append(groovyDsl("""
+			compileTask.source('src/main/cpp/b.cpp') { compilerArgs.add('-DBUCKET=2') }
+		"""));
+		GradleRunner runner = GradleRunner.create().withProjectDir(build.getLocation().toFile()).withPluginClasspath().forwardOutput();
+		GradleRunnerArguments args = GradleRunnerArguments.create().withInfoLogging();
+
+		succeeds(runner.withArguments(args.withTasks(taskUnderTest).toList()));
+		Path flagsDirectory = childrenOf(build.file("build/objs/pch")).get(0);
+		List<Path> headerGraphDirectories = childrenOf(flagsDirectory);
+
+		// the header graph of the precompiled header is unchanged
+		Files.writeString(build.file("src/main/cpp/b.cpp"), "\nint b2() { return 2; }", StandardOpenOption.APPEND);
+		succeeds(runner.withArguments(args.withTasks(taskUnderTest).toList()));
+		assertThat(childrenOf(flagsDirectory), equalTo(headerGraphDirectories));
+
+		// common.h is part of the header graph of the precompiled header
+		Files.writeString(build.file("src/main/headers/common.h"), "\ninline int common2() { return 2; }", StandardOpenOption.APPEND);
+		succeeds(runner.withArguments(args.withTasks(taskUnderTest).toList()));
+		assertThat(childrenOf(flagsDirectory), not(equalTo(headerGraphDirectories)));
+	}
+
+	private static List<Path> childrenOf(Path directory) throws IOException {
+		try (Stream<Path> children = Files.list(directory)) {
+			return children.sorted().collect(Collectors.toList());
+		}
+	}
+}
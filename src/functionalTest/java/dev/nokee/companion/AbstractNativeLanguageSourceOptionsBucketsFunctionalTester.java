@@ -0,0 +1,89 @@
+package dev.nokee.companion;
+
+import dev.nokee.commons.fixtures.GradleProject;
+import dev.nokee.commons.fixtures.GradleProjectExtension;
+import dev.nokee.commons.fixtures.GradleTaskUnderTestExtension;
+import dev.nokee.commons.fixtures.TaskUnderTest;
+import dev.nokee.commons.sources.GradleBuildElement;
+import dev.nokee.companion.fixtures.GradleRunnerArguments;
+import org.gradle.testkit.runner.GradleRunner;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Base64;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+import static dev.nokee.companion.fixtures.GradleTestKitMatchers.*;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+@ExtendWith({GradleProjectExtension.class, GradleTaskUnderTestExtension.class})
+public interface AbstractNativeLanguageSourceOptionsBucketsFunctionalTester {
+	@Test
+	default void assignsNewSourceFilesOfOverlappingSourceOptionsLikeFullEvaluation(TaskUnderTest taskUnderTest, @TempDir Path testDirectory, @GradleProject("project-with-overlapping-source-options") GradleBuildElement project) throws IOException {
+		GradleBuildElement build = project.writeToDirectory(testDirectory);
+		GradleRunner runner = GradleRunner.create().withProjectDir(build.getLocation().toFile()).withPluginClasspath().forwardOutput();
+		GradleRunnerArguments args = GradleRunnerArguments.create().withInfoLogging();
+
+		succeeds(runner.withArguments(args.withTasks(taskUnderTest).toList()));
+
+		// only z.cpp is evaluated against the rules, the other source files reuse their bucket
+		Files.writeString(build.file("src/main/cpp/sub/z.cpp"), """
+			#if !defined(ALL) || !defined(SUB) || defined(X)
+			#  error "unexpected options of z.cpp"
+			#endif
+			int z() { return 3; }
+		""".stripIndent());
+		Files.writeString(build.file("src/main/cpp/sub/x.cpp"), "// changed\n", StandardOpenOption.APPEND);
+		ExecutedBuild result = succeeds(runner.withArguments(args.withTasks(taskUnderTest).toList()));
+		assertThat(result.task(taskUnderTest), executed());
+		Map<String, String> incrementalObjectFiles = objectFilesOf(build.getLocation().resolve("build/objs"));
+
+		succeeds(runner.withArguments(args.withTasks(taskUnderTest).append("--rerun-tasks").toList()));
+		assertThat(objectFilesOf(build.getLocation().resolve("build/objs")), equalTo(incrementalObjectFiles));
+	}
+
+	@Test
+	default void recompilesOnlySourceFilesOfBucketWithChangedOptions(TaskUnderTest taskUnderTest, @TempDir Path testDirectory, @GradleProject("project-with-configurable-source-options-buckets") GradleBuildElement project) throws IOException {
+		GradleBuildElement build = project.writeToDirectory(testDirectory);
+		GradleRunner runner = GradleRunner.create().withProjectDir(build.getLocation().toFile()).withPluginClasspath().forwardOutput();
+		GradleRunnerArguments args = GradleRunnerArguments.create().withInfoLogging();
+
+		succeeds(runner.withArguments(args.withTasks(taskUnderTest).toList()));
+		Map<String, String> objectFiles = objectFilesOf(build.getLocation().resolve("build/objs"));
+
+		// c.cpp and d.cpp bucket, the task inputs changed
+		ExecutedBuild result = succeeds(runner.withArguments(args.withTasks(taskUnderTest).append("-Pbucket-2-value=20").toList()));
+		assertThat(result.task(taskUnderTest), executed());
+		assertThat(result.task(taskUnderTest), output(containsString("Restored 2 object file(s) from the object cache."))); // a.cpp and b.cpp bucket
+		assertThat(result.task(taskUnderTest), output(stringContainsInOrder("Restored 1 object file(s) from the object cache.", "Restored 1 object file(s) from the object cache."))); // e.cpp bucket and f.cpp without options
+
+		Map<String, String> newObjectFiles = objectFilesOf(build.getLocation().resolve("build/objs"));
+		assertThat(newObjectFiles.keySet(), equalTo(objectFiles.keySet()));
+		for (String path : objectFiles.keySet()) {
+			if (path.endsWith("/c.o") || path.endsWith("/d.o")) {
+				assertThat(path + " compiled with the new options", newObjectFiles.get(path), not(equalTo(objectFiles.get(path))));
+			} else {
+				assertThat(path + " restored", newObjectFiles.get(path), equalTo(objectFiles.get(path)));
+			}
+		}
+	}
+
+	// Relative path to content of each object file
+	private static Map<String, String> objectFilesOf(Path objectFileDir) throws IOException {
+		try (Stream<Path> files = Files.walk(objectFileDir)) {
+			Map<String, String> result = new TreeMap<>();
+			for (Path file : (Iterable<Path>) files.filter(it -> it.toString().endsWith(".o"))::iterator) {
+				result.put(objectFileDir.relativize(file).toString(), Base64.getEncoder().encodeToString(Files.readAllBytes(file)));
+			}
+			return result;
+		}
+	}
+}
@@ -0,0 +1,100 @@
+package dev.nokee.companion;
+
+import dev.nokee.commons.fixtures.GradleProject;
+import dev.nokee.commons.fixtures.GradleProjectExtension;
+import dev.nokee.commons.fixtures.GradleTaskUnderTestExtension;
+import dev.nokee.commons.fixtures.TaskUnderTest;
+import dev.nokee.commons.sources.GradleBuildElement;
+import dev.nokee.companion.fixtures.GradleRunnerArguments;
+import org.gradle.testkit.runner.GradleRunner;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+import static dev.nokee.commons.hamcrest.gradle.FileSystemMatchers.*;
+import static dev.nokee.companion.fixtures.GradleTestKitMatchers.*;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+@ExtendWith({GradleProjectExtension.class, GradleTaskUnderTestExtension.class})
+public interface AbstractNativeLanguageTranslationUnitQueueFunctionalTester {
+	@Test
+	default void compilesTranslationUnitsOfAllBucketsThroughSingleQueue(TaskUnderTest taskUnderTest, @TempDir Path testDirectory, @GradleProject("project-with-several-source-options-buckets") GradleBuildElement project) {
+		GradleBuildElement build = project.writeToDirectory(testDirectory);
+		GradleRunner runner = GradleRunner.create().withProjectDir(build.getLocation().toFile()).withPluginClasspath().forwardOutput();
+		GradleRunnerArguments args = GradleRunnerArguments.create().withInfoLogging();
+
+		ExecutedBuild result = succeeds(runner.withArguments(args.withTasks(taskUnderTest).toList()));
+		assertThat(result.task(taskUnderTest), executed());
+		assertThat(result.task(taskUnderTest), output(containsString("Compiling 6 translation unit(s) of 4 bucket(s) through a single queue.")));
+		assertThat(result.task(taskUnderTest), output(not(stringContainsInOrder("through a single queue.", "through a single queue."))));
+		for (String name : Arrays.asList("a", "b", "c", "d", "e", "f")) {
+			assertThat(build.getLocation().resolve("build/objs"), aFile(hasDescendants(hasItem(withRelativePath(endsWith("/" + name + ".o"))))));
+		}
+	}
+
+	@Test
+	default void compilesBatchedTranslationUnitsOfAllBucketsThroughSingleQueue(TaskUnderTest taskUnderTest, @TempDir Path testDirectory, @GradleProject("project-with-several-source-options-buckets") GradleBuildElement project) throws IOException {
+		GradleBuildElement build = project.writeToDirectory(testDirectory);
+		Files.writeString(build.file("gradle.properties"), "\nsystemProp.dev.nokee.internal.native.compile.batching=true", StandardOpenOption.APPEND);
+		GradleRunner runner = GradleRunner.create().withProjectDir(build.getLocation().toFile()).withPluginClasspath().forwardOutput();
+		GradleRunnerArguments args = GradleRunnerArguments.create().withInfoLogging().append("--max-workers=1");
+
+		ExecutedBuild result = succeeds(runner.withArguments(args.withTasks(taskUnderTest).toList()));
+		assertThat(result.task(taskUnderTest), executed());
+		assertThat(result.task(taskUnderTest), output(containsString("Compiling 6 translation unit(s) of 4 bucket(s) through a single queue.")));
+		for (String name : Arrays.asList("a", "b", "c", "d", "e", "f")) {
+			assertThat(build.getLocation().resolve("build/objs"), aFile(hasDescendants(hasItem(withRelativePath(endsWith("/" + name + ".o"))))));
+		}
+	}
+
+	@Test
+	default void batchedCompilationProducesSameObjectFilesAsUnbatchedCompilation(TaskUnderTest taskUnderTest, @TempDir Path testDirectory, @GradleProject("project-with-several-source-options-buckets") GradleBuildElement project) throws IOException {
+		GradleBuildElement build = project.writeToDirectory(testDirectory);
+		GradleRunner runner = GradleRunner.create().withProjectDir(build.getLocation().toFile()).withPluginClasspath().forwardOutput();
+		GradleRunnerArguments args = GradleRunnerArguments.create().withInfoLogging().append("--max-workers=1");
+
+		succeeds(runner.withArguments(args.withTasks(taskUnderTest).toList()));
+		Map<String, String> unbatchedObjectFiles = objectFilesOf(build.getLocation().resolve("build/objs"));
+
+		Files.writeString(build.file("gradle.properties"), "\nsystemProp.dev.nokee.internal.native.compile.batching=true", StandardOpenOption.APPEND);
+		succeeds(runner.withArguments(args.withTasks(taskUnderTest).append("--rerun-tasks").toList()));
+		assertThat(objectFilesOf(build.getLocation().resolve("build/objs")), equalTo(unbatchedObjectFiles));
+	}
+
+	@Test
+	default void batchedCompilationReportsFailingTranslationUnit(TaskUnderTest taskUnderTest, @TempDir Path testDirectory, @GradleProject("project-with-several-source-options-buckets") GradleBuildElement project) throws IOException {
+		GradleBuildElement build = project.writeToDirectory(testDirectory);
+		Files.writeString(build.file("src/main/cpp/c.cpp"), "#error \"c.cpp is broken\"\n");
+		Files.writeString(build.file("gradle.properties"), "\nsystemProp.dev.nokee.internal.native.compile.batching=true", StandardOpenOption.APPEND);
+		GradleRunner runner = GradleRunner.create().withProjectDir(build.getLocation().toFile()).withPluginClasspath().forwardOutput();
+		GradleRunnerArguments args = GradleRunnerArguments.create().withInfoLogging().append("--max-workers=1");
+
+		ExecutedBuild result = fails(runner.withArguments(args.withTasks(taskUnderTest).toList()));
+		assertThat(result, hasFailureCause(containsString("C++ compiler failed while compiling c.cpp")));
+		assertThat(result.task(taskUnderTest), output(containsString("c.cpp is broken")));
+		// d.cpp compiles in the same batch as c.cpp
+		assertThat(build.getLocation().resolve("build/objs"), aFile(hasDescendants(hasItem(withRelativePath(endsWith("/d.o"))))));
+	}
+
+	// Relative path to content of each object file
+	private static Map<String, String> objectFilesOf(Path objectFileDir) throws IOException {
+		try (Stream<Path> files = Files.walk(objectFileDir)) {
+			Map<String, String> result = new TreeMap<>();
+			for (Path file : (Iterable<Path>) files.filter(it -> it.toString().endsWith(".o"))::iterator) {
+				result.put(objectFileDir.relativize(file).toString(), Base64.getEncoder().encodeToString(Files.readAllBytes(file)));
+			}
+			return result;
+		}
+	}
+}
@@ -0,0 +1,115 @@
+package dev.nokee.companion;
+
+import dev.nokee.commons.fixtures.GradleProject;
+import dev.nokee.commons.fixtures.GradleProjectExtension;
+import dev.nokee.commons.fixtures.GradleTaskUnderTestExtension;
+import dev.nokee.commons.fixtures.TaskUnderTest;
+import dev.nokee.commons.sources.GradleBuildElement;
+import dev.nokee.companion.fixtures.GradleRunnerArguments;
+import org.gradle.testkit.runner.GradleRunner;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import static dev.gradleplugins.buildscript.syntax.Syntax.groovyDsl;
+import static dev.nokee.commons.hamcrest.gradle.FileSystemMatchers.*;
+import static dev.nokee.companion.fixtures.GradleTestKitMatchers.*;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+@ExtendWith({GradleProjectExtension.class, GradleTaskUnderTestExtension.class})
+public interface AbstractNativeLanguageUnityBuildFunctionalTester {
+	@Test
+	default void compilesSourceFilesAsUnityTranslationUnits(TaskUnderTest taskUnderTest, @TempDir Path testDirectory, @GradleProject("project-with-unity-build") GradleBuildElement project) {
+		GradleBuildElement build = project.writeToDirectory(testDirectory);
+		GradleRunner runner = GradleRunner.create().withProjectDir(build.getLocation().toFile()).withPluginClasspath().forwardOutput();
+		GradleRunnerArguments args = GradleRunnerArguments.create();
+
+		assertThat(succeeds(runner.withArguments(args.withTasks(taskUnderTest).toList())).task(taskUnderTest), executed());
+		assertThat(build.getLocation().resolve("build/objs"), aFile(hasDescendants(hasItem(withRelativePath(allOf(startsWith("unity/unity-"), endsWith(".cpp")))))));
+		assertThat(build.getLocation().resolve("build/objs"), aFile(not(hasDescendants(hasItem(withRelativePath(endsWith("a.o")))))));
+	}
+
+	@Test
+	default void compilesSourceFilesIndividuallyWhenUnityBuildIsDisabled(TaskUnderTest taskUnderTest, @TempDir Path testDirectory, @GradleProject("project-with-unity-build") GradleBuildElement project) {
+		GradleBuildElement build = project.writeToDirectory(testDirectory);
+		GradleRunner runner = GradleRunner.create().withProjectDir(build.getLocation().toFile()).withPluginClasspath().forwardOutput();
+		GradleRunnerArguments args = GradleRunnerArguments.create();
+
+		succeeds(runner.withArguments(args.withTasks(taskUnderTest).toList()));
+
+		ExecutedBuild result = succeeds(runner.withArguments(args.withTasks(taskUnderTest).append("-Punity=false").toList()));
+		assertThat(result.task(taskUnderTest), executed());
+		assertThat(build.getLocation().resolve("build/objs"), aFile(hasDescendants(hasItem(withRelativePath(endsWith("a.o"))))));
+		assertThat(build.getLocation().resolve("build/objs"), aFile(not(hasDescendants(hasItem(withRelativePath(startsWith("unity/")))))));
+	}
+
+	@Test
+	default void compilesUnsafeSourceFilesIndividually(TaskUnderTest taskUnderTest, @TempDir Path testDirectory, @GradleProject("project-with-unity-build") GradleBuildElement project) {
+		GradleBuildElement build = project.writeToDirectory(testDirectory);
+		build.getBuildFile().append(groovyDsl("""
+			compileTask.options.unityBuild.unsafeSourceFiles.from('src/main/cpp/a.cpp')
+		"""));
+		GradleRunner runner = GradleRunner.create().withProjectDir(build.getLocation().toFile()).withPluginClasspath().forwardOutput();
+		GradleRunnerArguments args = GradleRunnerArguments.create();
+
+		succeeds(runner.withArguments(args.withTasks(taskUnderTest).toList()));
+		assertThat(build.getLocation().resolve("build/objs"), aFile(hasDescendants(hasItem(withRelativePath(endsWith("a.o"))))));
+		assertThat(build.getLocation().resolve("build/objs"), aFile(not(hasDescendants(hasItem(withRelativePath(endsWith("b.o")))))));
+	}
+
+	@Test
+	default void compilesMembersOfFailingUnityTranslationUnitIndividually(TaskUnderTest taskUnderTest, @TempDir Path testDirectory, @GradleProject("project-with-unity-build") GradleBuildElement project) throws IOException {
+		GradleBuildElement build = project.writeToDirectory(testDirectory);
+		build.getBuildFile().append(groovyDsl("""
+			compileTask.options.incrementalAfterFailure = true
+		"""));
+		GradleRunner runner = GradleRunner.create().withProjectDir(build.getLocation().toFile()).withPluginClasspath().forwardOutput();
+		GradleRunnerArguments args = GradleRunnerArguments.create().withInfoLogging();
+		ExecutedBuild result;
+
+		succeeds(runner.withArguments(args.withTasks(taskUnderTest).toList()));
+
+		// both define helper(), only a unity translation unit fails
+		Files.write(build.file("src/main/cpp/a.cpp"), Arrays.asList("static int helper() { return 1; }", "int a() { return helper(); }"));
+		Files.write(build.file("src/main/cpp/b.cpp"), Arrays.asList("static int helper() { return 2; }", "int b() { return helper(); }"));
+		result = succeeds(runner.withArguments(args.withTasks(taskUnderTest).toList()));
+		assertThat(result.task(taskUnderTest), not(performsFullRebuild()));
+		assertThat(result.task(taskUnderTest), output(containsString("source file(s) individually after unity translation unit failures.")));
+		assertThat(build.getLocation().resolve("build/objs"), aFile(hasDescendants(hasItem(withRelativePath(endsWith("a.o"))))));
+		assertThat(build.getLocation().resolve("build/objs"), aFile(hasDescendants(hasItem(withRelativePath(endsWith("b.o"))))));
+
+		// the excluded source files stay individual
+		Files.write(build.file("src/main/cpp/a.cpp"), Arrays.asList("", ""), StandardOpenOption.APPEND);
+		result = succeeds(runner.withArguments(args.withTasks(taskUnderTest).toList()));
+		assertThat(result.task(taskUnderTest), not(performsFullRebuild()));
+		assertThat(result.task(taskUnderTest), not(output(containsString("unity translation unit failures"))));
+	}
+
+	@Test
+	default void reportsFailuresOfIndividuallyCompiledMembers(TaskUnderTest taskUnderTest, @TempDir Path testDirectory, @GradleProject("project-with-unity-build") GradleBuildElement project) throws IOException {
+		GradleBuildElement build = project.writeToDirectory(testDirectory);
+		build.getBuildFile().append(groovyDsl("""
+			compileTask.options.incrementalAfterFailure = true
+		"""));
+		GradleRunner runner = GradleRunner.create().withProjectDir(build.getLocation().toFile()).withPluginClasspath().forwardOutput();
+		GradleRunnerArguments args = GradleRunnerArguments.create();
+
+		succeeds(runner.withArguments(args.withTasks(taskUnderTest).toList()));
+
+		Files.write(build.file("src/main/cpp/b.cpp"), Arrays.asList("broken!"));
+		ExecutedBuild result = fails(runner.withArguments(args.withTasks(taskUnderTest).toList()));
+		assertThat(result.task(taskUnderTest), failed());
+		assertThat(result.task(taskUnderTest), not(performsFullRebuild()));
+
+		Files.write(build.file("src/main/cpp/b.cpp"), Arrays.asList("int b() { return 2; }"));
+		result = succeeds(runner.withArguments(args.withTasks(taskUnderTest).toList()));
+		assertThat(result.task(taskUnderTest), not(performsFullRebuild()));
+	}
+}
@@ -12,6 +12,7 @@ import org.gradle.nativeplatform.plugins.NativeComponentPlugin;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.Arrays;
 
 import static dev.gradleplugins.buildscript.blocks.ApplyStatement.Notation.plugin;
@@ -20,7 +21,7 @@ import static dev.gradleplugins.buildscript.syntax.Syntax.*;
 import static dev.nokee.elements.core.ProjectElement.ofMain;
 
 @GradleTaskUnderTest(":compile")
-class CppCompileTaskFunctionalTests implements AbstractNativeLanguageCompilationFunctionalTester, AbstractNativeLanguageIncrementalCompilationFunctionalTester, AbstractNativeLanguageCachingCompilationFunctionalTester, SourceOptionsAwareFunctionalTester, AbstractNativeLanguageHeaderDiscoveryFunctionalTester, AbstractNativeLanguageIncrementalCompilationAfterFailureFunctionalTester {
+class CppCompileTaskFunctionalTests implements AbstractNativeLanguageCompilationFunctionalTester, AbstractNativeLanguageIncrementalCompilationFunctionalTester, AbstractNativeLanguageCachingCompilationFunctionalTester, SourceOptionsAwareFunctionalTester, AbstractNativeLanguageHeaderDiscoveryFunctionalTester, AbstractNativeLanguageIncrementalCompilationAfterFailureFunctionalTester, AbstractNativeLanguageUnityBuildFunctionalTester, AbstractNativeLanguageObjectCacheFunctionalTester, AbstractNativeLanguageMacroIncrementalCompilationFunctionalTester, AbstractNativeLanguageTranslationUnitQueueFunctionalTester, AbstractNativeLanguagePreCompiledHeaderFunctionalTester, AbstractNativeLanguageSourceOptionsBucketsFunctionalTester {
 	@GradleProject("project-without-source")
 	public static GradleBuildElement makeEmptyProject() throws IOException {
 		GradleBuildElement result = GradleBuildElement.empty();
@@ -269,6 +270,183 @@ class CppCompileTaskFunctionalTests implements AbstractNativeLanguageCompilation
 		return result;
 	}
 
+	@GradleProject("project-with-header-search-path-in-compiler-args")
+	public static GradleBuildElement makeProjectWithHeaderSearchPathInCompilerArgs() throws IOException {
+		GradleBuildElement result = makeProjectWithSourceFiles();
+		Files.writeString(result.file("src/main/cpp/uses-extra.cpp"), """
+				#include "extra.h"
+				int extra() { return 1; }
+		""".stripIndent());
+		Files.writeString(result.file("src/main/extra/extra.h"), """
+			#pragma once
+			#if EXTRA_VALUE != 1
+			#  error "unexpected extra value"
+			#endif
+		""".stripIndent());
+		Files.writeString(result.file("gradle.properties"), "\nsystemProp.dev.nokee.internal.native.compile.macro-incremental=true", StandardOpenOption.APPEND);
+
+		result.getBuildFile().append(groovyDsl("""
+			compileTask.compilerArgs.add("-I${file('src/main/extra')}")
+			compileTask.options.preprocessorOptions.define('EXTRA_VALUE', providers.gradleProperty('extra-value').orElse('1'))
+		""".stripIndent()));
+		return result;
+	}
+
+	@GradleProject("project-with-macro-references")
+	public static GradleBuildElement makeProjectWithMacroReferences() throws IOException {
+		GradleBuildElement result = makeProjectWithSourceFiles();
+		Files.writeString(result.file("src/main/cpp/uses-foo.cpp"), """
+				#if FOO != 1
+				#  error "unexpected FOO value"
+				#endif
+				int usesFoo() { return FOO; }
+		""".stripIndent());
+		Files.writeString(result.file("src/main/cpp/uses-square.cpp"), """
+				static_assert(SQUARE(3) == 9, "unexpected SQUARE value");
+				int usesSquare() { return SQUARE(3); }
+		""".stripIndent());
+		Files.writeString(result.file("gradle.properties"), "\nsystemProp.dev.nokee.internal.native.compile.macro-incremental=true", StandardOpenOption.APPEND);
+
+		result.getBuildFile().append(groovyDsl("""
+			compileTask.options.preprocessorOptions.define('FOO', 'BAR')
+			compileTask.options.preprocessorOptions.define('BAR', providers.gradleProperty('bar-value').orElse('1'))
+			compileTask.options.preprocessorOptions.define('SQUARE(x)', providers.gradleProperty('square-value').orElse('((x)*(x))'))
+			compileTask.options.preprocessorOptions.define('UNUSED_VALUE', providers.gradleProperty('unused-value').orElse('1'))
+		""".stripIndent()));
+		return result;
+	}
+
+	@GradleProject("project-with-unity-build")
+	public static GradleBuildElement makeProjectWithUnityBuild() throws IOException {
+		GradleBuildElement result = makeEmptyProject();
+		for (String name : Arrays.asList("a", "b", "c", "d", "e", "f")) {
+			Files.writeString(result.file("src/main/cpp/" + name + ".cpp"), "int %s() { return 42; }".formatted(name));
+		}
+
+		result.getBuildFile().append(groovyDsl("""
+			compileTask.source(fileTree('src/main/cpp'))
+			compileTask.options.unityBuild.enabled = providers.gradleProperty('unity').map { it.toBoolean() }.orElse(true)
+			compileTask.options.unityBuild.maximumSourceFilesPerUnit = 3
+		""".stripIndent()));
+		return result;
+	}
+
+	@GradleProject("project-with-several-source-options-buckets")
+	public static GradleBuildElement makeProjectWithSeveralSourceOptionsBuckets() throws IOException {
+		GradleBuildElement result = makeEmptyProject();
+		for (String name : Arrays.asList("a", "b", "c", "d", "e")) {
+			Files.writeString(result.file("src/main/cpp/" + name + ".cpp"), """
+				#ifndef BUCKET
+				#  error "missing source options"
+				#endif
+				int %s() { return BUCKET; }
+			""".stripIndent().formatted(name));
+		}
+		Files.writeString(result.file("src/main/cpp/f.cpp"), "int f() { return 0; }");
+
+		result.getBuildFile().append(groovyDsl("""
+			compileTask.source(fileTree('src/main/cpp'))
+			compileTask.source(files('src/main/cpp/a.cpp', 'src/main/cpp/b.cpp')) { compilerArgs.add('-DBUCKET=1') }
+			compileTask.source(files('src/main/cpp/c.cpp', 'src/main/cpp/d.cpp')) { compilerArgs.add('-DBUCKET=2') }
+			compileTask.source('src/main/cpp/e.cpp') { compilerArgs.add('-DBUCKET=3') }
+		""".stripIndent()));
+		return result;
+	}
+
+	@GradleProject("project-with-configurable-source-options-buckets")
+	public static GradleBuildElement makeProjectWithConfigurableSourceOptionsBuckets() throws IOException {
+		GradleBuildElement result = makeEmptyProject();
+		for (String name : Arrays.asList("a", "b", "c", "d", "e")) {
+			Files.writeString(result.file("src/main/cpp/" + name + ".cpp"), """
+				#ifndef BUCKET
+				#  error "missing source options"
+				#endif
+				int %s() { return BUCKET; }
+			""".stripIndent().formatted(name));
+		}
+		Files.writeString(result.file("src/main/cpp/f.cpp"), "int f() { return 0; }");
+		Files.writeString(result.file("gradle.properties"), "\nsystemProp.dev.nokee.internal.native.compile.bucket-incremental=true", StandardOpenOption.APPEND);
+
+		result.getBuildFile().append(groovyDsl("""
+			compileTask.source(fileTree('src/main/cpp'))
+			compileTask.source(files('src/main/cpp/a.cpp', 'src/main/cpp/b.cpp')) { compilerArgs.add('-DBUCKET=1') }
+			compileTask.source(files('src/main/cpp/c.cpp', 'src/main/cpp/d.cpp')) { compilerArgs.add(providers.gradleProperty('bucket-2-value').orElse('2').map { '-DBUCKET=' + it }) }
+			compileTask.source('src/main/cpp/e.cpp') { compilerArgs.add('-DBUCKET=3') }
+		""".stripIndent()));
+		return result;
+	}
+
+	@GradleProject("project-with-overlapping-source-options")
+	public static GradleBuildElement makeProjectWithOverlappingSourceOptions() throws IOException {
+		GradleBuildElement result = makeEmptyProject();
+		Files.writeString(result.file("src/main/cpp/top.cpp"), """
+			#if !defined(ALL) || defined(SUB) || defined(X)
+			#  error "unexpected options of top.cpp"
+			#endif
+			int top() { return 0; }
+		""".stripIndent());
+		Files.writeString(result.file("src/main/cpp/sub/y.cpp"), """
+			#if !defined(ALL) || !defined(SUB) || defined(X)
+			#  error "unexpected options of y.cpp"
+			#endif
+			int y() { return 1; }
+		""".stripIndent());
+		Files.writeString(result.file("src/main/cpp/sub/x.cpp"), """
+			#if !defined(ALL) || !defined(SUB) || !defined(X)
+			#  error "unexpected options of x.cpp"
+			#endif
+			int x() { return 2; }
+		""".stripIndent());
+
+		result.getBuildFile().append(groovyDsl("""
+			compileTask.source(fileTree('src/main/cpp'))
+			compileTask.source(fileTree('src/main/cpp')) { compilerArgs.add('-DALL') }
+			compileTask.source(fileTree('src/main/cpp/sub')) { compilerArgs.add('-DSUB') }
+			compileTask.source('src/main/cpp/sub/x.cpp') { compilerArgs.add('-DX') }
+		""".stripIndent()));
+		return result;
+	}
+
+	@GradleProject("project-with-precompiled-header")
+	public static GradleBuildElement makeProjectWithPreCompiledHeader() throws IOException {
+		GradleBuildElement result = makeEmptyProject();
+		Files.writeString(result.file("src/main/headers/common.h"), """
+			#pragma once
+			inline int common() { return 1; }
+		""".stripIndent());
+		Files.writeString(result.file("src/main/headers/pch.h"), """
+			#pragma once
+			#include "common.h"
+		""".stripIndent());
+		Files.writeString(result.file("src/main/pch/prefix-headers.h"), "#include \"pch.h\"\n");
+		for (String name : Arrays.asList("a", "b", "c")) {
+			Files.writeString(result.file("src/main/cpp/" + name + ".cpp"), """
+				#include "pch.h"
+				int %s() { return common(); }
+			""".stripIndent().formatted(name));
+		}
+
+		result.getBuildFile().append(groovyDsl("""
+			def compilePreCompiledHeader = tasks.create('compilePreCompiledHeader', CppPreCompiledHeaderCompile)
+			compilePreCompiledHeader.targetPlatform = compileTask.targetPlatform
+			compilePreCompiledHeader.toolChain = compileTask.toolChain
+			compilePreCompiledHeader.objectFileDir = layout.buildDirectory.dir('pch-objs')
+			compilePreCompiledHeader.includes.from('src/main/headers')
+			compilePreCompiledHeader.source('src/main/pch/prefix-headers.h')
+
+			def preCompiledHeader = new org.gradle.nativeplatform.toolchain.internal.PreCompiledHeader(new org.gradle.platform.base.internal.DefaultComponentSpecIdentifier(project.path, 'pch'))
+			preCompiledHeader.prefixHeaderFile = file('src/main/pch/prefix-headers.h')
+			preCompiledHeader.includeString = '"pch.h"'
+			preCompiledHeader.pchObjects = files(compilePreCompiledHeader).asFileTree.matching { include('**/*.pch', '**/*.gch') }
+
+			compileTask.preCompiledHeader = preCompiledHeader
+			compileTask.dependsOn(compilePreCompiledHeader)
+			compileTask.source(fileTree('src/main/cpp'))
+			compileTask.includes.from('src/main/headers')
+		""".stripIndent()));
+		return result;
+	}
+
 	@GradleProject("project-with-many-source-options-buckets")
 	public static GradleBuildElement makeProjectWithManySourceOptionsBuckets() throws IOException {
 		GradleBuildElement build = makeProjectWithSourceFiles();
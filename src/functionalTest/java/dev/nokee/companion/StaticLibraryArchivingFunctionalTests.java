@@ -0,0 +1,130 @@
+package dev.nokee.companion;
+
+import dev.nokee.companion.fixtures.GradleBuild;
+import dev.nokee.companion.fixtures.GradleRunnerArguments;
+import dev.nokee.companion.fixtures.GradleTestKitMatchers.ExecutedBuild;
+import org.apache.commons.lang3.SystemUtils;
+import org.gradle.testkit.runner.GradleRunner;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static dev.gradleplugins.buildscript.syntax.Syntax.groovyDsl;
+import static dev.nokee.companion.fixtures.GradleTestKitMatchers.*;
+import static dev.nokee.companion.fixtures.PathExtensions.write;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.junit.jupiter.api.Assumptions.assumeFalse;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+class StaticLibraryArchivingFunctionalTests {
+	@TempDir Path testDirectory;
+	GradleBuild build;
+	GradleRunner runner;
+	GradleRunnerArguments args = GradleRunnerArguments.create().withInfoLogging();
+	Path archiveFile;
+
+	@BeforeEach
+	void setup() {
+		assumeFalse(SystemUtils.IS_OS_WINDOWS, "Archiving requires an ar-compatible archiver"); // TODO: assert toolchain capability not OS
+
+		build = GradleBuild.inDirectory(testDirectory);
+		runner = GradleRunner.create().withProjectDir(build.getLocation().toFile()).withPluginClasspath().forwardOutput();
+
+		build.properties(it -> {
+			it.put("dev.nokee.native-companion.static-library-archiving.enabled", true);
+			it.put("systemProp.dev.nokee.internal.native.archive.thin", false); // the daemons are shared between tests
+		});
+		build.subproject("lib", project -> {
+			project.plugins(it -> {
+				it.id("dev.nokee.native-companion");
+				it.id("cpp-library");
+			});
+			project.append(groovyDsl("""
+				library {
+					linkage = [Linkage.STATIC]
+				}
+			"""));
+			write(project.file("src/main/cpp/a.cpp"), "int a() { return 1; }");
+			write(project.file("src/main/cpp/b.cpp"), "int b() { return 2; }");
+		});
+		archiveFile = build.subproject("lib").file("build/lib/main/debug/liblib.a");
+	}
+
+	@Test
+	void replacesOnlyChangedMembersOfArchive() throws IOException {
+		succeeds(runner.withArguments(args.withTasks(":lib:createDebug").toList()));
+
+		write(build.subproject("lib").file("src/main/cpp/a.cpp"), "int a() { return 42; }");
+		ExecutedBuild result = succeeds(runner.withArguments(args.withTasks(":lib:createDebug").toList()));
+		assertThat(result.task(":lib:createDebug"), executed());
+		assertThat(result.task(":lib:createDebug"), output(containsString("Replaced 1 and deleted 0 member(s) of archive")));
+		assertThat(membersOf(archiveFile), containsInAnyOrder("a.o", "b.o"));
+	}
+
+	@Test
+	void addsNewMembersToArchive() throws IOException {
+		succeeds(runner.withArguments(args.withTasks(":lib:createDebug").toList()));
+
+		write(build.subproject("lib").file("src/main/cpp/c.cpp"), "int c() { return 3; }");
+		ExecutedBuild result = succeeds(runner.withArguments(args.withTasks(":lib:createDebug").toList()));
+		assertThat(result.task(":lib:createDebug"), output(containsString("Replaced 1 and deleted 0 member(s) of archive")));
+		assertThat(membersOf(archiveFile), containsInAnyOrder("a.o", "b.o", "c.o"));
+	}
+
+	@Test
+	void deletesRemovedMembersFromArchive() throws IOException {
+		succeeds(runner.withArguments(args.withTasks(":lib:createDebug").toList()));
+
+		Files.delete(build.subproject("lib").file("src/main/cpp/b.cpp"));
+		ExecutedBuild result = succeeds(runner.withArguments(args.withTasks(":lib:createDebug").toList()));
+		assertThat(result.task(":lib:createDebug"), output(containsString("Replaced 0 and deleted 1 member(s) of archive")));
+		assertThat(membersOf(archiveFile), contains("a.o"));
+	}
+
+	@Test
+	void createsThinArchive() throws IOException {
+		assumeTrue(SystemUtils.IS_OS_LINUX, "Apple's ar doesn't support thin archives");
+		build.properties(it -> it.put("systemProp.dev.nokee.internal.native.archive.thin", true));
+
+		succeeds(runner.withArguments(args.withTasks(":lib:createDebug").toList()));
+		assertThat(new String(Files.readAllBytes(archiveFile), StandardCharsets.US_ASCII), startsWith("!<thin>\n"));
+		assertThat(membersOf(archiveFile), hasItems(endsWith("a.o"), endsWith("b.o")));
+
+		// recreated instead of updated
+		write(build.subproject("lib").file("src/main/cpp/a.cpp"), "int a() { return 42; }");
+		ExecutedBuild result = succeeds(runner.withArguments(args.withTasks(":lib:createDebug").toList()));
+		assertThat(result.task(":lib:createDebug"), executed());
+		assertThat(result.task(":lib:createDebug"), not(output(containsString("member(s) of archive"))));
+	}
+
+	@Test
+	void createsByteIdenticalArchivesAcrossBuilds() throws IOException, InterruptedException {
+		succeeds(runner.withArguments(args.withTasks(":lib:createDebug").toList()));
+		byte[] firstArchive = Files.readAllBytes(archiveFile);
+
+		Thread.sleep(1100); // ar records the member timestamps in seconds
+		succeeds(runner.withArguments(args.withTasks(":lib:clean", ":lib:createDebug").toList()));
+		assertThat(Files.readAllBytes(archiveFile), equalTo(firstArchive));
+	}
+
+	private static List<String> membersOf(Path archiveFile) throws IOException {
+		Process process = new ProcessBuilder("ar", "t", archiveFile.toString()).redirectErrorStream(true).start();
+		try {
+			String output = new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+			assertThat("ar exit value", process.waitFor(), equalTo(0));
+			// Apple's ar lists the symbol table as a member
+			return Arrays.stream(output.trim().split("\\R")).filter(it -> !it.startsWith("__.SYMDEF")).collect(Collectors.toList());
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
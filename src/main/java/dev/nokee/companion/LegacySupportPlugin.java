@@ -35,6 +35,7 @@ import java.util.Set;
 
 		plugins.apply("native-companion.replace-cpp-compile-task");
 		plugins.apply("native-companion.replace-link-tasks");
+		plugins.apply("native-companion.replace-create-tasks");
 		feature.apply("native-task-object-files-extension");
 		feature.apply("compile-tasks-extension");
 		plugins.apply(CppSourceFiles.Rule.class);
@@ -57,6 +58,9 @@ import java.util.Set;
 		feature.apply("overlinking-avoidance");
 		feature.apply("rpath-link-flags");
 		feature.apply("link-avoidance");
+		feature.apply("object-cache");
+		feature.apply("memory-budget");
+		feature.apply("static-library-archiving");
 
 		feature.apply("multiplatform-publication");
 		// TODO: Source include (cxx)
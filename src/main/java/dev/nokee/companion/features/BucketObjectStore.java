@@ -0,0 +1,194 @@
+package dev.nokee.companion.features;
+
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+import org.gradle.internal.hash.HashCode;
+import org.gradle.internal.hash.Hashing;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Task-scoped store of the last object file of each translation unit, keyed like the {@link ObjectCache}.
+ *
+ * <p>Changing the options of a per-source bucket, or a macro, changes the task inputs, Gradle deletes the object files and compiles everything again.
+ * The store keeps a copy of each compiled object file outside the task outputs.
+ * The translation units of the unaffected buckets, or not referencing the changed macros, restore their object file, only the affected ones compile.
+ * The entries are copied both ways, the compilers overwrite the object files in place.
+ * The entries are also verified by content hash on restore.
+ *
+ * <p>Each translation unit keeps a single entry, {@code <storeDirectory>/<key>.o} and optionally {@code <key>.d}, indexed in {@code <storeDirectory>/index.bin}.
+ */
+final class BucketObjectStore implements ObjectStore {
+	private static final Logger LOGGER = Logging.getLogger(BucketObjectStore.class);
+	private static final int MAGIC = 0x4e4b424f; // NKBO
+	private static final int FORMAT_VERSION = 2;
+	private static final String OBJECT_FILE_SUFFIX = ".o";
+	private static final String DEPENDENCY_FILE_SUFFIX = ".d";
+	private final File storeDirectory;
+	private final Map<String, Entry> entries = new HashMap<>(); // by object file path
+	private final Map<String, Entry> entriesByKey = new HashMap<>();
+	private boolean changed = false;
+
+	private BucketObjectStore(File storeDirectory) {
+		this.storeDirectory = storeDirectory;
+	}
+
+	/**
+	 * Loads the store, a missing or unreadable index is empty.
+	 *
+	 * @param storeDirectory  the store directory
+	 * @return the store, never null
+	 */
+	public static BucketObjectStore load(File storeDirectory) {
+		BucketObjectStore result = new BucketObjectStore(storeDirectory);
+		File indexFile = new File(storeDirectory, "index.bin");
+		if (indexFile.exists()) {
+			try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexFile.toPath())))) {
+				if (in.readInt() == MAGIC && in.readInt() == FORMAT_VERSION) {
+					for (int count = in.readInt(); count > 0; --count) {
+						result.put(new Entry(in.readUTF(), in.readUTF(), HashCode.fromString(in.readUTF())));
+					}
+					result.changed = false;
+				}
+			} catch (IOException | RuntimeException e) {
+				LOGGER.info("Could not read bucket object store '" + indexFile + "', starting over.", e);
+				result.entries.clear();
+				result.entriesByKey.clear();
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public synchronized boolean restore(HashCode key, File objectFile) {
+		Entry entry = entriesByKey.get(key.toString());
+		if (entry == null) {
+			return false;
+		}
+
+		File storedObjectFile = entryFile(entry.key, OBJECT_FILE_SUFFIX);
+		try {
+			Files.createDirectories(objectFile.getParentFile().toPath());
+			File storedDependencyFile = entryFile(entry.key, DEPENDENCY_FILE_SUFFIX);
+			if (storedDependencyFile.exists()) {
+				copy(storedDependencyFile, ObjectCache.dependencyFileOf(objectFile));
+			}
+			if (!copy(storedObjectFile, objectFile).equals(entry.contentHash)) {
+				Files.deleteIfExists(objectFile.toPath());
+				throw new IOException("Stored object file was modified.");
+			}
+		} catch (IOException e) {
+			// the source is compiled instead
+			LOGGER.info("Could not restore stored object file '" + storedObjectFile + "'.", e);
+			remove(entry);
+			return false;
+		}
+		return true; // the key includes the source file, hence the object file location
+	}
+
+	@Override
+	public synchronized void store(HashCode key, File objectFile) {
+		Entry previousEntry = entries.get(objectFile.getAbsolutePath());
+		if (previousEntry != null) {
+			remove(previousEntry); // a single entry per translation unit
+		}
+
+		try {
+			Files.createDirectories(storeDirectory.toPath());
+			File dependencyFile = ObjectCache.dependencyFileOf(objectFile);
+			if (dependencyFile.exists()) {
+				copy(dependencyFile, entryFile(key.toString(), DEPENDENCY_FILE_SUFFIX));
+			}
+			HashCode contentHash = copy(objectFile, entryFile(key.toString(), OBJECT_FILE_SUFFIX));
+			put(new Entry(objectFile.getAbsolutePath(), key.toString(), contentHash));
+		} catch (IOException e) {
+			// the store is only an optimization
+			LOGGER.info("Could not store object file '" + objectFile + "'.", e);
+		}
+	}
+
+	@Override
+	public synchronized void flush() {
+		if (!changed) {
+			return;
+		}
+
+		File indexFile = new File(storeDirectory, "index.bin");
+		File temporaryFile = new File(indexFile.getPath() + ".tmp");
+		try {
+			Files.createDirectories(storeDirectory.toPath());
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporaryFile.toPath())))) {
+				out.writeInt(MAGIC);
+				out.writeInt(FORMAT_VERSION);
+				out.writeInt(entries.size());
+				for (Entry entry : entries.values()) {
+					out.writeUTF(entry.objectFilePath);
+					out.writeUTF(entry.key);
+					out.writeUTF(entry.contentHash.toString());
+				}
+			}
+			Files.move(temporaryFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			changed = false;
+		} catch (IOException e) {
+			LOGGER.info("Could not write bucket object store '" + indexFile + "'.", e);
+		}
+	}
+
+	private void put(Entry entry) {
+		entries.put(entry.objectFilePath, entry);
+		entriesByKey.put(entry.key, entry);
+		changed = true;
+	}
+
+	private void remove(Entry entry) {
+		entries.remove(entry.objectFilePath, entry);
+		if (entriesByKey.remove(entry.key, entry)) {
+			try {
+				Files.deleteIfExists(entryFile(entry.key, OBJECT_FILE_SUFFIX).toPath());
+				Files.deleteIfExists(entryFile(entry.key, DEPENDENCY_FILE_SUFFIX).toPath());
+			} catch (IOException e) {
+				LOGGER.info("Could not delete stored object file of '" + entry.objectFilePath + "'.", e);
+			}
+		}
+		changed = true;
+	}
+
+	// Never shares the file with the task outputs (i.e. hard link), returns the content hash of the copy
+	private static HashCode copy(File source, File destination) throws IOException {
+		File temporaryFile = new File(destination.getPath() + "." + UUID.randomUUID() + ".tmp");
+		try {
+			Files.copy(source.toPath(), temporaryFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			HashCode result = Hashing.hashFile(temporaryFile);
+			Files.move(temporaryFile.toPath(), destination.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			return result;
+		} finally {
+			Files.deleteIfExists(temporaryFile.toPath());
+		}
+	}
+
+	private File entryFile(String key, String suffix) {
+		return new File(storeDirectory, key + suffix);
+	}
+
+	private static final class Entry {
+		private final String objectFilePath;
+		private final String key;
+		private final HashCode contentHash;
+
+		private Entry(String objectFilePath, String key, HashCode contentHash) {
+			this.objectFilePath = objectFilePath;
+			this.key = key;
+			this.contentHash = contentHash;
+		}
+	}
+}
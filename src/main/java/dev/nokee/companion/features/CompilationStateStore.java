@@ -0,0 +1,732 @@
+package dev.nokee.companion.features;
+
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+import org.gradle.internal.hash.HashCode;
+import org.gradle.language.nativeplatform.internal.incremental.BuildableCompilationState;
+import org.gradle.language.nativeplatform.internal.incremental.CompilationState;
+import org.gradle.language.nativeplatform.internal.incremental.IncludeFileEdge;
+import org.gradle.language.nativeplatform.internal.incremental.SourceFileState;
+
+import javax.annotation.Nullable;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * Compact store for the compilation state of a single compile task, replacing Gradle's task history holder.
+ *
+ * <p>The store is an append-only log read in memory when loaded.
+ * Paths, hashes and edge sets are interned in tables, each source file state refers to them by id, identical edge sets are shared.
+ * Saving only appends the source files that changed since the state was loaded, followed by a commit marker.
+ * A partially written delta is ignored.
+ * The log is rewritten when superseded records outnumber the live ones.
+ *
+ * <p>The store also keeps a fingerprint of the directories the include graphs were resolved from, see {@link #fingerprint},
+ * and the headers reported by the compiler for each source file, see {@link #dependencies(File, Map)}.
+ *
+ * <p>Not thread-safe, the store is used by a single compile task.
+ */
+final class CompilationStateStore {
+	private static final Logger LOGGER = Logging.getLogger(CompilationStateStore.class);
+	private static final int MAGIC = 0x4e4b4353; // NKCS
+	private static final int FORMAT_VERSION = 2;
+	private static final int HEADER_SIZE = 8;
+	private static final byte STRING = 1;
+	private static final byte HASH = 2;
+	private static final byte EDGES = 3;
+	private static final byte SOURCE = 4;
+	private static final byte REMOVE = 5;
+	private static final byte COMMIT = 6;
+	private static final byte FINGERPRINT = 7;
+	private static final byte DEPENDENCIES = 8;
+
+	private final File stateFile;
+	private final List<String> strings = new ArrayList<>();
+	private final Map<String, Integer> stringIds = new HashMap<>();
+	private final List<HashCode> hashes = new ArrayList<>();
+	private final Map<HashCode, Integer> hashIds = new HashMap<>();
+	private final List<Set<IncludeFileEdge>> edgeSets = new ArrayList<>();
+	private final Map<List<IncludeFileEdge>, Integer> edgeSetIds = new HashMap<>(); // edge order matters
+	private final Map<File, SourceFileState> sourceStates = new LinkedHashMap<>();
+	private final Map<File, Map<File, HashCode>> sourceDependencies = new HashMap<>();
+	private final Map<File, Map<File, HashCode>> newDependencies = new LinkedHashMap<>();
+	private long committedLength = 0;
+	private int supersededRecords = 0;
+	private boolean loaded = false;
+	@Nullable private Fingerprint fingerprint;
+	@Nullable private Fingerprint newFingerprint;
+
+	public CompilationStateStore(File stateFile) {
+		this.stateFile = stateFile;
+	}
+
+	/**
+	 * Returns a {@code ObjectHolder<CompilationState>} (or equivalent for the current Gradle version) backed by this store.
+	 *
+	 * @param holderType  the holder interface expected by Gradle
+	 * @return the holder
+	 */
+	public Object/*Holder<CompilationState>*/ asHolder(Class<?> holderType) {
+		return Proxy.newProxyInstance(holderType.getClassLoader(), new Class<?>[] {holderType}, (proxy, method, args) -> {
+			switch (method.getName()) {
+				case "get": return load();
+				case "set": save((CompilationState) args[0]); return null;
+				case "equals": return proxy == args[0];
+				case "hashCode": return System.identityHashCode(proxy);
+				case "toString": return "compilation state '" + stateFile + "'";
+				default: throw new UnsupportedOperationException(method.getName());
+			}
+		});
+	}
+
+	public CompilationState load() {
+		ensureLoaded();
+		BuildableCompilationState result = new BuildableCompilationState();
+		for (Map.Entry<File, SourceFileState> entry : sourceStates.entrySet()) {
+			result.setState(entry.getKey(), entry.getValue());
+		}
+		return result.snapshot();
+	}
+
+	private void ensureLoaded() {
+		if (!loaded) {
+			loaded = true;
+			if (stateFile.isFile()) {
+				try (FileChannel channel = FileChannel.open(stateFile.toPath(), StandardOpenOption.READ)) {
+					if (channel.size() <= Integer.MAX_VALUE) {
+						replay(read(channel, (int) channel.size()));
+					}
+				} catch (IOException e) {
+					LOGGER.info("Could not read compilation state '" + stateFile + "', ignoring.", e);
+					reset();
+				}
+			}
+		}
+	}
+
+	//region Replay
+	private void replay(ByteBuffer buffer) {
+		if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != FORMAT_VERSION) {
+			return;
+		}
+
+		Map<IncludeFileEdge, IncludeFileEdge> edges = new HashMap<>();
+		List<Map.Entry<File, SourceFileState>> pending = new ArrayList<>();
+		List<Map.Entry<File, Map<File, HashCode>>> pendingDependencies = new ArrayList<>();
+		Fingerprint pendingFingerprint = null;
+		int stringCount = 0;
+		int hashCount = 0;
+		int edgeSetCount = 0;
+		int position = HEADER_SIZE;
+		committedLength = HEADER_SIZE;
+		try {
+			while (position < buffer.limit()) {
+				byte type = buffer.get(position++);
+				if (type == STRING) {
+					int length = buffer.getInt(position);
+					strings.add(new String(bytes(buffer, position + 4, length), StandardCharsets.UTF_8));
+					position += 4 + length;
+				} else if (type == HASH) {
+					int length = buffer.get(position) & 0xff;
+					hashes.add(HashCode.fromBytes(bytes(buffer, position + 1, length)));
+					position += 1 + length;
+				} else if (type == EDGES) {
+					int count = buffer.getInt(position);
+					position += 4;
+					Set<IncludeFileEdge> edgeSet = new LinkedHashSet<>();
+					for (int i = 0; i < count; ++i) {
+						String includePath = strings.get(buffer.getInt(position));
+						int includedBy = buffer.getInt(position + 4);
+						HashCode resolvedTo = hashes.get(buffer.getInt(position + 8));
+						IncludeFileEdge edge = new IncludeFileEdge(includePath, includedBy < 0 ? null : hashes.get(includedBy), resolvedTo);
+						IncludeFileEdge existingEdge = edges.putIfAbsent(edge, edge);
+						edgeSet.add(existingEdge == null ? edge : existingEdge);
+						position += 12;
+					}
+					edgeSets.add(IncrementalCompileFilesFactory.immutableEdges(edgeSet));
+				} else if (type == SOURCE) {
+					File sourceFile = new File(strings.get(buffer.getInt(position)));
+					HashCode hash = hashes.get(buffer.getInt(position + 4));
+					boolean hasUnresolved = buffer.get(position + 8) != 0;
+					Set<IncludeFileEdge> edgeSet = edgeSets.get(buffer.getInt(position + 9));
+					pending.add(new AbstractMap.SimpleImmutableEntry<>(sourceFile, IncrementalCompileFilesFactory.newState(hash, hasUnresolved, edgeSet)));
+					position += 13;
+				} else if (type == REMOVE) {
+					pending.add(new AbstractMap.SimpleImmutableEntry<>(new File(strings.get(buffer.getInt(position))), null));
+					position += 4;
+				} else if (type == FINGERPRINT) {
+					List<String> includeRoots = new ArrayList<>();
+					for (int i = 0, count = buffer.getInt(position); i < count; ++i) {
+						includeRoots.add(strings.get(buffer.getInt(position + 4 + i * 4)));
+					}
+					position += 4 + includeRoots.size() * 4;
+					Map<String, HashCode> directories = new LinkedHashMap<>();
+					for (int i = 0, count = buffer.getInt(position); i < count; ++i) {
+						directories.put(strings.get(buffer.getInt(position + 4 + i * 8)), hashes.get(buffer.getInt(position + 8 + i * 8)));
+					}
+					position += 4 + directories.size() * 8;
+					List<String> headers = new ArrayList<>();
+					for (int i = 0, count = buffer.getInt(position); i < count; ++i) {
+						headers.add(strings.get(buffer.getInt(position + 4 + i * 4)));
+					}
+					position += 4 + headers.size() * 4;
+					pendingFingerprint = new Fingerprint(includeRoots, directories, headers);
+				} else if (type == DEPENDENCIES) {
+					File sourceFile = new File(strings.get(buffer.getInt(position)));
+					Map<File, HashCode> headers = new LinkedHashMap<>();
+					for (int i = 0, count = buffer.getInt(position + 4); i < count; ++i) {
+						headers.put(new File(strings.get(buffer.getInt(position + 8 + i * 8))), hashes.get(buffer.getInt(position + 12 + i * 8)));
+					}
+					position += 8 + headers.size() * 8;
+					pendingDependencies.add(new AbstractMap.SimpleImmutableEntry<>(sourceFile, headers));
+				} else if (type == COMMIT) {
+					if (pendingFingerprint != null) {
+						fingerprint = pendingFingerprint;
+						pendingFingerprint = null;
+					}
+					for (Map.Entry<File, SourceFileState> entry : pending) {
+						SourceFileState previousState = entry.getValue() == null ? sourceStates.remove(entry.getKey()) : sourceStates.put(entry.getKey(), entry.getValue());
+						if (previousState != null) {
+							++supersededRecords;
+						}
+						if (entry.getValue() == null) {
+							++supersededRecords; // the removal itself
+						}
+						// Dependencies are written after the source file state they belong to
+						if (sourceDependencies.remove(entry.getKey()) != null) {
+							++supersededRecords;
+						}
+					}
+					for (Map.Entry<File, Map<File, HashCode>> entry : pendingDependencies) {
+						if (sourceDependencies.put(entry.getKey(), entry.getValue()) != null) {
+							++supersededRecords;
+						}
+					}
+					pending.clear();
+					pendingDependencies.clear();
+					stringCount = strings.size();
+					hashCount = hashes.size();
+					edgeSetCount = edgeSets.size();
+					committedLength = position;
+				} else {
+					break; // unknown record, stop here
+				}
+			}
+		} catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+			// Partially written delta, ignore it
+		}
+
+		// Drop the uncommitted tail
+		strings.subList(stringCount, strings.size()).clear();
+		hashes.subList(hashCount, hashes.size()).clear();
+		edgeSets.subList(edgeSetCount, edgeSets.size()).clear();
+		for (int i = 0; i < strings.size(); ++i) {
+			stringIds.putIfAbsent(strings.get(i), i);
+		}
+		for (int i = 0; i < hashes.size(); ++i) {
+			hashIds.putIfAbsent(hashes.get(i), i);
+		}
+		for (int i = 0; i < edgeSets.size(); ++i) {
+			edgeSetIds.putIfAbsent(new ArrayList<>(edgeSets.get(i)), i);
+		}
+	}
+
+	private static byte[] bytes(ByteBuffer buffer, int offset, int length) {
+		if (length < 0 || offset + length > buffer.limit()) {
+			throw new IndexOutOfBoundsException();
+		}
+		byte[] result = new byte[length];
+		for (int i = 0; i < length; ++i) {
+			result[i] = buffer.get(offset + i);
+		}
+		return result;
+	}
+	//endregion
+
+	public void save(@Nullable CompilationState state) {
+		ensureLoaded();
+		Map<File, SourceFileState> newStates = state == null ? Collections.emptyMap() : state.getFileStates();
+		try {
+			if (committedLength < HEADER_SIZE || supersededRecords > sourceStates.size()) {
+				rewrite(newStates);
+			} else {
+				append(newStates);
+			}
+		} catch (IOException e) {
+			LOGGER.info("Could not write compilation state '" + stateFile + "', discarding.", e);
+			reset();
+			stateFile.delete();
+		}
+	}
+
+	private void append(Map<File, SourceFileState> newStates) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		int superseded = 0;
+		Map<File, Map<File, HashCode>> dependencies = new HashMap<>(sourceDependencies);
+		for (Map.Entry<File, SourceFileState> entry : newStates.entrySet()) {
+			SourceFileState previousState = sourceStates.get(entry.getKey());
+			if (previousState != null && isSameState(previousState, entry.getValue())) {
+				continue;
+			}
+			writeSource(out, entry.getKey(), entry.getValue());
+			if (previousState != null) {
+				++superseded;
+			}
+			if (dependencies.remove(entry.getKey()) != null) {
+				++superseded;
+			}
+		}
+		for (File sourceFile : sourceStates.keySet()) {
+			if (!newStates.containsKey(sourceFile)) {
+				out.writeByte(REMOVE);
+				out.writeInt(stringId(out, sourceFile.getAbsolutePath()));
+				superseded += 2; // the source and its removal
+				if (dependencies.remove(sourceFile) != null) {
+					++superseded;
+				}
+			}
+		}
+		for (Map.Entry<File, Map<File, HashCode>> entry : newDependencies.entrySet()) {
+			if (newStates.containsKey(entry.getKey()) && !entry.getValue().equals(dependencies.get(entry.getKey()))) {
+				writeDependencies(out, entry.getKey(), entry.getValue());
+				if (dependencies.put(entry.getKey(), entry.getValue()) != null) {
+					++superseded;
+				}
+			}
+		}
+		if (newFingerprint != null && !newFingerprint.equals(fingerprint)) {
+			writeFingerprint(out, newFingerprint);
+		}
+		if (bytes.size() == 0) {
+			return; // nothing changed
+		}
+		out.writeByte(COMMIT);
+		out.flush();
+
+		try (FileChannel channel = FileChannel.open(stateFile.toPath(), StandardOpenOption.WRITE)) {
+			writeFully(channel, ByteBuffer.wrap(bytes.toByteArray()), committedLength);
+			committedLength += bytes.size();
+			try {
+				channel.truncate(committedLength);
+			} catch (IOException e) {
+				// Uncommitted tail will be ignored
+			}
+		}
+		supersededRecords += superseded;
+		sourceStates.clear();
+		sourceStates.putAll(newStates);
+		sourceDependencies.clear();
+		sourceDependencies.putAll(dependencies);
+		newDependencies.clear();
+		if (newFingerprint != null) {
+			fingerprint = newFingerprint;
+		}
+	}
+
+	private void rewrite(Map<File, SourceFileState> newStates) throws IOException {
+		// Keep the dependencies of the unchanged source file states
+		Map<File, Map<File, HashCode>> dependencies = new HashMap<>();
+		for (Map.Entry<File, Map<File, HashCode>> entry : sourceDependencies.entrySet()) {
+			SourceFileState previousState = sourceStates.get(entry.getKey());
+			SourceFileState newState = newStates.get(entry.getKey());
+			if (previousState != null && newState != null && isSameState(previousState, newState)) {
+				dependencies.put(entry.getKey(), entry.getValue());
+			}
+		}
+		for (Map.Entry<File, Map<File, HashCode>> entry : newDependencies.entrySet()) {
+			if (newStates.containsKey(entry.getKey())) {
+				dependencies.put(entry.getKey(), entry.getValue());
+			}
+		}
+
+		reset();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(MAGIC);
+		out.writeInt(FORMAT_VERSION);
+		for (Map.Entry<File, SourceFileState> entry : newStates.entrySet()) {
+			writeSource(out, entry.getKey(), entry.getValue());
+		}
+		for (Map.Entry<File, Map<File, HashCode>> entry : dependencies.entrySet()) {
+			writeDependencies(out, entry.getKey(), entry.getValue());
+		}
+		if (newFingerprint != null) {
+			writeFingerprint(out, newFingerprint);
+		}
+		out.writeByte(COMMIT);
+		out.flush();
+
+		Files.createDirectories(stateFile.getParentFile().toPath());
+		File tempFile = new File(stateFile.getParentFile(), stateFile.getName() + ".tmp");
+		Files.write(tempFile.toPath(), bytes.toByteArray());
+		try {
+			Files.move(tempFile.toPath(), stateFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(tempFile.toPath(), stateFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+		committedLength = bytes.size();
+		sourceStates.putAll(newStates);
+		sourceDependencies.putAll(dependencies);
+		fingerprint = newFingerprint;
+	}
+
+	private void reset() {
+		strings.clear();
+		stringIds.clear();
+		hashes.clear();
+		hashIds.clear();
+		edgeSets.clear();
+		edgeSetIds.clear();
+		sourceStates.clear();
+		sourceDependencies.clear();
+		newDependencies.clear();
+		fingerprint = null;
+		committedLength = 0;
+		supersededRecords = 0;
+	}
+
+	/**
+	 * Compares each fingerprinted directory, i.e. include root, to its current hash.
+	 * The includes resolved only in unchanged directories resolve to the same headers, see {@link UnchangedDirectories#previousResolution}.
+	 *
+	 * @param includeRoots  the current include roots, in order
+	 * @param hasher  the directory hasher, i.e. VFS snapshot
+	 * @return the unchanged directories or null if the include graphs needs to be checked (i.e. the include roots changed)
+	 */
+	@Nullable
+	public UnchangedDirectories unchangedDirectories(List<File> includeRoots, Function<? super File, ? extends HashCode> hasher) {
+		ensureLoaded();
+		if (fingerprint == null || !fingerprint.includeRoots.equals(pathsOf(includeRoots))) {
+			return null;
+		}
+
+		Set<File> directories = new HashSet<>();
+		for (Map.Entry<String, HashCode> entry : fingerprint.directories.entrySet()) {
+			File directory = new File(entry.getKey());
+			if (entry.getValue().equals(hasher.apply(directory))) {
+				directories.add(directory);
+			}
+		}
+
+		Set<File> headers = new LinkedHashSet<>(fingerprint.headers.size());
+		for (String header : fingerprint.headers) {
+			headers.add(new File(header));
+		}
+		return new UnchangedDirectories(includeRoots, directories, directories.size() == fingerprint.directories.size(), headers);
+	}
+
+	/**
+	 * Fingerprints the directories the include graphs were resolved from, saved with the next state.
+	 * Those are the include roots and the directories of each source files and existing headers.
+	 * Any header added, removed or modified in those directories changes the fingerprint.
+	 *
+	 * @param includeRoots  the include roots, in order
+	 * @param sourceFiles  the source files
+	 * @param headers  the existing headers
+	 * @param hasher  the directory hasher, i.e. VFS snapshot
+	 */
+	public void fingerprint(List<File> includeRoots, Collection<File> sourceFiles, Collection<File> headers, Function<? super File, ? extends HashCode> hasher) {
+		Set<File> directories = new LinkedHashSet<>(includeRoots);
+		for (File sourceFile : sourceFiles) {
+			directories.add(sourceFile.getParentFile());
+		}
+		for (File header : headers) {
+			directories.add(header.getParentFile());
+		}
+
+		Map<String, HashCode> directoryHashes = new LinkedHashMap<>();
+		for (File directory : directories) {
+			directoryHashes.put(directory.getAbsolutePath(), hasher.apply(directory));
+		}
+		newFingerprint = new Fingerprint(pathsOf(includeRoots), directoryHashes, pathsOf(headers));
+	}
+
+	/**
+	 * Returns the headers reported by the compiler when the source file was last compiled, with their content hash.
+	 *
+	 * @param sourceFile  the source file
+	 * @return the headers or null if unknown (i.e. no dependency file)
+	 */
+	@Nullable
+	public Map<File, HashCode> dependenciesOf(File sourceFile) {
+		ensureLoaded();
+		return sourceDependencies.get(sourceFile);
+	}
+
+	/**
+	 * Records the headers reported by the compiler for the source file just compiled, saved with the next state.
+	 *
+	 * @param sourceFile  the compiled source file
+	 * @param headers  the headers with their content hash at compile time
+	 */
+	public void dependencies(File sourceFile, Map<File, HashCode> headers) {
+		newDependencies.put(sourceFile, headers);
+	}
+
+	private static List<String> pathsOf(Collection<File> files) {
+		List<String> result = new ArrayList<>(files.size());
+		for (File file : files) {
+			result.add(file.getAbsolutePath());
+		}
+		return result;
+	}
+
+	//region Writing
+	private void writeFingerprint(DataOutputStream out, Fingerprint value) throws IOException {
+		int[] rootIds = new int[value.includeRoots.size()];
+		for (int i = 0; i < rootIds.length; ++i) {
+			rootIds[i] = stringId(out, value.includeRoots.get(i));
+		}
+		int[] directoryIds = new int[value.directories.size() * 2];
+		int index = 0;
+		for (Map.Entry<String, HashCode> entry : value.directories.entrySet()) {
+			directoryIds[index++] = stringId(out, entry.getKey());
+			directoryIds[index++] = hashId(out, entry.getValue());
+		}
+		int[] headerIds = new int[value.headers.size()];
+		for (int i = 0; i < headerIds.length; ++i) {
+			headerIds[i] = stringId(out, value.headers.get(i));
+		}
+
+		out.writeByte(FINGERPRINT);
+		out.writeInt(rootIds.length);
+		for (int id : rootIds) {
+			out.writeInt(id);
+		}
+		out.writeInt(value.directories.size());
+		for (int id : directoryIds) {
+			out.writeInt(id);
+		}
+		out.writeInt(headerIds.length);
+		for (int id : headerIds) {
+			out.writeInt(id);
+		}
+	}
+
+	private void writeDependencies(DataOutputStream out, File sourceFile, Map<File, HashCode> headers) throws IOException {
+		int pathId = stringId(out, sourceFile.getAbsolutePath());
+		int[] headerIds = new int[headers.size() * 2];
+		int index = 0;
+		for (Map.Entry<File, HashCode> entry : headers.entrySet()) {
+			headerIds[index++] = stringId(out, entry.getKey().getAbsolutePath());
+			headerIds[index++] = hashId(out, entry.getValue());
+		}
+
+		out.writeByte(DEPENDENCIES);
+		out.writeInt(pathId);
+		out.writeInt(headers.size());
+		for (int id : headerIds) {
+			out.writeInt(id);
+		}
+	}
+
+	private void writeSource(DataOutputStream out, File sourceFile, SourceFileState state) throws IOException {
+		int pathId = stringId(out, sourceFile.getAbsolutePath());
+		int hashId = hashId(out, state.getHash());
+		int edgeSetId = edgeSetId(out, IncrementalCompileFilesFactory.edgesOf(state));
+		out.writeByte(SOURCE);
+		out.writeInt(pathId);
+		out.writeInt(hashId);
+		out.writeByte(state.isHasUnresolved() ? 1 : 0);
+		out.writeInt(edgeSetId);
+	}
+
+	private int stringId(DataOutputStream out, String value) throws IOException {
+		Integer result = stringIds.get(value);
+		if (result == null) {
+			byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+			out.writeByte(STRING);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+			result = strings.size();
+			strings.add(value);
+			stringIds.put(value, result);
+		}
+		return result;
+	}
+
+	private int hashId(DataOutputStream out, HashCode value) throws IOException {
+		Integer result = hashIds.get(value);
+		if (result == null) {
+			byte[] bytes = value.toByteArray();
+			out.writeByte(HASH);
+			out.writeByte(bytes.length);
+			out.write(bytes);
+			result = hashes.size();
+			hashes.add(value);
+			hashIds.put(value, result);
+		}
+		return result;
+	}
+
+	private int edgeSetId(DataOutputStream out, Set<IncludeFileEdge> value) throws IOException {
+		List<IncludeFileEdge> key = new ArrayList<>(value);
+		Integer result = edgeSetIds.get(key);
+		if (result == null) {
+			// Intern the edge components before writing the edge set
+			int[] ids = new int[value.size() * 3];
+			Iterator<IncludeFileEdge> iter = value.iterator();
+			for (int i = 0; iter.hasNext(); i += 3) {
+				IncludeFileEdge edge = iter.next();
+				ids[i] = stringId(out, edge.getIncludePath());
+				ids[i + 1] = edge.getIncludedBy() == null ? -1 : hashId(out, edge.getIncludedBy());
+				ids[i + 2] = hashId(out, edge.getResolvedTo());
+			}
+			out.writeByte(EDGES);
+			out.writeInt(value.size());
+			for (int id : ids) {
+				out.writeInt(id);
+			}
+			result = edgeSets.size();
+			edgeSets.add(value);
+			edgeSetIds.put(key, result);
+		}
+		return result;
+	}
+	//endregion
+
+	// Edge order matters, see IncrementalCompileFilesFactory#graphHasNotChanged
+	private static boolean isSameState(SourceFileState previousState, SourceFileState newState) {
+		return previousState == newState || (previousState.isHasUnresolved() == newState.isHasUnresolved()
+			&& Objects.equals(previousState.getHash(), newState.getHash())
+			&& new ArrayList<>(IncrementalCompileFilesFactory.edgesOf(previousState)).equals(new ArrayList<>(IncrementalCompileFilesFactory.edgesOf(newState))));
+	}
+
+	/**
+	 * The fingerprinted directories unchanged since the previous compilation.
+	 */
+	static final class UnchangedDirectories {
+		private final List<File> includeRoots;
+		private final Set<File> directories;
+		private final boolean all;
+		private final Set<File> previousHeaders;
+
+		UnchangedDirectories(List<File> includeRoots, Set<File> directories, boolean all, Set<File> previousHeaders) {
+			this.includeRoots = includeRoots;
+			this.directories = directories;
+			this.all = all;
+			this.previousHeaders = previousHeaders;
+		}
+
+		/**
+		 * {@return true if none of the directories changed, the include graph of each unchanged source file is the same}
+		 */
+		public boolean all() {
+			return all;
+		}
+
+		/**
+		 * {@return the existing headers of the previous compilation}
+		 */
+		public Set<File> previousHeaders() {
+			return previousHeaders;
+		}
+
+		/**
+		 * Returns the header the include resolved to in the previous compilation if every directory searched up to it is unchanged.
+		 * The directories searched before didn't contain the include, else it would have resolved there, and still don't.
+		 * The directory containing the header still contains the same header.
+		 *
+		 * @param includedFrom  the including file for quoted includes or null
+		 * @param includePath  the include path, relative to the searched directories
+		 * @return the previously resolved header or null if the include needs to be resolved
+		 */
+		@Nullable
+		public File previousResolution(@Nullable File includedFrom, String includePath) {
+			if (new File(includePath).isAbsolute() || Arrays.asList(includePath.split("[/\\\\]")).contains("..")) {
+				return null; // outside the searched directories
+			}
+
+			if (includedFrom != null) {
+				File result = previousResolutionIn(includedFrom.getParentFile(), includePath);
+				if (result != null || !directories.contains(includedFrom.getParentFile())) {
+					return result;
+				}
+			}
+			for (File includeRoot : includeRoots) {
+				File result = previousResolutionIn(includeRoot, includePath);
+				if (result != null || !directories.contains(includeRoot)) {
+					return result;
+				}
+			}
+			return null; // previously unresolved
+		}
+
+		@Nullable
+		private File previousResolutionIn(File directory, String includePath) {
+			if (!directories.contains(directory)) {
+				return null; // changed, the include may resolve here now
+			}
+			File candidate = new File(directory, includePath);
+			return previousHeaders.contains(candidate) ? candidate : null;
+		}
+	}
+
+	private static final class Fingerprint {
+		private final List<String> includeRoots;
+		private final Map<String, HashCode> directories;
+		private final List<String> headers;
+
+		private Fingerprint(List<String> includeRoots, Map<String, HashCode> directories, List<String> headers) {
+			this.includeRoots = includeRoots;
+			this.directories = directories;
+			this.headers = headers;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Fingerprint)) return false;
+			Fingerprint that = (Fingerprint) o;
+			return includeRoots.equals(that.includeRoots) && directories.equals(that.directories) && headers.equals(that.headers);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(includeRoots, directories, headers);
+		}
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			position += channel.write(buffer, position);
+		}
+	}
+
+	// Reads the file in the heap, a memory mapping would prevent truncating or replacing the file on Windows
+	private static ByteBuffer read(FileChannel channel, int length) throws IOException {
+		ByteBuffer result = ByteBuffer.allocate(length);
+		while (result.hasRemaining()) {
+			if (channel.read(result) < 0) {
+				break; // truncated meanwhile
+			}
+		}
+		result.flip();
+		return result;
+	}
+}
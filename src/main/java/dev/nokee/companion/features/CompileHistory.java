@@ -0,0 +1,166 @@
+package dev.nokee.companion.features;
+
+import dev.nokee.language.cpp.tasks.CppCompile;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Compile duration, outcome and peak memory of each compilation unit from the previous executions of a compile task.
+ * The history orders the compile invocations according to a {@link CppCompile.SchedulingPolicy}.
+ *
+ * <p>Thread-safe, the outcomes are recorded from the worker threads.
+ */
+final class CompileHistory {
+	private static final Logger LOGGER = Logging.getLogger(CompileHistory.class);
+	private static final int MAGIC = 0x4e4b4348; // NKCH
+	private static final int FORMAT_VERSION = 2;
+	private final File historyFile;
+	private final Map<String, Outcome> outcomes = new ConcurrentHashMap<>();
+	private volatile boolean changed = false;
+
+	private CompileHistory(File historyFile) {
+		this.historyFile = historyFile;
+	}
+
+	/**
+	 * Loads the history, a missing or unreadable history is empty.
+	 *
+	 * @param historyFile  the history file
+	 * @return the history, never null
+	 */
+	public static CompileHistory load(File historyFile) {
+		CompileHistory result = new CompileHistory(historyFile);
+		if (historyFile.exists()) {
+			try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(historyFile.toPath())))) {
+				if (in.readInt() == MAGIC && in.readInt() == FORMAT_VERSION) {
+					for (int count = in.readInt(); count > 0; --count) {
+						result.outcomes.put(in.readUTF(), new Outcome(in.readLong(), in.readBoolean(), in.readLong()));
+					}
+				}
+			} catch (IOException e) {
+				LOGGER.info("Could not read compile history '" + historyFile + "', starting over.", e);
+				result.outcomes.clear();
+			}
+		}
+		return result;
+	}
+
+	public void save() {
+		if (!changed) {
+			return;
+		}
+
+		File temporaryFile = new File(historyFile.getPath() + ".tmp");
+		try {
+			Files.createDirectories(historyFile.getParentFile().toPath());
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporaryFile.toPath())))) {
+				Map<String, Outcome> outcomes = new HashMap<>(this.outcomes);
+				out.writeInt(MAGIC);
+				out.writeInt(FORMAT_VERSION);
+				out.writeInt(outcomes.size());
+				for (Map.Entry<String, Outcome> entry : outcomes.entrySet()) {
+					out.writeUTF(entry.getKey());
+					out.writeLong(entry.getValue().durationMillis);
+					out.writeBoolean(entry.getValue().failed);
+					out.writeLong(entry.getValue().peakMemoryBytes);
+				}
+			}
+			Files.move(temporaryFile.toPath(), historyFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			changed = false;
+		} catch (IOException e) {
+			// the history is only an optimization
+			LOGGER.info("Could not write compile history '" + historyFile + "'.", e);
+		}
+	}
+
+	/**
+	 * Records the outcome of a compilation unit.
+	 *
+	 * @param key  the compilation unit, i.e. the source file path
+	 * @param durationMillis  the compile duration
+	 * @param failed  {@code true} if the compilation failed
+	 * @param peakMemoryBytes  the measured peak memory of the compiler or 0 if unknown
+	 */
+	public void record(String key, long durationMillis, boolean failed, long peakMemoryBytes) {
+		if (peakMemoryBytes <= 0) {
+			peakMemoryBytes = peakMemoryOf(key); // keep the previous measure
+		}
+		outcomes.put(key, new Outcome(durationMillis, failed, peakMemoryBytes));
+		changed = true;
+	}
+
+	/**
+	 * {@return the peak memory of the compilation unit's previous compilation or 0 if unknown}
+	 *
+	 * @param key  the compilation unit, i.e. the source file path
+	 */
+	public long peakMemoryOf(String key) {
+		Outcome outcome = outcomes.get(key);
+		return outcome == null ? 0 : outcome.peakMemoryBytes;
+	}
+
+	/**
+	 * Orders the specified items according to the scheduling policy.
+	 * The sort is stable, items without history keep their source order relative to each other.
+	 *
+	 * @param items  the items in source order
+	 * @param keyOf  the compilation unit of an item
+	 * @param policy  the scheduling policy
+	 * @return the items in scheduling order
+	 */
+	public <T> List<T> schedule(List<T> items, Function<? super T, String> keyOf, CppCompile.SchedulingPolicy policy) {
+		List<T> result = new ArrayList<>(items);
+		Comparator<T> longestFirst = Comparator.comparingLong(it -> -durationOf(keyOf.apply(it)));
+		switch (policy) {
+			case LONGEST_FIRST:
+				result.sort(longestFirst);
+				break;
+			case FAILED_FIRST:
+				result.sort(Comparator.<T, Boolean>comparing(it -> !hasFailed(keyOf.apply(it))).thenComparing(longestFirst));
+				break;
+			case SOURCE_ORDER:
+			default:
+				break;
+		}
+		return result;
+	}
+
+	// Unknown compilation units are considered the longest, i.e. new source files
+	private long durationOf(String key) {
+		Outcome outcome = outcomes.get(key);
+		return outcome == null ? Long.MAX_VALUE : outcome.durationMillis;
+	}
+
+	private boolean hasFailed(String key) {
+		Outcome outcome = outcomes.get(key);
+		return outcome != null && outcome.failed;
+	}
+
+	private static final class Outcome {
+		private final long durationMillis;
+		private final boolean failed;
+		private final long peakMemoryBytes;
+
+		private Outcome(long durationMillis, boolean failed, long peakMemoryBytes) {
+			this.durationMillis = durationMillis;
+			this.failed = failed;
+			this.peakMemoryBytes = peakMemoryBytes;
+		}
+	}
+}
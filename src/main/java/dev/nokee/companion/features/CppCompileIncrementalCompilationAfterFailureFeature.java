@@ -16,6 +16,7 @@ import javax.inject.Inject;
 
 	@Override
 	public void apply(Project project) {
+		GradleInternals.assertAvailable("incremental-compilation-after-failure", GradleInternals.TRANSACTIONAL_COMPILATION_MEMBERS);
 		tasks.withType(CppCompileTask.class, task -> {
 			task.getOptions().getIncrementalAfterFailure().convention(true);
 		});
@@ -0,0 +1,52 @@
+package dev.nokee.companion.features;
+
+import dev.nokee.commons.gradle.Plugins;
+import org.gradle.api.Plugin;
+import org.gradle.api.Project;
+import org.gradle.api.provider.Provider;
+import org.gradle.api.tasks.TaskContainer;
+
+import javax.inject.Inject;
+import java.io.File;
+
+/*private*/ abstract /*final*/ class CppCompileObjectCacheFeature implements Plugin<Project> {
+	// Either 'user-home', 'project' or a directory path, defaults to 'user-home'
+	private static final String OBJECT_CACHE_DIRECTORY_PROPERTY_NAME = "dev.nokee.internal.native.compile.object-cache.directory";
+	// Maximum size of the cached object files in megabytes
+	private static final String OBJECT_CACHE_MAX_SIZE_PROPERTY_NAME = "dev.nokee.internal.native.compile.object-cache.max-size";
+	private final TaskContainer tasks;
+
+	@Inject
+	public CppCompileObjectCacheFeature(TaskContainer tasks) {
+		this.tasks = tasks;
+	}
+
+	@Override
+	public void apply(Project project) {
+		GradleInternals.assertAvailable("object-cache", GradleInternals.VERSION_AWARE_COMPILER_COMPILER, GradleInternals.OUTPUT_CLEANING_COMPILER_GET_OBJECT_FILE);
+		Plugins.forProject(project).apply("native-companion.features.fix-for-gradle-34152"); // requires the header graph of each source file
+
+		Provider<ObjectCache> objectCache = project.getGradle().getSharedServices().registerIfAbsent("object-cache", ObjectCache.class, spec -> {
+			spec.getParameters().getCacheDirectory().set(objectCacheDirectory(project, System.getProperty(OBJECT_CACHE_DIRECTORY_PROPERTY_NAME, "user-home")));
+			spec.getParameters().getMaxSizeInBytes().convention(Long.getLong(OBJECT_CACHE_MAX_SIZE_PROPERTY_NAME, 5 * 1024L) * 1024L * 1024L);
+		});
+		tasks.withType(CppCompileTask.class).configureEach(task -> {
+			task.usesService(objectCache);
+			task.getObjectCacheService().set(objectCache);
+		});
+	}
+
+	private static File objectCacheDirectory(Project project, String location) {
+		if (location.equals("user-home")) {
+			return new File(project.getGradle().getGradleUserHomeDir(), "caches/nokee-companion/objects");
+		} else if (location.equals("project")) {
+			File projectCacheDir = project.getGradle().getStartParameter().getProjectCacheDir();
+			if (projectCacheDir == null) {
+				projectCacheDir = new File(project.getRootDir(), ".gradle");
+			}
+			return new File(projectCacheDir, "nokee-companion/objects");
+		} else {
+			return new File(location);
+		}
+	}
+}
@@ -1,13 +1,14 @@
 package dev.nokee.companion.features;
 
 import dev.nokee.commons.gradle.Plugins;
-import dev.nokee.commons.gradle.provider.ProviderUtils;
 import dev.nokee.commons.gradle.tasks.options.OptionsAware;
 import dev.nokee.commons.gradle.tasks.options.SourceOptions;
 import dev.nokee.commons.gradle.tasks.options.SourceOptionsAware;
 import dev.nokee.language.cpp.tasks.CppCompile;
 import dev.nokee.language.nativebase.tasks.options.NativeCompileOptions;
 import dev.nokee.language.nativebase.tasks.options.PreprocessorOptions;
+import dev.nokee.nativeplatform.tasks.MemoryBudget;
+import dev.nokee.nativeplatform.tasks.MemoryBudgetAware;
 import org.gradle.api.Action;
 import org.gradle.api.Plugin;
 import org.gradle.api.Project;
@@ -17,7 +18,7 @@ import org.gradle.api.provider.*;
 import org.gradle.api.specs.Spec;
 import org.gradle.api.tasks.*;
 import org.gradle.internal.Cast;
-import org.gradle.internal.io.StreamByteBuffer;
+import org.gradle.internal.hash.Hashing;
 import org.gradle.internal.operations.*;
 import org.gradle.internal.operations.logging.BuildOperationLogger;
 import org.gradle.internal.os.OperatingSystem;
@@ -25,6 +26,7 @@ import org.gradle.language.base.internal.compile.Compiler;
 import org.gradle.language.base.internal.compile.VersionAwareCompiler;
 import org.gradle.language.cpp.CppBinary;
 import org.gradle.language.cpp.plugins.CppBasePlugin;
+import org.gradle.language.cpp.tasks.internal.DefaultCppPCHCompileSpec;
 import org.gradle.language.nativeplatform.internal.incremental.IncrementalCompilerBuilder;
 import org.gradle.language.nativeplatform.tasks.AbstractNativeCompileTask;
 import org.gradle.nativeplatform.internal.BuildOperationLoggingCompilerDecorator;
@@ -32,12 +34,13 @@ import org.gradle.nativeplatform.platform.internal.NativePlatformInternal;
 import org.gradle.nativeplatform.toolchain.Clang;
 import org.gradle.nativeplatform.toolchain.Gcc;
 import org.gradle.nativeplatform.toolchain.internal.*;
+import org.gradle.nativeplatform.toolchain.internal.compilespec.CppPCHCompileSpec;
+import org.gradle.nativeplatform.toolchain.internal.metadata.CompilerMetadata;
+import org.gradle.nativeplatform.toolchain.internal.tools.CommandLineToolSearchResult;
 import org.gradle.process.CommandLineArgumentProvider;
 import org.gradle.process.ExecOperations;
 import org.gradle.process.internal.ExecException;
 import org.gradle.work.InputChanges;
-import org.gradle.workers.WorkAction;
-import org.gradle.workers.WorkParameters;
 import org.gradle.workers.WorkQueue;
 import org.gradle.workers.WorkerExecutor;
 
@@ -45,19 +48,28 @@ import javax.annotation.Nullable;
 import javax.inject.Inject;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.lang.reflect.Field;
-import java.nio.charset.Charset;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static dev.nokee.commons.names.CppNames.compileTaskName;
 import static dev.nokee.companion.features.ReflectionUtils.*;
 import static dev.nokee.companion.features.TransactionalCompiler.outputFileDir;
 
 @CacheableTask
-/*private*/ abstract /*final*/ class CppCompileTask extends CppCompile implements OptionsAware, SourceOptionsAware<NativeCompileOptions> {
+/*private*/ abstract /*final*/ class CppCompileTask extends CppCompile implements OptionsAware, SourceOptionsAware<NativeCompileOptions>, MemoryBudgetAware {
+	// GCC/Clang only, compiles multiple source files with the same arguments per compiler invocation
+	private static final String BATCHING_PROPERTY_NAME = "dev.nokee.internal.native.compile.batching";
+	// Keeps the object files of the per-source buckets unaffected by an options change, without the object cache
+	private static final String BUCKET_INCREMENTAL_PROPERTY_NAME = "dev.nokee.internal.native.compile.bucket-incremental";
+	// Keeps the object files of the translation units not referencing a changed macro, without the object cache
+	private static final String MACRO_INCREMENTAL_PROPERTY_NAME = "dev.nokee.internal.native.compile.macro-incremental";
 	public static abstract class DefaultTaskOptions implements dev.nokee.commons.gradle.tasks.options.Options, CppCompile.Options {
 		private ListProperty<String> compilerArgs;
 		private SourceOptionsLookup allOptions;
@@ -74,6 +86,10 @@ import static dev.nokee.companion.features.TransactionalCompiler.outputFileDir;
 		@Override
 		public abstract DefaultPreprocessorOptions getPreprocessorOptions();
 
+		@Nested
+		@Override
+		public abstract UnityBuildOptions getUnityBuild();
+
 		@Internal
 		@Override
 		public ListProperty<String> getCompilerArgs() {
@@ -195,33 +211,34 @@ import static dev.nokee.companion.features.TransactionalCompiler.outputFileDir;
 	@Override
 	protected void compile(InputChanges inputs) {
 		BuildOperationLogger operationLogger = this.getOperationLoggerFactory().newOperationLogger(this.getName(), this.getTemporaryDir());
-		IsolatableBuildOperationLogger.newLogger(operationLogger, logger -> {
-			NativeCompileSpec spec = createCompileSpec();
-			spec.setTargetPlatform(getTargetPlatform().get());
-			spec.setTempDir(getTemporaryDir());
-			spec.setObjectFileDir(getObjectFileDir().get().getAsFile());
-			spec.include(getIncludes());
-			spec.systemInclude(getSystemIncludes());
-			spec.source(getSource());
-			spec.setMacros(getMacros());
-			spec.args(getCompilerArgs().get());
-			for (CommandLineArgumentProvider argProvider : getOptions().getCompilerArgumentProviders().get()) {
-				argProvider.asArguments().forEach(spec.getArgs()::add);
-			}
-			spec.setPositionIndependentCode(isPositionIndependentCode());
-			spec.setDebuggable(isDebuggable());
-			spec.setOptimized(isOptimized());
-			spec.setIncrementalCompile(inputs.isIncremental());
-			spec.setOperationLogger(logger);
+		NativeCompileSpec spec = createCompileSpec();
+		spec.setTargetPlatform(getTargetPlatform().get());
+		spec.setTempDir(getTemporaryDir());
+		spec.setObjectFileDir(getObjectFileDir().get().getAsFile());
+		spec.include(getIncludes());
+		spec.systemInclude(getSystemIncludes());
+		spec.source(getSource());
+		spec.setMacros(getMacros());
+		spec.args(getCompilerArgs().get());
+		for (CommandLineArgumentProvider argProvider : getOptions().getCompilerArgumentProviders().get()) {
+			argProvider.asArguments().forEach(spec.getArgs()::add);
+		}
+		if (usesDependencyFiles()) {
+			spec.getArgs().add("-MD"); // writes <object>.d next to each object file
+		}
+		spec.setPositionIndependentCode(isPositionIndependentCode());
+		spec.setDebuggable(isDebuggable());
+		spec.setOptimized(isOptimized());
+		spec.setIncrementalCompile(inputs.isIncremental());
+		spec.setOperationLogger(operationLogger);
 
-			this.configureSpec(spec);
+		this.configureSpec(spec);
 
-			NativeToolChainInternal nativeToolChain = (NativeToolChainInternal) getToolChain().get();
-			NativePlatformInternal nativePlatform = (NativePlatformInternal) getTargetPlatform().get();
-			PlatformToolProvider platformToolProvider = nativeToolChain.select(nativePlatform);
+		NativeToolChainInternal nativeToolChain = (NativeToolChainInternal) getToolChain().get();
+		NativePlatformInternal nativePlatform = (NativePlatformInternal) getTargetPlatform().get();
+		PlatformToolProvider platformToolProvider = nativeToolChain.select(nativePlatform);
 
-			setDidWork(doCompile(spec, platformToolProvider).getDidWork());
-		});
+		setDidWork(doCompile(spec, platformToolProvider).getDidWork());
 	}
 
 	// Copied from AbstractNativeSourceCompileTask#doCompile with support for per-source options
@@ -229,53 +246,94 @@ import static dev.nokee.companion.features.TransactionalCompiler.outputFileDir;
 		Class<T> specType = Cast.uncheckedCast(spec.getClass());
 		Compiler<T> baseCompiler = platformToolProvider.newCompiler(specType);
 
-		Compiler<T> perSourceCompiler = baseCompiler;
-
 		SourceOptions<NativeCompileOptions> allOptions = getAllSourceOptions().getOrNull();
-		if (allOptions != null) {
+		boolean batching = usesBatching();
+		CppCompile.SchedulingPolicy schedulingPolicy = getOptions().getSchedulingPolicy().getOrElse(CppCompile.SchedulingPolicy.SOURCE_ORDER);
+		MemoryBudget memoryBudget = getMemoryBudgetService().getOrNull();
+		boolean incrementalAfterFailure = getOptions().getIncrementalAfterFailure().getOrElse(false);
+		// The translation units are stashed when dispatched by the queue
+		boolean usesPerSourceCompiler = allOptions != null || batching || schedulingPolicy != CppCompile.SchedulingPolicy.SOURCE_ORDER || memoryBudget != null || incrementalAfterFailure;
+
+		// Stashes the object files just before they are overwritten
+		TransactionalCompiler transaction = null;
+		Compiler<T> stashingCompiler = baseCompiler;
+		if (incrementalAfterFailure) {
+			// The successfully compiled translation units of a failed compilation are committed by input hash
+			IncrementalCompilerBuilder.IncrementalCompiler incrementalCompiler = getIncrementalCompiler();
+			ObjectCache.InputHasher inputHasher = incrementalCompiler instanceof ObjectCache.InputHasher ? (ObjectCache.InputHasher) incrementalCompiler : null;
+			transaction = new TransactionalCompiler(outputFileDir(baseCompiler), inputHasher, getFileOperations());
+			stashingCompiler = transaction.unitCompiler(baseCompiler);
+		}
+
+		// All translation units of all buckets goes into a single queue
+		WorkQueue queue = null;
+		Compiler<T> queuedCompiler = stashingCompiler;
+		if (usesPerSourceCompiler) {
+			// Always record the history, it's available when switching policy
+			CompileHistory history = CompileHistory.load(new File(getTemporaryDir(), "compile-history.bin"));
+			File diagnosticsDirectory = new File(getTemporaryDir(), "diagnostics");
+			getFileOperations().delete(it -> it.delete(diagnosticsDirectory)); // stale outputs of the previous execution
+			TranslationUnitQueue translationUnitQueue = new TranslationUnitQueue(getTranslationUnitQueueService().get(), getPath(), executor.noIsolation(), history, schedulingPolicy, memoryBudget);
+			// The compiler invocations of a translation unit are only reachable via the build operation executor
+			InlineBuildOperationExecutor buildOperationExecutor = objects.newInstance(InlineBuildOperationExecutor.class);
+			buildOperationExecutor.diagnostics(diagnosticsDirectory);
+			if (patchBuildOperationExecutor(baseCompiler, buildOperationExecutor) && batching) {
+				File batchesDirectory = new File(getTemporaryDir(), "batches");
+				getFileOperations().delete(it -> it.delete(batchesDirectory)); // leftovers of an interrupted execution
+				buildOperationExecutor.batching(batchesDirectory);
+				translationUnitQueue.batching(maxWorkerCount);
+			}
+			queuedCompiler = translationUnitQueue.compiler(stashingCompiler, this::copyOf);
+			queue = translationUnitQueue.asWorkQueue();
+		}
+
+		final UnityBuild unityBuild = newUnityBuild(spec, baseCompiler);
+		Compiler<T> unitCompiler = unityBuild == null ? queuedCompiler : unityBuild.unitCompiler(queuedCompiler);
+
+		ObjectCaching objectCaching = newObjectCaching(platformToolProvider, baseCompiler, allOptions != null, transaction);
+		Compiler<T> bucketCompiler = objectCaching == null ? unitCompiler : objectCaching.bucketCompiler(unitCompiler);
+
+		Compiler<T> perSourceCompiler = bucketCompiler;
+		if (usesPerSourceCompiler) {
+			SourceBuckets sourceBuckets = allOptions == null ? null : SourceBuckets.load(new File(spec.getTempDir(), "source-buckets.bin"), spec.isIncrementalCompile());
 			PerSourceCompiler.SourceSpecProvider<T> sourceSpecProvider = new PerSourceCompiler.SourceSpecProvider<T>() {
 				@Override
 				public Iterable<T> forFiles(Collection<File> files) {
 					List<T> result = new ArrayList<>();
-					for (SourceOptions.Group<NativeCompileOptions> groupedOptions : allOptions.forFiles(getObjects().fileCollection().from(files).getAsFileTree()).groupedByOptions()) {
-						NativeCompileSpec newSpec = createCompileSpec();
-
-						//region Copy default spec to new spec
-						newSpec.setTargetPlatform(spec.getTargetPlatform());
-						newSpec.setTempDir(spec.getTempDir());
-						newSpec.getArgs().addAll(spec.getArgs());
-						newSpec.getSystemArgs().addAll(spec.getSystemArgs());
-						newSpec.setOperationLogger(spec.getOperationLogger());
-
-						newSpec.setObjectFileDir(spec.getObjectFileDir());
-						newSpec.getIncludeRoots().addAll(spec.getIncludeRoots());
-						newSpec.getSystemIncludeRoots().addAll(spec.getSystemIncludeRoots());
-						newSpec.setSourceFiles(spec.getSourceFiles());
-						newSpec.setRemovedSourceFiles(spec.getRemovedSourceFiles());
-						newSpec.setMacros(spec.getMacros());
-						newSpec.setPositionIndependentCode(spec.isPositionIndependentCode());
-						newSpec.setDebuggable(spec.isDebuggable());
-						newSpec.setOptimized(spec.isOptimized());
-						newSpec.setIncrementalCompile(spec.isIncrementalCompile());
-						newSpec.setPrefixHeaderFile(spec.getPrefixHeaderFile());
-						newSpec.setPreCompiledHeaderObjectFile(spec.getPreCompiledHeaderObjectFile());
-						newSpec.setPreCompiledHeader(spec.getPreCompiledHeader());
-						newSpec.setSourceFilesForPch(spec.getSourceFilesForPch());
-						//endregion
-
-						newSpec.setSourceFiles(groupedOptions.getSourceFiles()); // set only the bucket source
+					if (sourceBuckets == null) {
+						return result; // only the default bucket, i.e. batching, scheduling or admission without per-source options
+					}
+
+					// Evaluates the rules only for the source files without bucket, in a single pass
+					List<File> unassignedFiles = sourceBuckets.unassigned(files);
+					if (!unassignedFiles.isEmpty()) {
+						for (SourceOptions.Group<NativeCompileOptions> groupedOptions : allOptions.forFiles(getObjects().fileCollection().from(unassignedFiles).getAsFileTree()).groupedByOptions()) {
+							List<String> args = new ArrayList<>(groupedOptions.getOptions().getCompilerArgs().get());
+							for (CommandLineArgumentProvider argumentProvider : groupedOptions.getOptions().getCompilerArgumentProviders().get()) {
+								argumentProvider.asArguments().forEach(args::add);
+							}
+							sourceBuckets.assign(groupedOptions.getUniqueId(), args, groupedOptions.getSourceFiles());
+						}
+						sourceBuckets.assignDefault(unassignedFiles);
+						sourceBuckets.save();
+					}
+
+					for (Map.Entry<SourceBuckets.Bucket, List<File>> bucket : sourceBuckets.groupedByBucket(files).entrySet()) {
+						T newSpec = copyOf(spec);
+
+						newSpec.setSourceFiles(bucket.getValue()); // set only the bucket source
 						newSpec.setRemovedSourceFiles(Collections.emptyList()); // do not remove any files
 
 						// Namespace the temporary directory (i.e. where the options.txt will be written)
-						newSpec.setTempDir(new File(spec.getTempDir(), groupedOptions.getUniqueId()));
+						newSpec.setTempDir(new File(spec.getTempDir(), bucket.getKey().getUniqueId()));
 
 						// Configure the bucket spec from the per-source options
-						newSpec.args(groupedOptions.getOptions().getCompilerArgs().get());
-						for (CommandLineArgumentProvider argumentProvider : groupedOptions.getOptions().getCompilerArgumentProviders().get()) {
-							argumentProvider.asArguments().forEach(newSpec.getArgs()::add);
-						}
+						newSpec.args(bucket.getKey().getArgs());
 
-						result.add((T) newSpec);
+						result.add(newSpec);
+					}
+					if (unityBuild != null) {
+						return result; // the unity build may ask for the failing unity members
 					}
 					try {
 						((AutoCloseable) getSourceOptions()).close(); // release some memory
@@ -285,50 +343,178 @@ import static dev.nokee.companion.features.TransactionalCompiler.outputFileDir;
 					return result;
 				}
 			};
-			WorkQueue queue = executor.noIsolation();
-			perSourceCompiler = new PerSourceCompiler<>(baseCompiler, sourceSpecProvider, queue);
-
-			// region Patching BuildOperationExecutor
-			try {
-				Compiler<T> compiler = baseCompiler;
-				while (!(compiler instanceof AbstractCompiler)) {
-					if (compiler instanceof VersionAwareCompiler) {
-						compiler = readFieldValue(getField(compiler.getClass(), "compiler"), compiler);
-					} else if (compiler instanceof OutputCleaningCompiler) {
-						compiler = readFieldValue(getField(compiler.getClass(), "compiler"), compiler);
+			PerSourceCompiler.PreCompiledHeaderCompiler<T> preCompiledHeaderCompiler = null;
+			if (spec.getPreCompiledHeader() != null && GradleInternals.isAvailable(GradleInternals.VERSION_AWARE_COMPILER_COMPILER) && GradleInternals.isAvailable(GradleInternals.OUTPUT_CLEANING_COMPILER_GET_OBJECT_FILE)) {
+				Compiler<CppPCHCompileSpec> compiler = platformToolProvider.newCompiler(CppPCHCompileSpec.class);
+				TransactionalCompiler.OutputFileDirResolver objectFiles = outputFileDir(compiler);
+				TransactionalCompiler pchTransaction = transaction;
+				preCompiledHeaderCompiler = (bucketSpec, flagsDirectory, headerGraphHash) -> {
+					File outputDirectory = new File(flagsDirectory, headerGraphHash == null ? "unknown" : headerGraphHash.toString());
+					File preCompiledHeaderObjectFile = objectFiles.outputFileDir(spec.getPrefixHeaderFile(), outputDirectory);
+					if (headerGraphHash != null && preCompiledHeaderObjectFile.isFile()) {
+						return preCompiledHeaderObjectFile; // same flags and header graph as the previous compilation
 					}
-				}
 
-				updateFieldValue(getField(AbstractCompiler.class, "buildOperationExecutor"), compiler, objects.newInstance(WorkerBackedBuildOperationExecutor.class, queue));
-				getLogger().debug("Patching the build operation executor was successful, enjoy light speed compilation!");
-			} catch (Throwable e) {
-				// do not patch... serial execution == slower
-				getLogger().info("Could not patch the build operation executor, per-source option buckets will execute serially (aka slower).", e);
+					CppPCHCompileSpec pchSpec = new DefaultCppPCHCompileSpec();
+
+					//region Copy bucket spec to precompiled header spec
+					pchSpec.setTargetPlatform(bucketSpec.getTargetPlatform());
+					pchSpec.getArgs().addAll(bucketSpec.getArgs());
+					pchSpec.getSystemArgs().addAll(bucketSpec.getSystemArgs());
+					pchSpec.setOperationLogger(bucketSpec.getOperationLogger());
+					pchSpec.getIncludeRoots().addAll(bucketSpec.getIncludeRoots());
+					pchSpec.getSystemIncludeRoots().addAll(bucketSpec.getSystemIncludeRoots());
+					pchSpec.setMacros(bucketSpec.getMacros());
+					pchSpec.setPositionIndependentCode(bucketSpec.isPositionIndependentCode());
+					pchSpec.setDebuggable(bucketSpec.isDebuggable());
+					pchSpec.setOptimized(bucketSpec.isOptimized());
+					//endregion
+
+					pchSpec.setSourceFiles(Collections.singletonList(spec.getPrefixHeaderFile()));
+					pchSpec.setObjectFileDir(outputDirectory);
+					pchSpec.setTempDir(new File(bucketSpec.getTempDir(), "pch")); // namespace the options.txt
+
+					if (pchTransaction != null) {
+						// replaces the precompiled header of the previous header graph
+						pchTransaction.stash(flagsDirectory);
+					}
+					compiler.execute(pchSpec); // synchronous, the bucket sources needs the precompiled header
+					return preCompiledHeaderObjectFile;
+				};
 			}
-			//endregion
-		}
 
-		Compiler<T> transactionalCompiler = perSourceCompiler;
-		if (getOptions().getIncrementalAfterFailure().getOrElse(false) && spec.isIncrementalCompile()) {
-			transactionalCompiler = new TransactionalCompiler<>(perSourceCompiler, outputFileDir(baseCompiler), getObjects(), getFileOperations());
+			IncrementalCompilerBuilder.IncrementalCompiler incrementalCompiler = getIncrementalCompiler();
+			ObjectCache.InputHasher inputHasher = incrementalCompiler instanceof ObjectCache.InputHasher ? (ObjectCache.InputHasher) incrementalCompiler : null;
+			perSourceCompiler = new PerSourceCompiler<>(bucketCompiler, sourceSpecProvider, preCompiledHeaderCompiler, inputHasher, queue);
 		}
+
+		Compiler<T> unityCompiler = unityBuild == null ? perSourceCompiler : unityBuild.compiler(perSourceCompiler);
+
+		Compiler<T> cachingCompiler = objectCaching == null ? unityCompiler : objectCaching.compiler(unityCompiler);
+
+		Compiler<T> transactionalCompiler = transaction == null ? cachingCompiler : transaction.compiler(cachingCompiler);
 		Compiler<T> incrementalCompiler = getIncrementalCompiler().createCompiler(transactionalCompiler);
 		Compiler<T> loggingCompiler = BuildOperationLoggingCompilerDecorator.wrap(incrementalCompiler);
 		return loggingCompiler.execute(spec);
 	}
 
+	@SuppressWarnings("unchecked")
+	private <T extends NativeCompileSpec> T copyOf(T spec) {
+		NativeCompileSpec newSpec = createCompileSpec();
+		newSpec.setTargetPlatform(spec.getTargetPlatform());
+		newSpec.setTempDir(spec.getTempDir());
+		newSpec.getArgs().addAll(spec.getArgs());
+		newSpec.getSystemArgs().addAll(spec.getSystemArgs());
+		newSpec.setOperationLogger(spec.getOperationLogger());
+
+		newSpec.setObjectFileDir(spec.getObjectFileDir());
+		newSpec.getIncludeRoots().addAll(spec.getIncludeRoots());
+		newSpec.getSystemIncludeRoots().addAll(spec.getSystemIncludeRoots());
+		newSpec.setSourceFiles(new ArrayList<>(spec.getSourceFiles()));
+		newSpec.setRemovedSourceFiles(new ArrayList<>(spec.getRemovedSourceFiles()));
+		newSpec.setMacros(spec.getMacros());
+		newSpec.setPositionIndependentCode(spec.isPositionIndependentCode());
+		newSpec.setDebuggable(spec.isDebuggable());
+		newSpec.setOptimized(spec.isOptimized());
+		newSpec.setIncrementalCompile(spec.isIncrementalCompile());
+		newSpec.setPrefixHeaderFile(spec.getPrefixHeaderFile());
+		newSpec.setPreCompiledHeaderObjectFile(spec.getPreCompiledHeaderObjectFile());
+		newSpec.setPreCompiledHeader(spec.getPreCompiledHeader());
+		newSpec.setSourceFilesForPch(spec.getSourceFilesForPch());
+		return (T) newSpec;
+	}
+
+	private boolean patchBuildOperationExecutor(Compiler<?> baseCompiler, BuildOperationExecutor buildOperationExecutor) {
+		try {
+			Compiler<?> compiler = baseCompiler;
+			while (!(compiler instanceof AbstractCompiler)) {
+				if (compiler instanceof VersionAwareCompiler || compiler instanceof OutputCleaningCompiler) {
+					compiler = readFieldValue(getField(compiler.getClass(), "compiler"), compiler);
+				} else {
+					throw new IllegalStateException("Unexpected compiler '" + compiler.getClass().getName() + "'.");
+				}
+			}
+
+			updateFieldValue(getField(AbstractCompiler.class, "buildOperationExecutor"), compiler, buildOperationExecutor);
+			getLogger().debug("Patching the build operation executor was successful, enjoy batched compilation!");
+			return true;
+		} catch (Throwable e) {
+			// do not patch... the translation units compile through Gradle's build operation executor
+			getLogger().info("Could not patch the build operation executor, compiler invocations will not be batched nor their output bounded.", e);
+			return false;
+		}
+	}
+
+	private boolean usesBatching() {
+		return Boolean.getBoolean(BATCHING_PROPERTY_NAME) && getToolChain().map(nativeToolChain -> nativeToolChain instanceof Gcc || nativeToolChain instanceof Clang).get();
+	}
+
+	@Nullable
+	private UnityBuild newUnityBuild(NativeCompileSpec spec, Compiler<?> baseCompiler) {
+		CppCompile.UnityBuildOptions unityOptions = getOptions().getUnityBuild();
+		if (!unityOptions.getEnabled().getOrElse(false)) {
+			return null;
+		}
+
+		GradleInternals.assertAvailable("unity-build", GradleInternals.TRANSACTIONAL_COMPILATION_MEMBERS);
+		return new UnityBuild(spec.getObjectFileDir(), unityOptions.getMaximumSourceFilesPerUnit().get(), unityOptions.getUnsafeSourceFiles().getFiles(), outputFileDir(baseCompiler), getFileOperations());
+	}
+
+	@Internal
+	public abstract Property<TranslationUnitQueue.Registry> getTranslationUnitQueueService();
+
+	//region Object cache
+	@Internal
+	public abstract Property<ObjectCache> getObjectCacheService();
+
+	@Nullable
+	private ObjectCaching newObjectCaching(PlatformToolProvider platformToolProvider, Compiler<?> baseCompiler, boolean usesSourceOptions, @Nullable TransactionalCompiler transaction) {
+		ObjectStore objectCache = getObjectCacheService().getOrNull();
+		if (objectCache == null) {
+			if (!Boolean.getBoolean(MACRO_INCREMENTAL_PROPERTY_NAME) && !(usesSourceOptions && Boolean.getBoolean(BUCKET_INCREMENTAL_PROPERTY_NAME))) {
+				return null;
+			}
+			// The object cache already restores the unaffected buckets and translation units
+			objectCache = BucketObjectStore.load(new File(getTemporaryDir(), "bucket-objects"));
+		}
+
+		IncrementalCompilerBuilder.IncrementalCompiler incrementalCompiler = getIncrementalCompiler();
+		if (!(incrementalCompiler instanceof ObjectCache.InputHasher)) {
+			getLogger().info("Could not use the object cache, the header graph of the source files is unknown.");
+			return null;
+		}
+		return new ObjectCaching(objectCache, (ObjectCache.InputHasher) incrementalCompiler, toolChainIdentity(platformToolProvider), outputFileDir(baseCompiler), transaction);
+	}
+
+	// The compiler vendor, version and location as well as the target platform
+	private String toolChainIdentity(PlatformToolProvider platformToolProvider) {
+		StringBuilder result = new StringBuilder();
+		result.append(getToolChain().get().getName());
+		NativePlatformInternal targetPlatform = (NativePlatformInternal) getTargetPlatform().get();
+		result.append('|').append(targetPlatform.getOperatingSystem().getName()).append('|').append(targetPlatform.getArchitecture().getName());
+		CompilerMetadata compilerMetadata = platformToolProvider.getCompilerMetadata(ToolType.CPP_COMPILER);
+		result.append('|').append(compilerMetadata.getVendor()).append('|').append(compilerMetadata.getVersion());
+		CommandLineToolSearchResult compiler = platformToolProvider.locateTool(ToolType.CPP_COMPILER);
+		if (compiler.isAvailable()) {
+			result.append('|').append(compiler.getTool().getAbsolutePath());
+		}
+		return result.toString();
+	}
+	//endregion
+
 	@Inject
 	protected abstract ObjectFactory getObjects();
 
 	@Inject
 	protected abstract FileSystemOperations getFileOperations();
 
-	/*private*/ static abstract /*final*/ class WorkerBackedBuildOperationExecutor implements BuildOperationExecutor {
-		private final WorkQueue queue;
+	// Executes the compiler invocations of a translation unit in the worker thread compiling the unit, see TranslationUnitQueue
+	/*private*/ static abstract /*final*/ class InlineBuildOperationExecutor implements BuildOperationExecutor {
+		private final ExecOperations execOperations;
 
 		@Inject
-		public WorkerBackedBuildOperationExecutor(WorkQueue queue) {
-			this.queue = queue;
+		public InlineBuildOperationExecutor(ExecOperations execOperations) {
+			this.execOperations = execOperations;
 		}
 
 		@Override
@@ -353,22 +539,12 @@ import static dev.nokee.companion.features.TransactionalCompiler.outputFileDir;
 
 		@Override
 		public <O extends BuildOperation> void runAll(BuildOperationWorker<O> worker, Action<BuildOperationQueue<O>> action) {
+			List<PendingInvocation> invocations = new ArrayList<>();
 			action.execute(new BuildOperationQueue<O>() {
 				@Override
 				public void add(O o) {
 					assert o instanceof CommandLineToolInvocation;
-
-					CommandLineToolInvocation invocation = (CommandLineToolInvocation) o;
-					queue.submit(CommandLineToolInvocationAction.class, spec -> {
-						spec.getEnvironment().set(invocation.getEnvironment());
-						spec.getPath().from(invocation.getPath());
-						spec.getWorkDirectory().set(invocation.getWorkDirectory());
-						spec.getArgs().addAll(invocation.getArgs());
-						spec.setLogger(invocation.getLogger());
-						spec.getDescription().set(invocation.description().build().getDisplayName());
-						spec.getExecutable().set(executableOf(worker));
-						spec.getName().set(nameOf(worker));
-					});
+					invocations.add(new PendingInvocation((CommandLineToolInvocation) o));
 				}
 
 				@Override
@@ -386,160 +562,274 @@ import static dev.nokee.companion.features.TransactionalCompiler.outputFileDir;
 					// ignore... only used for error reporting
 				}
 			});
-		}
 
-		@Override
-		public <O extends BuildOperation> void runAll(BuildOperationWorker<O> buildOperationWorker, Action<BuildOperationQueue<O>> action, BuildOperationConstraint buildOperationConstraint) {
-			throw new UnsupportedOperationException();
+			// Same as the build operation queue, all invocations execute before reporting the failure
+			RuntimeException failure = null;
+			for (List<PendingInvocation> batch : batches(invocations)) {
+				try {
+					if (batch.size() == 1) {
+						execute(worker, batch.get(0));
+					} else {
+						execute(worker, batch);
+					}
+				} catch (RuntimeException e) {
+					if (failure == null) {
+						failure = e;
+					}
+				}
+			}
+			if (failure != null) {
+				throw failure;
+			}
 		}
 
-		public BuildOperationRef getCurrentOperation() {
-			throw new UnsupportedOperationException();
+		// Copied from DefaultCommandLineToolInvocationWorker#execute
+		private void execute(BuildOperationWorker<?> worker, PendingInvocation invocation) {
+			String description = invocation.getDescription();
+			try (DiagnosticsOutput output = newOutput(description)) {
+				try {
+					exec(worker, invocation.invocation, invocation.args, invocation.invocation.getWorkDirectory(), output);
+					invocation.invocation.getLogger().operationSuccess(description, output.summary());
+				} catch (ExecException e) {
+					invocation.invocation.getLogger().operationFailed(description, output.summary());
+					throw new RuntimeException(String.format("%s failed while %s.", nameOf(worker), description));
+				}
+			}
 		}
-	}
 
-	private static File executableOf(BuildOperationWorker<?> worker) {
-		return readFieldValue(getField(worker.getClass(), "executable"), worker);
-	}
+		private void exec(BuildOperationWorker<?> worker, CommandLineToolInvocation invocation, List<String> args, @Nullable File workDirectory, OutputStream output) {
+			execOperations.exec(spec -> {
+				spec.executable(executableOf(worker));
+				if (workDirectory != null) {
+					try {
+						Files.createDirectories(workDirectory.toPath());
+					} catch (IOException e) {
+						throw new RuntimeException(e);
+					}
+					spec.workingDir(workDirectory);
+				}
 
-	private static String nameOf(BuildOperationWorker<?> worker) {
-		return readFieldValue(getField(worker.getClass(), "name"), worker);
-	}
+				spec.args(args);
 
-	// Allow jumping the isolation gap between current thread and worker thread (no-isolated)
-	//   This is a workaround ONLY, we should use a build service that act as, in spirit, as the build operation logger.
-	//   It would be used to track individual cli tool invocation and report success/failure in the log file.
-	private static final class IsolatableBuildOperationLogger implements BuildOperationLogger, BuildOperationLoggerRef {
-		private static final Map<String, BuildOperationLogger> LOGGERS = new ConcurrentHashMap<>();
-		private final BuildOperationLogger delegate;
+				if (!invocation.getPath().isEmpty()) {
+					String pathVar = OperatingSystem.current().getPathVar();
+					String toolPath = invocation.getPath().stream().map(File::getPath).collect(Collectors.joining(File.pathSeparator));
+					toolPath = toolPath + File.pathSeparator + System.getenv(pathVar);
+					spec.environment(pathVar, toolPath);
+					if (OperatingSystem.current().isWindows()) {
+						spec.getEnvironment().remove(pathVar.toUpperCase(Locale.ROOT));
+					}
+				}
 
-		private IsolatableBuildOperationLogger(BuildOperationLogger delegate) {
-			this.delegate = delegate;
+				spec.environment(invocation.getEnvironment());
+				spec.setErrorOutput(output);
+				spec.setStandardOutput(output);
+			});
 		}
 
-		public static void newLogger(BuildOperationLogger delegate, Consumer<? super BuildOperationLogger> action) {
-			BuildOperationLogger newLogger = new IsolatableBuildOperationLogger(delegate);
-			LOGGERS.put(idOf(newLogger), newLogger);
-			try {
-				action.accept(newLogger);
-			} finally {
-				LOGGERS.remove(idOf(newLogger));
+		private static final class PendingInvocation {
+			private final CommandLineToolInvocation invocation;
+			private final List<String> args = new ArrayList<>();
+
+			private PendingInvocation(CommandLineToolInvocation invocation) {
+				this.invocation = invocation;
+				invocation.getArgs().forEach(args::add);
+			}
+
+			public String getDescription() {
+				return invocation.description().build().getDisplayName();
 			}
 		}
 
-		public static BuildOperationLogger loggerOf(String id) {
-			return LOGGERS.get(id);
+		//region Diagnostics
+		@Nullable private File diagnosticsDirectory;
+
+		// Receives the outputs exceeding the in-memory tail
+		public void diagnostics(File diagnosticsDirectory) {
+			this.diagnosticsDirectory = diagnosticsDirectory;
 		}
 
-		public static String idOf(BuildOperationLogger logger) {
-			return ((BuildOperationLoggerRef) logger).id();
+		private DiagnosticsOutput newOutput(String description) {
+			if (diagnosticsDirectory == null) {
+				return new DiagnosticsOutput(null);
+			}
+			return new DiagnosticsOutput(new File(diagnosticsDirectory, Hashing.hashString(description) + ".txt"));
 		}
+		//endregion
 
-		@Override
-		public void start() {
-			delegate.start();
+		//region Batching
+		private boolean batching = false;
+		@Nullable private File batchesDirectory;
+
+		// The translation unit queue bounds the number of source files per spec, the batches compile in the task temporary directory
+		public void batching(File batchesDirectory) {
+			this.batching = true;
+			this.batchesDirectory = batchesDirectory;
 		}
 
-		@Override
-		public void operationSuccess(String description, String output) {
-			delegate.operationSuccess(description, output);
+		// Groups the invocations only differing by the source file
+		private List<List<PendingInvocation>> batches(List<PendingInvocation> invocations) {
+			if (!batching || invocations.size() <= 1) {
+				return invocations.stream().map(Collections::singletonList).collect(Collectors.toList());
+			}
+
+			List<List<PendingInvocation>> result = new ArrayList<>();
+			Map<List<Object>, List<PendingInvocation>> openBatches = new HashMap<>();
+			Map<List<Object>, Set<String>> openBatchObjectNames = new HashMap<>();
+			for (PendingInvocation invocation : invocations) {
+				if (!isBatchable(invocation.args)) {
+					result.add(Collections.singletonList(invocation));
+					continue;
+				}
+
+				List<Object> key = Arrays.asList(commonArgsOf(invocation.args), invocation.invocation.getEnvironment(), invocation.invocation.getPath(), invocation.invocation.getLogger());
+				List<PendingInvocation> batch = openBatches.get(key);
+				// The compiler writes the objects in the working directory, the object names must be unique in the batch
+				String objectName = TranslationUnitQueue.stemOf(new File(sourceFileOf(invocation.args)).getName());
+				if (batch == null || openBatchObjectNames.get(key).contains(objectName)) {
+					batch = new ArrayList<>();
+					openBatches.put(key, batch);
+					openBatchObjectNames.put(key, new HashSet<>());
+					result.add(batch);
+				}
+				batch.add(invocation);
+				openBatchObjectNames.get(key).add(objectName);
+			}
+			return result;
 		}
 
-		@Override
-		public void operationFailed(String description, String output) {
-			delegate.operationFailed(description, output);
+		// Compiles multiple source files per compiler invocation (i.e. 'gcc -c a.cpp b.cpp'), each source file is still reported individually
+		private void execute(BuildOperationWorker<?> worker, List<PendingInvocation> batch) {
+			List<String> sourceFiles = batch.stream().map(it -> sourceFileOf(it.args)).collect(Collectors.toList());
+			CommandLineToolInvocation first = batch.get(0).invocation;
+
+			// Without '-o', the compiler writes '<stem>.o' (and '<stem>.d') in the working directory
+			File batchDirectory = newBatchDirectory();
+			try {
+				List<String> args = new ArrayList<>(commonArgsOf(batch.get(0).args));
+				args.addAll(sourceFiles);
+
+				// Each source file output is attributed while streaming, then capped on its own
+				LinkedHashMap<String, DiagnosticsOutput> sourceOutputs = new LinkedHashMap<>();
+				for (PendingInvocation invocation : batch) {
+					sourceOutputs.put(sourceFileOf(invocation.args), newOutput(invocation.getDescription()));
+				}
+
+				Map<String, String> outputs = new HashMap<>();
+				try (DiagnosticsOutput.PerSourceOutput diagnosticsOutput = new DiagnosticsOutput.PerSourceOutput(sourceOutputs)) {
+					try {
+						exec(worker, first, args, batchDirectory, diagnosticsOutput);
+					} catch (ExecException e) {
+						// ignores, the missing objects identify the failing source files
+					}
+					diagnosticsOutput.close(); // routes the last line
+					sourceFiles.forEach(it -> outputs.put(it, diagnosticsOutput.summaryOf(it)));
+				}
+
+				String failure = null;
+				for (PendingInvocation invocation : batch) {
+					String sourceFile = sourceFileOf(invocation.args);
+					File objectFile = new File(objectFileOf(invocation.args));
+					String stem = TranslationUnitQueue.stemOf(new File(sourceFile).getName());
+					File producedObjectFile = new File(batchDirectory, stem + ".o");
+					if (producedObjectFile.isFile()) {
+						move(producedObjectFile, objectFile);
+						File producedDependencyFile = new File(batchDirectory, stem + ".d");
+						if (producedDependencyFile.isFile()) {
+							move(producedDependencyFile, new File(objectFile.getParentFile(), TranslationUnitQueue.stemOf(objectFile.getName()) + ".d"));
+						}
+						invocation.invocation.getLogger().operationSuccess(invocation.getDescription(), outputs.get(sourceFile));
+					} else {
+						delete(objectFile);
+						invocation.invocation.getLogger().operationFailed(invocation.getDescription(), outputs.get(sourceFile));
+						if (failure == null) {
+							failure = invocation.getDescription();
+						}
+					}
+				}
+
+				if (failure != null) {
+					throw new RuntimeException(String.format("%s failed while %s.", nameOf(worker), failure));
+				}
+			} finally {
+				deleteRecursively(batchDirectory);
+			}
 		}
 
-		@Override
-		public void done() {
-			delegate.done();
+		// Expects '<args> <source-file> -o <object-file>' as per GccCompatibleNativeCompiler
+		private static boolean isBatchable(List<String> args) {
+			return args.size() >= 3 && args.get(args.size() - 2).equals("-o");
 		}
 
-		@Override
-		public String getLogLocation() {
-			return delegate.getLogLocation();
+		private static List<String> commonArgsOf(List<String> args) {
+			return args.subList(0, args.size() - 3);
 		}
 
-		@Override
-		public String id() {
-			return toString();
+		private static String sourceFileOf(List<String> args) {
+			return args.get(args.size() - 3);
 		}
-	}
 
-	/*private*/ static abstract /*final*/ class CommandLineToolInvocationAction implements WorkAction<CommandLineToolInvocationAction.Parameters> {
-		public static abstract class Parameters implements WorkParameters {
-			public abstract ListProperty<String> getArgs();
-			public abstract ConfigurableFileCollection getPath();
-			public abstract MapProperty<String, String> getEnvironment();
-			public abstract DirectoryProperty getWorkDirectory();
-			public abstract Property<String> getDescription();
-			public abstract RegularFileProperty getExecutable();
-			public abstract Property<String> getName();
-
-			protected abstract Property<String> getLoggerId();
-
-			public void setLogger(BuildOperationLogger logger) {
-				IsolatableBuildOperationLogger.LOGGERS.put(IsolatableBuildOperationLogger.idOf(logger), logger);
-				getLoggerId().set(IsolatableBuildOperationLogger.idOf(logger));
-			}
+		private static String objectFileOf(List<String> args) {
+			return args.get(args.size() - 1);
+		}
 
-			public BuildOperationLogger getLogger() {
-				return IsolatableBuildOperationLogger.loggerOf(getLoggerId().get());
+		// Outside the task outputs, the object files are moved into the object file directory
+		private File newBatchDirectory() {
+			try {
+				Files.createDirectories(batchesDirectory.toPath());
+				return Files.createTempDirectory(batchesDirectory.toPath(), "batch").toFile();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
 			}
 		}
 
-		private final ExecOperations execOperations;
-
-		@Inject
-		public CommandLineToolInvocationAction(ExecOperations execOperations) {
-			this.execOperations = execOperations;
+		private static void move(File source, File destination) {
+			try {
+				Files.createDirectories(destination.getParentFile().toPath());
+				Files.move(source.toPath(), destination.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
 		}
 
-		@Override
-		public void execute() {
-			// Copied from DefaultCommandLineToolInvocationWorker#execute
-			StreamByteBuffer errOutput = new StreamByteBuffer();
-			StreamByteBuffer stdOutput = new StreamByteBuffer();
+		private static void delete(File file) {
 			try {
-				execOperations.exec(spec -> {
-					spec.executable(getParameters().getExecutable().get());
-					ProviderUtils.asJdkOptional(getParameters().getWorkDirectory()).ifPresent(it -> {
-						try {
-							Files.createDirectories(it.getAsFile().toPath());
-						} catch (IOException e) {
-							throw new RuntimeException(e);
-						}
-						spec.workingDir(it);
-					});
-
-					spec.args(getParameters().getArgs().get());
-
-					if (!getParameters().getPath().isEmpty()) {
-						String pathVar = OperatingSystem.current().getPathVar();
-						String toolPath = getParameters().getPath().getAsPath();
-						toolPath = toolPath + File.pathSeparator + System.getenv(pathVar);
-						spec.environment(pathVar, toolPath);
-						if (OperatingSystem.current().isWindows()) {
-							spec.getEnvironment().remove(pathVar.toUpperCase(Locale.ROOT));
-						}
-					}
+				Files.deleteIfExists(file.toPath());
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
 
-					spec.environment(getParameters().getEnvironment().get());
-					spec.setErrorOutput(errOutput.getOutputStream());
-					spec.setStandardOutput(stdOutput.getOutputStream());
-				});
-				getParameters().getLogger().operationSuccess(getParameters().getDescription().get(), this.combineOutput(stdOutput, errOutput));
-			} catch (ExecException e) {
-				getParameters().getLogger().operationFailed(getParameters().getDescription().get(), this.combineOutput(stdOutput, errOutput));
-				throw new RuntimeException(String.format("%s failed while %s.", getParameters().getName().get(), getParameters().getDescription().get()));
+		private static void deleteRecursively(File directory) {
+			try (Stream<Path> paths = Files.walk(directory.toPath())) {
+				paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
 			}
 		}
+		//endregion
+
+		@Override
+		public <O extends BuildOperation> void runAll(BuildOperationWorker<O> buildOperationWorker, Action<BuildOperationQueue<O>> action, BuildOperationConstraint buildOperationConstraint) {
+			throw new UnsupportedOperationException();
+		}
 
-		private String combineOutput(StreamByteBuffer stdOutput, StreamByteBuffer errOutput) {
-			return stdOutput.readAsString(Charset.defaultCharset()) + errOutput.readAsString(Charset.defaultCharset());
+		public BuildOperationRef getCurrentOperation() {
+			throw new UnsupportedOperationException();
 		}
 	}
 
+	private static final FieldReader BuildOperationWorker__executable = fieldReader("executable");
+	private static final FieldReader BuildOperationWorker__name = fieldReader("name");
+
+	private static File executableOf(BuildOperationWorker<?> worker) {
+		return BuildOperationWorker__executable.readFieldValue(worker);
+	}
+
+	private static String nameOf(BuildOperationWorker<?> worker) {
+		return BuildOperationWorker__name.readFieldValue(worker);
+	}
+
 	//region Incremental rewrite for gradle/gradle#34152
 	private transient IncrementalCompilerBuilder.IncrementalCompiler incrementalCompiler;
 
@@ -554,6 +844,12 @@ import static dev.nokee.companion.features.TransactionalCompiler.outputFileDir;
 		return incrementalCompiler;
 	}
 
+	private boolean usesDependencyFiles() {
+		IncrementalCompilerBuilder builder = getIncrementalCompilerBuilderService().getOrNull();
+		return builder instanceof DefaultIncrementalCompilerBuilder && ((DefaultIncrementalCompilerBuilder) builder).usesDependencyFiles()
+			&& getToolChain().map(nativeToolChain -> nativeToolChain instanceof Gcc || nativeToolChain instanceof Clang).get();
+	}
+
 	@Override
 	protected final FileCollection getHeaderDependencies() {
 		return getIncrementalCompiler().getHeaderFiles();
@@ -576,15 +872,19 @@ import static dev.nokee.companion.features.TransactionalCompiler.outputFileDir;
 
 	private final ObjectFactory objects;
 	private final WorkerExecutor executor;
+	private final int maxWorkerCount;
 
 	@Inject
 	public CppCompileTask(ObjectFactory objects, ProviderFactory providers, WorkerExecutor executor) {
 		this.objects = objects;
 		this.executor = executor;
+		this.maxWorkerCount = getProject().getGradle().getStartParameter().getMaxWorkerCount();
 		this.source = super.getSource();
 
 		replaceMacrosField(getMacros());
 
+		getOptions().getUnityBuild().getEnabled().convention(false);
+		getOptions().getUnityBuild().getMaximumSourceFilesPerUnit().convention(8);
 		getOptions().compilerArgs = getCompilerArgs();
 		getOptions().allOptions = new SourceOptionsLookup() {
 			@Override
@@ -639,6 +939,12 @@ import static dev.nokee.companion.features.TransactionalCompiler.outputFileDir;
 
 		@Override
 		public void apply(Project project) {
+			Provider<TranslationUnitQueue.Registry> translationUnitQueues = project.getGradle().getSharedServices().registerIfAbsent("translation-unit-queues", TranslationUnitQueue.Registry.class, spec -> {});
+			project.getTasks().withType(CppCompileTask.class).configureEach(task -> {
+				task.usesService(translationUnitQueues);
+				task.getTranslationUnitQueueService().set(translationUnitQueues);
+			});
+
 			Plugins.forProject(project).whenPluginApplied(CppBasePlugin.class, () -> {
 				project.getComponents().withType(CppBinary.class).configureEach(binary -> {
 					project.getTasks().replace(compileTaskName(binary), CppCompileTask.class);
@@ -0,0 +1,36 @@
+package dev.nokee.companion.features;
+
+import dev.nokee.commons.gradle.Plugins;
+import dev.nokee.commons.names.TaskName;
+import org.gradle.api.Plugin;
+import org.gradle.api.Project;
+import org.gradle.language.nativeplatform.ComponentWithStaticLibrary;
+import org.gradle.language.plugins.NativeBasePlugin;
+import org.gradle.nativeplatform.tasks.CreateStaticLibrary;
+
+import javax.inject.Inject;
+
+import static dev.nokee.commons.names.CppNames.qualifyingName;
+
+/*private*/ abstract /*final*/ class CreateStaticLibraryRule implements Plugin<Project> {
+	@Inject
+	public CreateStaticLibraryRule() {}
+
+	@Override
+	public void apply(Project project) {
+		Plugins.forProject(project).whenPluginApplied(NativeBasePlugin.class, () -> {
+			project.getComponents().withType(ComponentWithStaticLibrary.class).configureEach(binary -> {
+				project.getTasks().replace(TaskName.of("create").qualifiedBy(qualifyingName(binary)).toString(), createStaticLibraryType());
+			});
+		});
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Class<? extends CreateStaticLibrary> createStaticLibraryType() {
+		try {
+			return (Class<CreateStaticLibrary>) Class.forName("dev.nokee.nativeplatform.tasks.CreateStaticLibraryTask");
+		} catch (ClassNotFoundException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
@@ -24,6 +24,9 @@ import org.gradle.api.internal.file.collections.MinimalFileSet;
 import org.gradle.api.internal.tasks.properties.LifecycleAwareValue;
 import org.gradle.api.provider.Provider;
 import org.gradle.internal.file.Deleter;
+import org.gradle.internal.hash.HashCode;
+import org.gradle.internal.hash.Hasher;
+import org.gradle.internal.hash.Hashing;
 import org.gradle.internal.operations.BuildOperationRunner;
 import org.gradle.internal.vfs.FileSystemAccess;
 import org.gradle.language.base.internal.compile.Compiler;
@@ -34,38 +37,50 @@ import org.gradle.language.nativeplatform.internal.incremental.sourceparser.Macr
 import org.gradle.language.nativeplatform.internal.incremental.sourceparser.RegexBackedCSourceParser;
 import org.gradle.nativeplatform.toolchain.internal.NativeCompileSpec;
 
+import javax.annotation.Nullable;
 import java.io.File;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
+import java.io.IOException;
 import java.util.*;
-import java.util.stream.Collectors;
 
 class DefaultIncrementalCompilerBuilder implements IncrementalCompilerBuilder {
-	private static final Object CURRENT_STATE_VERSION = "v1";
+	private static final Object CURRENT_STATE_VERSION = "v2";
+	// Pays off when file system watching keeps the directory snapshots between builds
+	private static final String FAST_UP_TO_DATE_PROPERTY_NAME = "dev.nokee.internal.native.headers.fast-up-to-date";
+	// GCC/Clang only, the compiler reports the headers of each source file (i.e. -MD)
+	private static final String DEPENDENCY_FILES_PROPERTY_NAME = "dev.nokee.internal.native.headers.dependency-files";
 	private final BuildOperationRunner buildOperationRunner;
-	private final CompilationStateCacheFactory compilationStateCacheFactory;
+	private final File compilationStateDirectory;
 	private final CSourceParser sourceParser;
 	private final Deleter deleter;
 	private final DirectoryFileTreeFactory directoryFileTreeFactory;
 	private final FileSystemAccess fileSystemAccess;
 	private final TaskFileVarFactory fileVarFactory;
+	private final int maxWorkerCount;
+	private final Provider<IncludeDirectivesCache> includeDirectivesCache;
+	private final Provider<IncludeDirectoryIndex> includeDirectoryIndex;
 
 	public DefaultIncrementalCompilerBuilder(
 		BuildOperationRunner buildOperationRunner,
-		CompilationStateCacheFactory compilationStateCacheFactory,
+		File compilationStateDirectory,
 		CSourceParser sourceParser,
 		Deleter deleter,
 		DirectoryFileTreeFactory directoryFileTreeFactory,
 		FileSystemAccess fileSystemAccess,
-		TaskFileVarFactory fileVarFactory
+		TaskFileVarFactory fileVarFactory,
+		int maxWorkerCount,
+		Provider<IncludeDirectivesCache> includeDirectivesCache,
+		Provider<IncludeDirectoryIndex> includeDirectoryIndex
 	) {
 		this.buildOperationRunner = buildOperationRunner;
-		this.compilationStateCacheFactory = compilationStateCacheFactory;
+		this.compilationStateDirectory = compilationStateDirectory;
 		this.deleter = deleter;
 		this.directoryFileTreeFactory = directoryFileTreeFactory;
 		this.fileSystemAccess = fileSystemAccess;
 		this.fileVarFactory = fileVarFactory;
 		this.sourceParser = sourceParser;
+		this.maxWorkerCount = maxWorkerCount;
+		this.includeDirectivesCache = includeDirectivesCache;
+		this.includeDirectoryIndex = includeDirectoryIndex;
 	}
 
 	@Override
@@ -77,12 +92,15 @@ class DefaultIncrementalCompilerBuilder implements IncrementalCompilerBuilder {
 			macros,
 			importAware,
 			buildOperationRunner,
-			compilationStateCacheFactory,
+			compilationStateDirectory,
 			sourceParser,
 			deleter,
 			directoryFileTreeFactory,
 			fileSystemAccess,
-			fileVarFactory
+			fileVarFactory,
+			maxWorkerCount,
+			includeDirectivesCache,
+			includeDirectoryIndex
 		);
 	}
 
@@ -90,13 +108,20 @@ class DefaultIncrementalCompilerBuilder implements IncrementalCompilerBuilder {
 		return CURRENT_STATE_VERSION;
 	}
 
-	private static class StateCollectingIncrementalCompiler implements IncrementalCompiler, MinimalFileSet, LifecycleAwareValue {
+	boolean usesDependencyFiles() {
+		return Boolean.getBoolean(DEPENDENCY_FILES_PROPERTY_NAME);
+	}
+
+	private static class StateCollectingIncrementalCompiler implements IncrementalCompiler, MinimalFileSet, LifecycleAwareValue, ObjectCache.InputHasher {
 		private final BuildOperationRunner buildOperationRunner;
-		private final CompilationStateCacheFactory compilationStateCacheFactory;
+		private final File compilationStateFile;
 		private final CSourceParser sourceParser;
 		private final Deleter deleter;
 		private final DirectoryFileTreeFactory directoryFileTreeFactory;
 		private final FileSystemAccess fileSystemAccess;
+		private final int maxWorkerCount;
+		private final Provider<IncludeDirectivesCache> includeDirectivesCache;
+		private final Provider<IncludeDirectoryIndex> includeDirectoryIndex;
 
 		private final Map<String, String> macros;
 		private final Provider<Boolean> importAware;
@@ -105,9 +130,13 @@ class DefaultIncrementalCompilerBuilder implements IncrementalCompilerBuilder {
 		private final String taskPath;
 		private final FileCollection sourceFiles;
 		private final FileCollection headerFilesCollection;
+		private CompilationStateStore compilationStateStore;
 		private Object/*Holder<CompilationState>*/ compileStateCache;
+		private boolean usesDependencyFiles;
 		private IncrementalCompilation incrementalCompilation;
 		private boolean saveIncrementalCompilationDuringCleanup = true;
+		private Map<HashCode, File> headersByHash;
+		private IncludeDirectivesParser sourceIncludesParser;
 
 		StateCollectingIncrementalCompiler(
 			TaskInternal task,
@@ -117,12 +146,15 @@ class DefaultIncrementalCompilerBuilder implements IncrementalCompilerBuilder {
 			Provider<Boolean> importAware,
 
 			BuildOperationRunner buildOperationRunner,
-			CompilationStateCacheFactory compilationStateCacheFactory,
+			File compilationStateDirectory,
 			CSourceParser sourceParser,
 			Deleter deleter,
 			DirectoryFileTreeFactory directoryFileTreeFactory,
 			FileSystemAccess fileSystemAccess,
-			TaskFileVarFactory fileVarFactory
+			TaskFileVarFactory fileVarFactory,
+			int maxWorkerCount,
+			Provider<IncludeDirectivesCache> includeDirectivesCache,
+			Provider<IncludeDirectoryIndex> includeDirectoryIndex
 		) {
 			this.taskOutputs = task.getOutputs();
 			this.taskPath = task.getPath();
@@ -133,11 +165,15 @@ class DefaultIncrementalCompilerBuilder implements IncrementalCompilerBuilder {
 			this.headerFilesCollection = fileVarFactory.newCalculatedInputFileCollection(task, this, sourceFiles, includeDirs);
 
 			this.buildOperationRunner = buildOperationRunner;
-			this.compilationStateCacheFactory = compilationStateCacheFactory;
+			// Task names cannot contain '/', use the identity path segments as directories
+			this.compilationStateFile = new File(compilationStateDirectory, task.getIdentityPath().getPath().substring(1).replace(':', '/') + ".bin");
 			this.deleter = deleter;
 			this.directoryFileTreeFactory = directoryFileTreeFactory;
 			this.fileSystemAccess = fileSystemAccess;
 			this.sourceParser = sourceParser;
+			this.maxWorkerCount = maxWorkerCount;
+			this.includeDirectivesCache = includeDirectivesCache;
+			this.includeDirectoryIndex = includeDirectoryIndex;
 		}
 
 		@Override
@@ -148,55 +184,206 @@ class DefaultIncrementalCompilerBuilder implements IncrementalCompilerBuilder {
 
 			saveIncrementalCompilationDuringCleanup = false; // will be handled by the incremental compiler
 
-			try {
-				@SuppressWarnings("unchecked")
-				IncrementalNativeCompiler<T> result = (IncrementalNativeCompiler<T>) IncrementalNativeCompiler.class.getConstructors()[0].newInstance(taskOutputs, compiler, deleter, compileStateCache, incrementalCompilation);
-				return result;
-			} catch (InvocationTargetException | InstantiationException | IllegalAccessException e) {
-				throw new RuntimeException(e);
-			}
-		}
-
-		private static Object/*Holder<CompilationState>*/ CompilationStateCacheFactory__create(CompilationStateCacheFactory self, String taskPath) {
-			try {
-				Method create = self.getClass().getMethod("create", String.class);
-				return create.invoke(self, taskPath);
-			} catch (NoSuchMethodException | InvocationTargetException | IllegalAccessException e) {
-				throw new RuntimeException(e);
+			if (usesDependencyFiles) {
+				compiler = new DependencyFileCollectingCompiler<>(compiler, compilationStateStore, it -> FileSystemAccess__readRegularFileContentHash(fileSystemAccess, it.getAbsolutePath()));
 			}
+			return GradleInternals.newIncrementalNativeCompiler(taskOutputs, compiler, deleter, compileStateCache, incrementalCompilation);
 		}
 
 		@Override
 		public Set<File> getFiles() {
 			List<File> includeRoots = new ArrayList<>(includeDirs.getFiles());
-			compileStateCache = CompilationStateCacheFactory__create(compilationStateCacheFactory, ":v1" + taskPath);
-			DefaultSourceIncludesParser sourceIncludesParser = new DefaultSourceIncludesParser(sourceParser, importAware.get());
-			DefaultSourceIncludesResolver dependencyParser = new DefaultSourceIncludesResolver(includeRoots, fileSystemAccess);
+			compilationStateStore = new CompilationStateStore(compilationStateFile);
+			compileStateCache = compilationStateStore.asHolder(GradleInternals.objectHolderType());
+			usesDependencyFiles = Boolean.getBoolean(DEPENDENCY_FILES_PROPERTY_NAME) && importAware.get();
+			boolean fastUpToDate = Boolean.getBoolean(FAST_UP_TO_DATE_PROPERTY_NAME) && GradleInternals.isAvailable(GradleInternals.READ_SNAPSHOT_HASH);
+			CompilationStateStore.UnchangedDirectories unchangedDirectories = fastUpToDate ? compilationStateStore.unchangedDirectories(includeRoots, this::directoryHash) : null;
+			sourceIncludesParser = includeDirectivesCache.get().parserFor(importAware.get(), IncludeDirectivesParser.of(new DefaultSourceIncludesParser(sourceParser, importAware.get())));
+			DefaultSourceIncludesResolver dependencyParser = new DefaultSourceIncludesResolver(includeRoots, fileSystemAccess, includeDirectoryIndex.get());
 			IncludeDirectives includeDirectives = directivesForMacros(macros);
-			IncrementalCompileFilesFactory incrementalCompileFilesFactory = new IncrementalCompileFilesFactory(includeDirectives, sourceIncludesParser, dependencyParser, fileSystemAccess);
-			IncrementalCompileProcessor incrementalCompileProcessor = new IncrementalCompileProcessor(compileStateCache, incrementalCompileFilesFactory, buildOperationRunner);
+			IncrementalCompileFilesFactory incrementalCompileFilesFactory = new IncrementalCompileFilesFactory(includeDirectives, sourceIncludesParser, dependencyParser, fileSystemAccess, unchangedDirectories, usesDependencyFiles ? compilationStateStore::dependenciesOf : it -> null);
+			IncrementalCompileProcessor incrementalCompileProcessor = new IncrementalCompileProcessor(compileStateCache, incrementalCompileFilesFactory, buildOperationRunner, maxWorkerCount);
 
-			incrementalCompilation = incrementalCompileProcessor.processSourceFiles(new TreeSet<>(sourceFiles.getFiles()));
+			Set<File> sources = new TreeSet<>(sourceFiles.getFiles());
+			incrementalCompilation = incrementalCompileProcessor.processSourceFiles(sources);
+			if (fastUpToDate) {
+				compilationStateStore.fingerprint(includeRoots, sources, incrementalCompilation.getExistingHeaders(), this::directoryHash);
+			}
 			DefaultHeaderDependenciesCollector headerDependenciesCollector = new DefaultHeaderDependenciesCollector(directoryFileTreeFactory);
 			return collectExistingHeaderDependencies(headerDependenciesCollector, taskPath, includeRoots, incrementalCompilation);
 		}
 
-		private static Set<File> collectExistingHeaderDependencies(HeaderDependenciesCollector self, String taskPath, List<File> includeRoots, IncrementalCompilation incrementalCompilation) {
+		// The source file hash and its resolved include edges, i.e. the whole header graph
+		@Nullable
+		@Override
+		public HashCode hashOf(File sourceFile) {
+			if (incrementalCompilation == null) {
+				return null;
+			}
+			SourceFileState state = incrementalCompilation.getFinalState().getState(sourceFile);
+			if (state == null || state.isHasUnresolved()) {
+				return null;
+			}
+
+			Hasher hasher = Hashing.newHasher();
+			hasher.putHash(state.getHash());
+			GradleInternals.edgesOf(state).stream()
+				.map(it -> it.getIncludedBy() + ":" + it.getIncludePath() + ":" + it.getResolvedTo())
+				.sorted()
+				.forEach(hasher::putString);
+			return hasher.hash();
+		}
+
+		// The header and the edges of the headers it includes, i.e. its resolved include graph
+		@Nullable
+		@Override
+		public synchronized HashCode headerGraphHashOf(File sourceFile, String includePath) {
+			if (incrementalCompilation == null) {
+				return null;
+			}
+			SourceFileState state = incrementalCompilation.getFinalState().getState(sourceFile);
+			if (state == null || state.isHasUnresolved()) {
+				return null;
+			}
+
+			Collection<IncludeFileEdge> edges = GradleInternals.edgesOf(state);
+			Optional<IncludeFileEdge> headerEdge = edgeOf(edges, state.getHash(), includePath, IncludeType.QUOTED);
+			if (!headerEdge.isPresent()) {
+				headerEdge = edgeOf(edges, state.getHash(), includePath, IncludeType.SYSTEM);
+			}
+			if (!headerEdge.isPresent()) {
+				return null;
+			}
+
+			// The location independent edges doesn't say which header includes them, each header is parsed again
+			Hasher hasher = Hashing.newHasher();
+			Set<HashCode> visited = new HashSet<>();
+			Deque<HashCode> queue = new ArrayDeque<>();
+			queue.add(headerEdge.get().getResolvedTo());
+			while (!queue.isEmpty()) {
+				HashCode contentHash = queue.remove();
+				if (!visited.add(contentHash)) {
+					continue;
+				}
+				File header = headersByHash().get(contentHash);
+				if (header == null) {
+					return null; // unknown header
+				}
+				hasher.putHash(contentHash);
+				for (Include include : sourceIncludesParser.parseIncludes(header, contentHash).getAll()) {
+					Optional<IncludeFileEdge> edge = edgeOf(edges, contentHash, include.getValue(), include.getType());
+					if (!edge.isPresent()) {
+						return null; // macro include or header the compiler may find
+					}
+					hasher.putString(include.getValue());
+					hasher.putHash(edge.get().getResolvedTo());
+					queue.add(edge.get().getResolvedTo());
+				}
+			}
+			return hasher.hash();
+		}
+
+		// Same as the include resolution, quoted includes are resolved relative to the including file first
+		private static Optional<IncludeFileEdge> edgeOf(Collection<IncludeFileEdge> edges, HashCode includedBy, String includePath, IncludeType type) {
+			if (type == IncludeType.QUOTED) {
+				return edges.stream().filter(it -> it.getIncludePath().equals(includePath) && includedBy.equals(it.getIncludedBy())).findFirst();
+			} else if (type == IncludeType.SYSTEM) {
+				return edges.stream().filter(it -> it.getIncludePath().equals(includePath) && it.getIncludedBy() == null).findFirst();
+			}
+			return Optional.empty();
+		}
+
+		private Map<HashCode, File> headersByHash() {
+			if (headersByHash == null) {
+				headersByHash = new HashMap<>();
+				for (File header : incrementalCompilation.getExistingHeaders()) {
+					FileSystemAccess__readRegularFileContentHash(fileSystemAccess, header.getAbsolutePath()).ifPresent(hash -> headersByHash.put(hash, header));
+				}
+			}
+			return headersByHash;
+		}
+
+		// The source file and every file of its header graph, the headers are identified by content hash
+		@Nullable
+		@Override
+		public synchronized Set<String> macrosReferencedBy(File sourceFile, MacroReferences macroReferences) {
+			if (incrementalCompilation == null) {
+				return null;
+			}
+			SourceFileState state = incrementalCompilation.getFinalState().getState(sourceFile);
+			if (state == null || state.isHasUnresolved()) {
+				return null;
+			}
+
+			Map<HashCode, File> headersByHash = headersByHash();
 			try {
-				Method HeaderDependenciesCollector__collectExistingHeaderDependencies = HeaderDependenciesCollector.class.getMethod("collectExistingHeaderDependencies", String.class, List.class, IncrementalCompilation.class);
-				@SuppressWarnings("unchecked")
-				Set<File> result = (Set<File>) HeaderDependenciesCollector__collectExistingHeaderDependencies.invoke(self, taskPath, includeRoots, incrementalCompilation);
+				Collection<IncludeFileEdge> edges = GradleInternals.edgesOf(state);
+				Map<HashCode, File> graph = new LinkedHashMap<>();
+				graph.put(state.getHash(), sourceFile);
+				for (IncludeFileEdge edge : edges) {
+					File header = headersByHash.get(edge.getResolvedTo());
+					if (header == null) {
+						return null; // unknown header
+					}
+					graph.putIfAbsent(edge.getResolvedTo(), header);
+				}
+
+				Set<String> result = new HashSet<>();
+				for (Map.Entry<HashCode, File> entry : graph.entrySet()) {
+					if (!isComplete(entry.getValue(), entry.getKey(), edges)) {
+						return null; // the compiler may find headers the graph misses
+					}
+					result.addAll(macroReferences.referencedBy(entry.getValue(), entry.getKey()));
+				}
 				return result;
-			} catch (InvocationTargetException | NoSuchMethodException | IllegalAccessException e) {
-				throw new RuntimeException(e);
+			} catch (IOException e) {
+				return null;
 			}
 		}
 
+		// Every include of the file resolved to an edge of the graph, a missing header is dropped silently by the include resolution
+		private boolean isComplete(File file, HashCode contentHash, Collection<IncludeFileEdge> edges) {
+			boolean ignoresUnresolvedMacroIncludes = Boolean.getBoolean(IncrementalCompileFilesFactory.IGNORE_UNRESOLVED_HEADERS_IN_DEPENDENCIES_PROPERTY_NAME);
+			for (Include include : sourceIncludesParser.parseIncludes(file, contentHash).getAll()) {
+				if (include.getType() == IncludeType.QUOTED) {
+					if (edges.stream().noneMatch(it -> it.getIncludePath().equals(include.getValue()) && contentHash.equals(it.getIncludedBy()))) {
+						return false;
+					}
+				} else if (include.getType() == IncludeType.SYSTEM) {
+					if (edges.stream().noneMatch(it -> it.getIncludePath().equals(include.getValue()) && it.getIncludedBy() == null)) {
+						return false;
+					}
+				} else if (ignoresUnresolvedMacroIncludes) {
+					return false; // an unresolved macro include is not flagged on the source state
+				}
+			}
+			return true;
+		}
+
+		private static Optional<HashCode> FileSystemAccess__readRegularFileContentHash(FileSystemAccess self, String path) {
+			return GradleInternals.readRegularFileContentHash(self, path);
+		}
+
+		private HashCode directoryHash(File directory) {
+			return FileSystemAccess__readHash(fileSystemAccess, directory.getAbsolutePath());
+		}
+
+		private static HashCode FileSystemAccess__readHash(FileSystemAccess self, String location) {
+			return GradleInternals.readHash(self, location);
+		}
+
+		private static Set<File> collectExistingHeaderDependencies(HeaderDependenciesCollector self, String taskPath, List<File> includeRoots, IncrementalCompilation incrementalCompilation) {
+			return GradleInternals.collectExistingHeaderDependencies(self, taskPath, includeRoots, incrementalCompilation);
+		}
+
 		private IncludeDirectives directivesForMacros(Map<String, String> macros) {
 			List<Macro> values = new ArrayList<>();
+			Map<String, List<Macro>> valuesByName = new HashMap<>();
 			for(Map.Entry<String, String> entry : macros.entrySet()) {
 				Expression expression = RegexBackedCSourceParser.parseExpression(entry.getValue());
-				values.add(new MacroWithSimpleExpression(entry.getKey(), expression.getType(), expression.getValue()));
+				Macro macro = new MacroWithSimpleExpression(entry.getKey(), expression.getType(), expression.getValue());
+				values.add(macro);
+				valuesByName.computeIfAbsent(macro.getName(), it -> new ArrayList<>(1)).add(macro);
 			}
 			return new IncludeDirectives() {
 				@Override
@@ -226,7 +413,7 @@ class DefaultIncrementalCompilerBuilder implements IncrementalCompilerBuilder {
 
 				@Override
 				public Iterable<Macro> getMacros(String name) {
-					return values.stream().filter(it -> it.getName().equals(name)).collect(Collectors.toList());
+					return valuesByName.getOrDefault(name, Collections.emptyList());
 				}
 
 				@Override
@@ -270,8 +457,11 @@ class DefaultIncrementalCompilerBuilder implements IncrementalCompilerBuilder {
 			if (saveIncrementalCompilationDuringCleanup && incrementalCompilation != null) {
 				ObjectHolder__set(compileStateCache, incrementalCompilation.getFinalState());
 			}
+			compilationStateStore = null;
 			compileStateCache = null;
 			incrementalCompilation = null;
+			headersByHash = null;
+			sourceIncludesParser = null;
 		}
 
 		@Override
@@ -285,12 +475,7 @@ class DefaultIncrementalCompilerBuilder implements IncrementalCompilerBuilder {
 		}
 
 		private static <T> void ObjectHolder__set(Object obj, T val) {
-			try {
-				Method set = obj.getClass().getInterfaces()[0].getMethod("set", Object.class);
-				set.invoke(obj, val);
-			} catch (InvocationTargetException | NoSuchMethodException | IllegalAccessException e) {
-				throw new RuntimeException(e);
-			}
+			GradleInternals.objectHolderSet(obj, val);
 		}
 	}
 }
@@ -34,17 +34,26 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
+// Thread-safe, source files may be analysed concurrently
 public class DefaultSourceIncludesResolver implements SourceIncludesResolver {
 	private static final String NORMALIZE_PATH_CASING_PROPERTY_NAME = "dev.nokee.internal.native.headers.normalize-path-casing";
 	private static final MissingIncludeFile MISSING_INCLUDE_FILE = new MissingIncludeFile();
 	private final FileSystemAccess fileSystemAccess;
-	private final Map<File, DirectoryContents> includeRoots = new HashMap<File, DirectoryContents>();
+	private final Map<File, DirectoryContents> includeRoots = new ConcurrentHashMap<File, DirectoryContents>();
 	private final FixedIncludePath includePath;
 	private final boolean normalizePathCasing;
+	@Nullable private final IncludeDirectoryIndex directoryIndex;
+	private final Map<File, Optional<Map<String, String>>> listings = new ConcurrentHashMap<File, Optional<Map<String, String>>>();
 
 	public DefaultSourceIncludesResolver(List<File> includePaths, FileSystemAccess fileSystemAccess) {
+		this(includePaths, fileSystemAccess, null);
+	}
+
+	public DefaultSourceIncludesResolver(List<File> includePaths, FileSystemAccess fileSystemAccess, @Nullable IncludeDirectoryIndex directoryIndex) {
 		this.fileSystemAccess = fileSystemAccess;
+		this.directoryIndex = directoryIndex;
 		List<DirectoryContents> includeDirs = new ArrayList<DirectoryContents>(includePaths.size());
 		for (File includeDir : includePaths) {
 			includeDirs.add(toDir(includeDir));
@@ -215,12 +224,9 @@ public class DefaultSourceIncludesResolver implements SourceIncludesResolver {
 
 	private void resolveMacro(MacroLookup visibleMacros, Expression expression, ExpressionVisitor visitor, TokenLookup tokenLookup) {
 		boolean found = false;
-		for (IncludeDirectives includeDirectives : visibleMacros) {
-			Iterable<Macro> macros = includeDirectives.getMacros(expression.getValue());
-			for (Macro macro : macros) {
-				found = true;
-				resolveExpression(visibleMacros, macro, visitor, tokenLookup);
-			}
+		for (Macro macro : macrosOf(visibleMacros, expression.getValue())) {
+			found = true;
+			resolveExpression(visibleMacros, macro, visitor, tokenLookup);
 		}
 		if (!found) {
 			visitor.visitIdentifier(new SimpleExpression(expression.getValue(), IncludeType.IDENTIFIER));
@@ -229,19 +235,16 @@ public class DefaultSourceIncludesResolver implements SourceIncludesResolver {
 
 	private void resolveMacroFunction(MacroLookup visibleMacros, Expression expression, ExpressionVisitor visitor, TokenLookup tokenLookup) {
 		boolean found = false;
-		for (IncludeDirectives includeDirectives : visibleMacros) {
-			Iterable<MacroFunction> macroFunctions = includeDirectives.getMacroFunctions(expression.getValue());
-			for (MacroFunction macro : macroFunctions) {
-				List<Expression> arguments = expression.getArguments();
-				if (arguments.isEmpty() && macro.getParameterCount() == 1) {
-					// Provide an implicit empty argument
-					arguments = Collections.singletonList(SimpleExpression.EMPTY_EXPRESSIONS);
-				}
-				if (macro.getParameterCount() == arguments.size()) {
-					found = true;
-					Expression result = macro.evaluate(arguments);
-					resolveExpression(visibleMacros, result, visitor, tokenLookup);
-				}
+		for (MacroFunction macro : macroFunctionsOf(visibleMacros, expression.getValue())) {
+			List<Expression> arguments = expression.getArguments();
+			if (arguments.isEmpty() && macro.getParameterCount() == 1) {
+				// Provide an implicit empty argument
+				arguments = Collections.singletonList(SimpleExpression.EMPTY_EXPRESSIONS);
+			}
+			if (macro.getParameterCount() == arguments.size()) {
+				found = true;
+				Expression result = macro.evaluate(arguments);
+				resolveExpression(visibleMacros, result, visitor, tokenLookup);
 			}
 		}
 		if (!found) {
@@ -249,6 +252,34 @@ public class DefaultSourceIncludesResolver implements SourceIncludesResolver {
 		}
 	}
 
+	private static Iterable<Macro> macrosOf(MacroLookup visibleMacros, String name) {
+		if (visibleMacros instanceof IndexedMacroLookup) {
+			return ((IndexedMacroLookup) visibleMacros).getMacros(name);
+		}
+
+		List<Macro> result = new ArrayList<Macro>();
+		for (IncludeDirectives includeDirectives : visibleMacros) {
+			for (Macro macro : includeDirectives.getMacros(name)) {
+				result.add(macro);
+			}
+		}
+		return result;
+	}
+
+	private static Iterable<MacroFunction> macroFunctionsOf(MacroLookup visibleMacros, String name) {
+		if (visibleMacros instanceof IndexedMacroLookup) {
+			return ((IndexedMacroLookup) visibleMacros).getMacroFunctions(name);
+		}
+
+		List<MacroFunction> result = new ArrayList<MacroFunction>();
+		for (IncludeDirectives includeDirectives : visibleMacros) {
+			for (MacroFunction macroFunction : includeDirectives.getMacroFunctions(name)) {
+				result.add(macroFunction);
+			}
+		}
+		return result;
+	}
+
 	@Nullable
 	@Override
 	public IncludeFile resolveInclude(@Nullable File sourceFile, String includePath) {
@@ -257,12 +288,7 @@ public class DefaultSourceIncludesResolver implements SourceIncludesResolver {
 	}
 
 	private DirectoryContents toDir(File includeDir) {
-		DirectoryContents directoryContents = includeRoots.get(includeDir);
-		if (directoryContents == null) {
-			directoryContents = new DirectoryContents(includeDir);
-			includeRoots.put(includeDir, directoryContents);
-		}
-		return directoryContents;
+		return includeRoots.computeIfAbsent(includeDir, DirectoryContents::new);
 	}
 
 	private IncludePath prependSourceDir(File sourceFile, FixedIncludePath includePaths) {
@@ -301,7 +327,7 @@ public class DefaultSourceIncludesResolver implements SourceIncludesResolver {
 
 	private static class FixedIncludePath extends IncludePath {
 		private final List<DirectoryContents> directories;
-		private final Map<String, CachedIncludeFile> cachedLookups = new HashMap<String, CachedIncludeFile>();
+		private final Map<String, CachedIncludeFile> cachedLookups = new ConcurrentHashMap<String, CachedIncludeFile>();
 
 		FixedIncludePath(List<DirectoryContents> directories) {
 			this.directories = directories;
@@ -321,7 +347,7 @@ public class DefaultSourceIncludesResolver implements SourceIncludesResolver {
 				if (includeFile == null) {
 					includeFile = MISSING_INCLUDE_FILE;
 				}
-				cachedLookups.put(includePath, includeFile);
+				cachedLookups.putIfAbsent(includePath, includeFile);
 			}
 			if (includeFile.getType() == FileType.RegularFile) {
 				return includeFile.toIncludeFile(quotedPath);
@@ -336,20 +362,35 @@ public class DefaultSourceIncludesResolver implements SourceIncludesResolver {
 
 	private class DirectoryContents {
 		private final File searchDir;
-		private final Map<String, CachedIncludeFile> contents = new HashMap<String, CachedIncludeFile>();
+		private final Map<String, CachedIncludeFile> contents = new ConcurrentHashMap<String, CachedIncludeFile>();
 
 		DirectoryContents(File searchDir) {
 			this.searchDir = searchDir;
 		}
 
 		CachedIncludeFile get(String includePath) {
-			return contents.computeIfAbsent(includePath,
-				key -> {
-					File candidate = normalizeIncludePath(searchDir, includePath);
-					return fileSystemAccess.readRegularFileContentHash(candidate.getAbsolutePath())
-						.map(contentHash -> (CachedIncludeFile) new SystemIncludeFile(candidate, key, contentHash))
-						.orElse(MISSING_INCLUDE_FILE);
-				});
+			if (directoryIndex != null) {
+				// Shared with all compile tasks of the build
+				return directoryIndex.lookup(searchDir, includePath, this::probe);
+			}
+
+			CachedIncludeFile result = contents.get(includePath);
+			if (result == null) {
+				// Probe outside the map lock, concurrent probes of the same path yield the same result
+				result = probe(includePath);
+				CachedIncludeFile existingResult = contents.putIfAbsent(includePath, result);
+				if (existingResult != null) {
+					result = existingResult;
+				}
+			}
+			return result;
+		}
+
+		private CachedIncludeFile probe(String includePath) {
+			File candidate = normalizeIncludePath(searchDir, includePath);
+			return fileSystemAccess.readRegularFileContentHash(candidate.getAbsolutePath())
+				.map(contentHash -> (CachedIncludeFile) new SystemIncludeFile(candidate, includePath, contentHash))
+				.orElse(MISSING_INCLUDE_FILE);
 		}
 	}
 
@@ -407,22 +448,12 @@ public class DefaultSourceIncludesResolver implements SourceIncludesResolver {
 				continue;
 			}
 
-			if (!Files.isDirectory(current)) {
+			Optional<Map<String, String>> listing = listingOf(current.toFile());
+			if (!listing.isPresent()) {
 				return null;
 			}
 
-			Path match = null;
-
-			try (DirectoryStream<Path> stream = Files.newDirectoryStream(current)) {
-				for (Path entry : stream) {
-					if (entry.getFileName().toString().equalsIgnoreCase(name)) {
-						match = entry.getFileName();
-						break;
-					}
-				}
-			} catch (IOException e) {
-				throw new UncheckedIOException(e);
-			}
+			String match = listing.get().get(caseFolded(name));
 
 			if (match == null) {
 				// Path does not exist → abort
@@ -435,6 +466,35 @@ public class DefaultSourceIncludesResolver implements SourceIncludesResolver {
 		return current.toFile();
 	}
 
+	// Listings are shared across lookups (and across tasks when a directory index is available)
+	private Optional<Map<String, String>> listingOf(File directory) {
+		if (directoryIndex != null) {
+			return directoryIndex.listingOf(directory, DefaultSourceIncludesResolver::readListing);
+		}
+		return listings.computeIfAbsent(directory, DefaultSourceIncludesResolver::readListing);
+	}
+
+	private static Optional<Map<String, String>> readListing(File directory) {
+		if (!directory.isDirectory()) {
+			return Optional.empty();
+		}
+
+		Map<String, String> result = new HashMap<String, String>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory.toPath())) {
+			for (Path entry : stream) {
+				String name = entry.getFileName().toString();
+				result.putIfAbsent(caseFolded(name), name);
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return Optional.of(result);
+	}
+
+	private static String caseFolded(String name) {
+		return name.toUpperCase(Locale.ROOT).toLowerCase(Locale.ROOT);
+	}
+
 	private static abstract class CachedIncludeFile {
 		abstract FileType getType();
 
@@ -0,0 +1,157 @@
+package dev.nokee.companion.features;
+
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+import org.gradle.api.tasks.WorkResult;
+import org.gradle.internal.hash.HashCode;
+import org.gradle.language.base.internal.compile.Compiler;
+import org.gradle.nativeplatform.toolchain.internal.NativeCompileSpec;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+/**
+ * Collects the dependency files written by GCC/Clang when compiling with {@code -MD} (i.e. {@code <object>.d} next to each object file).
+ * The headers of each compiled source file are recorded in the compilation state store with their content hash.
+ *
+ * <p>Sources without a (readable) dependency file are simply not recorded, the header discovery falls back to parsing.
+ */
+final class DependencyFileCollectingCompiler<T extends NativeCompileSpec> implements Compiler<T> {
+	private static final Logger LOGGER = Logging.getLogger(DependencyFileCollectingCompiler.class);
+	private static final long MODIFICATION_TIME_SLACK_MILLIS = 2000; // coarse file system timestamps
+	private final Compiler<T> delegateCompiler;
+	private final CompilationStateStore compilationStateStore;
+	private final Function<? super File, Optional<HashCode>> hasher;
+
+	public DependencyFileCollectingCompiler(Compiler<T> delegateCompiler, CompilationStateStore compilationStateStore, Function<? super File, Optional<HashCode>> hasher) {
+		this.delegateCompiler = delegateCompiler;
+		this.compilationStateStore = compilationStateStore;
+		this.hasher = hasher;
+	}
+
+	@Override
+	public WorkResult execute(T spec) {
+		// Copy, the spec's source files may be adjusted by the delegate compiler
+		Set<File> sourceFiles = new HashSet<>(spec.getSourceFiles());
+		long startTime = System.currentTimeMillis() - MODIFICATION_TIME_SLACK_MILLIS;
+
+		WorkResult result = delegateCompiler.execute(spec);
+
+		try (Stream<Path> paths = Files.walk(spec.getObjectFileDir().toPath())) {
+			paths.filter(it -> it.getFileName().toString().endsWith(".d"))
+				.filter(it -> it.toFile().lastModified() >= startTime)
+				.forEach(it -> collect(it.toFile(), sourceFiles));
+		} catch (IOException e) {
+			LOGGER.info("Could not collect dependency files in '" + spec.getObjectFileDir() + "'.", e);
+		}
+
+		return result;
+	}
+
+	private void collect(File dependencyFile, Set<File> sourceFiles) {
+		try {
+			List<String> prerequisites = parse(new String(Files.readAllBytes(dependencyFile.toPath()), Charset.defaultCharset()));
+			if (prerequisites == null || prerequisites.isEmpty()) {
+				return;
+			}
+
+			// The first prerequisite is the source file
+			File sourceFile = new File(prerequisites.get(0));
+			if (!sourceFile.isAbsolute() || !sourceFiles.contains(sourceFile)) {
+				return;
+			}
+
+			Map<File, HashCode> headers = new LinkedHashMap<>();
+			for (String prerequisite : prerequisites.subList(1, prerequisites.size())) {
+				File header = new File(prerequisite);
+				if (!header.isAbsolute()) {
+					return; // relative to the compiler working directory, ignore the whole file
+				}
+				Optional<HashCode> hash = hasher.apply(header);
+				if (!hash.isPresent()) {
+					return; // header removed since
+				}
+				headers.put(header, hash.get());
+			}
+			compilationStateStore.dependencies(sourceFile, headers);
+		} catch (IOException e) {
+			LOGGER.info("Could not read dependency file '" + dependencyFile + "'.", e);
+		}
+	}
+
+	/**
+	 * Parses the first rule of a Make dependency file as written by GCC/Clang.
+	 * Backslash-newline continues the rule, spaces and {@code #} are escaped with a backslash and {@code $} is doubled.
+	 *
+	 * @param content  the dependency file content
+	 * @return the prerequisites of the first rule or null if the content is not a rule
+	 */
+	@Nullable
+	static List<String> parse(String content) {
+		int separator = targetSeparator(content);
+		if (separator < 0) {
+			return null;
+		}
+
+		List<String> result = new ArrayList<>();
+		StringBuilder current = new StringBuilder();
+		for (int i = separator + 1; i < content.length(); ++i) {
+			char c = content.charAt(i);
+			if (c == '\\' && i + 1 < content.length()) {
+				char next = content.charAt(i + 1);
+				if (next == '\n' || next == '\r') {
+					// Line continuation
+					endOf(current, result);
+					i += (next == '\r' && i + 2 < content.length() && content.charAt(i + 2) == '\n') ? 2 : 1;
+					continue;
+				} else if (next == ' ' || next == '#') {
+					current.append(next);
+					++i;
+					continue;
+				}
+				current.append(c);
+			} else if (c == '$' && i + 1 < content.length() && content.charAt(i + 1) == '$') {
+				current.append('$');
+				++i;
+			} else if (c == '\n' || c == '\r') {
+				break; // end of the first rule
+			} else if (Character.isWhitespace(c)) {
+				endOf(current, result);
+			} else {
+				current.append(c);
+			}
+		}
+		endOf(current, result);
+		return result;
+	}
+
+	// The target may contain a drive letter (i.e. C:/...), the separator is a colon followed by whitespace
+	private static int targetSeparator(String content) {
+		for (int i = content.indexOf(':'); i >= 0; i = content.indexOf(':', i + 1)) {
+			if (i + 1 == content.length() || Character.isWhitespace(content.charAt(i + 1))) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static void endOf(StringBuilder current, List<String> result) {
+		if (current.length() > 0) {
+			result.add(current.toString());
+			current.setLength(0);
+		}
+	}
+}
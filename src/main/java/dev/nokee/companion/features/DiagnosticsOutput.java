@@ -0,0 +1,284 @@
+package dev.nokee.companion.features;
+
+import javax.annotation.Nullable;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Bounded-memory sink of a compiler invocation output (standard and error output).
+ *
+ * <p>Only the tail of the output stays in memory.
+ * The output spills to the log file once it exceeds the tail, the common small outputs never touch the disk.
+ * The GCC/Clang diagnostics ({@code <file>:<line>[:<column>]: <severity>: <message>}) are parsed line by line while the output streams.
+ * The {@link #summary() summary} is the full output when it fits the tail, otherwise the first diagnostics followed by the tail.
+ * The output is decoded as UTF-8 (i.e. GCC and Clang), malformed sequences are replaced.
+ */
+final class DiagnosticsOutput extends OutputStream {
+	private static final int MAX_TAIL_BYTES = 64 * 1024;
+	private static final int MAX_LINE_BYTES = 4 * 1024; // longer lines are truncated for parsing only
+	private static final int MAX_DIAGNOSTICS = 50;
+	private static final Pattern DIAGNOSTIC_PATTERN = Pattern.compile("^(.+?):(\\d+)(?::(\\d+))?: (fatal error|error|warning): (.*)$");
+	@Nullable private final File logFile;
+	private final byte[] tail = new byte[MAX_TAIL_BYTES];
+	private long totalBytes = 0;
+	@Nullable private OutputStream logOutput;
+	private boolean logFailed = false;
+
+	private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+	private final List<Diagnostic> diagnostics = new ArrayList<>();
+	private int errorCount = 0;
+	private int warningCount = 0;
+
+	/**
+	 * Creates a sink for a compiler invocation.
+	 *
+	 * @param logFile  the file receiving the full output, if exceeding the tail, or null to only keep the tail
+	 */
+	public DiagnosticsOutput(@Nullable File logFile) {
+		this.logFile = logFile;
+	}
+
+	// The standard and error outputs are pumped by separate threads
+	@Override
+	public synchronized void write(int b) throws IOException {
+		write(new byte[] {(byte) b}, 0, 1);
+	}
+
+	@Override
+	public synchronized void write(byte[] b, int off, int len) throws IOException {
+		if (totalBytes + len > MAX_TAIL_BYTES && logOutput == null && !logFailed) {
+			spill();
+		}
+		if (logOutput != null) {
+			logOutput.write(b, off, len);
+		}
+
+		for (int i = off; i < off + len; ++i) {
+			tail[(int) (totalBytes++ % MAX_TAIL_BYTES)] = b[i];
+			parse(b[i]);
+		}
+	}
+
+	// Moves the output so far (all in the tail) to the log file
+	private void spill() {
+		if (logFile == null) {
+			logFailed = true;
+			return;
+		}
+		try {
+			Files.createDirectories(logFile.getParentFile().toPath());
+			logOutput = new FileOutputStream(logFile);
+			logOutput.write(tail, 0, (int) totalBytes);
+		} catch (IOException e) {
+			closeLog();
+			logFailed = true; // only the tail remains
+		}
+	}
+
+	private void parse(byte b) {
+		if (b == '\n') {
+			String text = decode(line.toByteArray(), line.size()).trim();
+			line.reset();
+			Matcher matcher = DIAGNOSTIC_PATTERN.matcher(text);
+			if (matcher.matches()) {
+				Diagnostic diagnostic = new Diagnostic(matcher.group(1), Integer.parseInt(matcher.group(2)), matcher.group(3) == null ? 0 : Integer.parseInt(matcher.group(3)), matcher.group(4), matcher.group(5));
+				if (diagnostic.isError()) {
+					++errorCount;
+				} else {
+					++warningCount;
+				}
+				if (diagnostics.size() < MAX_DIAGNOSTICS) {
+					diagnostics.add(diagnostic);
+				}
+			}
+		} else if (line.size() < MAX_LINE_BYTES) {
+			line.write(b);
+		}
+	}
+
+	/**
+	 * {@return the output to report to the build operation logger, capped in size}
+	 */
+	public synchronized String summary() {
+		if (totalBytes <= MAX_TAIL_BYTES) {
+			return decode(tail, (int) totalBytes);
+		}
+
+		StringBuilder result = new StringBuilder();
+		result.append(String.format("%d error(s) and %d warning(s), the output was %d bytes", errorCount, warningCount, totalBytes));
+		if (logOutput != null) {
+			result.append(", see ").append(logFile.getAbsolutePath()).append(" for the full output");
+		}
+		result.append(".\n");
+		for (Diagnostic diagnostic : diagnostics) {
+			result.append(diagnostic).append('\n');
+		}
+		if (errorCount + warningCount > diagnostics.size()) {
+			result.append("...\n");
+		}
+
+		result.append("\nLast ").append(MAX_TAIL_BYTES / 1024).append(" KB of the output:\n");
+		int start = (int) (totalBytes % MAX_TAIL_BYTES);
+		byte[] bytes = new byte[MAX_TAIL_BYTES];
+		System.arraycopy(tail, start, bytes, 0, MAX_TAIL_BYTES - start);
+		System.arraycopy(tail, 0, bytes, MAX_TAIL_BYTES - start, start);
+		int from = 0;
+		while (from < bytes.length && (bytes[from] & 0xC0) == 0x80) {
+			++from; // skips the continuation bytes of the character split at the cut
+		}
+		String text = new String(bytes, from, bytes.length - from, StandardCharsets.UTF_8);
+		int index = text.indexOf('\n'); // drop the partial first line
+		result.append(index < 0 ? text : text.substring(index + 1));
+		return result.toString();
+	}
+
+	// Same as new String(bytes, UTF_8), the malformed sequences (i.e. a truncated tail) are replaced
+	private static String decode(byte[] bytes, int length) {
+		return new String(bytes, 0, length, StandardCharsets.UTF_8);
+	}
+
+	@Override
+	public synchronized void close() {
+		closeLog();
+	}
+
+	private void closeLog() {
+		if (logOutput != null) {
+			try {
+				logOutput.close();
+			} catch (IOException e) {
+				// ignores, the log file is best effort
+			}
+			logOutput = null;
+		}
+	}
+
+	/**
+	 * Sink of a batched compiler invocation output (i.e. {@code gcc -c a.cpp b.cpp}), routing each line to the output of its source file.
+	 *
+	 * <p>The compiler processes the source files in order, a line mentioning a source file (i.e. {@code a.cpp:12:5: error: ...}) starts its output.
+	 * The lines are attributed as the output streams, each source file output is capped on its own.
+	 */
+	static final class PerSourceOutput extends OutputStream {
+		private final Map<String, DiagnosticsOutput> outputs;
+		private DiagnosticsOutput current;
+		private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+		private boolean routed = false; // the current line is too long and already routed
+
+		/**
+		 * Creates a sink for a batched compiler invocation.
+		 *
+		 * @param outputs  the output of each source file path, in compilation order
+		 */
+		public PerSourceOutput(LinkedHashMap<String, DiagnosticsOutput> outputs) {
+			this.outputs = outputs;
+			this.current = outputs.values().iterator().next();
+		}
+
+		// The standard and error outputs are pumped by separate threads
+		@Override
+		public synchronized void write(int b) throws IOException {
+			write(new byte[] {(byte) b}, 0, 1);
+		}
+
+		@Override
+		public synchronized void write(byte[] b, int off, int len) throws IOException {
+			int end = off + len;
+			while (off < end) {
+				int newline = off;
+				while (newline < end && b[newline] != '\n') {
+					++newline;
+				}
+				int segmentEnd = newline < end ? newline + 1 : end;
+				if (routed) {
+					current.write(b, off, segmentEnd - off);
+				} else {
+					line.write(b, off, segmentEnd - off);
+					if (newline < end || line.size() >= MAX_LINE_BYTES) {
+						route();
+						routed = newline == end;
+					}
+				}
+				if (newline < end) {
+					routed = false;
+				}
+				off = segmentEnd;
+			}
+		}
+
+		private void route() throws IOException {
+			String text = decode(line.toByteArray(), Math.min(line.size(), MAX_LINE_BYTES));
+			for (Map.Entry<String, DiagnosticsOutput> entry : outputs.entrySet()) {
+				if (text.contains(entry.getKey() + ":")) {
+					current = entry.getValue();
+					break;
+				}
+			}
+			line.writeTo(current);
+			line.reset();
+		}
+
+		/**
+		 * {@return the output of the source file to report to the build operation logger, capped in size}
+		 *
+		 * @param sourceFile  the source file path
+		 */
+		public synchronized String summaryOf(String sourceFile) {
+			return outputs.get(sourceFile).summary();
+		}
+
+		@Override
+		public synchronized void close() {
+			if (line.size() > 0) {
+				try {
+					route(); // the last line without newline
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}
+			for (DiagnosticsOutput output : outputs.values()) {
+				output.close();
+			}
+		}
+	}
+
+	/**
+	 * A compiler diagnostic, i.e. {@code foo.cpp:12:5: error: expected ';'}.
+	 */
+	public static final class Diagnostic {
+		private final String file;
+		private final int line;
+		private final int column;
+		private final String severity;
+		private final String message;
+
+		private Diagnostic(String file, int line, int column, String severity, String message) {
+			this.file = file;
+			this.line = line;
+			this.column = column;
+			this.severity = severity;
+			this.message = message;
+		}
+
+		public boolean isError() {
+			return !severity.equals("warning");
+		}
+
+		@Override
+		public String toString() {
+			return file + ":" + line + (column > 0 ? ":" + column : "") + ": " + severity + ": " + message;
+		}
+	}
+}
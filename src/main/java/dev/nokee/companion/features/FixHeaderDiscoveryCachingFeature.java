@@ -6,19 +6,27 @@ import org.gradle.api.Project;
 import org.gradle.api.internal.file.TaskFileVarFactory;
 import org.gradle.api.internal.file.collections.DirectoryFileTreeFactory;
 import org.gradle.api.provider.Property;
+import org.gradle.api.provider.Provider;
 import org.gradle.api.tasks.TaskContainer;
 import org.gradle.internal.file.Deleter;
 import org.gradle.internal.operations.BuildOperationRunner;
 import org.gradle.internal.vfs.FileSystemAccess;
-import org.gradle.language.nativeplatform.internal.incremental.CompilationStateCacheFactory;
 import org.gradle.language.nativeplatform.internal.incremental.IncrementalCompilerBuilder;
 import org.gradle.language.nativeplatform.internal.incremental.sourceparser.CSourceParser;
 
+import javax.annotation.Nullable;
 import javax.inject.Inject;
+import java.io.File;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.util.regex.Pattern;
 
 abstract class FixHeaderDiscoveryCachingFeature implements Plugin<Project> {
+	private static final String INCLUDE_DIRECTIVES_CACHE_MAX_ENTRIES_PROPERTY_NAME = "dev.nokee.internal.native.headers.directives-cache.max-entries";
+	// Either 'user-home', 'project' or a directory path
+	private static final String HEADER_DIRECTIVES_INDEX_PROPERTY_NAME = "dev.nokee.internal.native.headers.directives-index";
+	// Read-only index directories separated by the path separator
+	private static final String HEADER_DIRECTIVES_INDEX_SEEDS_PROPERTY_NAME = "dev.nokee.internal.native.headers.directives-index.seeds";
 	private final TaskContainer tasks;
 
 	@Inject
@@ -28,7 +36,6 @@ abstract class FixHeaderDiscoveryCachingFeature implements Plugin<Project> {
 
 	//region Services required by IncrementalCompilerBuilder
 	@Inject protected abstract BuildOperationRunner getBuildOperationRunner();
-	@Inject protected abstract CompilationStateCacheFactory getCompilationStateCacheFactory();
 	@Inject protected abstract CSourceParser getSourceParser();
 	@Inject protected abstract Deleter getDeleter();
 	@Inject protected abstract DirectoryFileTreeFactory getDirectoryFileTreeFactory();
@@ -38,11 +45,53 @@ abstract class FixHeaderDiscoveryCachingFeature implements Plugin<Project> {
 
 	@Override
 	public void apply(Project project) {
+		GradleInternals.assertAvailable("fix-for-gradle-34152", GradleInternals.INCREMENTAL_COMPILATION_MEMBERS);
+		int maxWorkerCount = project.getGradle().getStartParameter().getMaxWorkerCount();
+		File compilationStateDirectory = new File(projectCacheDir(project), "nokee-companion/compilation-state");
+		Provider<IncludeDirectivesCache> includeDirectivesCache = project.getGradle().getSharedServices().registerIfAbsent("include-directives-cache", IncludeDirectivesCache.class, spec -> {
+			spec.getParameters().getMaxEntries().convention(Integer.getInteger(INCLUDE_DIRECTIVES_CACHE_MAX_ENTRIES_PROPERTY_NAME, 50000));
+			File indexDirectory = headerDirectivesIndexDirectory(project, System.getProperty(HEADER_DIRECTIVES_INDEX_PROPERTY_NAME));
+			if (indexDirectory != null) {
+				spec.getParameters().getIndexDirectory().set(indexDirectory);
+			}
+			String seeds = System.getProperty(HEADER_DIRECTIVES_INDEX_SEEDS_PROPERTY_NAME);
+			if (seeds != null) {
+				for (String seed : seeds.split(Pattern.quote(File.pathSeparator))) {
+					if (!seed.isEmpty()) {
+						spec.getParameters().getSeedDirectories().from(new File(seed));
+					}
+				}
+			}
+		});
+		Provider<IncludeDirectoryIndex> includeDirectoryIndex = project.getGradle().getSharedServices().registerIfAbsent("include-directory-index", IncludeDirectoryIndex.class, spec -> {});
 		tasks.withType(CppCompile.class).configureEach(task -> {
-			incrementalCompilerBuilderOf(task).set(new DefaultIncrementalCompilerBuilder(getBuildOperationRunner(), getCompilationStateCacheFactory(), getSourceParser(), getDeleter(), getDirectoryFileTreeFactory(), getFileSystemAccess(), getFileVarFactory()));
+			task.usesService(includeDirectivesCache);
+			task.usesService(includeDirectoryIndex);
+			incrementalCompilerBuilderOf(task).set(new DefaultIncrementalCompilerBuilder(getBuildOperationRunner(), compilationStateDirectory, getSourceParser(), getDeleter(), getDirectoryFileTreeFactory(), getFileSystemAccess(), getFileVarFactory(), maxWorkerCount, includeDirectivesCache, includeDirectoryIndex));
 		});
 	}
 
+	@Nullable
+	private static File headerDirectivesIndexDirectory(Project project, @Nullable String location) {
+		if (location == null || location.isEmpty()) {
+			return null; // disabled
+		} else if (location.equals("user-home")) {
+			return new File(project.getGradle().getGradleUserHomeDir(), "caches/nokee-companion/header-directives");
+		} else if (location.equals("project")) {
+			return new File(projectCacheDir(project), "nokee-companion/header-directives");
+		} else {
+			return new File(location);
+		}
+	}
+
+	private static File projectCacheDir(Project project) {
+		File result = project.getGradle().getStartParameter().getProjectCacheDir();
+		if (result == null) {
+			result = new File(project.getRootDir(), ".gradle");
+		}
+		return result;
+	}
+
 	private static Property<IncrementalCompilerBuilder> incrementalCompilerBuilderOf(CppCompile task) {
 		try {
 			final Method CppCompile__getIncrementalCompilerBuilderService = task.getClass().getMethod("getIncrementalCompilerBuilderService");
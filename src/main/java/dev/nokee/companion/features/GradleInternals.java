@@ -0,0 +1,327 @@
+package dev.nokee.companion.features;
+
+import org.gradle.api.GradleException;
+import org.gradle.api.internal.TaskOutputsInternal;
+import org.gradle.internal.file.Deleter;
+import org.gradle.internal.hash.HashCode;
+import org.gradle.internal.vfs.FileSystemAccess;
+import org.gradle.language.base.internal.compile.Compiler;
+import org.gradle.language.base.internal.compile.VersionAwareCompiler;
+import org.gradle.language.nativeplatform.internal.incremental.HeaderDependenciesCollector;
+import org.gradle.language.nativeplatform.internal.incremental.IncludeFileEdge;
+import org.gradle.language.nativeplatform.internal.incremental.IncrementalCompilation;
+import org.gradle.language.nativeplatform.internal.incremental.IncrementalNativeCompiler;
+import org.gradle.language.nativeplatform.internal.incremental.SourceFileState;
+import org.gradle.nativeplatform.toolchain.internal.NativeCompileSpec;
+import org.gradle.nativeplatform.toolchain.internal.OutputCleaningCompiler;
+import org.gradle.util.GradleVersion;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.function.Function;
+
+import static dev.nokee.companion.features.ReflectionUtils.makeAccessible;
+
+/**
+ * Gradle internal members used on hot paths, resolved once per Gradle version as method handles.
+ *
+ * <p>Missing members do not fail class initialization.
+ * Features check the members they rely on when applied (see {@link #assertAvailable(String, String...)}) so an unsupported Gradle version is reported up front instead of during task execution.
+ */
+final class GradleInternals {
+	private static final Map<String, Throwable> MISSING_MEMBERS = new LinkedHashMap<>();
+
+	//region Incremental compilation
+	static final String READ_REGULAR_FILE_CONTENT_HASH = "FileSystemAccess#readRegularFileContentHash";
+	static final String READ_SNAPSHOT_HASH = "FileSystemAccess#read"; // only for the opt-in fast up-to-date check
+	static final String NEW_SOURCE_FILE_STATE = "SourceFileState#<init>";
+	static final String SOURCE_FILE_STATE_GET_EDGES = "SourceFileState#getEdges";
+	static final String IMMUTABLE_SET_COPY_OF = "ImmutableSet#copyOf";
+	static final String OBJECT_HOLDER_GET = "ObjectHolder#get";
+	static final String OBJECT_HOLDER_SET = "ObjectHolder#set";
+	static final String NEW_INCREMENTAL_NATIVE_COMPILER = "IncrementalNativeCompiler#<init>";
+	static final String COLLECT_EXISTING_HEADER_DEPENDENCIES = "HeaderDependenciesCollector#collectExistingHeaderDependencies";
+
+	static final String[] INCREMENTAL_COMPILATION_MEMBERS = new String[] {
+		READ_REGULAR_FILE_CONTENT_HASH, NEW_SOURCE_FILE_STATE, SOURCE_FILE_STATE_GET_EDGES, IMMUTABLE_SET_COPY_OF,
+		OBJECT_HOLDER_GET, OBJECT_HOLDER_SET, NEW_INCREMENTAL_NATIVE_COMPILER, COLLECT_EXISTING_HEADER_DEPENDENCIES,
+	};
+	//endregion
+
+	//region Transactional compilation
+	static final String VERSION_AWARE_COMPILER_COMPILER = "VersionAwareCompiler#compiler";
+	static final String OUTPUT_CLEANING_COMPILER_GET_OBJECT_FILE = "OutputCleaningCompiler#getObjectFile";
+
+	static final String[] TRANSACTIONAL_COMPILATION_MEMBERS = new String[] {
+		VERSION_AWARE_COMPILER_COMPILER, OUTPUT_CLEANING_COMPILER_GET_OBJECT_FILE,
+	};
+	//endregion
+
+	@Nullable private static final Class<?> OBJECT_HOLDER_TYPE = resolveType(OBJECT_HOLDER_GET, () -> IncrementalNativeCompiler.class.getConstructors()[0].getParameterTypes()[3]);
+
+	// (FileSystemAccess, String) -> Optional<HashCode>
+	@Nullable private static final MethodHandle FileSystemAccess__readRegularFileContentHash = resolve(READ_REGULAR_FILE_CONTENT_HASH, lookup -> {
+		try {
+			return lookup.findVirtual(FileSystemAccess.class, "readRegularFileContentHash", MethodType.methodType(Optional.class, String.class));
+		} catch (NoSuchMethodException e) {
+			// Older Gradle versions read the hash through a visitor
+			MethodHandle result = lookup.findVirtual(FileSystemAccess.class, "readRegularFileContentHash", MethodType.methodType(Optional.class, String.class, Function.class));
+			return MethodHandles.insertArguments(result, 2, Function.identity());
+		}
+	});
+
+	// (FileSystemAccess, String) -> HashCode
+	@Nullable private static final MethodHandle FileSystemAccess__readHash = resolve(READ_SNAPSHOT_HASH, lookup -> {
+		try {
+			Method read = FileSystemAccess.class.getMethod("read", String.class);
+			MethodHandle getHash = lookup.unreflect(read.getReturnType().getMethod("getHash"));
+			return MethodHandles.filterReturnValue(lookup.unreflect(read), getHash);
+		} catch (NoSuchMethodException e) {
+			// Older Gradle versions read the snapshot through a visitor
+			Class<?> snapshotType = Class.forName("org.gradle.internal.snapshot.CompleteFileSystemLocationSnapshot", false, FileSystemAccess.class.getClassLoader());
+			MethodHandle read = MethodHandles.insertArguments(lookup.findVirtual(FileSystemAccess.class, "read", MethodType.methodType(Object.class, String.class, Function.class)), 2, Function.identity());
+			MethodHandle getHash = lookup.findVirtual(snapshotType, "getHash", MethodType.methodType(HashCode.class));
+			return MethodHandles.filterReturnValue(read, getHash.asType(MethodType.methodType(HashCode.class, Object.class)));
+		}
+	});
+
+	// (HashCode, boolean, ImmutableSet<IncludeFileEdge>) -> SourceFileState
+	@Nullable private static final MethodHandle SourceFileState__new = resolve(NEW_SOURCE_FILE_STATE, lookup -> {
+		assert SourceFileState.class.getConstructors().length == 1;
+		return lookup.unreflectConstructor(SourceFileState.class.getConstructors()[0]);
+	});
+
+	// (SourceFileState) -> ImmutableSet<IncludeFileEdge>
+	@Nullable private static final MethodHandle SourceFileState__getEdges = resolve(SOURCE_FILE_STATE_GET_EDGES, lookup -> lookup.unreflect(SourceFileState.class.getMethod("getEdges")));
+
+	// (Collection<IncludeFileEdge>) -> ImmutableSet<IncludeFileEdge>, Gradle's shaded Guava
+	@Nullable private static final MethodHandle ImmutableSet__copyOf = resolve(IMMUTABLE_SET_COPY_OF, lookup -> {
+		Constructor<?> constructor = SourceFileState.class.getConstructors()[0];
+		Class<?> ImmutableSet = constructor.getParameterTypes()[constructor.getParameterCount() - 1];
+		return lookup.findStatic(ImmutableSet, "copyOf", MethodType.methodType(ImmutableSet, Collection.class));
+	});
+
+	// (ObjectHolder) -> Object
+	@Nullable private static final MethodHandle ObjectHolder__get = resolve(OBJECT_HOLDER_GET, lookup -> lookup.findVirtual(objectHolderType(), "get", MethodType.methodType(Object.class)));
+
+	// (ObjectHolder, Object) -> void
+	@Nullable private static final MethodHandle ObjectHolder__set = resolve(OBJECT_HOLDER_SET, lookup -> lookup.findVirtual(objectHolderType(), "set", MethodType.methodType(void.class, Object.class)));
+
+	// (TaskOutputsInternal, Compiler, Deleter, ObjectHolder<CompilationState>, IncrementalCompilation) -> IncrementalNativeCompiler
+	@Nullable private static final MethodHandle IncrementalNativeCompiler__new = resolve(NEW_INCREMENTAL_NATIVE_COMPILER, lookup -> lookup.unreflectConstructor(IncrementalNativeCompiler.class.getConstructors()[0]));
+
+	// (HeaderDependenciesCollector, String, List<File>, IncrementalCompilation) -> Set<File>
+	@Nullable private static final MethodHandle HeaderDependenciesCollector__collectExistingHeaderDependencies = resolve(COLLECT_EXISTING_HEADER_DEPENDENCIES, lookup -> lookup.findVirtual(HeaderDependenciesCollector.class, "collectExistingHeaderDependencies", MethodType.methodType(Set.class, String.class, List.class, IncrementalCompilation.class)));
+
+	// (VersionAwareCompiler) -> Compiler
+	@Nullable private static final MethodHandle VersionAwareCompiler__compiler = resolve(VERSION_AWARE_COMPILER_COMPILER, lookup -> {
+		Field field = VersionAwareCompiler.class.getDeclaredField("compiler");
+		return lookup.unreflectGetter(makeAccessible(field));
+	});
+
+	// (OutputCleaningCompiler, File objectFileDir, File sourceFile) -> File
+	@Nullable private static final MethodHandle OutputCleaningCompiler__getObjectFile = resolve(OUTPUT_CLEANING_COMPILER_GET_OBJECT_FILE, lookup -> {
+		Method method = OutputCleaningCompiler.class.getDeclaredMethod("getObjectFile", File.class, File.class);
+		return lookup.unreflect(makeAccessible(method));
+	});
+
+	private GradleInternals() {}
+
+	/**
+	 * Fails if any of the specified Gradle internal members is missing in the current Gradle version.
+	 *
+	 * @param featureName  the feature relying on the members, for error reporting
+	 * @param members  the members to check, i.e. {@link #INCREMENTAL_COMPILATION_MEMBERS}
+	 */
+	public static void assertAvailable(String featureName, String... members) {
+		List<String> missingMembers = new ArrayList<>();
+		Throwable cause = null;
+		for (String member : members) {
+			if (MISSING_MEMBERS.containsKey(member)) {
+				missingMembers.add(member);
+				if (cause == null) {
+					cause = MISSING_MEMBERS.get(member);
+				}
+			}
+		}
+
+		if (!missingMembers.isEmpty()) {
+			throw new GradleException(String.format("Feature '%s' is not supported on Gradle %s, missing Gradle internal members: %s.", featureName, GradleVersion.current().getVersion(), String.join(", ", missingMembers)), cause);
+		}
+	}
+
+	public static boolean isAvailable(String member) {
+		return !MISSING_MEMBERS.containsKey(member);
+	}
+
+	//region Incremental compilation
+	public static Optional<HashCode> readRegularFileContentHash(FileSystemAccess self, String path) {
+		try {
+			@SuppressWarnings("unchecked")
+			Optional<HashCode> result = (Optional<HashCode>) available(FileSystemAccess__readRegularFileContentHash, READ_REGULAR_FILE_CONTENT_HASH).invoke(self, path);
+			return result;
+		} catch (Throwable e) {
+			throw rethrow(e);
+		}
+	}
+
+	// Hash of the whole VFS snapshot (missing, regular file or directory tree)
+	public static HashCode readHash(FileSystemAccess self, String location) {
+		try {
+			return (HashCode) available(FileSystemAccess__readHash, READ_SNAPSHOT_HASH).invoke(self, location);
+		} catch (Throwable e) {
+			throw rethrow(e);
+		}
+	}
+
+	public static SourceFileState newSourceFileState(HashCode hash, boolean hasUnresolved, Set<IncludeFileEdge> immutableEdges) {
+		try {
+			return (SourceFileState) available(SourceFileState__new, NEW_SOURCE_FILE_STATE).invoke(hash, hasUnresolved, immutableEdges);
+		} catch (Throwable e) {
+			throw rethrow(e);
+		}
+	}
+
+	public static Set<IncludeFileEdge> edgesOf(SourceFileState self) {
+		try {
+			@SuppressWarnings("unchecked")
+			Set<IncludeFileEdge> result = (Set<IncludeFileEdge>) available(SourceFileState__getEdges, SOURCE_FILE_STATE_GET_EDGES).invoke(self);
+			return result;
+		} catch (Throwable e) {
+			throw rethrow(e);
+		}
+	}
+
+	// Copying an immutable set returns the same instance
+	public static Set<IncludeFileEdge> immutableEdges(Collection<IncludeFileEdge> edges) {
+		try {
+			@SuppressWarnings("unchecked")
+			Set<IncludeFileEdge> result = (Set<IncludeFileEdge>) available(ImmutableSet__copyOf, IMMUTABLE_SET_COPY_OF).invoke(edges);
+			return result;
+		} catch (Throwable e) {
+			throw rethrow(e);
+		}
+	}
+
+	public static Class<?> objectHolderType() {
+		if (OBJECT_HOLDER_TYPE == null) {
+			throw missing(OBJECT_HOLDER_GET);
+		}
+		return OBJECT_HOLDER_TYPE;
+	}
+
+	public static <T> T objectHolderGet(Object self) {
+		try {
+			@SuppressWarnings("unchecked")
+			T result = (T) available(ObjectHolder__get, OBJECT_HOLDER_GET).invoke(self);
+			return result;
+		} catch (Throwable e) {
+			throw rethrow(e);
+		}
+	}
+
+	public static void objectHolderSet(Object self, @Nullable Object value) {
+		try {
+			available(ObjectHolder__set, OBJECT_HOLDER_SET).invoke(self, value);
+		} catch (Throwable e) {
+			throw rethrow(e);
+		}
+	}
+
+	public static <T extends NativeCompileSpec> Compiler<T> newIncrementalNativeCompiler(TaskOutputsInternal taskOutputs, Compiler<T> compiler, Deleter deleter, Object/*ObjectHolder<CompilationState>*/ compileStateCache, IncrementalCompilation incrementalCompilation) {
+		try {
+			@SuppressWarnings("unchecked")
+			Compiler<T> result = (Compiler<T>) available(IncrementalNativeCompiler__new, NEW_INCREMENTAL_NATIVE_COMPILER).invoke(taskOutputs, compiler, deleter, compileStateCache, incrementalCompilation);
+			return result;
+		} catch (Throwable e) {
+			throw rethrow(e);
+		}
+	}
+
+	public static Set<File> collectExistingHeaderDependencies(HeaderDependenciesCollector self, String taskPath, List<File> includeRoots, IncrementalCompilation incrementalCompilation) {
+		try {
+			@SuppressWarnings("unchecked")
+			Set<File> result = (Set<File>) available(HeaderDependenciesCollector__collectExistingHeaderDependencies, COLLECT_EXISTING_HEADER_DEPENDENCIES).invoke(self, taskPath, includeRoots, incrementalCompilation);
+			return result;
+		} catch (Throwable e) {
+			throw rethrow(e);
+		}
+	}
+	//endregion
+
+	//region Transactional compilation
+	public static Compiler<?> delegateOf(VersionAwareCompiler<?> self) {
+		try {
+			return (Compiler<?>) available(VersionAwareCompiler__compiler, VERSION_AWARE_COMPILER_COMPILER).invoke(self);
+		} catch (Throwable e) {
+			throw rethrow(e);
+		}
+	}
+
+	public static File objectFileOf(Compiler<?> self, File objectFileDir, File sourceFile) {
+		try {
+			return (File) available(OutputCleaningCompiler__getObjectFile, OUTPUT_CLEANING_COMPILER_GET_OBJECT_FILE).invoke(self, objectFileDir, sourceFile);
+		} catch (Throwable e) {
+			throw rethrow(e);
+		}
+	}
+	//endregion
+
+	private static MethodHandle available(@Nullable MethodHandle handle, String member) {
+		if (handle == null) {
+			throw missing(member);
+		}
+		return handle;
+	}
+
+	private static IllegalStateException missing(String member) {
+		return new IllegalStateException(String.format("Gradle internal member '%s' is not available on Gradle %s.", member, GradleVersion.current().getVersion()), MISSING_MEMBERS.get(member));
+	}
+
+	private static RuntimeException rethrow(Throwable e) {
+		if (e instanceof RuntimeException) {
+			return (RuntimeException) e;
+		} else if (e instanceof Error) {
+			throw (Error) e;
+		}
+		return new RuntimeException(e);
+	}
+
+	private interface Resolver<T> {
+		T resolve(MethodHandles.Lookup lookup) throws Exception;
+	}
+
+	@Nullable
+	private static MethodHandle resolve(String member, Resolver<MethodHandle> resolver) {
+		try {
+			return resolver.resolve(MethodHandles.lookup());
+		} catch (Exception | LinkageError e) {
+			MISSING_MEMBERS.putIfAbsent(member, e);
+			return null;
+		}
+	}
+
+	@Nullable
+	private static Class<?> resolveType(String member, Callable<Class<?>> resolver) {
+		try {
+			return resolver.call();
+		} catch (Exception | LinkageError e) {
+			MISSING_MEMBERS.putIfAbsent(member, e);
+			return null;
+		}
+	}
+}
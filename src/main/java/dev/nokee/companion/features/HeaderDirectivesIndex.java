@@ -0,0 +1,348 @@
+package dev.nokee.companion.features;
+
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+import org.gradle.internal.hash.HashCode;
+import org.gradle.internal.os.OperatingSystem;
+import org.gradle.internal.serialize.kryo.KryoBackedDecoder;
+import org.gradle.internal.serialize.kryo.KryoBackedEncoder;
+import org.gradle.language.nativeplatform.internal.IncludeDirectives;
+import org.gradle.language.nativeplatform.internal.incremental.sourceparser.IncludeDirectivesSerializer;
+import org.gradle.util.GradleVersion;
+
+import javax.annotation.Nullable;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Persistent index of parsed include directives keyed by content hash.
+ * The index survives daemon restarts and can be shipped as a read-only seed (i.e. in CI images).
+ *
+ * <p>The index is a single append-only file ({@code <index-dir>/<gradle-version>/directives.bin}) memory mapped when opened.
+ * Each record is {@code [int length][byte import-aware][byte hash-length][hash][serialized directives]}.
+ * New directives are appended when the index is closed, under a file lock, so multiple daemons can share the same index.
+ * When the appended directives would exceed the maximum size, the index is rewritten with the directives used by this build and the new ones.
+ *
+ * <p>The mapping keeps a large index out of the heap and only pages in the records found.
+ * The index is only truncated past the records of any reader and replaced by renaming, so the existing mappings stay valid.
+ * On Windows, a mapped file cannot be truncated or replaced until the mapping is garbage collected, the index is read in the heap instead.
+ */
+final class HeaderDirectivesIndex implements Closeable {
+	private static final Logger LOGGER = Logging.getLogger(HeaderDirectivesIndex.class);
+	private static final String INDEX_FILE_NAME = "directives.bin";
+	private static final int MAGIC = 0x4e4b4844; // NKHD
+	private static final int FORMAT_VERSION = 1;
+	private static final int HEADER_SIZE = 8;
+	private static final long MAX_INDEX_SIZE = 512L * 1024 * 1024;
+	private static final ByteBuffer EMPTY_BUFFER = ByteBuffer.allocate(0);
+
+	private final File indexFile;
+	private final boolean writable;
+	private final long maxIndexSize;
+	private final ByteBuffer buffer;
+	private final Map<Key, Entry> entries;
+	private final long validLength;
+	private final Queue<byte[]> pendingRecords = new ConcurrentLinkedQueue<>();
+	private final Set<Key> pendingKeys = ConcurrentHashMap.newKeySet();
+	private final AtomicLong pendingLength = new AtomicLong();
+	private final Set<Key> usedKeys = ConcurrentHashMap.newKeySet();
+
+	private HeaderDirectivesIndex(File indexFile, boolean writable, long maxIndexSize, ByteBuffer buffer, Map<Key, Entry> entries, long validLength) {
+		this.indexFile = indexFile;
+		this.writable = writable;
+		this.maxIndexSize = maxIndexSize;
+		this.buffer = buffer;
+		this.entries = entries;
+		this.validLength = validLength;
+	}
+
+	/**
+	 * Opens the index inside the specified directory.
+	 * A missing, incompatible or unreadable index is treated as empty.
+	 *
+	 * @param indexDirectory  the index directory
+	 * @param writable  true if new directives should be appended to the index, false for read-only (i.e. seed) index
+	 * @return the index, never null
+	 */
+	public static HeaderDirectivesIndex open(File indexDirectory, boolean writable) {
+		return open(indexDirectory, writable, MAX_INDEX_SIZE);
+	}
+
+	// Visible for testing, the rewrite would otherwise only happen past 512MB
+	static HeaderDirectivesIndex open(File indexDirectory, boolean writable, long maxIndexSize) {
+		File indexFile = new File(new File(indexDirectory, GradleVersion.current().getVersion()), INDEX_FILE_NAME);
+		if (!indexFile.isFile()) {
+			return new HeaderDirectivesIndex(indexFile, writable, maxIndexSize, EMPTY_BUFFER, Collections.emptyMap(), 0);
+		}
+
+		try (FileChannel channel = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ)) {
+			long length = Math.min(channel.size(), maxIndexSize);
+			ByteBuffer buffer;
+			if (OperatingSystem.current().isWindows()) {
+				buffer = read(channel, (int) length);
+			} else {
+				// Note: the mapping stays valid after the channel is closed
+				buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+			}
+			Map<Key, Entry> entries = new HashMap<>();
+			long validLength = scan(buffer, entries);
+			return new HeaderDirectivesIndex(indexFile, writable, maxIndexSize, buffer, entries, validLength);
+		} catch (IOException e) {
+			LOGGER.info("Could not read header directives index '" + indexFile + "', ignoring.", e);
+			return new HeaderDirectivesIndex(indexFile, writable, maxIndexSize, EMPTY_BUFFER, Collections.emptyMap(), 0);
+		}
+	}
+
+	// Returns the length of the well-formed portion of the index, a partially written record ends the scan
+	private static long scan(ByteBuffer buffer, Map<Key, Entry> entries) {
+		int limit = buffer.limit();
+		if (limit < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != FORMAT_VERSION) {
+			return 0;
+		}
+
+		int position = HEADER_SIZE;
+		while (position + 4 <= limit) {
+			int recordLength = buffer.getInt(position);
+			if (recordLength < 2 || recordLength > limit - position - 4) {
+				break;
+			}
+
+			int offset = position + 4;
+			boolean importAware = buffer.get(offset++) != 0;
+			int hashLength = buffer.get(offset++) & 0xff;
+			if (hashLength > recordLength - 2) {
+				break;
+			}
+			byte[] hash = new byte[hashLength];
+			for (int i = 0; i < hashLength; ++i) {
+				hash[i] = buffer.get(offset++);
+			}
+
+			int end = position + 4 + recordLength;
+			entries.putIfAbsent(new Key(HashCode.fromBytes(hash), importAware), new Entry(offset, end - offset));
+			position = end;
+		}
+		return position;
+	}
+
+	@Nullable
+	public IncludeDirectives find(HashCode contentHash, boolean importAware) {
+		Key key = new Key(contentHash, importAware);
+		Entry entry = entries.get(key);
+		if (entry == null) {
+			return null;
+		}
+
+		usedKeys.add(key); // kept by the rewrite
+		byte[] payload = payloadOf(entry);
+		try {
+			return IncludeDirectivesSerializer.INSTANCE.read(new KryoBackedDecoder(new ByteArrayInputStream(payload)));
+		} catch (Exception e) {
+			LOGGER.debug("Could not read include directives from header directives index '" + indexFile + "'.", e);
+			return null;
+		}
+	}
+
+	public void store(HashCode contentHash, boolean importAware, IncludeDirectives directives) {
+		Key key = new Key(contentHash, importAware);
+		if (!writable || entries.containsKey(key) || !pendingKeys.add(key)) {
+			return;
+		}
+
+		try {
+			ByteArrayOutputStream outStream = new ByteArrayOutputStream();
+			KryoBackedEncoder encoder = new KryoBackedEncoder(outStream);
+			IncludeDirectivesSerializer.INSTANCE.write(encoder, directives);
+			encoder.flush();
+
+			byte[] record = recordOf(key, outStream.toByteArray());
+			if (pendingLength.addAndGet(record.length) <= maxIndexSize - HEADER_SIZE) {
+				pendingRecords.add(record);
+			} else {
+				pendingLength.addAndGet(-record.length); // dropped, larger than the index
+			}
+		} catch (Exception e) {
+			LOGGER.debug("Could not serialize include directives for header directives index '" + indexFile + "'.", e);
+		}
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	@Override
+	public void close() {
+		if (!writable || pendingRecords.isEmpty()) {
+			return;
+		}
+
+		try {
+			Files.createDirectories(indexFile.getParentFile().toPath());
+			try (FileChannel channel = FileChannel.open(indexFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE); FileLock ignored = channel.lock()) {
+				long size = channel.size();
+				if (!hasValidHeader(channel)) {
+					channel.truncate(0);
+					ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+					header.putInt(0, MAGIC);
+					header.putInt(4, FORMAT_VERSION);
+					writeFully(channel, header, 0);
+					size = HEADER_SIZE;
+				} else if (size == buffer.limit() && validLength < size) {
+					// Partially written record from an interrupted writer, drop it
+					channel.truncate(validLength);
+					size = validLength;
+				}
+
+				if (size + pendingLength.get() > maxIndexSize) {
+					rewrite();
+					return;
+				}
+
+				for (byte[] record : pendingRecords) {
+					writeFully(channel, ByteBuffer.wrap(record), size);
+					size += record.length;
+				}
+			}
+		} catch (IOException e) {
+			LOGGER.info("Could not update header directives index '" + indexFile + "'.", e);
+		} finally {
+			pendingRecords.clear();
+		}
+	}
+
+	// Called under the file lock, the directives unused by this build are dropped
+	private void rewrite() throws IOException {
+		File temporaryFile = Files.createTempFile(indexFile.getParentFile().toPath(), INDEX_FILE_NAME, ".tmp").toFile();
+		int keptCount = 0;
+		try {
+			try (FileChannel channel = FileChannel.open(temporaryFile.toPath(), StandardOpenOption.WRITE)) {
+				ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+				header.putInt(0, MAGIC);
+				header.putInt(4, FORMAT_VERSION);
+				writeFully(channel, header, 0);
+				long size = HEADER_SIZE;
+
+				for (Key key : usedKeys) {
+					byte[] record = recordOf(key, payloadOf(entries.get(key)));
+					if (size + pendingLength.get() + record.length > maxIndexSize) {
+						break; // the new directives comes first
+					}
+					writeFully(channel, ByteBuffer.wrap(record), size);
+					size += record.length;
+					++keptCount;
+				}
+				for (byte[] record : pendingRecords) {
+					writeFully(channel, ByteBuffer.wrap(record), size);
+					size += record.length;
+				}
+			}
+
+			// The readers keep their mapping of the replaced file
+			Files.move(temporaryFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			Files.deleteIfExists(temporaryFile.toPath());
+			throw e;
+		}
+		LOGGER.info("Rewrote header directives index '{}' with {} used and {} new directives, dropped {} unused directives.", indexFile, keptCount, pendingRecords.size(), entries.size() - keptCount);
+	}
+
+	private byte[] payloadOf(Entry entry) {
+		byte[] result = new byte[entry.length];
+		for (int i = 0; i < result.length; ++i) {
+			result[i] = buffer.get(entry.offset + i);
+		}
+		return result;
+	}
+
+	private static byte[] recordOf(Key key, byte[] payload) {
+		byte[] hash = key.contentHash.toByteArray();
+		byte[] result = new byte[4 + 2 + hash.length + payload.length];
+		ByteBuffer.wrap(result).putInt(2 + hash.length + payload.length);
+		result[4] = (byte) (key.importAware ? 1 : 0);
+		result[5] = (byte) hash.length;
+		System.arraycopy(hash, 0, result, 6, hash.length);
+		System.arraycopy(payload, 0, result, 6 + hash.length, payload.length);
+		return result;
+	}
+
+	private static boolean hasValidHeader(FileChannel channel) throws IOException {
+		if (channel.size() < HEADER_SIZE) {
+			return false;
+		}
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		while (header.hasRemaining()) {
+			if (channel.read(header, header.position()) < 0) {
+				return false;
+			}
+		}
+		return header.getInt(0) == MAGIC && header.getInt(4) == FORMAT_VERSION;
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			position += channel.write(buffer, position);
+		}
+	}
+
+	// Reads the file in the heap, see class documentation
+	private static ByteBuffer read(FileChannel channel, int length) throws IOException {
+		ByteBuffer result = ByteBuffer.allocate(length);
+		while (result.hasRemaining()) {
+			if (channel.read(result) < 0) {
+				break; // truncated meanwhile
+			}
+		}
+		result.flip();
+		return result;
+	}
+
+	private static final class Key {
+		private final HashCode contentHash;
+		private final boolean importAware;
+
+		private Key(HashCode contentHash, boolean importAware) {
+			this.contentHash = contentHash;
+			this.importAware = importAware;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) return false;
+			Key key = (Key) o;
+			return importAware == key.importAware && Objects.equals(contentHash, key.contentHash);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(contentHash, importAware);
+		}
+	}
+
+	private static final class Entry {
+		private final int offset;
+		private final int length;
+
+		private Entry(int offset, int length) {
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+}
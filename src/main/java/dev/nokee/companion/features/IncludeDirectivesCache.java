@@ -0,0 +1,179 @@
+package dev.nokee.companion.features;
+
+import org.gradle.api.file.ConfigurableFileCollection;
+import org.gradle.api.file.DirectoryProperty;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+import org.gradle.api.provider.Property;
+import org.gradle.api.services.BuildService;
+import org.gradle.api.services.BuildServiceParameters;
+import org.gradle.internal.hash.HashCode;
+import org.gradle.language.nativeplatform.internal.IncludeDirectives;
+
+import javax.annotation.Nullable;
+import javax.inject.Inject;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Build-scoped cache of parsed include directives shared by all compile tasks.
+ * The same headers (i.e. system headers, third-party headers) are parsed once per build.
+ * The cache keeps the {@link Parameters#getMaxEntries() most recently used directives}, the evicted directives are found again in the indexes.
+ * When configured, the cache is backed by a persistent {@link HeaderDirectivesIndex} and read-only seed indexes.
+ */
+abstract /*final*/ class IncludeDirectivesCache implements BuildService<IncludeDirectivesCache.Parameters>, AutoCloseable {
+	private static final Logger LOGGER = Logging.getLogger(IncludeDirectivesCache.class);
+	private final Map<Key, IncludeDirectives> cache = new LinkedHashMap<Key, IncludeDirectives>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Key, IncludeDirectives> eldest) {
+			return size() > maxEntries();
+		}
+	};
+	private int maxEntries = -1;
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong missCount = new AtomicLong();
+	private final AtomicLong indexHitCount = new AtomicLong();
+	private List<HeaderDirectivesIndex> indexes;
+
+	public interface Parameters extends BuildServiceParameters {
+		Property<Integer> getMaxEntries();
+
+		// Optional, persistent index to read from and write to
+		DirectoryProperty getIndexDirectory();
+
+		// Read-only indexes, i.e. pre-seeded index shipped with CI images
+		ConfigurableFileCollection getSeedDirectories();
+	}
+
+	@Inject
+	public IncludeDirectivesCache() {}
+
+	// The first index, if any, is the writable index
+	private synchronized List<HeaderDirectivesIndex> indexes() {
+		if (indexes == null) {
+			indexes = new ArrayList<>();
+			if (getParameters().getIndexDirectory().isPresent()) {
+				indexes.add(HeaderDirectivesIndex.open(getParameters().getIndexDirectory().get().getAsFile(), true));
+			}
+			for (File seedDirectory : getParameters().getSeedDirectories()) {
+				indexes.add(HeaderDirectivesIndex.open(seedDirectory, false));
+			}
+		}
+		return indexes;
+	}
+
+	@Nullable
+	private IncludeDirectives findInIndexes(HashCode contentHash, boolean importAware) {
+		for (HeaderDirectivesIndex index : indexes()) {
+			IncludeDirectives result = index.find(contentHash, importAware);
+			if (result != null) {
+				indexHitCount.incrementAndGet();
+				return result;
+			}
+		}
+		return null;
+	}
+
+	private void storeInIndex(HashCode contentHash, boolean importAware, IncludeDirectives directives) {
+		List<HeaderDirectivesIndex> indexes = indexes();
+		if (!indexes.isEmpty()) {
+			indexes.get(0).store(contentHash, importAware, directives);
+		}
+	}
+
+	public IncludeDirectivesParser parserFor(boolean importAware, IncludeDirectivesParser delegate) {
+		return (file, contentHash) -> {
+			Key key = new Key(contentHash, importAware);
+			IncludeDirectives result;
+			synchronized (cache) {
+				result = cache.get(key);
+			}
+			if (result != null) {
+				hitCount.incrementAndGet();
+				return result;
+			}
+
+			// Parse outside the cache lock, concurrent parses of the same header yield the same directives
+			missCount.incrementAndGet();
+			result = findInIndexes(contentHash, importAware);
+			if (result == null) {
+				result = delegate.parseIncludes(file, contentHash);
+				storeInIndex(contentHash, importAware, result);
+			}
+			synchronized (cache) {
+				cache.put(key, result);
+			}
+			return result;
+		};
+	}
+
+	// Guarded by the cache lock
+	private int maxEntries() {
+		if (maxEntries < 0) {
+			maxEntries = getParameters().getMaxEntries().get();
+		}
+		return maxEntries;
+	}
+
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+	public long getMissCount() {
+		return missCount.get();
+	}
+
+	public long getIndexHitCount() {
+		return indexHitCount.get();
+	}
+
+	public int size() {
+		synchronized (cache) {
+			return cache.size();
+		}
+	}
+
+	@Override
+	public synchronized void close() {
+		long hits = hitCount.get();
+		long total = hits + missCount.get();
+		if (total > 0) {
+			LOGGER.info(String.format("Include directives cache: %d hits, %d misses (%d from index, %.1f%% hit rate), %d entries.", hits, total - hits, indexHitCount.get(), hits * 100.0 / total, size()));
+		}
+		synchronized (cache) {
+			cache.clear();
+		}
+
+		if (indexes != null) {
+			indexes.forEach(HeaderDirectivesIndex::close);
+			indexes = null;
+		}
+	}
+
+	private static final class Key {
+		private final HashCode contentHash;
+		private final boolean importAware;
+
+		private Key(HashCode contentHash, boolean importAware) {
+			this.contentHash = contentHash;
+			this.importAware = importAware;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) return false;
+			Key key = (Key) o;
+			return importAware == key.importAware && Objects.equals(contentHash, key.contentHash);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(contentHash, importAware);
+		}
+	}
+}
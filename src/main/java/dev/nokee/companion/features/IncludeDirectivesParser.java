@@ -0,0 +1,19 @@
+package dev.nokee.companion.features;
+
+import org.gradle.internal.hash.HashCode;
+import org.gradle.language.nativeplatform.internal.IncludeDirectives;
+import org.gradle.language.nativeplatform.internal.incremental.SourceIncludesParser;
+
+import java.io.File;
+
+/**
+ * Parses the include directives of a file which content hash is already known.
+ * The content hash allows reusing the directives of identical files.
+ */
+interface IncludeDirectivesParser {
+	IncludeDirectives parseIncludes(File file, HashCode contentHash);
+
+	static IncludeDirectivesParser of(SourceIncludesParser sourceIncludesParser) {
+		return (file, contentHash) -> sourceIncludesParser.parseIncludes(file);
+	}
+}
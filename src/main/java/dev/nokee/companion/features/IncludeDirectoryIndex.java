@@ -0,0 +1,149 @@
+package dev.nokee.companion.features;
+
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+import org.gradle.api.services.BuildService;
+import org.gradle.api.services.BuildServiceParameters;
+import org.gradle.internal.event.ListenerManager;
+import org.gradle.internal.execution.OutputChangeListener;
+
+import javax.inject.Inject;
+import java.io.File;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Build-scoped index of include file lookups per (include directory, include path) shared by all compile tasks.
+ * Both positive and negative lookups are memoized, so long include paths are probed once per build instead of once per task.
+ *
+ * <p>Locations about to change (i.e. generated headers) are reported via {@link OutputChangeListener}.
+ * Lookups inside those locations are dropped and never memoized again for the remainder of the build.
+ * Gradle reports the outputs of each task before it executes, so negative lookups are memoized only in directories that are not the output of any task executed so far.
+ *
+ * <p>Writes Gradle is not told about (i.e. a task writing outside its declared outputs, a process outside the build) are not seen until the next build.
+ * Gradle's virtual file system, which also backs each probe, relies on the same declarations.
+ */
+abstract /*final*/ class IncludeDirectoryIndex implements BuildService<BuildServiceParameters.None>, AutoCloseable {
+	private static final Logger LOGGER = Logging.getLogger(IncludeDirectoryIndex.class);
+	private final Map<File, DirectoryLookups> directories = new ConcurrentHashMap<>();
+	private final Map<File, Optional<Map<String, String>>> listings = new ConcurrentHashMap<>();
+	private final Set<String> changedLocations = ConcurrentHashMap.newKeySet();
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong missCount = new AtomicLong();
+	private final ListenerManager listenerManager;
+	private final OutputChangeListener listener = this::invalidate;
+
+	@Inject
+	public IncludeDirectoryIndex(ListenerManager listenerManager) {
+		this.listenerManager = listenerManager;
+		listenerManager.addListener(listener);
+	}
+
+	/**
+	 * Returns the memoized lookup of the include path inside the specified directory.
+	 * Missing include files are memoized too, until the directory is reported as a task output.
+	 *
+	 * @param directory  the include directory
+	 * @param includePath  the include path as written in the include directive
+	 * @param probe  the probe to use when the lookup is unknown
+	 * @return the lookup result
+	 */
+	public <T> T lookup(File directory, String includePath, Function<? super String, ? extends T> probe) {
+		DirectoryLookups lookups = directories.get(directory);
+		if (lookups == null) {
+			synchronized (this) {
+				lookups = directories.computeIfAbsent(directory, it -> new DirectoryLookups(!isChanged(it)));
+			}
+		}
+
+		if (!lookups.memoized) {
+			return probe.apply(includePath);
+		}
+
+		@SuppressWarnings("unchecked")
+		T result = (T) lookups.entries.get(includePath);
+		if (result == null) {
+			missCount.incrementAndGet();
+			result = probe.apply(includePath);
+			lookups.entries.putIfAbsent(includePath, result);
+		} else {
+			hitCount.incrementAndGet();
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the memoized case-folded listing of the specified directory.
+	 *
+	 * @param directory  the directory to list
+	 * @param lister  the lister to use when the listing is unknown, returns an empty optional when the directory does not exist
+	 * @return the listing from case-folded name to real name
+	 */
+	public Optional<Map<String, String>> listingOf(File directory, Function<? super File, Optional<Map<String, String>>> lister) {
+		Optional<Map<String, String>> result = listings.get(directory);
+		if (result == null) {
+			result = lister.apply(directory);
+			synchronized (this) {
+				if (!isChanged(directory)) {
+					Optional<Map<String, String>> existingResult = listings.putIfAbsent(directory, result);
+					if (existingResult != null) {
+						result = existingResult;
+					}
+				}
+			}
+		}
+		return result;
+	}
+
+	private synchronized void invalidate(Iterable<String> affectedOutputPaths) {
+		for (String affectedOutputPath : affectedOutputPaths) {
+			changedLocations.add(affectedOutputPath);
+			directories.keySet().removeIf(it -> overlaps(it.getAbsolutePath(), affectedOutputPath));
+			listings.keySet().removeIf(it -> overlaps(it.getAbsolutePath(), affectedOutputPath));
+		}
+	}
+
+	private boolean isChanged(File directory) {
+		String path = directory.getAbsolutePath();
+		for (String changedLocation : changedLocations) {
+			if (overlaps(path, changedLocation)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// Either location is inside (or is) the other location
+	private static boolean overlaps(String first, String second) {
+		return isAncestorOrSelf(first, second) || isAncestorOrSelf(second, first);
+	}
+
+	private static boolean isAncestorOrSelf(String ancestor, String path) {
+		return path.startsWith(ancestor) && (path.length() == ancestor.length() || path.charAt(ancestor.length()) == File.separatorChar || ancestor.endsWith(File.separator));
+	}
+
+	@Override
+	public void close() {
+		listenerManager.removeListener(listener);
+		long hits = hitCount.get();
+		long total = hits + missCount.get();
+		if (total > 0) {
+			LOGGER.info(String.format("Include directory index: %d hits, %d misses (%.1f%% hit rate), %d directories.", hits, total - hits, hits * 100.0 / total, directories.size()));
+		}
+		directories.clear();
+		listings.clear();
+	}
+
+	private static final class DirectoryLookups {
+		private final boolean memoized;
+		private final Map<String, Object> entries = new ConcurrentHashMap<>();
+
+		private DirectoryLookups(boolean memoized) {
+			this.memoized = memoized;
+		}
+	}
+}
@@ -27,24 +27,39 @@ import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
 import java.io.File;
-import java.lang.reflect.Constructor;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import java.util.function.Function;
 
 class IncrementalCompileFilesFactory {
 
 	private static final Logger LOGGER = LoggerFactory.getLogger(IncrementalCompileFilesFactory.class);
-	private static final String IGNORE_UNRESOLVED_HEADERS_IN_DEPENDENCIES_PROPERTY_NAME = "org.gradle.internal.native.headers.unresolved.dependencies.ignore";
+	static final String IGNORE_UNRESOLVED_HEADERS_IN_DEPENDENCIES_PROPERTY_NAME = "org.gradle.internal.native.headers.unresolved.dependencies.ignore";
+	private static final int MAX_MACRO_RESULTS = 8;
 
 	private final IncludeDirectives initialIncludeDirectives;
-	private final SourceIncludesParser sourceIncludesParser;
+	private final IncludeDirectivesParser sourceIncludesParser;
 	private final SourceIncludesResolver sourceIncludesResolver;
 	private final FileSystemAccess fileSystemAccess;
 	private final boolean ignoreUnresolvedHeadersInDependencies;
+	// Non-null when the directories the previous include graphs were resolved from are known
+	@Nullable private final CompilationStateStore.UnchangedDirectories unchangedDirectories;
+	// Headers reported by the compiler (i.e. dependency files) when the source file was last compiled
+	private final Function<? super File, ? extends Map<File, HashCode>> previousDependencies;
 
-	public IncrementalCompileFilesFactory(IncludeDirectives initialIncludeDirectives, SourceIncludesParser sourceIncludesParser, SourceIncludesResolver sourceIncludesResolver, FileSystemAccess fileSystemAccess) {
+	public IncrementalCompileFilesFactory(IncludeDirectives initialIncludeDirectives, IncludeDirectivesParser sourceIncludesParser, SourceIncludesResolver sourceIncludesResolver, FileSystemAccess fileSystemAccess) {
+		this(initialIncludeDirectives, sourceIncludesParser, sourceIncludesResolver, fileSystemAccess, null, it -> null);
+	}
+
+	/**
+	 * @param unchangedDirectories  the directories unchanged since the previous compilation, or null if each edge needs to be resolved again
+	 * @param previousDependencies  the headers, with their content hash, reported by the compiler when the source file was last compiled, or null if unknown
+	 */
+	public IncrementalCompileFilesFactory(IncludeDirectives initialIncludeDirectives, IncludeDirectivesParser sourceIncludesParser, SourceIncludesResolver sourceIncludesResolver, FileSystemAccess fileSystemAccess, @Nullable CompilationStateStore.UnchangedDirectories unchangedDirectories, Function<? super File, ? extends Map<File, HashCode>> previousDependencies) {
+		this.unchangedDirectories = unchangedDirectories;
+		this.previousDependencies = previousDependencies;
 		this.initialIncludeDirectives = initialIncludeDirectives;
 		this.sourceIncludesParser = sourceIncludesParser;
 		this.sourceIncludesResolver = sourceIncludesResolver;
@@ -52,30 +67,12 @@ class IncrementalCompileFilesFactory {
 		this.ignoreUnresolvedHeadersInDependencies = Boolean.getBoolean(IGNORE_UNRESOLVED_HEADERS_IN_DEPENDENCIES_PROPERTY_NAME);
 	}
 
-	public IncrementalCompileSourceProcessor files(CompilationState previousCompileState) {
+	public DefaultIncrementalCompileSourceProcessor files(CompilationState previousCompileState) {
 		return new DefaultIncrementalCompileSourceProcessor(previousCompileState);
 	}
 
 	private static Optional<HashCode> FileSystemAccess__readRegularFileContentHash(FileSystemAccess self, String path) {
-		try {
-			Method method = self.getClass().getMethod("readRegularFileContentHash", String.class);
-			try {
-				@SuppressWarnings("unchecked")
-				Optional<HashCode> result = (Optional<HashCode>) method.invoke(self, path);
-				return result;
-			} catch (InvocationTargetException | IllegalAccessException e) {
-				throw new RuntimeException(e);
-			}
-		} catch (NoSuchMethodException e) {
-			try {
-				Method method = self.getClass().getMethod("readRegularFileContentHash", String.class, Function.class);
-				@SuppressWarnings("unchecked")
-				Optional<HashCode> result = (Optional<HashCode>) method.invoke(self, path, Function.identity());
-				return result;
-			} catch (InvocationTargetException | NoSuchMethodException | IllegalAccessException ex) {
-				throw new RuntimeException(ex);
-			}
-		}
+		return GradleInternals.readRegularFileContentHash(self, path);
 	}
 
 	// Duplicated headers under the same resolution path are EXACTLY the same
@@ -103,16 +100,21 @@ class IncrementalCompileFilesFactory {
 		}
 	}
 
-	private class DefaultIncrementalCompileSourceProcessor implements IncrementalCompileSourceProcessor {
+	final class DefaultIncrementalCompileSourceProcessor implements IncrementalCompileSourceProcessor {
 		private final CompilationState previous;
 		private final BuildableCompilationState current = new BuildableCompilationState();
 		private final List<File> toRecompile = new ArrayList<File>();
 		private final Set<File> existingHeaders = new HashSet<File>();
-		private final Map<Key, FileDetails> visitedFiles = new HashMap<Key, FileDetails>();
+		// Shared between the analysis of each source file, hence thread-safe
+		private final Map<Key, FileDetails> visitedFiles = new ConcurrentHashMap<Key, FileDetails>();
 		private boolean hasUnresolvedHeaders;
 
 		DefaultIncrementalCompileSourceProcessor(CompilationState previousCompileState) {
 			this.previous = previousCompileState == null ? new CompilationState() : previousCompileState;
+			if (unchangedDirectories != null && unchangedDirectories.all()) {
+				// Superset of the headers of the unchanged graphs
+				existingHeaders.addAll(unchangedDirectories.previousHeaders());
+			}
 		}
 
 		@Override
@@ -122,29 +124,55 @@ class IncrementalCompileFilesFactory {
 
 		@Override
 		public void processSource(File sourceFile) {
-			if (visitSourceFile(sourceFile)) {
-				toRecompile.add(sourceFile);
+			record(visitSourceFile(sourceFile));
+		}
+
+		/**
+		 * Analyses the specified source files concurrently using the fork/join pool.
+		 * The analysis are recorded in source order, the result is the same as calling {@link #processSource(File)} for each source file.
+		 */
+		public void processSources(List<File> sourceFiles, ForkJoinPool pool) {
+			SourceFileAnalysis[] analyses = new SourceFileAnalysis[sourceFiles.size()];
+			pool.invoke(new AnalyseSourceFiles(sourceFiles, analyses, 0, analyses.length));
+			for (SourceFileAnalysis analysis : analyses) {
+				record(analysis);
+			}
+		}
+
+		private void record(@Nullable SourceFileAnalysis analysis) {
+			if (analysis == null) {
+				// Skip things that aren't files
+				return;
+			}
+
+			current.setState(analysis.sourceFile, analysis.state);
+			existingHeaders.addAll(analysis.existingHeaders);
+			if (analysis.hasUnresolvedHeaders) {
+				hasUnresolvedHeaders = true;
+			}
+			if (analysis.recompile) {
+				toRecompile.add(analysis.sourceFile);
 			}
 		}
 
 		/**
-		 * @return true if this source file requires recompilation, false otherwise.
+		 * @return the analysis of this source file or null if the source file isn't a file.
 		 */
-		private boolean visitSourceFile(File sourceFile) {
+		@Nullable
+		private SourceFileAnalysis visitSourceFile(File sourceFile) {
 			return FileSystemAccess__readRegularFileContentHash(fileSystemAccess, sourceFile.getAbsolutePath())
 				.map(fileContent -> {
 					SourceFileState previousState = previous.getState(sourceFile);
+					Set<File> existingHeaders = new HashSet<File>();
 
 					if (previousState != null) {
 						// Already seen this source file before. See if we can reuse the analysis from last time
-						if (graphHasNotChanged(sourceFile, fileContent, previousState, existingHeaders)) {
+						if (graphIsKnownUnchanged(fileContent, previousState) || graphHasNotChanged(sourceFile, fileContent, previousState, existingHeaders, previousDependencies.apply(sourceFile))) {
 							// Include file graph for this source file has not changed, skip this file
-							current.setState(sourceFile, previousState);
 							if (previousState.isHasUnresolved() && !ignoreUnresolvedHeadersInDependencies) {
-								hasUnresolvedHeaders = true;
-								return true;
+								return new SourceFileAnalysis(sourceFile, previousState, existingHeaders, true, true);
 							}
-							return false;
+							return new SourceFileAnalysis(sourceFile, previousState, existingHeaders, false, false);
 						}
 						// Else, something has changed in the include file graph for this source file, so analyse again
 					}
@@ -152,26 +180,32 @@ class IncrementalCompileFilesFactory {
 					// Source file has not been compiled before, or its include file graph has changed in some way
 					// Calculate the include file graph for the source file and mark for recompilation
 
-					CollectingMacroLookup visibleMacros = new CollectingMacroLookup(initialIncludeDirectives);
-					FileVisitResult result = visitFile(sourceFile, fileContent, visibleMacros, new HashSet<Key>(), existingHeaders);
+					MacroEnvironment visibleMacros = new MacroEnvironment(initialIncludeDirectives);
+					FileVisitResult result = visitFile(sourceFile, fileContent, visibleMacros, new HashMap<Key, Integer>(), existingHeaders);
 					Set<IncludeFileEdge> includedFiles = new LinkedHashSet<IncludeFileEdge>();
 					result.collectFilesInto(includedFiles, new HashSet<File>());
 					SourceFileState newState = newState(fileContent, result.result == IncludeFileResolutionResult.UnresolvedMacroIncludes, includedFiles);
-					current.setState(sourceFile, newState);
-					if (newState.isHasUnresolved()) {
-						hasUnresolvedHeaders = true;
-					}
-					return true;
+					return new SourceFileAnalysis(sourceFile, newState, existingHeaders, newState.isHasUnresolved(), true);
 				})
 				// Skip things that aren't files
-				.orElse(false);
+				.orElse(null);
 		}
 
-		private boolean graphHasNotChanged(File sourceFile, HashCode fileHash, SourceFileState previousState, Set<File> existingHeaders) {
+		// Fast path, no need to resolve each edge
+		private boolean graphIsKnownUnchanged(HashCode fileHash, SourceFileState previousState) {
+			return unchangedDirectories != null && unchangedDirectories.all() && fileHash.equals(previousState.getHash());
+		}
+
+		private boolean graphHasNotChanged(File sourceFile, HashCode fileHash, SourceFileState previousState, Set<File> existingHeaders, @Nullable Map<File, HashCode> dependencies) {
 			if (!fileHash.equals(previousState.getHash())) {
 				// Source file has changed
 				return false;
 			}
+			if (dependencies != null) {
+				// Exact headers as reported by the compiler, no need to resolve each edge
+				//   like Make-based builds, a new header shadowing a reported header is not detected
+				return dependenciesHaveNotChanged(dependencies, existingHeaders);
+			}
 			if (edgesOf(previousState).isEmpty()) {
 				// Source file has not changed and no include files
 				return true;
@@ -183,6 +217,15 @@ class IncrementalCompileFilesFactory {
 			includes.put(fileHash, sourceFile);
 			for (IncludeFileEdge includeFileEdge : edgesOf(previousState)) {
 				File includedFrom = includeFileEdge.getIncludedBy() != null ? includes.get(includeFileEdge.getIncludedBy()) : null;
+				File previousHeader = unchangedDirectories != null ? unchangedDirectories.previousResolution(includedFrom, includeFileEdge.getIncludePath()) : null;
+				if (previousHeader != null) {
+					// Resolved in unchanged directories only, same header with the same content
+					if (!existingHeaders.contains(previousHeader)) {
+						headers.add(previousHeader);
+					}
+					includes.put(includeFileEdge.getResolvedTo(), previousHeader);
+					continue;
+				}
 				SourceIncludesResolver.IncludeFile includeFile = sourceIncludesResolver.resolveInclude(includedFrom, includeFileEdge.getIncludePath());
 				if (includeFile == null) {
 					// Include file not found (but previously was found)
@@ -203,42 +246,73 @@ class IncrementalCompileFilesFactory {
 			return true;
 		}
 
-		private FileVisitResult visitFile(File file, HashCode newHash, CollectingMacroLookup visibleMacros, Set<Key> visited, Set<File> existingHeaders) {
-			FileDetails fileDetails = visitedFiles.get(new Key(file.getParentFile(), newHash));
-			if (fileDetails != null && fileDetails.results != null) {
+		private boolean dependenciesHaveNotChanged(Map<File, HashCode> dependencies, Set<File> existingHeaders) {
+			for (Map.Entry<File, HashCode> entry : dependencies.entrySet()) {
+				Optional<HashCode> hash = FileSystemAccess__readRegularFileContentHash(fileSystemAccess, entry.getKey().getAbsolutePath());
+				if (!hash.isPresent() || !hash.get().equals(entry.getValue())) {
+					// Header removed or changed
+					return false;
+				}
+			}
+			existingHeaders.addAll(dependencies.keySet());
+			return true;
+		}
+
+		/**
+		 * Visits the file include graph of the specified file.
+		 *
+		 * @param visited  the files visited so far for the current source file, mapped to their visit order
+		 */
+		private FileVisitResult visitFile(File file, HashCode newHash, MacroEnvironment visibleMacros, Map<Key, Integer> visited, Set<File> existingHeaders) {
+			Key key = new Key(file.getParentFile(), newHash);
+			FileDetails fileDetails = visitedFiles.get(key);
+			FileVisitResult results = fileDetails != null ? fileDetails.resultFor(visibleMacros) : null;
+			if (results != null) {
 				// A file that we can safely reuse the result for
-				fileDetails.results.collectInto(visibleMacros);
-				return fileDetails.results;
+				results.collectInto(visibleMacros);
+				return results;
 			}
 
-			if (!visited.add(new Key(file.getParentFile(), newHash))) {
+			Integer visitOrder = visited.get(key);
+			if (visitOrder != null) {
 				// A cycle, treat as resolved here
+				//   only the direct macro includes are known for sure, other source files may still be visiting the file (i.e. concurrent)
+				//   the includer aggregates the indirect macro includes of the file, the partial graph is never reused
 				IncludeFileResolutionResult result = IncludeFileResolutionResult.NoMacroIncludes;
-				if (fileDetails != null && fileDetails.hasMacroIncludes) {
+				if (fileDetails != null && fileDetails.hasDirectMacroIncludes) {
 					result = IncludeFileResolutionResult.HasMacroIncludes;
 				}
-				return new FileVisitResult(file, result);
+				return new FileVisitResult(file, result, visitOrder);
 			}
+			visitOrder = visited.size();
+			visited.put(key, visitOrder);
 
 			if (fileDetails == null) {
-				IncludeDirectives includeDirectives = sourceIncludesParser.parseIncludes(file);
+				IncludeDirectives includeDirectives = sourceIncludesParser.parseIncludes(file, newHash);
 				fileDetails = new FileDetails(includeDirectives);
-				visitedFiles.put(new Key(file.getParentFile(), newHash), fileDetails);
+				FileDetails existingDetails = visitedFiles.putIfAbsent(key, fileDetails);
+				if (existingDetails != null) {
+					// Parsed concurrently by another source file, use the first one
+					fileDetails = existingDetails;
+				}
 			}
 
-			CollectingMacroLookup includedFileDirectives = new CollectingMacroLookup();
+			MacroEnvironment includedFileDirectives = new MacroEnvironment();
+			int macrosMark = visibleMacros.mark();
+			Set<String> macroReferences = new HashSet<String>();
+			IndexedMacroLookup recordingMacros = MacroFingerprint.recording(visibleMacros, macroReferences);
 			visibleMacros.append(file, fileDetails.directives);
 
 			List<Include> allIncludes = fileDetails.directives.getAll();
 			List<FileVisitResult> included = allIncludes.isEmpty() ? Collections.<FileVisitResult>emptyList() : new ArrayList<FileVisitResult>(allIncludes.size());
 			List<IncludeFileEdge> edges = allIncludes.isEmpty() ? Collections.<IncludeFileEdge>emptyList() : new ArrayList<IncludeFileEdge>(allIncludes.size());
 			IncludeFileResolutionResult result = IncludeFileResolutionResult.NoMacroIncludes;
+			int earliestReference = Integer.MAX_VALUE;
 			for (Include include : allIncludes) {
 				if (include.getType() == IncludeType.MACRO && result == IncludeFileResolutionResult.NoMacroIncludes) {
-					result = IncludeFileResolutionResult.HasMacroIncludes;
-					fileDetails.hasMacroIncludes = true; // directly contain a macro include
+					result = IncludeFileResolutionResult.HasMacroIncludes; // directly contain a macro include
 				}
-				SourceIncludesResolver.IncludeResolutionResult resolutionResult = sourceIncludesResolver.resolveInclude(file, include, visibleMacros);
+				SourceIncludesResolver.IncludeResolutionResult resolutionResult = sourceIncludesResolver.resolveInclude(file, include, recordingMacros);
 				if (!resolutionResult.isComplete()) {
 					LOGGER.info("Cannot locate header file for '{}' in source file '{}'. Assuming changed.", include.getAsSourceText(), file.getName());
 					if (!ignoreUnresolvedHeadersInDependencies) {
@@ -251,18 +325,32 @@ class IncrementalCompileFilesFactory {
 					if (includeVisitResult.result.ordinal() > result.ordinal()) {
 						result = includeVisitResult.result;
 					}
+					earliestReference = Math.min(earliestReference, includeVisitResult.earliestReference);
+					macroReferences.addAll(includeVisitResult.macroReferences);
 					includeVisitResult.collectDependencies(includedFileDirectives);
 					included.add(includeVisitResult);
 					edges.add(new IncludeFileEdge(includeFile.getPath(), includeFile.isQuotedInclude() ? newHash : null, includeFile.getContentHash()));
 				}
 			}
 
-			FileVisitResult visitResult = new FileVisitResult(file, result, fileDetails.directives, included, edges, includedFileDirectives);
+			if (earliestReference >= visitOrder) {
+				// The graph only refers to files visited as part of this file's graph, so it's complete on its own
+				earliestReference = Integer.MAX_VALUE;
+			}
+
+			FileVisitResult visitResult = new FileVisitResult(file, result, fileDetails.directives, included, edges, includedFileDirectives, earliestReference, macroReferences);
 			if (result == IncludeFileResolutionResult.NoMacroIncludes) {
 				// No macro includes were seen in the include graph of this file, so the result can be reused if this file is seen again
-				fileDetails.results = visitResult;
-			} else {
-				fileDetails.hasMacroIncludes = true; // indirectly contain a macro include
+				//   Unless the graph refers to a file visited before this file (e.g. a cycle to one of its includer).
+				//   Such graph is only complete from the point of view of the current source file.
+				//   Reusing it would yield a different include graph depending on the order the source files are analysed.
+				//   The serial and concurrent analysis follow the same rules, they yield the same include graphs.
+				if (earliestReference == Integer.MAX_VALUE) {
+					fileDetails.results = visitResult;
+				}
+			} else if (earliestReference == Integer.MAX_VALUE) {
+				// The graph depends only on the macros it consulted, reuse it when the file is seen again with the same definitions
+				fileDetails.addMacroResult(MacroFingerprint.of(visibleMacros, macrosMark, macroReferences), visitResult);
 			}
 			return visitResult;
 		}
@@ -276,6 +364,30 @@ class IncrementalCompileFilesFactory {
 			}
 			return removed;
 		}
+
+		private final class AnalyseSourceFiles extends RecursiveAction {
+			private final List<File> sourceFiles;
+			private final SourceFileAnalysis[] analyses;
+			private final int from;
+			private final int to;
+
+			AnalyseSourceFiles(List<File> sourceFiles, SourceFileAnalysis[] analyses, int from, int to) {
+				this.sourceFiles = sourceFiles;
+				this.analyses = analyses;
+				this.from = from;
+				this.to = to;
+			}
+
+			@Override
+			protected void compute() {
+				if (to - from == 1) {
+					analyses[from] = visitSourceFile(sourceFiles.get(from));
+				} else if (to - from > 1) {
+					int middle = (from + to) >>> 1;
+					invokeAll(new AnalyseSourceFiles(sourceFiles, analyses, from, middle), new AnalyseSourceFiles(sourceFiles, analyses, middle, to));
+				}
+			}
+		}
 	}
 
 	private enum IncludeFileResolutionResult {
@@ -284,51 +396,124 @@ class IncrementalCompileFilesFactory {
 		UnresolvedMacroIncludes
 	}
 
+	/**
+	 * Result of analysing a single source file, recorded once all source files are analysed.
+	 */
+	private static final class SourceFileAnalysis {
+		private final File sourceFile;
+		private final SourceFileState state;
+		private final Set<File> existingHeaders;
+		private final boolean hasUnresolvedHeaders;
+		private final boolean recompile;
+
+		SourceFileAnalysis(File sourceFile, SourceFileState state, Set<File> existingHeaders, boolean hasUnresolvedHeaders, boolean recompile) {
+			this.sourceFile = sourceFile;
+			this.state = state;
+			this.existingHeaders = existingHeaders;
+			this.hasUnresolvedHeaders = hasUnresolvedHeaders;
+			this.recompile = recompile;
+		}
+	}
+
 	/**
 	 * Details of a file that are independent of where the file appears in the file include graph.
+	 * Shared between source files analysed concurrently.
 	 */
 	private static class FileDetails {
 		final IncludeDirectives directives;
 		// Non-null when the result of visiting this file can be reused
 		@Nullable
-		FileVisitResult results;
-		boolean hasMacroIncludes = false;
+		volatile FileVisitResult results;
+		// Known when parsed, before the details are shared with the other source files
+		final boolean hasDirectMacroIncludes;
+		// Results of visiting this file that depend on macros, most recent first
+		private volatile List<MacroResult> macroResults = Collections.emptyList();
 
 		FileDetails(IncludeDirectives directives) {
 			this.directives = directives;
+			this.hasDirectMacroIncludes = hasMacroIncludes(directives);
+		}
+
+		private static boolean hasMacroIncludes(IncludeDirectives directives) {
+			for (Include include : directives.getAll()) {
+				if (include.getType() == IncludeType.MACRO) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		@Nullable
+		FileVisitResult resultFor(MacroEnvironment visibleMacros) {
+			FileVisitResult result = results;
+			if (result == null) {
+				for (MacroResult macroResult : macroResults) {
+					if (macroResult.fingerprint.matches(visibleMacros)) {
+						return macroResult.result;
+					}
+				}
+			}
+			return result;
+		}
+
+		synchronized void addMacroResult(MacroFingerprint fingerprint, FileVisitResult result) {
+			List<MacroResult> newMacroResults = new ArrayList<MacroResult>(Math.min(macroResults.size() + 1, MAX_MACRO_RESULTS));
+			newMacroResults.add(new MacroResult(fingerprint, result));
+			for (int i = 0; i < macroResults.size() && newMacroResults.size() < MAX_MACRO_RESULTS; ++i) {
+				newMacroResults.add(macroResults.get(i));
+			}
+			macroResults = newMacroResults;
+		}
+	}
+
+	private static final class MacroResult {
+		private final MacroFingerprint fingerprint;
+		private final FileVisitResult result;
+
+		MacroResult(MacroFingerprint fingerprint, FileVisitResult result) {
+			this.fingerprint = fingerprint;
+			this.result = result;
 		}
 	}
 
 	/**
 	 * Details of a file included in a specific location in the file include graph.
 	 */
-	private static class FileVisitResult /*implements CollectingMacroLookup.MacroSource*/ {
+	private static class FileVisitResult {
 		private final File file;
 		private final IncludeFileResolutionResult result;
 		private final IncludeDirectives includeDirectives;
 		private final List<FileVisitResult> included;
 		private final List<IncludeFileEdge> edges;
-		private final CollectingMacroLookup includeFileDirectives;
+		private final MacroEnvironment includeFileDirectives;
+		// Visit order of the earliest file this graph refers to without visiting it (i.e. cycle)
+		private final int earliestReference;
+		// Macro names consulted while resolving this graph
+		private final Set<String> macroReferences;
 
-		FileVisitResult(File file, IncludeFileResolutionResult result, IncludeDirectives includeDirectives, List<FileVisitResult> included, List<IncludeFileEdge> edges, CollectingMacroLookup dependentIncludeDirectives) {
+		FileVisitResult(File file, IncludeFileResolutionResult result, IncludeDirectives includeDirectives, List<FileVisitResult> included, List<IncludeFileEdge> edges, MacroEnvironment dependentIncludeDirectives, int earliestReference, Set<String> macroReferences) {
 			this.file = file;
 			this.result = result;
 			this.includeDirectives = includeDirectives;
 			this.included = included;
 			this.edges = edges;
 			this.includeFileDirectives = dependentIncludeDirectives;
+			this.earliestReference = earliestReference;
+			this.macroReferences = macroReferences;
 		}
 
-		FileVisitResult(File file, IncludeFileResolutionResult result) {
+		FileVisitResult(File file, IncludeFileResolutionResult result, int visitOrder) {
 			this.file = file;
 			this.result = result;
 			includeDirectives = null;
 			included = Collections.emptyList();
 			edges = Collections.emptyList();
 			includeFileDirectives = null;
+			earliestReference = visitOrder;
+			macroReferences = Collections.emptySet();
 		}
 
-		void collectDependencies(CollectingMacroLookup directives) {
+		void collectDependencies(MacroEnvironment directives) {
 			if (includeDirectives != null) {
 				collectInto(directives);
 			}
@@ -343,41 +528,24 @@ class IncrementalCompileFilesFactory {
 			}
 		}
 
-//		@Override
-		public void collectInto(CollectingMacroLookup lookup) {
+		public void collectInto(MacroEnvironment lookup) {
 			if (includeDirectives != null) {
 				lookup.append(file, includeDirectives);
-				includeFileDirectives.appendTo(lookup);
+				lookup.append(includeFileDirectives);
 			}
 		}
 	}
 
-	private static SourceFileState newState(HashCode hash, boolean hasUnresolved, Set<IncludeFileEdge> resolvedIncludes) {
-		assert SourceFileState.class.getConstructors().length == 1;
-
-		try {
-			@SuppressWarnings("unchecked")
-			Constructor<SourceFileState> SourceFileState__new = (Constructor<SourceFileState>) SourceFileState.class.getConstructors()[0];
-
-			Class<?> ImmutableSet = SourceFileState__new.getParameterTypes()[SourceFileState__new.getParameterCount() - 1];
-			Method ImmutableSet__copyOf = ImmutableSet.getMethod("copyOf", Collection.class);
-			Object resolvedIncludes_asImmutableSet = ImmutableSet__copyOf.invoke(null, resolvedIncludes);
-
-			return SourceFileState__new.newInstance(hash, hasUnresolved, resolvedIncludes_asImmutableSet);
-		} catch (NoSuchMethodException | InvocationTargetException | IllegalAccessException | InstantiationException e) {
-			throw new RuntimeException(e);
-		}
+	static SourceFileState newState(HashCode hash, boolean hasUnresolved, Set<IncludeFileEdge> resolvedIncludes) {
+		return GradleInternals.newSourceFileState(hash, hasUnresolved, immutableEdges(resolvedIncludes));
 	}
 
-	private static Set<IncludeFileEdge> edgesOf(SourceFileState self) {
-		try {
-			Method SourceFileState__getEdges = SourceFileState.class.getMethod("getEdges");
+	// Copying an immutable set returns the same instance, use to share edge sets between source file states
+	static Set<IncludeFileEdge> immutableEdges(Collection<IncludeFileEdge> edges) {
+		return GradleInternals.immutableEdges(edges);
+	}
 
-			@SuppressWarnings("unchecked")
-			Set<IncludeFileEdge> result = (Set<IncludeFileEdge>) SourceFileState__getEdges.invoke(self);
-			return result;
-		} catch (NoSuchMethodException | InvocationTargetException | IllegalAccessException e) {
-			throw new RuntimeException(e);
-		}
+	static Set<IncludeFileEdge> edgesOf(SourceFileState self) {
+		return GradleInternals.edgesOf(self);
 	}
 }
@@ -21,33 +21,28 @@ import org.gradle.internal.operations.BuildOperationRunner;
 import org.gradle.internal.operations.CallableBuildOperation;
 import org.gradle.language.nativeplatform.internal.incremental.CompilationState;
 import org.gradle.language.nativeplatform.internal.incremental.IncrementalCompilation;
-import org.gradle.language.nativeplatform.internal.incremental.IncrementalCompileSourceProcessor;
 
 import java.io.File;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.concurrent.ForkJoinPool;
 
 class IncrementalCompileProcessor {
+	private static final String PARALLEL_ANALYSIS_PROPERTY_NAME = "dev.nokee.internal.native.headers.parallel-analysis";
 	private final Object/*Holder<CompilationState>*/ previousCompileStateCache;
 	private final IncrementalCompileFilesFactory incrementalCompileFilesFactory;
 	private final BuildOperationRunner buildOperationExecutor;
+	private final int maxParallelism;
 
-	public IncrementalCompileProcessor(Object/*Holder<CompilationState>*/ previousCompileStateCache, IncrementalCompileFilesFactory incrementalCompileFilesFactory, BuildOperationRunner buildOperationExecutor) {
+	public IncrementalCompileProcessor(Object/*Holder<CompilationState>*/ previousCompileStateCache, IncrementalCompileFilesFactory incrementalCompileFilesFactory, BuildOperationRunner buildOperationExecutor, int maxWorkerCount) {
 		this.previousCompileStateCache = previousCompileStateCache;
 		this.incrementalCompileFilesFactory = incrementalCompileFilesFactory;
 		this.buildOperationExecutor = buildOperationExecutor;
+		this.maxParallelism = Boolean.getBoolean(PARALLEL_ANALYSIS_PROPERTY_NAME) ? maxWorkerCount : 1;
 	}
 
 	private static <T> T ObjectHolder__get(Object obj) {
-		try {
-			Method get = obj.getClass().getInterfaces()[0].getMethod("get");
-			@SuppressWarnings("unchecked")
-			T result = (T) get.invoke(obj);
-			return result;
-		} catch (InvocationTargetException | NoSuchMethodException | IllegalAccessException e) {
-			throw new RuntimeException(e);
-		}
+		return GradleInternals.objectHolderGet(obj);
 	}
 
 	public IncrementalCompilation processSourceFiles(final Collection<File> sourceFiles) {
@@ -55,9 +50,14 @@ class IncrementalCompileProcessor {
 			@Override
 			public IncrementalCompilation call(BuildOperationContext context) {
 				CompilationState previousCompileState = ObjectHolder__get(previousCompileStateCache);
-				IncrementalCompileSourceProcessor processor = incrementalCompileFilesFactory.files(previousCompileState);
-				for (File sourceFile : sourceFiles) {
-					processor.processSource(sourceFile);
+				IncrementalCompileFilesFactory.DefaultIncrementalCompileSourceProcessor processor = incrementalCompileFilesFactory.files(previousCompileState);
+				if (maxParallelism > 1 && sourceFiles.size() > 1) {
+					// Shared by all compile tasks, the analysis is CPU-bound
+					processor.processSources(new ArrayList<>(sourceFiles), ForkJoinPool.commonPool());
+				} else {
+					for (File sourceFile : sourceFiles) {
+						processor.processSource(sourceFile);
+					}
 				}
 				return processor.getResult();
 			}
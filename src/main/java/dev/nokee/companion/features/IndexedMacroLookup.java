@@ -0,0 +1,15 @@
+package dev.nokee.companion.features;
+
+import org.gradle.language.nativeplatform.internal.Macro;
+import org.gradle.language.nativeplatform.internal.MacroFunction;
+import org.gradle.language.nativeplatform.internal.incremental.MacroLookup;
+
+/**
+ * Macro lookup able to answer lookups by name without walking each visible directives.
+ * The result is the same as calling {@code getMacros(name)} (or {@code getMacroFunctions(name)}) on each visible directives, in order.
+ */
+interface IndexedMacroLookup extends MacroLookup {
+	Iterable<Macro> getMacros(String name);
+
+	Iterable<MacroFunction> getMacroFunctions(String name);
+}
@@ -0,0 +1,195 @@
+package dev.nokee.companion.features;
+
+import org.gradle.language.nativeplatform.internal.IncludeDirectives;
+import org.gradle.language.nativeplatform.internal.Macro;
+import org.gradle.language.nativeplatform.internal.MacroFunction;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Name-indexed replacement for {@code CollectingMacroLookup}.
+ *
+ * <p>Directives are appended in visibility order, once per file.
+ * Other environments (i.e. the directives of a reused include graph) are appended lazily and expanded on first lookup, without being modified.
+ * The name index is updated incrementally on lookup, so the lookup cost does not grow with the number of visible directives.
+ *
+ * <p>Not thread-safe, an environment is only modified by the thread building it.
+ */
+final class MacroEnvironment implements IndexedMacroLookup {
+	private final List<Object> appended = new ArrayList<>(); // Entry or MacroEnvironment
+	private int[] boundaries = new int[0]; // visible directives count after expanding each appended element
+	private int expanded = 0;
+	private final List<IncludeDirectives> visible = new ArrayList<>();
+	private final Set<File> visibleFiles = new HashSet<>();
+	private final Set<MacroEnvironment> expandedSources = Collections.newSetFromMap(new IdentityHashMap<>());
+	private final Map<String, List<Integer>> macroIndex = new HashMap<>();
+	private final Map<String, List<Integer>> macroFunctionIndex = new HashMap<>();
+	private int indexed = 0;
+
+	public MacroEnvironment() {}
+
+	public MacroEnvironment(IncludeDirectives initialDirectives) {
+		append(null, initialDirectives);
+	}
+
+	public void append(@Nullable File file, IncludeDirectives directives) {
+		if (directives.hasMacros() || directives.hasMacroFunctions()) {
+			appended.add(new Entry(file, directives));
+		}
+	}
+
+	public void append(MacroEnvironment source) {
+		if (!source.appended.isEmpty()) {
+			appended.add(source);
+		}
+	}
+
+	/**
+	 * Returns a mark of the current environment, used to look up definitions visible at that point.
+	 */
+	public int mark() {
+		return appended.size();
+	}
+
+	@Override
+	public Iterator<IncludeDirectives> iterator() {
+		expandAll();
+		return Collections.unmodifiableList(visible).iterator();
+	}
+
+	@Override
+	public Iterable<Macro> getMacros(String name) {
+		return macrosOf(name, Integer.MAX_VALUE);
+	}
+
+	@Override
+	public Iterable<MacroFunction> getMacroFunctions(String name) {
+		return macroFunctionsOf(name, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Returns the macros with the specified name visible at the specified mark.
+	 */
+	public List<Macro> macrosOf(String name, int mark) {
+		List<Integer> positions = index().macroIndex.get(name);
+		if (positions == null) {
+			return Collections.emptyList();
+		}
+
+		int limit = limitOf(mark);
+		List<Macro> result = new ArrayList<>(positions.size());
+		for (int position : positions) {
+			if (position >= limit) {
+				break;
+			}
+			for (Macro macro : visible.get(position).getMacros(name)) {
+				result.add(macro);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the macro functions with the specified name visible at the specified mark.
+	 */
+	public List<MacroFunction> macroFunctionsOf(String name, int mark) {
+		List<Integer> positions = index().macroFunctionIndex.get(name);
+		if (positions == null) {
+			return Collections.emptyList();
+		}
+
+		int limit = limitOf(mark);
+		List<MacroFunction> result = new ArrayList<>(positions.size());
+		for (int position : positions) {
+			if (position >= limit) {
+				break;
+			}
+			for (MacroFunction macroFunction : visible.get(position).getMacroFunctions(name)) {
+				result.add(macroFunction);
+			}
+		}
+		return result;
+	}
+
+	private int limitOf(int mark) {
+		if (mark >= appended.size()) {
+			return visible.size();
+		} else if (mark <= 0) {
+			return 0;
+		}
+		return boundaries[mark - 1];
+	}
+
+	private MacroEnvironment index() {
+		expandAll();
+		for (; indexed < visible.size(); ++indexed) {
+			IncludeDirectives directives = visible.get(indexed);
+			for (Macro macro : directives.getAllMacros()) {
+				addPosition(macroIndex, macro.getName(), indexed);
+			}
+			for (MacroFunction macroFunction : directives.getAllMacroFunctions()) {
+				addPosition(macroFunctionIndex, macroFunction.getName(), indexed);
+			}
+		}
+		return this;
+	}
+
+	private static void addPosition(Map<String, List<Integer>> index, String name, int position) {
+		List<Integer> positions = index.computeIfAbsent(name, it -> new ArrayList<>(2));
+		if (positions.isEmpty() || positions.get(positions.size() - 1) != position) {
+			positions.add(position);
+		}
+	}
+
+	private void expandAll() {
+		if (expanded == appended.size()) {
+			return;
+		}
+
+		if (boundaries.length < appended.size()) {
+			boundaries = Arrays.copyOf(boundaries, Math.max(appended.size(), boundaries.length * 2));
+		}
+		for (; expanded < appended.size(); ++expanded) {
+			expand(appended.get(expanded));
+			boundaries[expanded] = visible.size();
+		}
+	}
+
+	// Sources are read-only, they may be shared with other environments
+	private void expand(Object element) {
+		if (element instanceof Entry) {
+			Entry entry = (Entry) element;
+			if (entry.file == null || visibleFiles.add(entry.file)) {
+				visible.add(entry.directives);
+			}
+		} else {
+			MacroEnvironment source = (MacroEnvironment) element;
+			if (expandedSources.add(source)) {
+				for (Object sourceElement : source.appended) {
+					expand(sourceElement);
+				}
+			}
+		}
+	}
+
+	private static final class Entry {
+		@Nullable private final File file;
+		private final IncludeDirectives directives;
+
+		private Entry(@Nullable File file, IncludeDirectives directives) {
+			this.file = file;
+			this.directives = directives;
+		}
+	}
+}
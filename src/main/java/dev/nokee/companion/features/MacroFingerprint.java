@@ -0,0 +1,135 @@
+package dev.nokee.companion.features;
+
+import org.gradle.language.nativeplatform.internal.Include;
+import org.gradle.language.nativeplatform.internal.IncludeDirectives;
+import org.gradle.language.nativeplatform.internal.Macro;
+import org.gradle.language.nativeplatform.internal.MacroFunction;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Definitions of the macros consulted while resolving an include graph, as visible when the graph was entered.
+ * Visiting the same file again under a macro environment with the same definitions yields the same include graph.
+ */
+final class MacroFingerprint {
+	private final Map<String, List<Object>> definitions;
+
+	private MacroFingerprint(Map<String, List<Object>> definitions) {
+		this.definitions = definitions;
+	}
+
+	/**
+	 * Captures the definitions of the specified macro names visible at the specified mark of the macro environment.
+	 *
+	 * @param environment  the macro environment
+	 * @param mark  the mark of the environment when the graph was entered
+	 * @param names  the macro names consulted by the graph
+	 * @return the fingerprint, never null
+	 */
+	public static MacroFingerprint of(MacroEnvironment environment, int mark, Set<String> names) {
+		Map<String, List<Object>> definitions = new HashMap<>(names.size());
+		for (String name : names) {
+			definitions.put(name, definitionsOf(environment, mark, name));
+		}
+		return new MacroFingerprint(definitions);
+	}
+
+	public boolean matches(MacroEnvironment environment) {
+		int mark = environment.mark();
+		for (Map.Entry<String, List<Object>> entry : definitions.entrySet()) {
+			if (!entry.getValue().equals(definitionsOf(environment, mark, entry.getKey()))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static List<Object> definitionsOf(MacroEnvironment environment, int mark, String name) {
+		List<Macro> macros = environment.macrosOf(name, mark);
+		List<MacroFunction> macroFunctions = environment.macroFunctionsOf(name, mark);
+		if (macroFunctions.isEmpty()) {
+			return Collections.<Object>unmodifiableList(macros);
+		}
+		List<Object> result = new ArrayList<>(macros.size() + macroFunctions.size());
+		result.addAll(macros);
+		result.addAll(macroFunctions);
+		return result;
+	}
+
+	/**
+	 * Returns a view of the macro environment recording each macro name looked up into the specified set.
+	 */
+	public static IndexedMacroLookup recording(IndexedMacroLookup environment, Set<String> names) {
+		return new IndexedMacroLookup() {
+			@Override
+			public Iterable<Macro> getMacros(String name) {
+				names.add(name);
+				return environment.getMacros(name);
+			}
+
+			@Override
+			public Iterable<MacroFunction> getMacroFunctions(String name) {
+				names.add(name);
+				return environment.getMacroFunctions(name);
+			}
+
+			@Override
+			public Iterator<IncludeDirectives> iterator() {
+				Iterator<IncludeDirectives> delegate = environment.iterator();
+				return new Iterator<IncludeDirectives>() {
+					@Override
+					public boolean hasNext() {
+						return delegate.hasNext();
+					}
+
+					@Override
+					public IncludeDirectives next() {
+						return new RecordingIncludeDirectives(delegate.next(), names);
+					}
+				};
+			}
+		};
+	}
+
+	private static final class RecordingIncludeDirectives implements IncludeDirectives {
+		private final IncludeDirectives delegate;
+		private final Set<String> names;
+
+		private RecordingIncludeDirectives(IncludeDirectives delegate, Set<String> names) {
+			this.delegate = delegate;
+			this.names = names;
+		}
+
+		@Override
+		public Iterable<Macro> getMacros(String name) {
+			names.add(name);
+			return delegate.getMacros(name);
+		}
+
+		@Override
+		public Iterable<MacroFunction> getMacroFunctions(String name) {
+			names.add(name);
+			return delegate.getMacroFunctions(name);
+		}
+
+		//region Delegates
+		@Override public List<Include> getQuotedIncludes() { return delegate.getQuotedIncludes(); }
+		@Override public List<Include> getSystemIncludes() { return delegate.getSystemIncludes(); }
+		@Override public List<Include> getMacroIncludes() { return delegate.getMacroIncludes(); }
+		@Override public List<Include> getAll() { return delegate.getAll(); }
+		@Override public List<Include> getIncludesOnly() { return delegate.getIncludesOnly(); }
+		@Override public Collection<Macro> getAllMacros() { return delegate.getAllMacros(); }
+		@Override public Collection<MacroFunction> getAllMacroFunctions() { return delegate.getAllMacroFunctions(); }
+		@Override public boolean hasMacros() { return delegate.hasMacros(); }
+		@Override public boolean hasMacroFunctions() { return delegate.hasMacroFunctions(); }
+		@Override public IncludeDirectives discardImports() { return delegate.discardImports(); }
+		//endregion
+	}
+}
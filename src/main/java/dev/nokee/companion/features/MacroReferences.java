@@ -0,0 +1,104 @@
+package dev.nokee.companion.features;
+
+import org.gradle.internal.hash.HashCode;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Names of the command line macros (i.e. {@code -D}) referenced by the files of an include graph.
+ *
+ * <p>A file references a macro if the macro name appears as an identifier anywhere in the file, i.e. {@code #if}, {@code #ifdef}, {@code defined()} or expansion sites.
+ * The scan is lexical and conservative, identifiers inside comments and strings also count.
+ * A file using token pasting ({@code ##}) may build any macro name, it references all of them.
+ * The results are cached by file content hash, the macro names must stay the same.
+ */
+final class MacroReferences {
+	private final Set<String> macroNames;
+	private final Map<HashCode, Set<String>> referencesByHash = new ConcurrentHashMap<>();
+
+	/**
+	 * Creates the references lookup.
+	 *
+	 * @param macroNames  the command line macro names, without parameters
+	 */
+	public MacroReferences(Set<String> macroNames) {
+		this.macroNames = macroNames;
+	}
+
+	public Set<String> getMacroNames() {
+		return macroNames;
+	}
+
+	/**
+	 * {@return the macro names referenced by the file}
+	 *
+	 * @param file  the source or header file
+	 * @param contentHash  the content hash of the file
+	 * @throws IOException if the file cannot be read
+	 */
+	public Set<String> referencedBy(File file, HashCode contentHash) throws IOException {
+		Set<String> result = referencesByHash.get(contentHash);
+		if (result == null) {
+			result = scan(Files.readAllBytes(file.toPath()));
+			referencesByHash.put(contentHash, result);
+		}
+		return result;
+	}
+
+	/**
+	 * {@return the macro names referenced by the definition of another macro}
+	 *
+	 * @param definition  the macro definition, i.e. {@code BAR} for {@code -DFOO=BAR}
+	 */
+	public Set<String> referencedBy(String definition) {
+		return scan(definition.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private Set<String> scan(byte[] content) {
+		if (macroNames.isEmpty()) {
+			return Collections.emptySet();
+		}
+
+		Set<String> result = new HashSet<>();
+		int i = 0;
+		while (i < content.length) {
+			byte b = content[i];
+			if (isIdentifierStart(b)) {
+				int start = i;
+				while (i < content.length && isIdentifierPart(content[i])) {
+					++i;
+				}
+				String identifier = new String(content, start, i - start, StandardCharsets.US_ASCII);
+				if (macroNames.contains(identifier)) {
+					result.add(identifier);
+				}
+			} else if (b >= '0' && b <= '9') {
+				// skip numbers, i.e. 0x1F or 1e5
+				while (i < content.length && (isIdentifierPart(content[i]) || content[i] == '.')) {
+					++i;
+				}
+			} else if (b == '#' && i + 1 < content.length && content[i + 1] == '#') {
+				return macroNames;
+			} else {
+				++i;
+			}
+		}
+		return result.isEmpty() ? Collections.emptySet() : result;
+	}
+
+	private static boolean isIdentifierStart(byte b) {
+		return (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || b == '_';
+	}
+
+	private static boolean isIdentifierPart(byte b) {
+		return isIdentifierStart(b) || (b >= '0' && b <= '9');
+	}
+}
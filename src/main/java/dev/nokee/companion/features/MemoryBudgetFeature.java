@@ -0,0 +1,49 @@
+package dev.nokee.companion.features;
+
+import dev.nokee.nativeplatform.tasks.MemoryBudget;
+import dev.nokee.nativeplatform.tasks.MemoryBudgetAware;
+import org.gradle.api.Plugin;
+import org.gradle.api.Project;
+import org.gradle.api.provider.Provider;
+import org.gradle.api.tasks.TaskContainer;
+
+import javax.inject.Inject;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+
+/*private*/ abstract /*final*/ class MemoryBudgetFeature implements Plugin<Project> {
+	// Memory ceiling of the compiler and linker processes in megabytes, defaults to 75% of the physical memory not reserved by this JVM
+	private static final String MEMORY_BUDGET_MAX_SIZE_PROPERTY_NAME = "dev.nokee.internal.native.memory-budget.max-size";
+	// Estimate in megabytes of the processes never measured
+	private static final String MEMORY_BUDGET_DEFAULT_COST_PROPERTY_NAME = "dev.nokee.internal.native.memory-budget.default-cost";
+	private static final long MEGABYTES = 1024L * 1024L;
+	private final TaskContainer tasks;
+
+	@Inject
+	public MemoryBudgetFeature(TaskContainer tasks) {
+		this.tasks = tasks;
+	}
+
+	@Override
+	public void apply(Project project) {
+		Provider<MemoryBudget> memoryBudget = project.getGradle().getSharedServices().registerIfAbsent("memory-budget", MemoryBudget.class, spec -> {
+			Long maxSize = Long.getLong(MEMORY_BUDGET_MAX_SIZE_PROPERTY_NAME);
+			spec.getParameters().getMaxMemoryInBytes().convention(maxSize == null ? defaultMaxMemory() : maxSize * MEGABYTES);
+			spec.getParameters().getDefaultCostInBytes().convention(Long.getLong(MEMORY_BUDGET_DEFAULT_COST_PROPERTY_NAME, 512) * MEGABYTES);
+		});
+		tasks.withType(MemoryBudgetAware.class).configureEach(task -> {
+			task.usesService(memoryBudget);
+			task.getMemoryBudgetService().set(memoryBudget);
+		});
+	}
+
+	@SuppressWarnings("deprecation") // getTotalPhysicalMemorySize for Java 8
+	private static long defaultMaxMemory() {
+		OperatingSystemMXBean operatingSystem = ManagementFactory.getOperatingSystemMXBean();
+		if (operatingSystem instanceof com.sun.management.OperatingSystemMXBean) {
+			long physicalMemory = ((com.sun.management.OperatingSystemMXBean) operatingSystem).getTotalPhysicalMemorySize();
+			return Math.max(physicalMemory * 3 / 4 - Runtime.getRuntime().maxMemory(), 1024 * MEGABYTES);
+		}
+		return Long.MAX_VALUE; // unknown, no ceiling
+	}
+}
@@ -0,0 +1,260 @@
+package dev.nokee.companion.features;
+
+import org.gradle.api.file.DirectoryProperty;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+import org.gradle.api.provider.Property;
+import org.gradle.api.services.BuildService;
+import org.gradle.api.services.BuildServiceParameters;
+import org.gradle.internal.hash.HashCode;
+import org.gradle.internal.hash.Hashing;
+
+import javax.annotation.Nullable;
+import javax.inject.Inject;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Build-scoped local cache of object files shared by all compile tasks, similar to ccache.
+ * The entries are keyed by the translation unit inputs, see {@link ObjectCaching}.
+ * The cache is bounded in size, the least recently used entries are evicted first.
+ *
+ * <p>Each entry is an object file ({@code <key>.o}), its content hash ({@code <key>.hash}) and optionally its dependency file ({@code <key>.d}) stored in {@code <cacheDirectory>/<key[0:2]>}.
+ * The last modified time of the object file tracks the last use across builds.
+ * A restored object file not matching its content hash, i.e. a corrupted entry, is deleted and the source compiled instead.
+ */
+abstract /*final*/ class ObjectCache implements BuildService<ObjectCache.Parameters>, ObjectStore, AutoCloseable {
+	private static final Logger LOGGER = Logging.getLogger(ObjectCache.class);
+	private static final String OBJECT_FILE_SUFFIX = ".o";
+	private static final String DEPENDENCY_FILE_SUFFIX = ".d";
+	private static final String CONTENT_HASH_FILE_SUFFIX = ".hash";
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong missCount = new AtomicLong();
+	private final AtomicLong storeCount = new AtomicLong();
+	private final AtomicLong evictionCount = new AtomicLong();
+	// Access ordered, the eldest entry is the least recently used
+	private Map<String, Long> entrySizes;
+	private long totalSize = 0;
+
+	public interface Parameters extends BuildServiceParameters {
+		DirectoryProperty getCacheDirectory();
+
+		Property<Long> getMaxSizeInBytes();
+	}
+
+	/**
+	 * Hashes the inputs of a translation unit, i.e. the source file and its header graph.
+	 */
+	interface InputHasher {
+		/**
+		 * {@return the hash of the source file and the headers it includes or null if the header graph is unknown}
+		 *
+		 * @param sourceFile  the source file to hash
+		 */
+		@Nullable
+		HashCode hashOf(File sourceFile);
+
+		/**
+		 * {@return the command line macros referenced by the source file and the headers it includes or null if unknown}
+		 *
+		 * @param sourceFile  the source file to inspect
+		 * @param macroReferences  the command line macro references
+		 */
+		@Nullable
+		default Set<String> macrosReferencedBy(File sourceFile, MacroReferences macroReferences) {
+			return null;
+		}
+
+		/**
+		 * {@return the hash of the header the source file includes and the headers it includes or null if the header graph is unknown}
+		 *
+		 * @param sourceFile  the source file including the header
+		 * @param includePath  the include path of the header, i.e. the precompiled header
+		 */
+		@Nullable
+		default HashCode headerGraphHashOf(File sourceFile, String includePath) {
+			return null;
+		}
+	}
+
+	@Inject
+	public ObjectCache() {}
+
+	@Override
+	public boolean restore(HashCode key, File objectFile) {
+		File cachedObjectFile = entryFile(key, OBJECT_FILE_SUFFIX);
+		synchronized (this) {
+			if (entries().get(key.toString()) == null) { // marks the entry as recently used
+				missCount.incrementAndGet();
+				return false;
+			}
+		}
+
+		try {
+			Files.createDirectories(objectFile.getParentFile().toPath());
+			Files.copy(cachedObjectFile.toPath(), objectFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			String contentHash = new String(Files.readAllBytes(entryFile(key, CONTENT_HASH_FILE_SUFFIX).toPath()), StandardCharsets.UTF_8);
+			if (!Hashing.hashFile(objectFile).toString().equals(contentHash)) {
+				Files.deleteIfExists(objectFile.toPath());
+				throw new IOException("Cached object file was modified.");
+			}
+			File cachedDependencyFile = entryFile(key, DEPENDENCY_FILE_SUFFIX);
+			if (cachedDependencyFile.exists()) {
+				Files.copy(cachedDependencyFile.toPath(), dependencyFileOf(objectFile).toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+			cachedObjectFile.setLastModified(System.currentTimeMillis());
+		} catch (IOException e) {
+			// i.e. evicted by another build or corrupted, the source is compiled instead
+			LOGGER.info("Could not restore cached object file '" + cachedObjectFile + "'.", e);
+			synchronized (this) {
+				remove(key.toString());
+				deleteEntry(key.toString());
+			}
+			missCount.incrementAndGet();
+			return false;
+		}
+		hitCount.incrementAndGet();
+		return true;
+	}
+
+	@Override
+	public void store(HashCode key, File objectFile) {
+		try {
+			File cachedObjectFile = entryFile(key, OBJECT_FILE_SUFFIX);
+			Files.createDirectories(cachedObjectFile.getParentFile().toPath());
+			File dependencyFile = dependencyFileOf(objectFile);
+			if (dependencyFile.exists()) {
+				copyAtomically(dependencyFile, entryFile(key, DEPENDENCY_FILE_SUFFIX));
+			}
+			// The object file comes last, it's the entry's marker
+			HashCode contentHash = Hashing.hashFile(objectFile);
+			writeAtomically(contentHash.toString().getBytes(StandardCharsets.UTF_8), entryFile(key, CONTENT_HASH_FILE_SUFFIX));
+			copyAtomically(objectFile, cachedObjectFile);
+			storeCount.incrementAndGet();
+
+			synchronized (this) {
+				remove(key.toString());
+				long size = cachedObjectFile.length();
+				entries().put(key.toString(), size);
+				totalSize += size;
+				evict();
+			}
+		} catch (IOException e) {
+			// the cache is only an optimization
+			LOGGER.info("Could not store object file '" + objectFile + "' in the cache.", e);
+		}
+	}
+
+	private static void copyAtomically(File source, File destination) throws IOException {
+		File temporaryFile = new File(destination.getPath() + "." + UUID.randomUUID() + ".tmp");
+		Files.copy(source.toPath(), temporaryFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		Files.move(temporaryFile.toPath(), destination.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private static void writeAtomically(byte[] content, File destination) throws IOException {
+		File temporaryFile = new File(destination.getPath() + "." + UUID.randomUUID() + ".tmp");
+		Files.write(temporaryFile.toPath(), content);
+		Files.move(temporaryFile.toPath(), destination.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	// Same as GCC/Clang -MD, the dependency file sits next to the object file
+	static File dependencyFileOf(File objectFile) {
+		String name = objectFile.getName();
+		int index = name.lastIndexOf('.');
+		return new File(objectFile.getParentFile(), (index < 0 ? name : name.substring(0, index)) + DEPENDENCY_FILE_SUFFIX);
+	}
+
+	private File entryFile(HashCode key, String suffix) {
+		String name = key.toString();
+		return new File(new File(getParameters().getCacheDirectory().get().getAsFile(), name.substring(0, 2)), name + suffix);
+	}
+
+	//region Least recently used eviction
+	// Lazily scans the cache directory, the entries are ordered by last use
+	private Map<String, Long> entries() {
+		if (entrySizes == null) {
+			entrySizes = new LinkedHashMap<>(16, 0.75f, true);
+			List<File> objectFiles = new ArrayList<>();
+			File[] shards = getParameters().getCacheDirectory().get().getAsFile().listFiles(File::isDirectory);
+			if (shards != null) {
+				for (File shard : shards) {
+					File[] files = shard.listFiles((dir, name) -> name.endsWith(OBJECT_FILE_SUFFIX));
+					if (files != null) {
+						objectFiles.addAll(Arrays.asList(files));
+					}
+				}
+			}
+			objectFiles.sort(Comparator.comparingLong(File::lastModified));
+			for (File objectFile : objectFiles) {
+				long size = objectFile.length();
+				entrySizes.put(objectFile.getName().substring(0, objectFile.getName().length() - OBJECT_FILE_SUFFIX.length()), size);
+				totalSize += size;
+			}
+			evict();
+		}
+		return entrySizes;
+	}
+
+	private void evict() {
+		long maxSize = getParameters().getMaxSizeInBytes().get();
+		Iterator<Map.Entry<String, Long>> iter = entrySizes.entrySet().iterator();
+		while (totalSize > maxSize && iter.hasNext()) {
+			Map.Entry<String, Long> entry = iter.next();
+			iter.remove();
+			totalSize -= entry.getValue();
+			deleteEntry(entry.getKey());
+			evictionCount.incrementAndGet();
+		}
+	}
+
+	private void remove(String key) {
+		Long size = entries().remove(key);
+		if (size != null) {
+			totalSize -= size;
+		}
+	}
+
+	private void deleteEntry(String key) {
+		File shard = new File(getParameters().getCacheDirectory().get().getAsFile(), key.substring(0, 2));
+		try {
+			Files.deleteIfExists(new File(shard, key + OBJECT_FILE_SUFFIX).toPath());
+			Files.deleteIfExists(new File(shard, key + DEPENDENCY_FILE_SUFFIX).toPath());
+			Files.deleteIfExists(new File(shard, key + CONTENT_HASH_FILE_SUFFIX).toPath());
+		} catch (IOException e) {
+			LOGGER.info("Could not evict cached object file '" + key + "'.", e);
+		}
+	}
+	//endregion
+
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+	public long getMissCount() {
+		return missCount.get();
+	}
+
+	@Override
+	public synchronized void close() {
+		long hits = hitCount.get();
+		long total = hits + missCount.get();
+		if (total > 0) {
+			LOGGER.info(String.format("Object cache: %d hits, %d misses (%.1f%% hit rate), %d stored, %d evicted, %d entries (%d bytes).", hits, total - hits, hits * 100.0 / total, storeCount.get(), evictionCount.get(), entrySizes == null ? 0 : entrySizes.size(), totalSize));
+		}
+		entrySizes = null;
+		totalSize = 0;
+	}
+}
@@ -0,0 +1,269 @@
+package dev.nokee.companion.features;
+
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+import org.gradle.api.tasks.WorkResult;
+import org.gradle.api.tasks.WorkResults;
+import org.gradle.internal.hash.HashCode;
+import org.gradle.internal.hash.Hasher;
+import org.gradle.internal.hash.Hashing;
+import org.gradle.language.base.internal.compile.Compiler;
+import org.gradle.nativeplatform.toolchain.internal.NativeCompileSpec;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Consults the {@link ObjectCache} (or the task's {@link BucketObjectStore}) for each translation unit of a compile task execution.
+ *
+ * <p>The {@link #bucketCompiler(Compiler) bucket compiler} sits below the per-source buckets.
+ * It restores the cached object files of the bucket's source files and only compiles the remaining source files.
+ * The {@link #compiler(Compiler) caching compiler} sits above the per-source buckets.
+ * It stores the compiled object files once the whole compilation succeeded.
+ *
+ * <p>The key of a translation unit is the toolchain identity, the bucket's compile options, the source file path and the hash of the source file with its header graph.
+ * Only the macros referenced by the source file or its header graph are part of the key (see {@link MacroReferences}), a new or changed macro only affects the translation units referencing it.
+ * The macros referenced by the definition of a referenced macro are also part of the key, transitively.
+ * All the macros are part of the key when the header graph may be incomplete, i.e. a missing header or header search paths and forced includes in the compiler arguments.
+ * Source files with unresolved headers (i.e. macro includes) or using the precompiled header are always compiled.
+ */
+final class ObjectCaching {
+	private static final Logger LOGGER = Logging.getLogger(ObjectCaching.class);
+	private static final int KEY_VERSION = 2;
+	private static final List<String> UNKNOWN_HEADERS_FLAGS = Arrays.asList("-I", "-isystem", "-iquote", "-idirafter", "-include", "-imacros", "-F", "/I", "/FI");
+	private final ObjectStore cache;
+	private final ObjectCache.InputHasher inputHasher;
+	private final String toolChainIdentity;
+	private final TransactionalCompiler.OutputFileDirResolver objectFiles;
+	@Nullable private final TransactionalCompiler transaction;
+
+	// Execution state, the object files to store once compiled
+	private final Map<File, HashCode> pendingObjectFiles = new ConcurrentHashMap<>();
+	private final Map<Set<String>, MacroReferences> macroReferences = new ConcurrentHashMap<>();
+
+	/**
+	 * Creates the object caching of a compilation.
+	 *
+	 * @param cache  the object store
+	 * @param inputHasher  the translation units' inputs
+	 * @param toolChainIdentity  the toolchain identity
+	 * @param objectFiles  the object file locations
+	 * @param transaction  stashes the object files before they are restored or deleted, null without transaction
+	 */
+	public ObjectCaching(ObjectStore cache, ObjectCache.InputHasher inputHasher, String toolChainIdentity, TransactionalCompiler.OutputFileDirResolver objectFiles, @Nullable TransactionalCompiler transaction) {
+		this.cache = cache;
+		this.inputHasher = inputHasher;
+		this.toolChainIdentity = toolChainIdentity;
+		this.objectFiles = objectFiles;
+		this.transaction = transaction;
+	}
+
+	public <T extends NativeCompileSpec> Compiler<T> compiler(Compiler<T> delegateCompiler) {
+		return new CachingCompiler<>(delegateCompiler);
+	}
+
+	public <T extends NativeCompileSpec> Compiler<T> bucketCompiler(Compiler<T> delegateCompiler) {
+		return new RestoringCompiler<>(delegateCompiler);
+	}
+
+	private final class CachingCompiler<T extends NativeCompileSpec> implements Compiler<T> {
+		private final Compiler<T> delegateCompiler;
+
+		private CachingCompiler(Compiler<T> delegateCompiler) {
+			this.delegateCompiler = delegateCompiler;
+		}
+
+		@Override
+		public WorkResult execute(T spec) {
+			WorkResult result;
+			try {
+				result = delegateCompiler.execute(spec);
+			} catch (RuntimeException ex) {
+				pendingObjectFiles.clear(); // only cache successful compilation
+				throw ex;
+			}
+
+			// The object files were deleted before compiling, missing object files were not compiled individually (i.e. unity build)
+			pendingObjectFiles.forEach((objectFile, key) -> {
+				if (objectFile.exists()) {
+					cache.store(key, objectFile);
+				}
+			});
+			pendingObjectFiles.clear();
+			cache.flush();
+			return result;
+		}
+	}
+
+	private final class RestoringCompiler<T extends NativeCompileSpec> implements Compiler<T> {
+		private final Compiler<T> delegateCompiler;
+
+		private RestoringCompiler(Compiler<T> delegateCompiler) {
+			this.delegateCompiler = delegateCompiler;
+		}
+
+		@Override
+		public WorkResult execute(T spec) {
+			HashCode bucketKey = bucketKeyOf(spec);
+			List<File> sourceFiles = new ArrayList<>();
+			int restoredCount = 0;
+			for (File sourceFile : spec.getSourceFiles()) {
+				HashCode inputHash = usesPreCompiledHeader(spec, sourceFile) ? null : inputHasher.hashOf(sourceFile);
+				if (inputHash == null) {
+					sourceFiles.add(sourceFile); // not cacheable
+					continue;
+				}
+
+				HashCode key = keyOf(bucketKey, macrosKeyOf(spec, sourceFile), sourceFile, inputHash);
+				File objectFile = objectFiles.outputFileDir(sourceFile, spec.getObjectFileDir());
+				if (transaction != null) {
+					transaction.stash(objectFile, sourceFile); // restoring and deleting overwrites the object file
+				}
+				if (cache.restore(key, objectFile)) {
+					++restoredCount;
+				} else {
+					delete(objectFile); // ensure only freshly compiled object files are stored
+					pendingObjectFiles.put(objectFile, key);
+					sourceFiles.add(sourceFile);
+				}
+			}
+
+			if (restoredCount == 0) {
+				return delegateCompiler.execute(spec);
+			}
+
+			LOGGER.info("Restored {} object file(s) from the object cache.", restoredCount);
+			spec.setSourceFiles(sourceFiles);
+			if (sourceFiles.isEmpty() && spec.getRemovedSourceFiles().isEmpty()) {
+				return WorkResults.didWork(true);
+			}
+			return delegateCompiler.execute(spec).or(WorkResults.didWork(true));
+		}
+	}
+
+	private static boolean usesPreCompiledHeader(NativeCompileSpec spec, File sourceFile) {
+		return spec.getPreCompiledHeader() != null && spec.getSourceFilesForPch().contains(sourceFile);
+	}
+
+	// Everything in the bucket spec influencing the object file content but the macros (see #macrosKeyOf), the paths are kept absolute as the object files embeds them (i.e. debug information)
+	private HashCode bucketKeyOf(NativeCompileSpec spec) {
+		Hasher hasher = Hashing.newHasher();
+		hasher.putInt(KEY_VERSION);
+		hasher.putString(toolChainIdentity);
+		hasher.putString(spec.getClass().getName());
+		putAll(hasher, spec.getArgs());
+		putAll(hasher, spec.getSystemArgs());
+		putAll(hasher, spec.getIncludeRoots());
+		putAll(hasher, spec.getSystemIncludeRoots());
+		hasher.putBoolean(spec.isPositionIndependentCode());
+		hasher.putBoolean(spec.isDebuggable());
+		hasher.putBoolean(spec.isOptimized());
+		return hasher.hash();
+	}
+
+	private static void putAll(Hasher hasher, List<?> values) {
+		hasher.putInt(values.size());
+		for (Object value : values) {
+			hasher.putString(value.toString());
+		}
+	}
+
+	// Only the macros referenced by the translation unit, changing any other macro keeps the key
+	private HashCode macrosKeyOf(NativeCompileSpec spec, File sourceFile) {
+		Map<String, String> macros = new TreeMap<>(spec.getMacros());
+		Set<String> referencedNames = macros.isEmpty() || embedsMacros(spec) || searchesUnknownHeaders(spec) ? null : referencedNamesOf(sourceFile, macros);
+
+		Hasher hasher = Hashing.newHasher();
+		macros.forEach((name, definition) -> {
+			if (referencedNames != null && !referencedNames.contains(nameOf(name))) {
+				return;
+			}
+			hasher.putString(name);
+			if (definition == null) {
+				hasher.putNull();
+			} else {
+				hasher.putString(definition);
+			}
+		});
+		return hasher.hash();
+	}
+
+	// The referenced macros may expand to other command line macros, i.e. -DFOO=BAR -DBAR=1
+	@Nullable
+	private Set<String> referencedNamesOf(File sourceFile, Map<String, String> macros) {
+		MacroReferences references = macroReferencesOf(macros.keySet());
+		Set<String> referencedNames = inputHasher.macrosReferencedBy(sourceFile, references);
+		if (referencedNames == null) {
+			return null;
+		}
+
+		Set<String> result = new HashSet<>(referencedNames);
+		Deque<String> pendingNames = new ArrayDeque<>(referencedNames);
+		while (!pendingNames.isEmpty()) {
+			String name = pendingNames.pop();
+			macros.forEach((macro, definition) -> {
+				if (definition != null && nameOf(macro).equals(name)) {
+					for (String referencedName : references.referencedBy(definition)) {
+						if (result.add(referencedName)) {
+							pendingNames.push(referencedName);
+						}
+					}
+				}
+			});
+		}
+		return result;
+	}
+
+	// The macro debug information holds every command line macro, i.e. -g3
+	private static boolean embedsMacros(NativeCompileSpec spec) {
+		return spec.getArgs().stream().anyMatch(it -> it.equals("-g3") || it.equals("-ggdb3") || it.equals("-fdebug-macro"));
+	}
+
+	// The include graph only knows the include directories of the task, the compiler arguments may add header search paths or force include files
+	private static boolean searchesUnknownHeaders(NativeCompileSpec spec) {
+		return spec.getArgs().stream().anyMatch(it -> UNKNOWN_HEADERS_FLAGS.stream().anyMatch(it::startsWith));
+	}
+
+	// The buckets shares the task's macros
+	private MacroReferences macroReferencesOf(Set<String> macros) {
+		Set<String> names = new HashSet<>();
+		macros.forEach(it -> names.add(nameOf(it)));
+		return macroReferences.computeIfAbsent(names, MacroReferences::new);
+	}
+
+	// i.e. FOO(x) for function-like macros
+	private static String nameOf(String macro) {
+		int index = macro.indexOf('(');
+		return index < 0 ? macro : macro.substring(0, index);
+	}
+
+	private static HashCode keyOf(HashCode bucketKey, HashCode macrosKey, File sourceFile, HashCode inputHash) {
+		Hasher hasher = Hashing.newHasher();
+		hasher.putHash(bucketKey);
+		hasher.putHash(macrosKey);
+		hasher.putString(sourceFile.getAbsolutePath());
+		hasher.putHash(inputHash);
+		return hasher.hash();
+	}
+
+	private static void delete(File file) {
+		try {
+			Files.deleteIfExists(file.toPath());
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+}
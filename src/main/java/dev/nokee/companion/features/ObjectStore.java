@@ -0,0 +1,30 @@
+package dev.nokee.companion.features;
+
+import org.gradle.internal.hash.HashCode;
+
+import java.io.File;
+
+/**
+ * Stores the object files by translation unit key, see {@link ObjectCaching}.
+ */
+interface ObjectStore {
+	/**
+	 * Restores the stored object file, and its dependency file, if any.
+	 *
+	 * @param key  the translation unit key
+	 * @param objectFile  the object file location to restore to
+	 * @return {@code true} if restored, {@code false} otherwise
+	 */
+	boolean restore(HashCode key, File objectFile);
+
+	/**
+	 * Stores the object file, and its dependency file, if any.
+	 *
+	 * @param key  the translation unit key
+	 * @param objectFile  the compiled object file
+	 */
+	void store(HashCode key, File objectFile);
+
+	// Called once the object files of a successful compilation are stored
+	default void flush() {}
+}
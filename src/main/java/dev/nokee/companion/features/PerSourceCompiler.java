@@ -2,27 +2,47 @@ package dev.nokee.companion.features;
 
 import org.gradle.api.tasks.WorkResult;
 import org.gradle.api.tasks.WorkResults;
+import org.gradle.internal.hash.HashCode;
+import org.gradle.internal.hash.Hasher;
+import org.gradle.internal.hash.Hashing;
 import org.gradle.language.base.internal.compile.Compiler;
 import org.gradle.nativeplatform.toolchain.internal.NativeCompileSpec;
+import org.gradle.nativeplatform.toolchain.internal.PCHUtils;
 import org.gradle.workers.WorkQueue;
 
+import javax.annotation.Nullable;
 import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
 
 final class PerSourceCompiler<T extends NativeCompileSpec> implements Compiler<T> {
+	/**
+	 * Directory, relative to the object file directory, where the bucket's precompiled headers are written.
+	 * Each precompiled header sits in {@code <flags hash>/<header graph hash>}, a changed header graph replaces the directory of the same flags and an unknown one always compiles again in {@code <flags hash>/unknown}.
+	 */
+	static final String PRE_COMPILED_HEADERS_DIRECTORY_NAME = "pch";
 	private final Compiler<T> delegateCompiler;
 	private final SourceSpecProvider<T> sourceSpecs;
+	@Nullable private final PreCompiledHeaderCompiler<T> preCompiledHeaderCompiler;
+	@Nullable private final ObjectCache.InputHasher inputHasher;
 	private final WorkQueue queue;
 
-	public PerSourceCompiler(Compiler<T> delegateCompiler, SourceSpecProvider<T> sourceSpecs, WorkQueue queue) {
+	public PerSourceCompiler(Compiler<T> delegateCompiler, SourceSpecProvider<T> sourceSpecs, @Nullable PreCompiledHeaderCompiler<T> preCompiledHeaderCompiler, @Nullable ObjectCache.InputHasher inputHasher, WorkQueue queue) {
 		this.delegateCompiler = delegateCompiler;
 		this.sourceSpecs = sourceSpecs;
+		this.preCompiledHeaderCompiler = preCompiledHeaderCompiler;
+		this.inputHasher = inputHasher;
 		this.queue = queue;
 	}
 
 	@Override
 	public WorkResult execute(T defaultSpec) {
-		assert defaultSpec.getSourceFilesForPch().isEmpty() : "not tested, hence failing";
 		WorkResult result = WorkResults.didWork(false);
 
 		// Adjust default spec (aka remove source options files)
@@ -36,7 +56,12 @@ final class PerSourceCompiler<T extends NativeCompileSpec> implements Compiler<T
 		result = result.or(delegateCompiler.execute(defaultSpec));
 
 		// Execute each per-source bucket
+		//   the buckets with sources using the precompiled header share it or compile their own, see configurePreCompiledHeader
+		Map<List<String>, File> preCompiledHeaderObjectFiles = new HashMap<>();
 		for (T newSpec : specs) {
+			if (defaultSpec.getPreCompiledHeader() != null) {
+				configurePreCompiledHeader(defaultSpec, newSpec, preCompiledHeaderObjectFiles);
+			}
 			result = result.or(delegateCompiler.execute(newSpec));
 		}
 
@@ -47,7 +72,91 @@ final class PerSourceCompiler<T extends NativeCompileSpec> implements Compiler<T
 		return result;
 	}
 
+	// The bucket spec starts with the default precompiled header, only buckets with incompatible flags needs their own
+	private void configurePreCompiledHeader(T defaultSpec, T spec, Map<List<String>, File> preCompiledHeaderObjectFiles) {
+		if (Collections.disjoint(spec.getSourceFiles(), spec.getSourceFilesForPch())) {
+			return; // no source uses the precompiled header
+		}
+
+		List<String> key = preCompiledHeaderKey(spec);
+		if (key.equals(preCompiledHeaderKey(defaultSpec))) {
+			return; // share the default precompiled header
+		}
+
+		if (preCompiledHeaderCompiler == null) {
+			spec.setSourceFilesForPch(Collections.emptyList()); // compile the bucket without precompiled header
+			return;
+		}
+
+		// Compile the precompiled header once per distinct flags, the compiler reuses the one of the previous compilation for the same header graph
+		File preCompiledHeaderObjectFile = preCompiledHeaderObjectFiles.computeIfAbsent(key, it -> {
+			File flagsDirectory = new File(new File(defaultSpec.getObjectFileDir(), PRE_COMPILED_HEADERS_DIRECTORY_NAME), Hashing.hashString(String.join("\n", it)).toString());
+			return preCompiledHeaderCompiler.compile(spec, flagsDirectory, headerGraphHashOf(spec));
+		});
+
+		// Same as AbstractNativeSourceCompileTask#configureSpec, the prefix header must sit next to the precompiled header
+		File prefixHeaderFile = defaultSpec.getPrefixHeaderFile();
+		File preCompiledHeaderDirectory = PCHUtils.generatePCHObjectDirectory(spec.getTempDir(), prefixHeaderFile, preCompiledHeaderObjectFile);
+		spec.setPrefixHeaderFile(new File(preCompiledHeaderDirectory, prefixHeaderFile.getName()));
+		spec.setPreCompiledHeaderObjectFile(new File(preCompiledHeaderDirectory, preCompiledHeaderObjectFile.getName()));
+	}
+
+	// The prefix header and the include graph the incremental compilation resolved for the precompiled header, any source using it includes the same graph
+	@Nullable
+	private HashCode headerGraphHashOf(T spec) {
+		if (inputHasher == null) {
+			return null;
+		}
+		File sourceFile = spec.getSourceFiles().stream().filter(spec.getSourceFilesForPch()::contains).findFirst().orElseThrow(IllegalStateException::new);
+		HashCode includeGraphHash = inputHasher.headerGraphHashOf(sourceFile, spec.getPreCompiledHeader());
+		if (includeGraphHash == null) {
+			return null;
+		}
+
+		try {
+			Hasher hasher = Hashing.newHasher();
+			hasher.putHash(Hashing.hashFile(spec.getPrefixHeaderFile()));
+			hasher.putHash(includeGraphHash);
+			return hasher.hash();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	// Flags that doesn't change the precompiled header content, anything else requires a dedicated precompiled header
+	private static List<String> preCompiledHeaderKey(NativeCompileSpec spec) {
+		return spec.getArgs().stream().filter(it -> !isPreCompiledHeaderNeutral(it)).collect(Collectors.toList());
+	}
+
+	// Only the flags passing through to the diagnostics, i.e. warnings not turned into errors
+	static boolean isPreCompiledHeaderNeutral(String arg) {
+		if (arg.equals("-w") || arg.startsWith("-fdiagnostics-")) {
+			return true;
+		}
+		if (!arg.startsWith("-W")) {
+			return false;
+		}
+		if (arg.startsWith("-Wa,") || arg.startsWith("-Wl,") || arg.startsWith("-Wp,")) {
+			return false; // assembler, linker and preprocessor flags
+		}
+		String warning = arg.startsWith("-Wno-") ? arg.substring("-Wno-".length()) : arg.substring("-W".length());
+		return !warning.startsWith("error") && !warning.equals("fatal-errors");
+	}
+
 	public interface SourceSpecProvider<T extends NativeCompileSpec> {
 		Iterable<T> forFiles(Collection<File> files);
 	}
+
+	public interface PreCompiledHeaderCompiler<T extends NativeCompileSpec> {
+		/**
+		 * Compiles the prefix header using the flags of the specified bucket.
+		 * The precompiled header of a previous compilation with the same flags and header graph is reused, an unknown header graph always compiles.
+		 *
+		 * @param spec  the bucket spec
+		 * @param flagsDirectory  the directory of the precompiled headers compiled with the bucket flags
+		 * @param headerGraphHash  the hash of the prefix header and its include graph or null if unknown
+		 * @return the precompiled header object file, never null
+		 */
+		File compile(T spec, File flagsDirectory, @Nullable HashCode headerGraphHash);
+	}
 }
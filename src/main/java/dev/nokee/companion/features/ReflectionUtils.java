@@ -1,5 +1,8 @@
 package dev.nokee.companion.features;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.AccessibleObject;
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
@@ -37,6 +40,46 @@ final class ReflectionUtils {
 		}
 	}
 
+	/**
+	 * Returns a reader of the specified field resolving the field getter once per class.
+	 * Use for fields read on hot paths.
+	 *
+	 * @param fieldName  the declared field name
+	 * @return a field reader, never null
+	 */
+	public static FieldReader fieldReader(String fieldName) {
+		return new FieldReader(fieldName);
+	}
+
+	public static final class FieldReader {
+		private final ClassValue<MethodHandle> getters;
+
+		private FieldReader(String fieldName) {
+			this.getters = new ClassValue<MethodHandle>() {
+				@Override
+				protected MethodHandle computeValue(Class<?> type) {
+					try {
+						return MethodHandles.lookup().unreflectGetter(makeAccessible(getField(type, fieldName))).asType(MethodType.methodType(Object.class, Object.class));
+					} catch (IllegalAccessException e) {
+						throw new RuntimeException(e);
+					}
+				}
+			};
+		}
+
+		public <R> R readFieldValue(Object instance) {
+			try {
+				@SuppressWarnings("unchecked")
+				R result = (R) getters.get(instance.getClass()).invokeExact(instance);
+				return result;
+			} catch (RuntimeException | Error e) {
+				throw e;
+			} catch (Throwable e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
 	public static void updateFieldValue(Field field, Object instance, Object value) {
 		try {
 			removeFinal(makeAccessible(field)).set(instance, value);
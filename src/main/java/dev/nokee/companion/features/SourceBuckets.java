@@ -0,0 +1,211 @@
+package dev.nokee.companion.features;
+
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Per-source options bucket of each source file from the previous executions of a compile task.
+ *
+ * <p>The per-source options rules are evaluated once per source file, in a single pass over the unassigned source files.
+ * The assignments carry over between incremental executions, only the new source files are evaluated.
+ * An incremental execution implies unchanged task inputs, hence unchanged rules, other than the source files.
+ * Any other execution starts over.
+ */
+final class SourceBuckets {
+	private static final Logger LOGGER = Logging.getLogger(SourceBuckets.class);
+	private static final int MAGIC = 0x4e4b5342; // NKSB
+	private static final int FORMAT_VERSION = 1;
+	private static final Bucket DEFAULT_BUCKET = new Bucket("", Collections.emptyList());
+	private final File bucketsFile;
+	private final Map<File, Bucket> buckets = new HashMap<>();
+	private final Map<Bucket, Bucket> uniqueBuckets = new HashMap<>();
+	private boolean changed = false;
+
+	private SourceBuckets(File bucketsFile) {
+		this.bucketsFile = bucketsFile;
+		uniqueBuckets.put(DEFAULT_BUCKET, DEFAULT_BUCKET);
+	}
+
+	/**
+	 * Loads the assignments, a missing or unreadable file is empty.
+	 *
+	 * @param bucketsFile  the assignments file
+	 * @param incremental  {@code true} if the rules are unchanged since the previous execution
+	 * @return the assignments, never null
+	 */
+	public static SourceBuckets load(File bucketsFile, boolean incremental) {
+		SourceBuckets result = new SourceBuckets(bucketsFile);
+		if (!incremental) {
+			result.changed = bucketsFile.exists(); // overwrite stale assignments
+		} else if (bucketsFile.exists()) {
+			try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(bucketsFile.toPath())))) {
+				if (in.readInt() == MAGIC && in.readInt() == FORMAT_VERSION) {
+					List<Bucket> buckets = new ArrayList<>();
+					for (int count = in.readInt(); count > 0; --count) {
+						String uniqueId = in.readUTF();
+						List<String> args = new ArrayList<>();
+						for (int argCount = in.readInt(); argCount > 0; --argCount) {
+							args.add(in.readUTF());
+						}
+						buckets.add(result.bucketOf(uniqueId, args));
+					}
+					for (int count = in.readInt(); count > 0; --count) {
+						result.buckets.put(new File(in.readUTF()), buckets.get(in.readInt()));
+					}
+				}
+			} catch (IOException | RuntimeException e) {
+				LOGGER.info("Could not read source buckets '" + bucketsFile + "', starting over.", e);
+				result.buckets.clear();
+			}
+		}
+		return result;
+	}
+
+	public void save() {
+		if (!changed) {
+			return;
+		}
+
+		File temporaryFile = new File(bucketsFile.getPath() + ".tmp");
+		try {
+			Files.createDirectories(bucketsFile.getParentFile().toPath());
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporaryFile.toPath())))) {
+				Map<Bucket, Integer> indices = new LinkedHashMap<>();
+				buckets.values().forEach(it -> indices.putIfAbsent(it, indices.size()));
+				out.writeInt(MAGIC);
+				out.writeInt(FORMAT_VERSION);
+				out.writeInt(indices.size());
+				for (Bucket bucket : indices.keySet()) {
+					out.writeUTF(bucket.uniqueId);
+					out.writeInt(bucket.args.size());
+					for (String arg : bucket.args) {
+						out.writeUTF(arg);
+					}
+				}
+				out.writeInt(buckets.size());
+				for (Map.Entry<File, Bucket> entry : buckets.entrySet()) {
+					out.writeUTF(entry.getKey().getPath());
+					out.writeInt(indices.get(entry.getValue()));
+				}
+			}
+			Files.move(temporaryFile.toPath(), bucketsFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			changed = false;
+		} catch (IOException e) {
+			// the assignments are only an optimization
+			LOGGER.info("Could not write source buckets '" + bucketsFile + "'.", e);
+		}
+	}
+
+	/**
+	 * {@return the source files without bucket, i.e. requiring the rules evaluation}
+	 *
+	 * @param sourceFiles  the source files to compile
+	 */
+	public List<File> unassigned(Collection<File> sourceFiles) {
+		List<File> result = new ArrayList<>();
+		for (File sourceFile : sourceFiles) {
+			if (!buckets.containsKey(sourceFile)) {
+				result.add(sourceFile);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Assigns the source files to a bucket.
+	 *
+	 * @param uniqueId  the bucket id, i.e. namespaces the temporary directory
+	 * @param args  the bucket's additional compiler arguments
+	 * @param sourceFiles  the source files of the bucket
+	 */
+	public void assign(String uniqueId, List<String> args, Collection<File> sourceFiles) {
+		Bucket bucket = bucketOf(uniqueId, args);
+		for (File sourceFile : sourceFiles) {
+			buckets.put(sourceFile, bucket);
+		}
+		changed = true;
+	}
+
+	/**
+	 * Assigns the remaining source files to the default bucket, i.e. no per-source options.
+	 *
+	 * @param sourceFiles  the evaluated source files
+	 */
+	public void assignDefault(Collection<File> sourceFiles) {
+		for (File sourceFile : sourceFiles) {
+			if (buckets.putIfAbsent(sourceFile, DEFAULT_BUCKET) == null) {
+				changed = true;
+			}
+		}
+	}
+
+	/**
+	 * {@return the source files of each per-source bucket, in source order, without the default bucket}
+	 *
+	 * @param sourceFiles  the assigned source files
+	 */
+	public Map<Bucket, List<File>> groupedByBucket(Collection<File> sourceFiles) {
+		Map<Bucket, List<File>> result = new LinkedHashMap<>();
+		for (File sourceFile : sourceFiles) {
+			Bucket bucket = buckets.get(sourceFile);
+			if (bucket != null && bucket != DEFAULT_BUCKET) {
+				result.computeIfAbsent(bucket, it -> new ArrayList<>()).add(sourceFile);
+			}
+		}
+		return result;
+	}
+
+	// Deduplicate the buckets, most source files share a few buckets
+	private Bucket bucketOf(String uniqueId, List<String> args) {
+		Bucket bucket = new Bucket(uniqueId, args);
+		return uniqueBuckets.computeIfAbsent(bucket, it -> it);
+	}
+
+	public static final class Bucket {
+		private final String uniqueId;
+		private final List<String> args;
+
+		private Bucket(String uniqueId, List<String> args) {
+			this.uniqueId = uniqueId;
+			this.args = Collections.unmodifiableList(new ArrayList<>(args));
+		}
+
+		public String getUniqueId() {
+			return uniqueId;
+		}
+
+		public List<String> getArgs() {
+			return args;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) return true;
+			if (!(o instanceof Bucket)) return false;
+			Bucket bucket = (Bucket) o;
+			return uniqueId.equals(bucket.uniqueId) && args.equals(bucket.args);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(uniqueId, args);
+		}
+	}
+}
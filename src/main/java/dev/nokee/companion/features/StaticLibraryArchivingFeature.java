@@ -0,0 +1,32 @@
+package dev.nokee.companion.features;
+
+import dev.nokee.nativeplatform.tasks.StaticLibraryArchiveAware;
+import org.gradle.api.Plugin;
+import org.gradle.api.Project;
+import org.gradle.api.tasks.TaskContainer;
+
+import javax.inject.Inject;
+
+/*private*/ abstract /*final*/ class StaticLibraryArchivingFeature implements Plugin<Project> {
+	// Replace only the changed members of the archive, defaults to true
+	private static final String INCREMENTAL_ARCHIVE_PROPERTY_NAME = "dev.nokee.internal.native.archive.incremental";
+	// Reference the object files in place, defaults to false as thin archives are not relocatable (i.e. publishing)
+	private static final String THIN_ARCHIVE_PROPERTY_NAME = "dev.nokee.internal.native.archive.thin";
+	// Zero the timestamps, owners and modes of the members, defaults to true
+	private static final String DETERMINISTIC_ARCHIVE_PROPERTY_NAME = "dev.nokee.internal.native.archive.deterministic";
+	private final TaskContainer tasks;
+
+	@Inject
+	public StaticLibraryArchivingFeature(TaskContainer tasks) {
+		this.tasks = tasks;
+	}
+
+	@Override
+	public void apply(Project project) {
+		tasks.withType(StaticLibraryArchiveAware.class).configureEach(task -> {
+			task.getIncrementalArchive().set(Boolean.parseBoolean(System.getProperty(INCREMENTAL_ARCHIVE_PROPERTY_NAME, "true")));
+			task.getThinArchive().set(Boolean.getBoolean(THIN_ARCHIVE_PROPERTY_NAME));
+			task.getDeterministicArchive().set(Boolean.parseBoolean(System.getProperty(DETERMINISTIC_ARCHIVE_PROPERTY_NAME, "true")));
+		});
+	}
+}
@@ -1,81 +1,184 @@
 package dev.nokee.companion.features;
 
-import org.gradle.api.Action;
 import org.gradle.api.file.FileSystemOperations;
 import org.gradle.api.logging.Logger;
 import org.gradle.api.logging.Logging;
-import org.gradle.api.model.ObjectFactory;
 import org.gradle.api.tasks.WorkResult;
 import org.gradle.api.tasks.WorkResults;
+import org.gradle.internal.hash.HashCode;
+import org.gradle.internal.hash.Hasher;
+import org.gradle.internal.hash.Hashing;
 import org.gradle.internal.operations.logging.BuildOperationLogger;
 import org.gradle.language.base.internal.compile.Compiler;
 import org.gradle.language.base.internal.compile.VersionAwareCompiler;
 import org.gradle.nativeplatform.toolchain.internal.NativeCompileSpec;
-import org.gradle.nativeplatform.toolchain.internal.OutputCleaningCompiler;
 
-import javax.inject.Inject;
+import javax.annotation.Nullable;
 import java.io.File;
 import java.io.IOException;
 import java.io.UncheckedIOException;
-import java.lang.reflect.Field;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
 import java.nio.file.StandardCopyOption;
-import java.util.HashMap;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
+import java.util.concurrent.ConcurrentHashMap;
 
-final class TransactionalCompiler<T extends NativeCompileSpec> implements Compiler<T> {
+/**
+ * Rolls back the object files of a failed compilation, so the following compilation stays incremental.
+ *
+ * <p>The {@link #unitCompiler(Compiler) stashing compiler} sits right above the compilers writing object files (i.e. the toolchain compiler).
+ * Just before a source file compiles (or its object files are removed), it moves its output directory into the transaction directory, a single rename.
+ * The {@link TranslationUnitQueue} hands over each translation unit (or group of translation units when batching) when dispatched, only then its output directory is stashed.
+ * The object cache restores or vacates the output directories of the cacheable translation units when their bucket is queued, it {@link #stash(File, File) stashes} them first.
+ * Output directories that cannot be moved (i.e. locked files) are copied instead, such translation units cannot be committed.
+ * The precompiled headers of the per-source buckets are {@link #stash(File) stashed} only when recompiled.
+ * The {@link #compiler(Compiler) transactional compiler} sits above everything.
+ * When the compilation fails, it moves back the stashed output directories, otherwise it discards them.
+ *
+ * <p>The translation units are committed individually.
+ * On failure, the output directories of the successfully compiled source files are moved to the committed units, keyed by the source file and its header graph, before rolling back.
+ * The following compilation restores the committed units still matching instead of recompiling them, only the failed source files compile again.
+ * The task outputs must be rolled back entirely, otherwise Gradle considers the following compilation as a full rebuild.
+ */
+final class TransactionalCompiler {
 	private static final Logger LOGGER = Logging.getLogger(TransactionalCompiler.class);
-	private final Compiler<T> delegateCompiler;
 	private final OutputFileDirResolver outputFileDirResolver;
+	@Nullable private final ObjectCache.InputHasher inputHasher;
 	private final FileSystemOperations fileOperations;
+	@Nullable private volatile Transaction transaction;
 
-	public TransactionalCompiler(Compiler<T> delegateCompiler, OutputFileDirResolver outputFileDirResolver, ObjectFactory objects, FileSystemOperations fileOperations) {
-		this.delegateCompiler = delegateCompiler;
+	/**
+	 * Creates a transactional compiler.
+	 *
+	 * @param outputFileDirResolver  the object file locations
+	 * @param inputHasher  the translation units' inputs, null to roll back the whole compilation on failure
+	 * @param fileOperations  the file operations
+	 */
+	public TransactionalCompiler(OutputFileDirResolver outputFileDirResolver, @Nullable ObjectCache.InputHasher inputHasher, FileSystemOperations fileOperations) {
 		this.outputFileDirResolver = outputFileDirResolver;
+		this.inputHasher = inputHasher;
 		this.fileOperations = fileOperations;
 	}
 
-	@Override
-	public WorkResult execute(T spec) {
-		File temporaryDirectory = new File(spec.getTempDir(), "compile-transaction");
+	public <T extends NativeCompileSpec> Compiler<T> compiler(Compiler<T> delegateCompiler) {
+		return spec -> {
+			File committedDirectory = new File(spec.getTempDir(), "compile-transaction-committed");
+			if (!spec.isIncrementalCompile()) {
+				// The committed units belongs to the previous incremental compilation
+				fileOperations.delete(it -> it.delete(committedDirectory));
+				return delegateCompiler.execute(spec);
+			}
 
-		// Ensure the compile-transaction is clean
-		try {
-			fileOperations.delete(it -> it.delete(temporaryDirectory));
-		} catch (Throwable ex) {
-			// ignores, the sync later will "clean" individual transaction
-			LOGGER.warn("Could not clean compile transaction.", ex);
+			File temporaryDirectory = new File(spec.getTempDir(), "compile-transaction");
+
+			// Ensure the compile-transaction is clean
+			try {
+				fileOperations.delete(it -> it.delete(temporaryDirectory));
+			} catch (Throwable ex) {
+				// ignores, each stash has a unique location
+				LOGGER.warn("Could not clean compile transaction.", ex);
+			}
+
+			Transaction transaction = new Transaction(new File(temporaryDirectory, "stash"), committedDirectory);
+			this.transaction = transaction;
+
+			// TODO: We should coerce the per-source options to ensure logging happens (start and done at the end)
+			BuildOperationLogger delegate = spec.getOperationLogger();
+			spec.setOperationLogger(new RollbackAwareBuildOperationLogger(delegate, transaction, temporaryDirectory));
+
+			// capture CommandLineToolInvocationFailure with message "C++ compiler failed while compiling " suffix
+			return delegateCompiler.execute(spec);
+		};
+	}
+
+	/**
+	 * Stashes the specified output directory before it is written, i.e. the precompiled headers a per-source bucket recompiles.
+	 * Does nothing outside an incremental compilation.
+	 *
+	 * @param outputDirectory  the output directory to stash
+	 */
+	public void stash(File outputDirectory) {
+		Transaction transaction = this.transaction;
+		if (transaction != null) {
+			transaction.stash(outputDirectory);
+		}
+	}
+
+	/**
+	 * Stashes the output directory of the specified translation unit before it is written, i.e. restored from the object cache.
+	 * Does nothing outside an incremental compilation.
+	 *
+	 * @param objectFile  the object file of the translation unit
+	 * @param sourceFile  the source file of the translation unit
+	 */
+	public void stash(File objectFile, File sourceFile) {
+		Transaction transaction = this.transaction;
+		if (transaction != null) {
+			transaction.stash(objectFile, sourceFile);
+		}
+	}
+
+	public <T extends NativeCompileSpec> Compiler<T> unitCompiler(Compiler<T> delegateCompiler) {
+		return new StashingCompiler<>(delegateCompiler);
+	}
+
+	private final class StashingCompiler<T extends NativeCompileSpec> implements Compiler<T> {
+		private final Compiler<T> delegateCompiler;
+
+		private StashingCompiler(Compiler<T> delegateCompiler) {
+			this.delegateCompiler = delegateCompiler;
 		}
 
-		File stashDirectory = new File(temporaryDirectory, "stash");
-		File backupDirectory = new File(temporaryDirectory, "backup");
+		@Override
+		public WorkResult execute(T spec) {
+			Transaction transaction = TransactionalCompiler.this.transaction;
+			if (transaction == null) {
+				return delegateCompiler.execute(spec);
+			}
+
+			for (File sourceFile : spec.getRemovedSourceFiles()) {
+				transaction.stash(outputFileDirResolver.outputFileDir(sourceFile, spec.getObjectFileDir()).getParentFile());
+			}
 
-		List<StashedFile> stashedFiles = stashFiles(spec.getRemovedSourceFiles(), spec.getObjectFileDir(), stashDirectory);
-		List<StashedFile> backupFiles = stashFiles(spec.getSourceFiles(), spec.getObjectFileDir(), backupDirectory);
+			List<File> sourceFiles = new ArrayList<>();
+			int restoredCount = 0;
+			for (File sourceFile : spec.getSourceFiles()) {
+				File objectFile = outputFileDirResolver.outputFileDir(sourceFile, spec.getObjectFileDir());
+				StashedDirectory stashedDirectory = transaction.stash(objectFile, sourceFile);
+				if (transaction.restoreCommitted(stashedDirectory)) {
+					++restoredCount; // compiled by the previous (failed) compilation
+				} else {
+					sourceFiles.add(sourceFile);
+				}
+			}
 
-		// TODO: We should coerce the per-source options to ensure logging happens (start and done at the end)
-		BuildOperationLogger delegate = spec.getOperationLogger();
-		spec.setOperationLogger(new RollbackAwareBuildOperationLogger(delegate, stashedFiles, backupFiles, temporaryDirectory));
+			if (restoredCount == 0) {
+				return delegateCompiler.execute(spec);
+			}
 
-		// capture CommandLineToolInvocationFailure with message "C++ compiler failed while compiling " suffix
-		return delegateCompiler.execute(spec);
+			LOGGER.info("Restored {} translation unit(s) committed by the previous compilation.", restoredCount);
+			spec.setSourceFiles(sourceFiles);
+			if (sourceFiles.isEmpty() && spec.getRemovedSourceFiles().isEmpty()) {
+				return WorkResults.didWork(true);
+			}
+			return delegateCompiler.execute(spec).or(WorkResults.didWork(true));
+		}
 	}
 
 	private final class RollbackAwareBuildOperationLogger implements BuildOperationLogger, BuildOperationLoggerRef {
 		private final BuildOperationLogger delegate;
-		private final List<StashedFile> stashedFiles;
-		private final List<StashedFile> backupFiles;
+		private final Transaction transaction;
 		private final File temporaryDirectory;
-		private boolean failed = false;
+		private volatile boolean failed = false;
 
-		private RollbackAwareBuildOperationLogger(BuildOperationLogger delegate, List<StashedFile> stashedFiles, List<StashedFile> backupFiles, File temporaryDirectory) {
+		private RollbackAwareBuildOperationLogger(BuildOperationLogger delegate, Transaction transaction, File temporaryDirectory) {
 			this.delegate = delegate;
-			this.stashedFiles = stashedFiles;
-			this.backupFiles = backupFiles;
+			this.transaction = transaction;
 			this.temporaryDirectory = temporaryDirectory;
 		}
 
@@ -97,9 +200,11 @@ final class TransactionalCompiler<T extends NativeCompileSpec> implements Compil
 
 		@Override
 		public void done() {
+			TransactionalCompiler.this.transaction = null;
 			if (failed) {
-				stashedFiles.forEach(StashedFile::unstash);
-				backupFiles.forEach(StashedFile::unstash);
+				transaction.rollback();
+			} else {
+				transaction.discardCommitted();
 			}
 			try {
 				fileOperations.delete(spec -> spec.delete(temporaryDirectory));
@@ -121,71 +226,177 @@ final class TransactionalCompiler<T extends NativeCompileSpec> implements Compil
 		}
 	}
 
-	List<StashedFile> stashFiles(List<File> filesToStash, File objectFileDir, File stashDirectory) {
-		return filesToStash.stream().map(file -> {
-			File origFile = outputFileDirResolver.outputFileDir(file, objectFileDir).getParentFile();
-			File stashedFile = outputFileDirResolver.outputFileDir(file, stashDirectory).getParentFile();
-
-			if (origFile.exists()) {
-				preserveFileDate(it -> {
-					fileOperations.sync(spec -> spec.from(origFile).into(stashedFile).eachFile(details -> it.put(details.getFile(), new File(stashedFile, details.getPath()))));
-				});
-
-				return new StashedFile() {
-					@Override
-					public void unstash() {
-						preserveFileDate(it -> {
-							fileOperations.sync(spec -> spec.from(stashedFile).into(origFile).eachFile(details -> it.put(details.getFile(), new File(origFile, details.getPath()))));
-						});
-					}
-				};
-			} else {
-				return new StashedFile() {
-					@Override
-					public void unstash() {
-						fileOperations.delete(spec -> spec.delete(origFile));
-					}
-				};
-			}
-		}).collect(Collectors.toList());
-	}
+	private final class Transaction {
+		private final File stashDirectory;
+		private final File committedDirectory;
+		// Stashed once, before the first overwrite, the units may share output directories (i.e. precompiled headers)
+		private final Map<File, StashedDirectory> stashedDirectories = new ConcurrentHashMap<>();
 
-	private static abstract class StashedFile {
-		public abstract void unstash();
-	}
+		private Transaction(File stashDirectory, File committedDirectory) {
+			this.stashDirectory = stashDirectory;
+			this.committedDirectory = committedDirectory;
+		}
 
-	private void preserveFileDate(Action<? super Map<File, File>> action) {
-		Map<File, File> srcDsts = new HashMap<>();
-		action.execute(srcDsts);
-		srcDsts.forEach((src, dst) -> {
-			if (!dst.setLastModified(src.lastModified())) {
-				LOGGER.debug("Could not preserve file date for '" + dst + "'.");
+		/**
+		 * Stashes the output directory, once.
+		 *
+		 * @param directory  the output directory to stash
+		 * @return the stashed directory
+		 */
+		public StashedDirectory stash(File directory) {
+			return stashedDirectories.computeIfAbsent(directory, it -> doStash(it, null, null));
+		}
+
+		/**
+		 * Stashes the output directory of the translation unit, once.
+		 *
+		 * @param objectFile  the object file of the translation unit
+		 * @param sourceFile  the source file compiling into the object file
+		 * @return the stashed directory, committable
+		 */
+		public StashedDirectory stash(File objectFile, File sourceFile) {
+			return stashedDirectories.computeIfAbsent(objectFile.getParentFile(), it -> doStash(it, objectFile, sourceFile));
+		}
+
+		private StashedDirectory doStash(File directory, @Nullable File objectFile, @Nullable File sourceFile) {
+			File committedUnit = sourceFile == null ? null : committedUnitOf(sourceFile);
+			if (!directory.exists()) {
+				return new StashedDirectory(directory, null, objectFile, committedUnit); // rollback deletes the new outputs
 			}
-		});
+
+			File stashedDirectory = new File(stashDirectory, Hashing.hashString(directory.getAbsolutePath()).toString());
+			try {
+				Files.createDirectories(stashDirectory.toPath());
+				Files.move(directory.toPath(), stashedDirectory.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			} catch (IOException e) {
+				// the compiler overwrites the original files, the copy preserves their content and dates
+				LOGGER.info("Could not move '{}', copying it instead. Its translation unit will compile again if the compilation fails.", directory, e);
+				copyRecursively(directory, stashedDirectory);
+				return new StashedDirectory(directory, stashedDirectory, null, null); // the outputs of a failed compilation are unknown
+			}
+			return new StashedDirectory(directory, stashedDirectory, objectFile, committedUnit);
+		}
+
+		// Keyed by the source file and its header graph, the compile options cannot change (i.e. full rebuild)
+		@Nullable
+		private File committedUnitOf(File sourceFile) {
+			HashCode inputHash = inputHasher == null ? null : inputHasher.hashOf(sourceFile);
+			if (inputHash == null) {
+				return null;
+			}
+			Hasher hasher = Hashing.newHasher();
+			hasher.putString(sourceFile.getAbsolutePath());
+			hasher.putHash(inputHash);
+			return new File(committedDirectory, hasher.hash().toString());
+		}
+
+		public boolean restoreCommitted(StashedDirectory stashedDirectory) {
+			if (stashedDirectory.committedUnit == null || !stashedDirectory.committedUnit.isDirectory()) {
+				return false;
+			}
+			try {
+				Files.createDirectories(stashedDirectory.directory.getParentFile().toPath());
+				Files.move(stashedDirectory.committedUnit.toPath(), stashedDirectory.directory.toPath(), StandardCopyOption.ATOMIC_MOVE);
+				return true;
+			} catch (IOException e) {
+				LOGGER.debug("Could not restore committed unit '" + stashedDirectory.committedUnit + "'.", e);
+				fileOperations.delete(it -> it.delete(stashedDirectory.directory));
+				return false; // compiles instead
+			}
+		}
+
+		// The compilation succeeded, any committed unit is either restored or stale
+		public void discardCommitted() {
+			try {
+				fileOperations.delete(it -> it.delete(committedDirectory));
+			} catch (Throwable ex) {
+				LOGGER.warn("Could not clean committed translation units.", ex);
+			}
+		}
+
+		public void rollback() {
+			int committedCount = 0;
+			for (StashedDirectory stashedDirectory : stashedDirectories.values()) {
+				if (stashedDirectory.commit()) {
+					++committedCount;
+				}
+				stashedDirectory.unstash();
+			}
+			stashedDirectories.clear();
+			LOGGER.info("Committed {} successfully compiled translation unit(s).", committedCount);
+		}
 	}
 
-	public static OutputFileDirResolver outputFileDir(Compiler<?> nativeCompiler) {
-		try {
-			Field VersionAwareCompiler_compiler = VersionAwareCompiler.class.getDeclaredField("compiler");
-			VersionAwareCompiler_compiler.setAccessible(true);
-			nativeCompiler = (Compiler<?>) VersionAwareCompiler_compiler.get(nativeCompiler);
+	private final class StashedDirectory {
+		private final File directory;
+		@Nullable private final File stashedDirectory;
+		@Nullable private final File objectFile;
+		@Nullable private final File committedUnit;
 
-			Method OutputCleaningCompiler_getObjectFile = OutputCleaningCompiler.class.getDeclaredMethod("getObjectFile", File.class, File.class);
-			OutputCleaningCompiler_getObjectFile.setAccessible(true);
+		private StashedDirectory(File directory, @Nullable File stashedDirectory, @Nullable File objectFile, @Nullable File committedUnit) {
+			this.directory = directory;
+			this.stashedDirectory = stashedDirectory;
+			this.objectFile = objectFile;
+			this.committedUnit = committedUnit;
+		}
+
+		// The output directory was vacated before compiling, the compiler leaves no object file on failure
+		//   but may leave other files behind (i.e. the dependency file), only the object file tells the unit compiled
+		public boolean commit() {
+			if (committedUnit == null || objectFile == null || objectFile.length() == 0) {
+				return false;
+			}
+			try {
+				fileOperations.delete(it -> it.delete(committedUnit));
+				Files.createDirectories(committedUnit.getParentFile().toPath());
+				Files.move(directory.toPath(), committedUnit.toPath(), StandardCopyOption.ATOMIC_MOVE);
+				return true;
+			} catch (IOException e) {
+				LOGGER.debug("Could not commit '" + directory + "'.", e);
+				return false; // compiles again
+			}
+		}
 
-			final Compiler<?> self = nativeCompiler;
-			return (sourceFile, objectFileDir) -> {
+		public void unstash() {
+			fileOperations.delete(spec -> spec.delete(directory));
+			if (stashedDirectory != null) {
 				try {
-					return (File) OutputCleaningCompiler_getObjectFile.invoke(self, objectFileDir, sourceFile);
-				} catch (IllegalAccessException | InvocationTargetException e) {
-					throw new RuntimeException(e);
+					Files.move(stashedDirectory.toPath(), directory.toPath(), StandardCopyOption.ATOMIC_MOVE);
+				} catch (IOException e) {
+					copyRecursively(stashedDirectory, directory);
 				}
-			};
-		} catch (NoSuchFieldException | IllegalAccessException | NoSuchMethodException e) {
-			throw new RuntimeException(e);
+			}
 		}
 	}
 
+	private static void copyRecursively(File source, File destination) {
+		try {
+			Path sourcePath = source.toPath();
+			Path destinationPath = destination.toPath();
+			Files.walkFileTree(sourcePath, new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+					Files.createDirectories(destinationPath.resolve(sourcePath.relativize(dir)));
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+					Files.copy(file, destinationPath.resolve(sourcePath.relativize(file)), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+					return FileVisitResult.CONTINUE;
+				}
+			});
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	public static OutputFileDirResolver outputFileDir(Compiler<?> nativeCompiler) {
+		// Expects an OutputCleaningCompiler wrapped by VersionAwareCompiler
+		final Compiler<?> self = GradleInternals.delegateOf((VersionAwareCompiler<?>) nativeCompiler);
+		return (sourceFile, objectFileDir) -> GradleInternals.objectFileOf(self, objectFileDir, sourceFile);
+	}
+
 	interface OutputFileDirResolver {
 		File outputFileDir(File sourceFile, File objectFileDir);
 	}
@@ -0,0 +1,332 @@
+package dev.nokee.companion.features;
+
+import dev.nokee.language.cpp.tasks.CppCompile;
+import dev.nokee.nativeplatform.tasks.MemoryBudget;
+import org.gradle.api.Action;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+import org.gradle.api.provider.Property;
+import org.gradle.api.services.BuildService;
+import org.gradle.api.services.BuildServiceParameters;
+import org.gradle.api.tasks.WorkResult;
+import org.gradle.api.tasks.WorkResults;
+import org.gradle.language.base.internal.compile.Compiler;
+import org.gradle.nativeplatform.toolchain.internal.NativeCompileSpec;
+import org.gradle.workers.WorkAction;
+import org.gradle.workers.WorkParameters;
+import org.gradle.workers.WorkQueue;
+import org.gradle.workers.WorkerExecutionException;
+
+import javax.annotation.Nullable;
+import javax.inject.Inject;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.UnaryOperator;
+import java.util.stream.Collectors;
+
+/**
+ * Single queue of the translation units of all per-source option buckets.
+ *
+ * <p>The {@link #compiler(Compiler, UnaryOperator) queued compiler} sits right above the toolchain compiler.
+ * It splits the bucket spec into one translation unit per source file and queues them instead of compiling.
+ * The queue submits the translation units of all buckets to the worker API when {@link #asWorkQueue() awaited}, ordered by the scheduling policy.
+ * There is no barrier between the buckets and the work spreads evenly across the workers regardless of the bucket sizes.
+ * Each translation unit is admitted by the memory budget and its outcome recorded in the compile history.
+ *
+ * <p>When {@link #batching(int) batching}, the translation units of a bucket are grouped so all workers stay busy.
+ * A group compiles as a single spec, the toolchain compiler's build operation executor compiles it in one compiler process.
+ *
+ * <p>The compiler writes the options file of each spec in its temporary directory.
+ * The translation units of a bucket reuse a temporary directory per concurrent compilation instead of one per source file.
+ */
+final class TranslationUnitQueue {
+	private static final Logger LOGGER = Logging.getLogger(TranslationUnitQueue.class);
+	// Bounds the command line length and the failure blast radius
+	private static final int MAX_BATCH_SIZE = 16;
+	private final Registry registry;
+	private final String queueId;
+	private final WorkQueue queue;
+	private final CompileHistory history;
+	private final CppCompile.SchedulingPolicy policy;
+	@Nullable private final MemoryBudget memoryBudget;
+	private final List<TranslationUnit> pendingUnits = new ArrayList<>();
+	private final Set<Bucket<?>> pendingBuckets = new LinkedHashSet<>();
+	private final Map<String, List<TranslationUnit>> submittedUnits = new ConcurrentHashMap<>();
+	private int maxWorkerCount = 0; // no batching
+
+	/**
+	 * Creates a translation unit queue.
+	 *
+	 * @param registry  the build-scoped registry reaching the queue from the workers
+	 * @param queueId  the identity of the compile task, i.e. its path
+	 * @param queue  the worker queue
+	 * @param history  the compile history
+	 * @param policy  the scheduling policy
+	 * @param memoryBudget  the memory budget, null without admission
+	 */
+	public TranslationUnitQueue(Registry registry, String queueId, WorkQueue queue, CompileHistory history, CppCompile.SchedulingPolicy policy, @Nullable MemoryBudget memoryBudget) {
+		this.registry = registry;
+		this.queueId = queueId;
+		this.queue = queue;
+		this.history = history;
+		this.policy = policy;
+		this.memoryBudget = memoryBudget;
+	}
+
+	/**
+	 * Groups the translation units of each bucket, the group size keeps all workers busy.
+	 * Only useful when the toolchain compiler compiles the source files of a spec in a single compiler process.
+	 *
+	 * @param maxWorkerCount  the maximum worker count
+	 */
+	public void batching(int maxWorkerCount) {
+		this.maxWorkerCount = maxWorkerCount;
+	}
+
+	/**
+	 * {@return a compiler queuing each source file of the spec as a translation unit}
+	 *
+	 * @param delegateCompiler  the toolchain compiler
+	 * @param copySpec  copies a spec
+	 */
+	public <T extends NativeCompileSpec> Compiler<T> compiler(Compiler<T> delegateCompiler, UnaryOperator<T> copySpec) {
+		return spec -> {
+			// The removed source files are cleaned synchronously
+			if (!spec.getRemovedSourceFiles().isEmpty()) {
+				T cleanSpec = copySpec.apply(spec);
+				cleanSpec.setSourceFiles(Collections.emptyList());
+				delegateCompiler.execute(cleanSpec);
+			}
+
+			Bucket<T> bucket = new Bucket<>(spec, delegateCompiler, copySpec);
+			for (File sourceFile : spec.getSourceFiles()) {
+				pendingUnits.add(new TranslationUnit(sourceFile, bucket));
+			}
+			if (!spec.getSourceFiles().isEmpty()) {
+				pendingBuckets.add(bucket);
+			}
+			return WorkResults.didWork(!spec.getSourceFiles().isEmpty());
+		};
+	}
+
+	/**
+	 * {@return a work queue submitting the pending translation units when awaited}
+	 */
+	public WorkQueue asWorkQueue() {
+		return new WorkQueue() {
+			@Override
+			public <T extends WorkParameters> void submit(Class<? extends WorkAction<T>> workActionClass, Action<? super T> parameterAction) {
+				queue.submit(workActionClass, parameterAction);
+			}
+
+			@Override
+			public void await() throws WorkerExecutionException {
+				registry.register(queueId, TranslationUnitQueue.this);
+				try {
+					flush();
+					queue.await();
+				} finally {
+					registry.unregister(queueId);
+					submittedUnits.clear();
+					history.save();
+				}
+			}
+		};
+	}
+
+	private void flush() {
+		if (!pendingUnits.isEmpty()) {
+			LOGGER.info("Compiling {} translation unit(s) of {} bucket(s) through a single queue.", pendingUnits.size(), pendingBuckets.size());
+		}
+		List<TranslationUnit> units = history.schedule(pendingUnits, TranslationUnit::getKey, policy);
+		pendingUnits.clear();
+		pendingBuckets.clear();
+		for (List<TranslationUnit> batch : batches(units)) {
+			String unitId = String.valueOf(submittedUnits.size());
+			submittedUnits.put(unitId, batch);
+			queue.submit(TranslationUnitAction.class, spec -> {
+				spec.getRegistry().set(registry);
+				spec.getQueueId().set(queueId);
+				spec.getUnitId().set(unitId);
+			});
+		}
+	}
+
+	// Groups the translation units of the same bucket in scheduling order, the object names must be unique in a group
+	private List<List<TranslationUnit>> batches(List<TranslationUnit> units) {
+		int batchSize = maxWorkerCount <= 0 ? 1 : Math.min(MAX_BATCH_SIZE, (units.size() + maxWorkerCount - 1) / maxWorkerCount);
+		if (batchSize <= 1) {
+			return units.stream().map(Collections::singletonList).collect(Collectors.toList());
+		}
+
+		List<List<TranslationUnit>> result = new ArrayList<>();
+		Map<Bucket<?>, List<TranslationUnit>> openBatches = new HashMap<>();
+		Map<Bucket<?>, Set<String>> openBatchObjectNames = new HashMap<>();
+		for (TranslationUnit unit : units) {
+			List<TranslationUnit> batch = openBatches.get(unit.bucket);
+			String objectName = stemOf(unit.sourceFile.getName());
+			if (batch == null || batch.size() == batchSize || openBatchObjectNames.get(unit.bucket).contains(objectName)) {
+				batch = new ArrayList<>();
+				openBatches.put(unit.bucket, batch);
+				openBatchObjectNames.put(unit.bucket, new HashSet<>());
+				result.add(batch);
+			}
+			batch.add(unit);
+			openBatchObjectNames.get(unit.bucket).add(objectName);
+		}
+		return result;
+	}
+
+	static String stemOf(String fileName) {
+		int index = fileName.lastIndexOf('.');
+		return index < 0 ? fileName : fileName.substring(0, index);
+	}
+
+	// A group failure marks all its translation units as failed, the compiler process doesn't report the outcome per source file
+	private void compile(String unitId) {
+		List<TranslationUnit> units = submittedUnits.get(unitId);
+		String key = units.get(0).getKey();
+		MemoryBudget.Lease lease = null;
+		if (memoryBudget != null) {
+			// The translation units of a group share the compiler process, the largest previous peak is the estimate
+			lease = memoryBudget.admit(key, units.stream().mapToLong(it -> history.peakMemoryOf(it.getKey())).max().orElse(0));
+		}
+		long startTime = System.currentTimeMillis();
+		boolean failed = true;
+		try {
+			units.get(0).bucket.compile(units.stream().map(it -> it.sourceFile).collect(Collectors.toList()));
+			failed = false;
+		} finally {
+			long peakMemoryBytes = 0;
+			if (lease != null) {
+				peakMemoryBytes = lease.getPeakBytes();
+				lease.close();
+			}
+			long durationMillis = (System.currentTimeMillis() - startTime) / units.size(); // best effort, a group isn't timed per source
+			for (TranslationUnit unit : units) {
+				history.record(unit.getKey(), durationMillis, failed, peakMemoryBytes);
+			}
+		}
+	}
+
+	// The bucket spec of the queued translation units
+	private static final class Bucket<T extends NativeCompileSpec> {
+		private final T spec;
+		private final Compiler<T> delegateCompiler;
+		private final UnaryOperator<T> copySpec;
+		private final TemporaryDirectories temporaryDirectories;
+
+		private Bucket(T spec, Compiler<T> delegateCompiler, UnaryOperator<T> copySpec) {
+			this.spec = spec;
+			this.delegateCompiler = delegateCompiler;
+			this.copySpec = copySpec;
+			this.temporaryDirectories = new TemporaryDirectories(spec.getTempDir());
+		}
+
+		public void compile(List<File> sourceFiles) {
+			// Namespace the temporary directory, the units of a bucket compile concurrently (i.e. options.txt)
+			File temporaryDirectory = temporaryDirectories.acquire();
+			try {
+				T unitSpec = copySpec.apply(spec);
+				unitSpec.setSourceFiles(sourceFiles);
+				unitSpec.setRemovedSourceFiles(Collections.emptyList());
+				unitSpec.setTempDir(temporaryDirectory);
+				delegateCompiler.execute(unitSpec);
+			} finally {
+				temporaryDirectories.release(temporaryDirectory);
+			}
+		}
+	}
+
+	// Temporary directories of a bucket, one per concurrently compiling translation unit
+	private static final class TemporaryDirectories {
+		private final File bucketDirectory;
+		private final Queue<File> availableDirectories = new ConcurrentLinkedQueue<>();
+		private final AtomicInteger directoryCount = new AtomicInteger();
+
+		private TemporaryDirectories(File bucketDirectory) {
+			this.bucketDirectory = bucketDirectory;
+		}
+
+		public File acquire() {
+			File result = availableDirectories.poll();
+			if (result == null) {
+				result = new File(bucketDirectory, "unit-" + directoryCount.getAndIncrement());
+			}
+			return result;
+		}
+
+		public void release(File directory) {
+			availableDirectories.add(directory);
+		}
+	}
+
+	private static final class TranslationUnit {
+		private final File sourceFile;
+		private final Bucket<?> bucket;
+
+		private TranslationUnit(File sourceFile, Bucket<?> bucket) {
+			this.sourceFile = sourceFile;
+			this.bucket = bucket;
+		}
+
+		// The compilation unit, i.e. the source file path
+		public String getKey() {
+			return sourceFile.getAbsolutePath();
+		}
+	}
+
+	/**
+	 * Build-scoped registry of the translation unit queues being awaited, keyed by compile task.
+	 * Allow jumping the isolation gap between current thread and worker thread (no-isolated).
+	 */
+	/*private*/ static abstract /*final*/ class Registry implements BuildService<BuildServiceParameters.None> {
+		private final Map<String, TranslationUnitQueue> queues = new ConcurrentHashMap<>();
+
+		@Inject
+		public Registry() {}
+
+		void register(String queueId, TranslationUnitQueue queue) {
+			queues.put(queueId, queue);
+		}
+
+		void unregister(String queueId) {
+			queues.remove(queueId);
+		}
+
+		TranslationUnitQueue queueOf(String queueId) {
+			TranslationUnitQueue result = queues.get(queueId);
+			if (result == null) {
+				throw new IllegalStateException(String.format("No translation unit queue awaited for '%s'.", queueId));
+			}
+			return result;
+		}
+	}
+
+	/*private*/ static abstract /*final*/ class TranslationUnitAction implements WorkAction<TranslationUnitAction.Parameters> {
+		public interface Parameters extends WorkParameters {
+			Property<Registry> getRegistry();
+			Property<String> getQueueId();
+			Property<String> getUnitId();
+		}
+
+		@Inject
+		public TranslationUnitAction() {}
+
+		@Override
+		public void execute() {
+			getParameters().getRegistry().get().queueOf(getParameters().getQueueId().get()).compile(getParameters().getUnitId().get());
+		}
+	}
+}
@@ -0,0 +1,315 @@
+package dev.nokee.companion.features;
+
+import org.gradle.api.file.FileSystemOperations;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+import org.gradle.api.tasks.WorkResult;
+import org.gradle.api.tasks.WorkResults;
+import org.gradle.internal.hash.Hashing;
+import org.gradle.internal.operations.logging.BuildOperationLogger;
+import org.gradle.language.base.internal.compile.Compiler;
+import org.gradle.nativeplatform.toolchain.internal.NativeCompileSpec;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/**
+ * Unity build (aka jumbo build) merging the source files into generated unity translation units.
+ *
+ * <p>The {@link #compiler(Compiler) unity compiler} sits above the per-source buckets.
+ * It extends the source files to recompile with the other members of their previous unity translation units and falls back to individual compilation of the members of failing unity translation units.
+ * The {@link #unitCompiler(Compiler) unit compiler} sits below the per-source buckets.
+ * It merges the bucket's source files into unity translation units so sources with different compile options are never merged together.
+ *
+ * <p>The generated unity translation units, written in {@code <objectFileDir>/unity}, are the record of which source files are compiled as part of which unity translation unit.
+ */
+final class UnityBuild {
+	private static final Logger LOGGER = Logging.getLogger(UnityBuild.class);
+	private static final String UNIT_PREFIX = "unity-";
+	private static final String UNIT_SUFFIX = ".cpp";
+	private static final String INCLUDE_PREFIX = "#include \"";
+	private static final String EXCLUDED_SOURCES_FILE_NAME = "excluded.txt";
+	private final File objectFileDir;
+	private final File unitDirectory;
+	private final int maximumSourceFilesPerUnit;
+	private final Set<File> unsafeSourceFiles;
+	private final TransactionalCompiler.OutputFileDirResolver objectFiles;
+	private final FileSystemOperations fileOperations;
+
+	// Execution state, units are compiled serially from the task thread, failures are reported from the worker threads
+	private final Map<File, List<File>> compiledUnits = new ConcurrentHashMap<>();
+	private final Map<String, File> unitsByDescription = new ConcurrentHashMap<>();
+	private final Set<File> failedUnits = ConcurrentHashMap.newKeySet();
+	private volatile boolean failed = false;
+	private boolean individually = false;
+
+	public UnityBuild(File objectFileDir, int maximumSourceFilesPerUnit, Set<File> unsafeSourceFiles, TransactionalCompiler.OutputFileDirResolver objectFiles, FileSystemOperations fileOperations) {
+		this.objectFileDir = objectFileDir;
+		this.unitDirectory = new File(objectFileDir, "unity");
+		this.maximumSourceFilesPerUnit = Math.max(1, maximumSourceFilesPerUnit);
+		this.unsafeSourceFiles = unsafeSourceFiles;
+		this.objectFiles = objectFiles;
+		this.fileOperations = fileOperations;
+	}
+
+	public <T extends NativeCompileSpec> Compiler<T> compiler(Compiler<T> delegateCompiler) {
+		return new UnityCompiler<>(delegateCompiler);
+	}
+
+	public <T extends NativeCompileSpec> Compiler<T> unitCompiler(Compiler<T> delegateCompiler) {
+		return new UnitCompiler<>(delegateCompiler);
+	}
+
+	private final class UnityCompiler<T extends NativeCompileSpec> implements Compiler<T> {
+		private final Compiler<T> delegateCompiler;
+
+		private UnityCompiler(Compiler<T> delegateCompiler) {
+			this.delegateCompiler = delegateCompiler;
+		}
+
+		@Override
+		public WorkResult execute(T spec) {
+			// Invalidate the previous units of the changed source files, the other members needs to be recompiled
+			Set<File> changedSourceFiles = new HashSet<>(spec.getSourceFiles());
+			changedSourceFiles.addAll(spec.getRemovedSourceFiles());
+			Set<File> sourceFiles = new LinkedHashSet<>(spec.getSourceFiles());
+			List<File> invalidatedUnits = new ArrayList<>();
+			readUnits().forEach((unit, members) -> {
+				if (!Collections.disjoint(members, changedSourceFiles)) {
+					invalidatedUnits.add(unit);
+					members.stream().filter(it -> !spec.getRemovedSourceFiles().contains(it)).forEach(sourceFiles::add);
+				}
+			});
+			spec.setSourceFiles(new ArrayList<>(sourceFiles));
+
+			// Intercept unit failures, the members are compiled individually
+			spec.setOperationLogger(new UnitFailureAwareBuildOperationLogger(spec.getOperationLogger()));
+
+			WorkResult result;
+			try {
+				result = delegateCompiler.execute(spec);
+			} catch (RuntimeException ex) {
+				if (failedUnits.isEmpty()) {
+					throw ex;
+				}
+				result = fallback(spec);
+				if (failed) {
+					throw ex; // other compilation failures
+				}
+			}
+			if (!failedUnits.isEmpty()) {
+				result = result.or(fallback(spec));
+			}
+
+			// Remove the stale object files, only on success, in case of failure the previous units remain
+			invalidatedUnits.stream().filter(it -> !compiledUnits.containsKey(it)).forEach(UnityBuild.this::deleteUnit);
+			compiledUnits.values().forEach(members -> members.forEach(UnityBuild.this::deleteObjectFile));
+			return result;
+		}
+
+		private WorkResult fallback(T spec) {
+			List<File> members = new ArrayList<>();
+			for (File unit : failedUnits) {
+				members.addAll(compiledUnits.remove(unit));
+				unitsByDescription.remove(descriptionOf(unit), unit);
+				deleteUnit(unit);
+			}
+			failedUnits.clear();
+			LOGGER.info("Compiling {} source file(s) individually after unity translation unit failures.", members.size());
+			exclude(members);
+
+			individually = true;
+			spec.setSourceFiles(members);
+			spec.setRemovedSourceFiles(Collections.emptyList());
+			return delegateCompiler.execute(spec);
+		}
+	}
+
+	private final class UnitCompiler<T extends NativeCompileSpec> implements Compiler<T> {
+		private final Compiler<T> delegateCompiler;
+
+		private UnitCompiler(Compiler<T> delegateCompiler) {
+			this.delegateCompiler = delegateCompiler;
+		}
+
+		@Override
+		public WorkResult execute(T spec) {
+			if (individually) {
+				return delegateCompiler.execute(spec);
+			}
+
+			Set<File> excludedSourceFiles = readExcludedSourceFiles();
+			List<File> sourceFiles = new ArrayList<>();
+			List<File> candidates = new ArrayList<>();
+			for (File sourceFile : spec.getSourceFiles()) {
+				if (unsafeSourceFiles.contains(sourceFile) || excludedSourceFiles.contains(sourceFile)) {
+					sourceFiles.add(sourceFile);
+				} else {
+					candidates.add(sourceFile);
+				}
+			}
+
+			// Stable grouping, the same members yields the same unit
+			candidates.sort(Comparator.comparing(File::getAbsolutePath));
+			for (int i = 0; i < candidates.size(); i += maximumSourceFilesPerUnit) {
+				List<File> members = candidates.subList(i, Math.min(i + maximumSourceFilesPerUnit, candidates.size()));
+				if (members.size() == 1) {
+					sourceFiles.addAll(members); // nothing to merge
+				} else {
+					File unit = writeUnit(members);
+					compiledUnits.put(unit, new ArrayList<>(members));
+					unitsByDescription.put(descriptionOf(unit), unit);
+					sourceFiles.add(unit);
+				}
+			}
+			spec.setSourceFiles(sourceFiles);
+
+			try {
+				return delegateCompiler.execute(spec);
+			} catch (RuntimeException ex) {
+				// When compiling serially, let the other buckets compile before falling back
+				if (failed || failedUnits.isEmpty()) {
+					throw ex;
+				}
+				return WorkResults.didWork(true);
+			}
+		}
+	}
+
+	private final class UnitFailureAwareBuildOperationLogger implements BuildOperationLogger, BuildOperationLoggerRef {
+		private final BuildOperationLogger delegate;
+
+		private UnitFailureAwareBuildOperationLogger(BuildOperationLogger delegate) {
+			this.delegate = delegate;
+		}
+
+		@Override
+		public void start() {
+			// already happened...
+		}
+
+		@Override
+		public void operationSuccess(String description, String output) {
+			delegate.operationSuccess(description, output);
+		}
+
+		@Override
+		public void operationFailed(String description, String output) {
+			File unit = unitsByDescription.get(description);
+			if (unit != null && compiledUnits.containsKey(unit)) {
+				LOGGER.info("Unity translation unit '{}' failed to compile:{}{}", unit, System.lineSeparator(), output);
+				failedUnits.add(unit);
+				return;
+			}
+			failed = true;
+			delegate.operationFailed(description, output);
+		}
+
+		@Override
+		public void done() {
+			delegate.done();
+		}
+
+		@Override
+		public String getLogLocation() {
+			return delegate.getLogLocation();
+		}
+
+		@Override
+		public String id() {
+			return toString();
+		}
+	}
+
+	//region Unity translation units
+	private File writeUnit(List<File> members) {
+		List<String> lines = new ArrayList<>();
+		lines.add("// Generated unity translation unit, do not edit.");
+		for (File member : members) {
+			lines.add(INCLUDE_PREFIX + member.getAbsolutePath().replace('\\', '/') + "\"");
+		}
+
+		File unit = new File(unitDirectory, UNIT_PREFIX + Hashing.hashString(String.join("\n", lines)) + UNIT_SUFFIX);
+		try {
+			Files.createDirectories(unitDirectory.toPath());
+			Files.write(unit.toPath(), lines, StandardCharsets.UTF_8);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return unit;
+	}
+
+	// The logger only receives the invocation description, see NativeCompiler#createPerFileInvocation
+	private static String descriptionOf(File unit) {
+		return "compiling " + unit.getName();
+	}
+
+	private Map<File, List<File>> readUnits() {
+		Map<File, List<File>> result = new LinkedHashMap<>();
+		File[] units = unitDirectory.listFiles((dir, name) -> name.startsWith(UNIT_PREFIX) && name.endsWith(UNIT_SUFFIX));
+		if (units != null) {
+			for (File unit : units) {
+				try {
+					result.put(unit, Files.readAllLines(unit.toPath(), StandardCharsets.UTF_8).stream()
+						.filter(it -> it.startsWith(INCLUDE_PREFIX) && it.endsWith("\""))
+						.map(it -> new File(it.substring(INCLUDE_PREFIX.length(), it.length() - 1)))
+						.collect(Collectors.toList()));
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}
+		}
+		return result;
+	}
+
+	private void deleteUnit(File unit) {
+		deleteObjectFile(unit);
+		fileOperations.delete(spec -> spec.delete(unit));
+	}
+
+	private void deleteObjectFile(File sourceFile) {
+		// The object file directory is specific to the source file (i.e. also holds the dependency file)
+		File objectFile = objectFiles.outputFileDir(sourceFile, objectFileDir);
+		fileOperations.delete(spec -> spec.delete(objectFile.getParentFile()));
+	}
+	//endregion
+
+	//region Excluded source files
+	// Source files failing as part of a unity translation unit, compiled individually until the next full rebuild
+	private Set<File> readExcludedSourceFiles() {
+		File excludedSources = new File(unitDirectory, EXCLUDED_SOURCES_FILE_NAME);
+		if (!excludedSources.exists()) {
+			return Collections.emptySet();
+		}
+		try {
+			return Files.readAllLines(excludedSources.toPath(), StandardCharsets.UTF_8).stream().map(File::new).collect(Collectors.toSet());
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private void exclude(List<File> sourceFiles) {
+		try {
+			Files.createDirectories(unitDirectory.toPath());
+			Files.write(new File(unitDirectory, EXCLUDED_SOURCES_FILE_NAME).toPath(), sourceFiles.stream().map(File::getAbsolutePath).collect(Collectors.toList()), StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+	//endregion
+}
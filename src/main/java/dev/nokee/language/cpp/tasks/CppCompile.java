@@ -3,14 +3,18 @@ package dev.nokee.language.cpp.tasks;
 import dev.nokee.language.nativebase.tasks.options.NativeCompileOptions;
 import dev.nokee.language.nativebase.tasks.options.PreprocessorOptions;
 import org.gradle.api.Action;
+import org.gradle.api.file.ConfigurableFileCollection;
 import org.gradle.api.provider.ListProperty;
 import org.gradle.api.provider.Property;
 import org.gradle.api.provider.Provider;
 import org.gradle.api.specs.Spec;
 import org.gradle.api.tasks.Input;
+import org.gradle.api.tasks.InputFiles;
 import org.gradle.api.tasks.Internal;
 import org.gradle.api.tasks.Nested;
 import org.gradle.api.tasks.Optional;
+import org.gradle.api.tasks.PathSensitive;
+import org.gradle.api.tasks.PathSensitivity;
 
 import java.io.File;
 import java.util.*;
@@ -92,6 +96,18 @@ public abstract class CppCompile extends org.gradle.language.cpp.tasks.CppCompil
 		@Optional
 		Property<Boolean> getIncrementalAfterFailure();
 
+		/**
+		 * {@return the unity build options for all compilation units}
+		 */
+		@Nested
+		UnityBuildOptions getUnityBuild();
+
+		/**
+		 * {@return the property to configure the order in which the compilation units are compiled, source order by default}
+		 */
+		@Internal
+		Property<SchedulingPolicy> getSchedulingPolicy();
+
 		/**
 		 * Returns the compile options for the specified C++ compilation unit.
 		 *
@@ -101,6 +117,59 @@ public abstract class CppCompile extends org.gradle.language.cpp.tasks.CppCompil
 		Provider<NativeCompileOptions> forSource(File sourceFile);
 	}
 
+	/**
+	 * Unity build options for C++ compilation.
+	 * When enabled, the source files are merged into generated unity translation units compiled in place of the individual source files.
+	 * Source files with different per-source compile options are never merged together.
+	 */
+	public interface UnityBuildOptions {
+		/**
+		 * {@return the property to enable the unity build, disabled by default}
+		 */
+		@Input
+		@Optional
+		Property<Boolean> getEnabled();
+
+		/**
+		 * {@return the property to configure the maximum number of source files per unity translation unit}
+		 */
+		@Input
+		@Optional
+		Property<Integer> getMaximumSourceFilesPerUnit();
+
+		/**
+		 * Source files to always compile individually, i.e. unity-unsafe source files.
+		 * Source files failing to compile as part of a unity translation unit are also compiled individually.
+		 *
+		 * @return the unity-unsafe source files
+		 */
+		@InputFiles
+		@PathSensitive(PathSensitivity.RELATIVE)
+		ConfigurableFileCollection getUnsafeSourceFiles();
+	}
+
+	/**
+	 * Order in which the compilation units are compiled.
+	 * The history-driven policies use the compile durations and outcomes of the previous executions.
+	 */
+	public enum SchedulingPolicy {
+		/**
+		 * Compiles the compilation units in source order.
+		 */
+		SOURCE_ORDER,
+
+		/**
+		 * Compiles the longest compilation units first so they don't dominate the tail of the compilation.
+		 * Compilation units without history are considered the longest.
+		 */
+		LONGEST_FIRST,
+
+		/**
+		 * Compiles the previously failed compilation units first for fast feedback, then the longest first.
+		 */
+		FAILED_FIRST
+	}
+
 	//region Legacy Properties
 	/**
 	 * {@inheritDoc}
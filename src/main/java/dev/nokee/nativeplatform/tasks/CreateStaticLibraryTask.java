@@ -0,0 +1,231 @@
+package dev.nokee.nativeplatform.tasks;
+
+import org.gradle.internal.os.OperatingSystem;
+import org.gradle.nativeplatform.platform.internal.NativePlatformInternal;
+import org.gradle.nativeplatform.toolchain.GccCompatibleToolChain;
+import org.gradle.nativeplatform.toolchain.NativeToolChain;
+import org.gradle.nativeplatform.toolchain.internal.tools.CommandLineToolSearchResult;
+import org.gradle.nativeplatform.toolchain.internal.NativeToolChainInternal;
+import org.gradle.nativeplatform.toolchain.internal.ToolType;
+import org.gradle.process.ExecOperations;
+
+import javax.annotation.Nullable;
+import javax.inject.Inject;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/*private*/ abstract /*final*/ class CreateStaticLibraryTask extends org.gradle.nativeplatform.tasks.CreateStaticLibrary implements StaticLibraryArchiveAware {
+	private static final String STATE_FILE_NAME = "archive-state.txt";
+
+	@Inject
+	public CreateStaticLibraryTask() {
+		getIncrementalArchive().convention(false);
+		getThinArchive().convention(false);
+		getDeterministicArchive().convention(false);
+	}
+
+	@Inject
+	protected abstract ExecOperations getExecOperations();
+
+	@Override
+	protected void link() {
+		File archiver = archiver();
+		if (archiver == null) {
+			super.link();
+			return;
+		}
+
+		// Apple's ar doesn't support thin archives nor the deterministic modifier (uses ZERO_AR_DATE instead)
+		boolean appleArchiver = OperatingSystem.current().isMacOsX();
+		boolean thin = getThinArchive().get() && !appleArchiver;
+		boolean deterministic = getDeterministicArchive().get();
+		String modifiers = (thin ? "T" : "") + (deterministic && !appleArchiver ? "D" : "");
+
+		File archiveFile = getOutputFile().get().getAsFile();
+		List<File> objectFiles = new ArrayList<>(getSource().getFiles());
+		File stateFile = new File(getTemporaryDir(), STATE_FILE_NAME);
+		ArchiveState previousState = ArchiveState.load(stateFile);
+		ArchiveState currentState = new ArchiveState(modifiers + " " + String.join(" ", getStaticLibArgs().get()), objectFiles);
+		delete(stateFile); // any failure results in a full rebuild
+
+		// Thin archives only hold the member paths, recreating them is as cheap as updating them
+		if (getIncrementalArchive().get() && !thin && previousState != null && previousState.canUpdate(currentState, archiveFile)) {
+			setDidWork(updateArchive(archiver, archiveFile, modifiers, deterministic, previousState, currentState));
+		} else {
+			createArchive(archiver, archiveFile, modifiers, deterministic, objectFiles);
+			setDidWork(true);
+		}
+
+		currentState.save(stateFile, archiveFile);
+	}
+
+	// Only ar-compatible archivers (i.e. GCC and Clang), lib.exe uses the default archiving
+	@Nullable
+	private File archiver() {
+		if (!getIncrementalArchive().get() && !getThinArchive().get() && !getDeterministicArchive().get()) {
+			return null;
+		}
+
+		NativeToolChain toolChain = getToolChain().get();
+		if (!(toolChain instanceof GccCompatibleToolChain) || !(toolChain instanceof NativeToolChainInternal)) {
+			return null;
+		}
+		CommandLineToolSearchResult result = ((NativeToolChainInternal) toolChain).select((NativePlatformInternal) getTargetPlatform().get()).locateTool(ToolType.STATIC_LIB_ARCHIVER);
+		return result.isAvailable() ? result.getTool() : null;
+	}
+
+	private void createArchive(File archiver, File archiveFile, String modifiers, boolean deterministic, List<File> objectFiles) {
+		delete(archiveFile); // same as the default archiving, never append to a stale archive
+		try {
+			Files.createDirectories(archiveFile.getParentFile().toPath());
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+
+		List<String> args = new ArrayList<>();
+		args.add("-rcs" + modifiers);
+		args.addAll(getStaticLibArgs().get());
+		args.add(archiveFile.getAbsolutePath());
+		objectFiles.forEach(it -> args.add(it.getAbsolutePath()));
+		exec(archiver, args, deterministic);
+	}
+
+	private boolean updateArchive(File archiver, File archiveFile, String modifiers, boolean deterministic, ArchiveState previousState, ArchiveState currentState) {
+		// The members are named after the object file name
+		Set<String> memberNames = new HashSet<>();
+		currentState.objectFiles.keySet().forEach(it -> memberNames.add(new File(it).getName()));
+
+		List<String> removedMembers = new ArrayList<>();
+		previousState.objectFiles.keySet().forEach(path -> {
+			String memberName = new File(path).getName();
+			if (!currentState.objectFiles.containsKey(path) && !memberNames.contains(memberName)) {
+				removedMembers.add(memberName);
+			}
+		});
+
+		List<String> changedObjectFiles = new ArrayList<>();
+		currentState.objectFiles.forEach((path, fingerprint) -> {
+			if (!fingerprint.equals(previousState.objectFiles.get(path))) {
+				changedObjectFiles.add(path);
+			}
+		});
+
+		if (!removedMembers.isEmpty()) {
+			List<String> args = new ArrayList<>();
+			args.add("-ds" + modifiers);
+			args.add(archiveFile.getAbsolutePath());
+			args.addAll(removedMembers);
+			exec(archiver, args, deterministic);
+		}
+
+		if (!changedObjectFiles.isEmpty()) {
+			List<String> args = new ArrayList<>();
+			args.add("-rcs" + modifiers);
+			args.addAll(getStaticLibArgs().get());
+			args.add(archiveFile.getAbsolutePath());
+			args.addAll(changedObjectFiles);
+			exec(archiver, args, deterministic);
+		}
+
+		getLogger().info("Replaced {} and deleted {} member(s) of archive '{}'.", changedObjectFiles.size(), removedMembers.size(), archiveFile);
+		return !removedMembers.isEmpty() || !changedObjectFiles.isEmpty();
+	}
+
+	private void exec(File archiver, List<String> args, boolean deterministic) {
+		getExecOperations().exec(spec -> {
+			spec.executable(archiver);
+			spec.args(args);
+			if (deterministic) {
+				spec.environment("ZERO_AR_DATE", "1");
+			}
+		});
+	}
+
+	private static void delete(File file) {
+		try {
+			Files.deleteIfExists(file.toPath());
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	// Members of the last created/updated archive, fingerprinted by size and last modified time like make
+	private static final class ArchiveState {
+		private final String configuration;
+		private final Map<String, String> objectFiles;
+		private long archiveLength = -1;
+		private long archiveLastModified = -1;
+
+		private ArchiveState(String configuration, Map<String, String> objectFiles) {
+			this.configuration = configuration;
+			this.objectFiles = objectFiles;
+		}
+
+		public ArchiveState(String configuration, Collection<File> objectFiles) {
+			this(configuration, new LinkedHashMap<>());
+			for (File objectFile : objectFiles) {
+				this.objectFiles.put(objectFile.getAbsolutePath(), objectFile.length() + ":" + objectFile.lastModified());
+			}
+		}
+
+		// The archive must be untouched since the last execution and the members uniquely named (ar replaces by name)
+		public boolean canUpdate(ArchiveState currentState, File archiveFile) {
+			return configuration.equals(currentState.configuration)
+				&& archiveFile.length() == archiveLength && archiveFile.lastModified() == archiveLastModified
+				&& hasUniqueMemberNames(objectFiles.keySet()) && hasUniqueMemberNames(currentState.objectFiles.keySet());
+		}
+
+		private static boolean hasUniqueMemberNames(Collection<String> paths) {
+			Set<String> memberNames = new HashSet<>();
+			for (String path : paths) {
+				if (!memberNames.add(new File(path).getName())) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		@Nullable
+		public static ArchiveState load(File stateFile) {
+			try {
+				if (!stateFile.exists()) {
+					return null;
+				}
+				List<String> lines = Files.readAllLines(stateFile.toPath(), StandardCharsets.UTF_8);
+				ArchiveState result = new ArchiveState(lines.get(0), new LinkedHashMap<>());
+				String[] archive = lines.get(1).split("\t");
+				result.archiveLength = Long.parseLong(archive[0]);
+				result.archiveLastModified = Long.parseLong(archive[1]);
+				for (String line : lines.subList(2, lines.size())) {
+					String[] member = line.split("\t", 2);
+					result.objectFiles.put(member[1], member[0]);
+				}
+				return result;
+			} catch (IOException | RuntimeException e) {
+				return null; // corrupted, full rebuild
+			}
+		}
+
+		public void save(File stateFile, File archiveFile) {
+			List<String> lines = new ArrayList<>();
+			lines.add(configuration);
+			lines.add(archiveFile.length() + "\t" + archiveFile.lastModified());
+			objectFiles.forEach((path, fingerprint) -> lines.add(fingerprint + "\t" + path));
+			try {
+				Files.write(stateFile.toPath(), lines, StandardCharsets.UTF_8);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+}
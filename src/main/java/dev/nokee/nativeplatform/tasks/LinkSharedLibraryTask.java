@@ -8,9 +8,10 @@ import org.gradle.nativeplatform.internal.LinkerSpec;
 import org.gradle.process.CommandLineArgumentProvider;
 
 import javax.inject.Inject;
+import java.io.File;
 import java.util.Collections;
 
-/*private*/ abstract /*final*/ class LinkSharedLibraryTask extends org.gradle.nativeplatform.tasks.LinkSharedLibrary implements LinkAbiAware, LinkTask {
+/*private*/ abstract /*final*/ class LinkSharedLibraryTask extends org.gradle.nativeplatform.tasks.LinkSharedLibrary implements LinkAbiAware, LinkTask, MemoryBudgetAware {
 	@Inject
 	public LinkSharedLibraryTask() {
 		linkSuperClassLibsField();
@@ -57,7 +58,12 @@ import java.util.Collections;
 
 	@Override
 	protected void link() {
-		super.link();
+		MemoryBudget memoryBudget = getMemoryBudgetService().getOrNull();
+		if (memoryBudget == null) {
+			super.link();
+		} else {
+			memoryBudget.run(getLinkedFile().get().getAsFile().getAbsolutePath(), new File(getTemporaryDir(), "link-memory.txt"), super::link);
+		}
 		getLinkAbi().close();
 	}
 }
@@ -0,0 +1,306 @@
+package dev.nokee.nativeplatform.tasks;
+
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+import org.gradle.api.provider.Property;
+import org.gradle.api.services.BuildService;
+import org.gradle.api.services.BuildServiceParameters;
+
+import javax.inject.Inject;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Build-scoped memory budget admitting the compiler and linker processes so their estimated memory never exceeds the ceiling.
+ * The first process is always admitted, even if its estimate exceeds the ceiling.
+ *
+ * <p>The estimate of a process is its peak resident set size from previous executions, when known, otherwise the average peak measured during this build or the default cost.
+ * While running, the budget measures the peak resident set size of the largest process of each admitted process tree (Linux only, via {@code /proc}).
+ * A process exceeding its estimate reserves its measured peak instead, throttling the following admissions.
+ */
+// This class is considered private for the moment
+public abstract /*final*/ class MemoryBudget implements BuildService<MemoryBudget.Parameters>, AutoCloseable {
+	private static final Logger LOGGER = Logging.getLogger(MemoryBudget.class);
+	private static final long SAMPLING_INTERVAL_MILLIS = 200;
+	private static final File PROC_DIRECTORY = new File("/proc");
+	private final Set<DefaultLease> leases = ConcurrentHashMap.newKeySet();
+	private final AtomicLong admissionCount = new AtomicLong();
+	private final AtomicLong throttledCount = new AtomicLong();
+	private final AtomicLong throttledMillis = new AtomicLong();
+	private long measuredPeakSum = 0;
+	private long measuredCount = 0;
+	private long maxReservedBytes = 0;
+	private Thread sampler;
+
+	public interface Parameters extends BuildServiceParameters {
+		Property<Long> getMaxMemoryInBytes();
+
+		// Estimate of processes never measured
+		Property<Long> getDefaultCostInBytes();
+	}
+
+	/**
+	 * An admitted process, close once the process completed to release its reservation.
+	 */
+	public interface Lease extends AutoCloseable {
+		/**
+		 * {@return the measured peak resident set size in bytes or 0 if unknown}
+		 */
+		long getPeakBytes();
+
+		@Override
+		void close();
+	}
+
+	@Inject
+	public MemoryBudget() {}
+
+	/**
+	 * Blocks until the estimated memory of the process fits the budget.
+	 *
+	 * @param marker  an argument identifying the process command line, i.e. the source file or the linked file
+	 * @param estimatedBytes  the estimated peak resident set size of the process or 0 if unknown
+	 * @return the lease of the process, never null
+	 */
+	public Lease admit(String marker, long estimatedBytes) {
+		long startTime = System.currentTimeMillis();
+		boolean throttled = false;
+		DefaultLease result;
+		synchronized (this) {
+			long cost = estimatedBytes > 0 ? estimatedBytes : defaultCost();
+			long maxMemory = getParameters().getMaxMemoryInBytes().get();
+			while (!leases.isEmpty() && reservedBytes() + cost > maxMemory) {
+				throttled = true;
+				try {
+					wait(SAMPLING_INTERVAL_MILLIS); // the reservations may grow or shrink while sampling
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+
+			result = new DefaultLease(marker, cost);
+			leases.add(result);
+			maxReservedBytes = Math.max(maxReservedBytes, reservedBytes());
+			startSampler();
+		}
+
+		admissionCount.incrementAndGet();
+		if (throttled) {
+			throttledCount.incrementAndGet();
+			throttledMillis.addAndGet(System.currentTimeMillis() - startTime);
+		}
+		return result;
+	}
+
+	/**
+	 * Runs the action once admitted.
+	 * The measured peak is persisted in the estimate file for the next executions.
+	 *
+	 * @param marker  an argument identifying the process command line, i.e. the linked file
+	 * @param estimateFile  the file holding the peak of the previous execution
+	 * @param action  the action spawning the process
+	 */
+	public void run(String marker, File estimateFile, Runnable action) {
+		long estimatedBytes = 0;
+		try {
+			if (estimateFile.exists()) {
+				estimatedBytes = Long.parseLong(new String(Files.readAllBytes(estimateFile.toPath()), StandardCharsets.UTF_8).trim());
+			}
+		} catch (IOException | NumberFormatException e) {
+			LOGGER.debug("Could not read memory estimate '" + estimateFile + "'.", e);
+		}
+
+		long peakBytes;
+		try (Lease lease = admit(marker, estimatedBytes)) {
+			action.run();
+			peakBytes = lease.getPeakBytes();
+		}
+
+		if (peakBytes > 0) {
+			try {
+				Files.write(estimateFile.toPath(), String.valueOf(peakBytes).getBytes(StandardCharsets.UTF_8));
+			} catch (IOException e) {
+				// the estimate is only an optimization
+				LOGGER.debug("Could not write memory estimate '" + estimateFile + "'.", e);
+			}
+		}
+	}
+
+	// Average of the measured peaks, the processes of a build are often alike
+	private long defaultCost() {
+		return measuredCount > 0 ? measuredPeakSum / measuredCount : getParameters().getDefaultCostInBytes().get();
+	}
+
+	private long reservedBytes() {
+		long result = 0;
+		for (DefaultLease lease : leases) {
+			result += Math.max(lease.estimatedBytes, lease.peakBytes);
+		}
+		return result;
+	}
+
+	private synchronized void release(DefaultLease lease) {
+		if (leases.remove(lease)) {
+			if (lease.peakBytes > 0) {
+				measuredPeakSum += lease.peakBytes;
+				measuredCount++;
+			}
+			notifyAll();
+		}
+	}
+
+	private final class DefaultLease implements Lease {
+		private final String marker;
+		private final long estimatedBytes;
+		private final Map<String, Long> peakBytesByPid = new HashMap<>();
+		private volatile long peakBytes = 0;
+
+		private DefaultLease(String marker, long estimatedBytes) {
+			this.marker = marker;
+			this.estimatedBytes = estimatedBytes;
+		}
+
+		@Override
+		public long getPeakBytes() {
+			return peakBytes;
+		}
+
+		@Override
+		public void close() {
+			release(this);
+		}
+	}
+
+	//region Sampling
+	private void startSampler() {
+		if (sampler == null && PROC_DIRECTORY.isDirectory()) {
+			sampler = new Thread(this::sample, "memory budget sampler");
+			sampler.setDaemon(true);
+			sampler.start();
+		}
+	}
+
+	private void sample() {
+		String currentPid;
+		try {
+			currentPid = new File(PROC_DIRECTORY, "self").getCanonicalFile().getName();
+		} catch (IOException e) {
+			LOGGER.info("Could not resolve the current process, the memory of the processes will not be measured.", e);
+			return;
+		}
+
+		while (!Thread.currentThread().isInterrupted()) {
+			if (!leases.isEmpty()) {
+				try {
+					sampleOnce(currentPid);
+				} catch (RuntimeException e) {
+					LOGGER.debug("Could not measure the memory of the processes.", e);
+				}
+				synchronized (this) {
+					notifyAll();
+				}
+			}
+
+			try {
+				Thread.sleep(SAMPLING_INTERVAL_MILLIS);
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+	private void sampleOnce(String currentPid) {
+		// Snapshot of the process tree
+		Map<String, List<String>> childrenByPid = new HashMap<>();
+		File[] processes = PROC_DIRECTORY.listFiles((dir, name) -> !name.isEmpty() && Character.isDigit(name.charAt(0)));
+		if (processes == null) {
+			return;
+		}
+		for (File process : processes) {
+			String parentPid = parentPidOf(process);
+			if (parentPid != null) {
+				childrenByPid.computeIfAbsent(parentPid, it -> new ArrayList<>()).add(process.getName());
+			}
+		}
+
+		// The compiler and linker processes are children of the current process
+		for (String pid : childrenByPid.getOrDefault(currentPid, new ArrayList<>())) {
+			String commandLine = commandLineOf(pid);
+			for (DefaultLease lease : leases) {
+				if (commandLine.contains(lease.marker)) {
+					measure(lease, pid, childrenByPid);
+					break;
+				}
+			}
+		}
+	}
+
+	// Peak of the largest process, i.e. the compiler driver spawns the actual compiler
+	private void measure(DefaultLease lease, String pid, Map<String, List<String>> childrenByPid) {
+		synchronized (lease.peakBytesByPid) {
+			long peakBytes = highWaterMarkOf(pid);
+			if (peakBytes > 0) {
+				lease.peakBytesByPid.merge(pid, peakBytes, Math::max);
+			}
+			lease.peakBytes = lease.peakBytesByPid.values().stream().mapToLong(Long::longValue).max().orElse(0);
+		}
+		for (String childPid : childrenByPid.getOrDefault(pid, new ArrayList<>())) {
+			measure(lease, childPid, childrenByPid);
+		}
+	}
+
+	private static String parentPidOf(File process) {
+		try {
+			// The process name, in parentheses, may contain spaces, the parent pid is the second field after it
+			String stat = new String(Files.readAllBytes(new File(process, "stat").toPath()), StandardCharsets.UTF_8);
+			String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+			return fields[1];
+		} catch (IOException | RuntimeException e) {
+			return null; // process exited
+		}
+	}
+
+	private static String commandLineOf(String pid) {
+		try {
+			return new String(Files.readAllBytes(new File(new File(PROC_DIRECTORY, pid), "cmdline").toPath()), StandardCharsets.UTF_8).replace('\0', ' ');
+		} catch (IOException e) {
+			return ""; // process exited
+		}
+	}
+
+	private static long highWaterMarkOf(String pid) {
+		try {
+			for (String line : Files.readAllLines(new File(new File(PROC_DIRECTORY, pid), "status").toPath(), StandardCharsets.UTF_8)) {
+				if (line.startsWith("VmHWM:")) {
+					return Long.parseLong(line.substring("VmHWM:".length()).replace("kB", "").trim()) * 1024L;
+				}
+			}
+		} catch (IOException | RuntimeException e) {
+			// process exited
+		}
+		return 0;
+	}
+	//endregion
+
+	@Override
+	public synchronized void close() {
+		if (sampler != null) {
+			sampler.interrupt();
+			sampler = null;
+		}
+		long admissions = admissionCount.get();
+		if (admissions > 0) {
+			LOGGER.info(String.format("Memory budget: %d admissions, %d throttled (%d ms waiting), %d MB peak reservation of %d MB.", admissions, throttledCount.get(), throttledMillis.get(), maxReservedBytes / (1024 * 1024), getParameters().getMaxMemoryInBytes().get() / (1024 * 1024)));
+		}
+	}
+}
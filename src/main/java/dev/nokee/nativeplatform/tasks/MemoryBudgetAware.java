@@ -0,0 +1,14 @@
+package dev.nokee.nativeplatform.tasks;
+
+import org.gradle.api.Task;
+import org.gradle.api.provider.Property;
+import org.gradle.api.tasks.Internal;
+
+// This class is considered private for the moment
+public interface MemoryBudgetAware extends Task {
+	/**
+	 * {@return the memory budget admitting the task's processes, absent for no admission control}
+	 */
+	@Internal
+	Property<MemoryBudget> getMemoryBudgetService();
+}
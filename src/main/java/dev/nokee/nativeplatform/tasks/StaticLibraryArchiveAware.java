@@ -0,0 +1,26 @@
+package dev.nokee.nativeplatform.tasks;
+
+import org.gradle.api.Task;
+import org.gradle.api.provider.Property;
+import org.gradle.api.tasks.Input;
+
+// This class is considered private for the moment
+public interface StaticLibraryArchiveAware extends Task {
+	/**
+	 * {@return a property to replace only the changed members of an existing archive}
+	 */
+	@Input
+	Property<Boolean> getIncrementalArchive();
+
+	/**
+	 * {@return a property to reference the object files in place instead of copying them into the archive}
+	 */
+	@Input
+	Property<Boolean> getThinArchive();
+
+	/**
+	 * {@return a property to zero the timestamps, owners and modes of the archive members}
+	 */
+	@Input
+	Property<Boolean> getDeterministicArchive();
+}
@@ -0,0 +1,296 @@
+package dev.nokee.companion.features;
+
+import org.gradle.internal.hash.HashCode;
+import org.gradle.internal.hash.Hashing;
+import org.gradle.language.nativeplatform.internal.incremental.BuildableCompilationState;
+import org.gradle.language.nativeplatform.internal.incremental.CompilationState;
+import org.gradle.language.nativeplatform.internal.incremental.IncludeFileEdge;
+import org.gradle.language.nativeplatform.internal.incremental.SourceFileState;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+class CompilationStateStoreIntegrationTests {
+	@TempDir Path testDirectory;
+	File stateFile;
+	File sourceA;
+	File sourceB;
+
+	@BeforeEach
+	void setup() {
+		stateFile = testDirectory.resolve("state/compile.bin").toFile();
+		sourceA = testDirectory.resolve("src/a.cpp").toFile();
+		sourceB = testDirectory.resolve("src/b.cpp").toFile();
+	}
+
+	@Test
+	void loadsEmptyStateWhenFileIsMissing() {
+		assertThat(new CompilationStateStore(stateFile).load().getFileStates().entrySet(), empty());
+	}
+
+	@Test
+	void roundTripsSourceFileStates() {
+		CompilationState state = stateOf(sourceA, newState("a", edge("a.h", "a"), edge("common.h", null)), sourceB, newState("b", true, edge("common.h", null)));
+		new CompilationStateStore(stateFile).save(state);
+
+		CompilationState result = new CompilationStateStore(stateFile).load();
+		assertThat(result.getFileStates().keySet(), containsInAnyOrder(sourceA.getAbsoluteFile(), sourceB.getAbsoluteFile()));
+		assertSameState(result.getState(sourceA), state.getState(sourceA));
+		assertSameState(result.getState(sourceB), state.getState(sourceB));
+	}
+
+	@Test
+	void roundTripsChangesAppendedToTheLog() {
+		CompilationStateStore store = new CompilationStateStore(stateFile);
+		store.save(stateOf(sourceA, newState("a"), sourceB, newState("b")));
+		long initialLength = stateFile.length();
+
+		store.save(stateOf(sourceA, newState("a-changed", edge("a.h", "a-changed")), sourceB, newState("b")));
+		assertThat("appends the delta", stateFile.length(), greaterThan(initialLength));
+
+		CompilationState result = new CompilationStateStore(stateFile).load();
+		assertThat(result.getState(sourceA).getHash(), equalTo(hashOf("a-changed")));
+		assertThat(edgesOf(result.getState(sourceA)), contains(edge("a.h", "a-changed")));
+		assertThat(result.getState(sourceB).getHash(), equalTo(hashOf("b")));
+	}
+
+	@Test
+	void ignoresPartiallyWrittenDelta() throws IOException {
+		CompilationStateStore store = new CompilationStateStore(stateFile);
+		store.save(stateOf(sourceA, newState("a"), sourceB, newState("b")));
+		long committedLength = stateFile.length();
+		store.save(stateOf(sourceA, newState("a-changed"), sourceB, newState("b-changed")));
+
+		// i.e. the daemon was killed while appending the delta
+		try (RandomAccessFile file = new RandomAccessFile(stateFile, "rw")) {
+			file.setLength(file.length() - 1);
+		}
+
+		CompilationState result = new CompilationStateStore(stateFile).load();
+		assertThat(result.getState(sourceA).getHash(), equalTo(hashOf("a")));
+		assertThat(result.getState(sourceB).getHash(), equalTo(hashOf("b")));
+
+		// the next save overwrites the partial delta
+		CompilationStateStore newStore = new CompilationStateStore(stateFile);
+		newStore.save(stateOf(sourceA, newState("a"), sourceB, newState("b-changed")));
+		assertThat(new CompilationStateStore(stateFile).load().getState(sourceB).getHash(), equalTo(hashOf("b-changed")));
+		assertThat(stateFile.length(), greaterThan(committedLength));
+	}
+
+	@Test
+	void ignoresTornRecordAfterLastCommit() throws IOException {
+		new CompilationStateStore(stateFile).save(stateOf(sourceA, newState("a")));
+		Files.write(stateFile.toPath(), new byte[] {4 /*SOURCE*/, 0, 0}, StandardOpenOption.APPEND);
+
+		CompilationState result = new CompilationStateStore(stateFile).load();
+		assertThat(result.getFileStates().keySet(), contains(sourceA.getAbsoluteFile()));
+		assertThat(result.getState(sourceA).getHash(), equalTo(hashOf("a")));
+	}
+
+	@Test
+	void discardsStateOfOtherFormatVersion() throws IOException {
+		Files.createDirectories(stateFile.getParentFile().toPath());
+		try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(stateFile.toPath()))) {
+			out.writeInt(0x4e4b4353); // NKCS
+			out.writeInt(1);
+			out.writeByte(6); // COMMIT
+		}
+
+		CompilationStateStore store = new CompilationStateStore(stateFile);
+		assertThat(store.load().getFileStates().entrySet(), empty());
+
+		store.save(stateOf(sourceA, newState("a")));
+		assertThat(new CompilationStateStore(stateFile).load().getState(sourceA).getHash(), equalTo(hashOf("a")));
+	}
+
+	@Test
+	void discardsStateOfOtherFileFormat() throws IOException {
+		Files.createDirectories(stateFile.getParentFile().toPath());
+		Files.write(stateFile.toPath(), Arrays.asList("not a compilation state"));
+
+		assertThat(new CompilationStateStore(stateFile).load().getFileStates().entrySet(), empty());
+	}
+
+	@Test
+	void removesSourceFileStates() {
+		CompilationStateStore store = new CompilationStateStore(stateFile);
+		store.save(stateOf(sourceA, newState("a"), sourceB, newState("b")));
+		store.save(stateOf(sourceA, newState("a")));
+
+		assertThat(new CompilationStateStore(stateFile).load().getFileStates().keySet(), contains(sourceA.getAbsoluteFile()));
+	}
+
+	@Test
+	void rewritesLogWhenSupersededRecordsOutnumberLiveOnes() {
+		CompilationStateStore store = new CompilationStateStore(stateFile);
+		store.save(stateOf(sourceA, newState("a"), sourceB, newState("b")));
+		store.save(stateOf(sourceA, newState("a")));
+		long lengthWithRemoval = stateFile.length();
+
+		// the removal supersedes two records for a single live one
+		new CompilationStateStore(stateFile).save(stateOf(sourceA, newState("a")));
+		assertThat(stateFile.length(), lessThan(lengthWithRemoval));
+		assertThat(new CompilationStateStore(stateFile).load().getFileStates().keySet(), contains(sourceA.getAbsoluteFile()));
+	}
+
+	@Test
+	void keepsLogBoundedOnRepeatedChanges() {
+		CompilationStateStore store = new CompilationStateStore(stateFile);
+		long largestLength = 0;
+		for (int i = 0; i < 10; ++i) {
+			store.save(stateOf(sourceA, newState("a" + i, edge("a.h", "a" + i))));
+			largestLength = Math.max(largestLength, stateFile.length());
+		}
+
+		assertThat(stateFile.length(), lessThan(largestLength));
+		assertThat(new CompilationStateStore(stateFile).load().getState(sourceA).getHash(), equalTo(hashOf("a9")));
+	}
+
+	@Test
+	void roundTripsCompilerReportedDependencies() {
+		Map<File, HashCode> headers = new LinkedHashMap<>();
+		headers.put(testDirectory.resolve("include/a.h").toFile().getAbsoluteFile(), hashOf("a.h"));
+		headers.put(testDirectory.resolve("include/common.h").toFile().getAbsoluteFile(), hashOf("common.h"));
+
+		CompilationStateStore store = new CompilationStateStore(stateFile);
+		store.dependencies(sourceA.getAbsoluteFile(), headers);
+		store.save(stateOf(sourceA, newState("a"), sourceB, newState("b")));
+
+		CompilationStateStore result = new CompilationStateStore(stateFile);
+		assertThat(result.dependenciesOf(sourceA.getAbsoluteFile()), equalTo(headers));
+		assertThat(result.dependenciesOf(sourceB.getAbsoluteFile()), nullValue());
+	}
+
+	@Test
+	void previousResolutionsAreKnownWhenNoIncludeRootChanged() {
+		Map<File, HashCode> directoryHashes = fingerprint();
+
+		CompilationStateStore.UnchangedDirectories result = new CompilationStateStore(stateFile).unchangedDirectories(includeRoots(), directoryHashes::get);
+		assertThat(result.all(), is(true));
+		assertThat(result.previousHeaders(), containsInAnyOrder(file("include1/a.h"), file("include2/b.h")));
+		assertThat(result.previousResolution(sourceA, "a.h"), equalTo(file("include1/a.h")));
+		assertThat(result.previousResolution(null, "b.h"), equalTo(file("include2/b.h")));
+		assertThat("previously unresolved", result.previousResolution(null, "missing.h"), nullValue());
+	}
+
+	@Test
+	void resolvesAgainOnlyIncludesSearchedThroughChangedIncludeRoot() {
+		Map<File, HashCode> directoryHashes = fingerprint();
+		directoryHashes.put(file("include2"), hashOf("include2 with new header"));
+
+		CompilationStateStore.UnchangedDirectories result = new CompilationStateStore(stateFile).unchangedDirectories(includeRoots(), directoryHashes::get);
+		assertThat(result.all(), is(false));
+		assertThat("found before the changed root", result.previousResolution(sourceA, "a.h"), equalTo(file("include1/a.h")));
+		assertThat("found in the changed root", result.previousResolution(sourceA, "b.h"), nullValue());
+	}
+
+	@Test
+	void resolvesAgainIncludesShadowedByHeaderAddedToEarlierIncludeRoot() {
+		Map<File, HashCode> directoryHashes = fingerprint();
+		directoryHashes.put(file("include1"), hashOf("include1 with b.h"));
+
+		CompilationStateStore.UnchangedDirectories result = new CompilationStateStore(stateFile).unchangedDirectories(includeRoots(), directoryHashes::get);
+		assertThat("include1/b.h may shadow include2/b.h", result.previousResolution(sourceA, "b.h"), nullValue());
+		assertThat(result.previousResolution(sourceA, "a.h"), nullValue());
+	}
+
+	@Test
+	void resolvesAgainIncludesSearchedThroughChangedSourceDirectory() {
+		Map<File, HashCode> directoryHashes = fingerprint();
+		directoryHashes.put(file("src"), hashOf("src with a.h"));
+
+		CompilationStateStore.UnchangedDirectories result = new CompilationStateStore(stateFile).unchangedDirectories(includeRoots(), directoryHashes::get);
+		assertThat("src/a.h may shadow include1/a.h", result.previousResolution(sourceA, "a.h"), nullValue());
+		assertThat("system include, not searched in src", result.previousResolution(null, "a.h"), equalTo(file("include1/a.h")));
+	}
+
+	@Test
+	void resolvesAgainIncludesOutsideIncludeRoots() {
+		Map<File, HashCode> directoryHashes = fingerprint();
+
+		CompilationStateStore.UnchangedDirectories result = new CompilationStateStore(stateFile).unchangedDirectories(includeRoots(), directoryHashes::get);
+		assertThat(result.previousResolution(sourceA, "../include1/a.h"), nullValue());
+		assertThat(result.previousResolution(sourceA, file("include1/a.h").getPath()), nullValue());
+	}
+
+	@Test
+	void doesNotKnowPreviousResolutionsWhenIncludeRootsChanged() {
+		Map<File, HashCode> directoryHashes = fingerprint();
+
+		assertThat(new CompilationStateStore(stateFile).unchangedDirectories(Arrays.asList(file("include2"), file("include1")), directoryHashes::get), nullValue());
+		assertThat(new CompilationStateStore(stateFile).unchangedDirectories(Arrays.asList(file("include1")), directoryHashes::get), nullValue());
+	}
+
+	private Map<File, HashCode> fingerprint() {
+		Map<File, HashCode> result = new HashMap<>();
+		for (String directory : Arrays.asList("src", "include1", "include2")) {
+			result.put(file(directory), hashOf(directory));
+		}
+
+		CompilationStateStore store = new CompilationStateStore(stateFile);
+		store.fingerprint(includeRoots(), Arrays.asList(sourceA), Arrays.asList(file("include1/a.h"), file("include2/b.h")), result::get);
+		store.save(stateOf(sourceA, newState("a", edge("a.h", "a"), edge("b.h", "a"))));
+		return result;
+	}
+
+	private List<File> includeRoots() {
+		return Arrays.asList(file("include1"), file("include2"));
+	}
+
+	private File file(String path) {
+		return testDirectory.resolve(path).toFile().getAbsoluteFile();
+	}
+
+	private static void assertSameState(SourceFileState actual, SourceFileState expected) {
+		assertThat(actual.getHash(), equalTo(expected.getHash()));
+		assertThat(actual.isHasUnresolved(), equalTo(expected.isHasUnresolved()));
+		assertThat(edgesOf(actual), equalTo(edgesOf(expected)));
+	}
+
+	private static ArrayList<IncludeFileEdge> edgesOf(SourceFileState state) {
+		return new ArrayList<>(IncrementalCompileFilesFactory.edgesOf(state));
+	}
+
+	private static CompilationState stateOf(Object... sourceFileAndStates) {
+		BuildableCompilationState result = new BuildableCompilationState();
+		for (int i = 0; i < sourceFileAndStates.length; i += 2) {
+			result.setState(((File) sourceFileAndStates[i]).getAbsoluteFile(), (SourceFileState) sourceFileAndStates[i + 1]);
+		}
+		return result.snapshot();
+	}
+
+	private static SourceFileState newState(String content, IncludeFileEdge... edges) {
+		return newState(content, false, edges);
+	}
+
+	private static SourceFileState newState(String content, boolean hasUnresolved, IncludeFileEdge... edges) {
+		return IncrementalCompileFilesFactory.newState(hashOf(content), hasUnresolved, edges.length == 0 ? Collections.emptySet() : new LinkedHashSet<>(Arrays.asList(edges)));
+	}
+
+	private static IncludeFileEdge edge(String includePath, String includedBy) {
+		return new IncludeFileEdge(includePath, includedBy == null ? null : hashOf(includedBy), hashOf(includePath));
+	}
+
+	private static HashCode hashOf(String content) {
+		return Hashing.hashString(content);
+	}
+}
@@ -0,0 +1,118 @@
+package dev.nokee.companion.features;
+
+import dev.nokee.language.cpp.tasks.CppCompile;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Function;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+class CompileHistoryIntegrationTests {
+	private static final List<String> SOURCES = Arrays.asList("a.cpp", "b.cpp", "c.cpp", "d.cpp", "e.cpp");
+	@TempDir Path testDirectory;
+	File historyFile;
+
+	@BeforeEach
+	void setup() {
+		historyFile = testDirectory.resolve("history/compile-history.bin").toFile();
+	}
+
+	@Test
+	void keepsSourceOrder() {
+		CompileHistory history = newHistory();
+
+		assertThat(history.schedule(SOURCES, Function.identity(), CppCompile.SchedulingPolicy.SOURCE_ORDER), equalTo(SOURCES));
+	}
+
+	@Test
+	void schedulesLongestFirst() {
+		CompileHistory history = newHistory();
+
+		// e.cpp was never compiled, b.cpp and d.cpp are equally long
+		assertThat(history.schedule(SOURCES, Function.identity(), CppCompile.SchedulingPolicy.LONGEST_FIRST), contains("e.cpp", "c.cpp", "b.cpp", "d.cpp", "a.cpp"));
+	}
+
+	@Test
+	void schedulesFailedFirstThenLongestFirst() {
+		CompileHistory history = newHistory();
+
+		assertThat(history.schedule(SOURCES, Function.identity(), CppCompile.SchedulingPolicy.FAILED_FIRST), contains("d.cpp", "a.cpp", "e.cpp", "c.cpp", "b.cpp"));
+	}
+
+	@Test
+	void schedulesFromSavedHistory() {
+		newHistory().save();
+
+		CompileHistory history = CompileHistory.load(historyFile);
+		assertThat(history.schedule(SOURCES, Function.identity(), CppCompile.SchedulingPolicy.FAILED_FIRST), contains("d.cpp", "a.cpp", "e.cpp", "c.cpp", "b.cpp"));
+		assertThat(history.peakMemoryOf("c.cpp"), equalTo(3000L));
+		assertThat(history.peakMemoryOf("e.cpp"), equalTo(0L));
+	}
+
+	@Test
+	void keepsPreviousPeakMemoryWhenNotMeasured() {
+		CompileHistory history = newHistory();
+		history.record("c.cpp", 10, false, 0);
+
+		assertThat(history.peakMemoryOf("c.cpp"), equalTo(3000L));
+	}
+
+	@Test
+	void startsOverFromTruncatedHistory() throws IOException {
+		newHistory().save();
+		try (RandomAccessFile file = new RandomAccessFile(historyFile, "rw")) {
+			file.setLength(file.length() - 5);
+		}
+
+		assertThat(CompileHistory.load(historyFile).schedule(SOURCES, Function.identity(), CppCompile.SchedulingPolicy.LONGEST_FIRST), equalTo(SOURCES));
+	}
+
+	@Test
+	void startsOverFromGarbageHistory() throws IOException {
+		Files.createDirectories(historyFile.getParentFile().toPath());
+		Files.write(historyFile.toPath(), "not a compile history".getBytes());
+
+		CompileHistory history = CompileHistory.load(historyFile);
+		assertThat(history.schedule(SOURCES, Function.identity(), CppCompile.SchedulingPolicy.LONGEST_FIRST), equalTo(SOURCES));
+
+		history.record("a.cpp", 10, true, 0);
+		history.save();
+		assertThat("overwrites the garbage", CompileHistory.load(historyFile).schedule(SOURCES, Function.identity(), CppCompile.SchedulingPolicy.FAILED_FIRST).get(0), equalTo("a.cpp"));
+	}
+
+	@Test
+	void startsOverFromHistoryOfOtherFormatVersion() throws IOException {
+		newHistory().save();
+		try (RandomAccessFile file = new RandomAccessFile(historyFile, "rw")) {
+			file.seek(4); // after the magic number
+			file.writeInt(1);
+		}
+
+		assertThat(CompileHistory.load(historyFile).peakMemoryOf("c.cpp"), equalTo(0L));
+	}
+
+	@Test
+	void loadsEmptyHistoryWhenFileIsMissing() {
+		assertThat(CompileHistory.load(historyFile).schedule(SOURCES, Function.identity(), CppCompile.SchedulingPolicy.LONGEST_FIRST), equalTo(SOURCES));
+	}
+
+	// a.cpp 10ms failed, b.cpp 20ms, c.cpp 30ms, d.cpp 20ms failed, e.cpp unknown
+	private CompileHistory newHistory() {
+		CompileHistory result = CompileHistory.load(historyFile);
+		result.record("a.cpp", 10, true, 1000);
+		result.record("b.cpp", 20, false, 2000);
+		result.record("c.cpp", 30, false, 3000);
+		result.record("d.cpp", 20, true, 4000);
+		return result;
+	}
+}
@@ -0,0 +1,168 @@
+package dev.nokee.companion.features;
+
+import org.gradle.api.tasks.WorkResults;
+import org.gradle.internal.hash.HashCode;
+import org.gradle.internal.hash.Hashing;
+import org.gradle.language.cpp.tasks.internal.DefaultCppCompileSpec;
+import org.gradle.language.nativeplatform.internal.incremental.BuildableCompilationState;
+import org.gradle.nativeplatform.toolchain.internal.compilespec.CppCompileSpec;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Consumer;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+class DependencyFileCollectingCompilerIntegrationTests {
+	@TempDir Path testDirectory;
+	File stateFile;
+	File objectFileDir;
+	File sourceFile;
+	Map<File, HashCode> headerHashes = new LinkedHashMap<>();
+
+	@BeforeEach
+	void setup() {
+		stateFile = testDirectory.resolve("state/compile.bin").toFile();
+		objectFileDir = testDirectory.resolve("build/objs").toFile();
+		sourceFile = testDirectory.resolve("src/my source.cpp").toFile();
+	}
+
+	@Test
+	void parsesEscapedSpacesAndCharacters() {
+		assertThat(DependencyFileCollectingCompiler.parse("a.o: /src/my\\ source.cpp /inc/a\\#b.h /inc/$$x.h C:\\inc\\win.h\n"),
+			contains("/src/my source.cpp", "/inc/a#b.h", "/inc/$x.h", "C:\\inc\\win.h"));
+	}
+
+	@Test
+	void parsesContinuationLines() {
+		assertThat(DependencyFileCollectingCompiler.parse("a.o: /src/a.cpp \\\n /inc/a.h \\\r\n  /inc/b.h\\\n/inc/c.h\n"),
+			contains("/src/a.cpp", "/inc/a.h", "/inc/b.h", "/inc/c.h"));
+	}
+
+	@Test
+	void parsesTargetWithDriveLetter() {
+		assertThat(DependencyFileCollectingCompiler.parse("C:/build/objs/a.o: C:/src/a.cpp C:/inc/a.h"),
+			contains("C:/src/a.cpp", "C:/inc/a.h"));
+	}
+
+	@Test
+	void parsesOnlyFirstRule() {
+		// -MP adds a phony target for each header
+		assertThat(DependencyFileCollectingCompiler.parse("a.o: /src/a.cpp /inc/a.h\n\n/inc/a.h:\n"),
+			contains("/src/a.cpp", "/inc/a.h"));
+	}
+
+	@Test
+	void doesNotParseContentOtherThanRule() {
+		assertThat(DependencyFileCollectingCompiler.parse(""), nullValue());
+		assertThat(DependencyFileCollectingCompiler.parse("not a dependency file"), nullValue());
+	}
+
+	@Test
+	void recordsHeadersWithSpacesAndEscapedCharacters() {
+		File header1 = header("include dir/a #1.h");
+		File header2 = header("include/$b.h");
+		compile(it -> writeDependencyFile("my source.d", escape(sourceFile), escape(header1), escape(header2)));
+
+		assertThat(dependenciesOf(sourceFile), equalTo(hashesOf(header1, header2)));
+	}
+
+	@Test
+	void doesNotRecordStaleDependencyFile() {
+		File header = header("include/a.h");
+		File dependencyFile = writeDependencyFile("my source.d", escape(sourceFile), escape(header));
+		assertThat(dependencyFile.setLastModified(System.currentTimeMillis() - 60_000), is(true));
+		compile(it -> {}); // did not write the dependency file, i.e. -MD removed
+
+		assertThat("falls back to include parsing", dependenciesOf(sourceFile), nullValue());
+	}
+
+	@Test
+	void doesNotRecordMissingDependencyFile() {
+		compile(it -> {});
+
+		assertThat("falls back to include parsing", dependenciesOf(sourceFile), nullValue());
+	}
+
+	@Test
+	void doesNotRecordDependencyFileWithRemovedOrRelativeHeaders() {
+		File header = header("include/a.h");
+		compile(it -> writeDependencyFile("my source.d", escape(sourceFile), escape(header), escape(testDirectory.resolve("include/removed.h").toFile())));
+		assertThat("header removed since", dependenciesOf(sourceFile), nullValue());
+
+		compile(it -> writeDependencyFile("my source.d", escape(sourceFile), escape(header), "include/relative.h"));
+		assertThat("relative to the compiler working directory", dependenciesOf(sourceFile), nullValue());
+	}
+
+	@Test
+	void doesNotRecordDependencyFileOfOtherSourceFile() {
+		File header = header("include/a.h");
+		compile(it -> writeDependencyFile("other.d", escape(testDirectory.resolve("src/other.cpp").toFile()), escape(header)));
+
+		assertThat(dependenciesOf(sourceFile), nullValue());
+	}
+
+	private void compile(Consumer<CppCompileSpec> action) {
+		CppCompileSpec spec = new DefaultCppCompileSpec();
+		spec.setObjectFileDir(objectFileDir);
+		spec.setSourceFiles(Collections.singletonList(sourceFile));
+
+		CompilationStateStore store = new CompilationStateStore(stateFile);
+		new DependencyFileCollectingCompiler<CppCompileSpec>(it -> {
+			action.accept(it);
+			return WorkResults.didWork(true);
+		}, store, it -> Optional.ofNullable(headerHashes.get(it))).execute(spec);
+
+		// Dependencies are recorded with the state of the compiled source file
+		BuildableCompilationState state = new BuildableCompilationState();
+		state.setState(sourceFile, IncrementalCompileFilesFactory.newState(Hashing.hashString(sourceFile.getName()), false, Collections.emptySet()));
+		store.save(state.snapshot());
+	}
+
+	private Map<File, HashCode> dependenciesOf(File sourceFile) {
+		return new CompilationStateStore(stateFile).dependenciesOf(sourceFile);
+	}
+
+	private File header(String path) {
+		File result = testDirectory.resolve(path).toFile();
+		headerHashes.put(result, Hashing.hashString(path));
+		return result;
+	}
+
+	private Map<File, HashCode> hashesOf(File... headers) {
+		Map<File, HashCode> result = new LinkedHashMap<>();
+		for (File header : headers) {
+			result.put(header, headerHashes.get(header));
+		}
+		return result;
+	}
+
+	// Escapes as GCC/Clang do in dependency files
+	private static String escape(File file) {
+		return file.getAbsolutePath().replace(" ", "\\ ").replace("#", "\\#").replace("$", "$$");
+	}
+
+	private File writeDependencyFile(String name, String... prerequisites) {
+		File result = new File(objectFileDir, "0123456789abcdef/" + name);
+		try {
+			Files.createDirectories(result.getParentFile().toPath());
+			Files.write(result.toPath(), ("objs/" + name.replace(".d", ".o").replace(" ", "\\ ") + ": " + String.join(" \\\n ", Arrays.asList(prerequisites)) + "\n").getBytes(StandardCharsets.UTF_8));
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return result;
+	}
+}
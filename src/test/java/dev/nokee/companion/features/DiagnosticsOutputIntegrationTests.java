@@ -0,0 +1,216 @@
+package dev.nokee.companion.features;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+class DiagnosticsOutputIntegrationTests {
+	private static final int MAX_TAIL_BYTES = 64 * 1024; // see DiagnosticsOutput
+	@TempDir Path testDirectory;
+	ExecutorService executor = Executors.newFixedThreadPool(2);
+
+	@AfterEach
+	void tearDown() {
+		executor.shutdownNow();
+	}
+
+	@Test
+	void keepsOutputFittingTheTailInMemory() {
+		File logFile = testDirectory.resolve("diagnostics/a.txt").toFile();
+		byte[] output = repeat('a', MAX_TAIL_BYTES);
+
+		DiagnosticsOutput subject = new DiagnosticsOutput(logFile);
+		write(subject, output);
+		subject.close();
+
+		assertThat(subject.summary(), equalTo(new String(output, StandardCharsets.UTF_8)));
+		assertThat("small outputs never touch the disk", logFile.exists(), is(false));
+	}
+
+	@Test
+	void spillsOutputExceedingTheTailToLogFile() throws IOException {
+		File logFile = testDirectory.resolve("diagnostics/a.txt").toFile();
+		byte[] output = concat(repeat('a', MAX_TAIL_BYTES), "\nlast line".getBytes(StandardCharsets.UTF_8));
+
+		DiagnosticsOutput subject = new DiagnosticsOutput(logFile);
+		write(subject, output);
+		subject.close();
+
+		assertThat(Files.readAllBytes(logFile.toPath()), equalTo(output));
+		assertThat(subject.summary(), startsWith("0 error(s) and 0 warning(s), the output was " + output.length + " bytes, see " + logFile.getAbsolutePath() + " for the full output.\n"));
+		assertThat("partial first line is dropped", subject.summary(), endsWith("of the output:\nlast line"));
+	}
+
+	@Test
+	void keepsOnlyTheTailWithoutLogFile() {
+		DiagnosticsOutput subject = new DiagnosticsOutput(null);
+		write(subject, concat(repeat('a', MAX_TAIL_BYTES), "\nlast line".getBytes(StandardCharsets.UTF_8)));
+		subject.close();
+
+		assertThat(subject.summary(), startsWith("0 error(s) and 0 warning(s), the output was " + (MAX_TAIL_BYTES + 10) + " bytes.\n"));
+		assertThat(subject.summary(), endsWith("\nlast line"));
+	}
+
+	@Test
+	void summarizesFirstDiagnosticsOfTruncatedOutput() {
+		StringBuilder output = new StringBuilder();
+		for (int i = 1; i <= 60; ++i) {
+			output.append("src/a.cpp:").append(i).append(":5: ").append(i % 2 == 0 ? "warning" : "error").append(": message ").append(i).append('\n');
+		}
+		DiagnosticsOutput subject = new DiagnosticsOutput(null);
+		write(subject, output.toString().getBytes(StandardCharsets.UTF_8));
+		write(subject, repeat('a', MAX_TAIL_BYTES));
+		subject.close();
+
+		String summary = subject.summary();
+		assertThat(summary, startsWith("30 error(s) and 30 warning(s)"));
+		assertThat(summary, containsString("\nsrc/a.cpp:1:5: error: message 1\n"));
+		assertThat(summary, containsString("\nsrc/a.cpp:50:5: warning: message 50\n...\n"));
+		assertThat("only the first 50 diagnostics", summary, not(containsString("message 51\n")));
+	}
+
+	@Test
+	void doesNotReportCharacterSplitAtTheCut() {
+		// the e-acute is 2 bytes in UTF-8, one more byte moves the cut in the middle of the first one
+		byte[] characters = repeat("\u00e9", MAX_TAIL_BYTES / 2);
+		DiagnosticsOutput subject = new DiagnosticsOutput(null);
+		write(subject, concat(characters, "a".getBytes(StandardCharsets.UTF_8)));
+		subject.close();
+
+		String summary = subject.summary();
+		assertThat(summary, not(containsString("\uFFFD")));
+		assertThat(summary, endsWith("of the output:\n" + new String(repeat("\u00e9", MAX_TAIL_BYTES / 2 - 1), StandardCharsets.UTF_8) + "a"));
+	}
+
+	@Test
+	void decodesCharactersWrittenByteByByte() {
+		DiagnosticsOutput subject = new DiagnosticsOutput(null);
+		for (byte b : "src/a.cpp:1:1: error: attendu \u00ab ; \u00bb\n".getBytes(StandardCharsets.UTF_8)) {
+			write(subject, new byte[] {b});
+		}
+		subject.close();
+
+		assertThat(subject.summary(), equalTo("src/a.cpp:1:1: error: attendu \u00ab ; \u00bb\n"));
+	}
+
+	@Test
+	void routesInterleavedLinesOfBatchedSourceFiles() {
+		DiagnosticsOutput a = new DiagnosticsOutput(null);
+		DiagnosticsOutput b = new DiagnosticsOutput(null);
+		DiagnosticsOutput.PerSourceOutput subject = new DiagnosticsOutput.PerSourceOutput(outputsOf("src/a.cpp", a, "src/b.cpp", b));
+		byte[] output = ("src/a.cpp:1:1: error: first\n"
+			+ "    1 | int a\n"
+			+ "src/b.cpp:2:1: warning: second\n"
+			+ "src/a.cpp:3:1: error: third\n"
+			+ "1 error generated.").getBytes(StandardCharsets.UTF_8);
+		// the lines are split across writes
+		for (int i = 0; i < output.length; i += 3) {
+			write(subject, Arrays.copyOfRange(output, i, Math.min(i + 3, output.length)));
+		}
+		subject.close();
+
+		assertThat(subject.summaryOf("src/a.cpp"), equalTo("src/a.cpp:1:1: error: first\n    1 | int a\nsrc/a.cpp:3:1: error: third\n1 error generated."));
+		assertThat(subject.summaryOf("src/b.cpp"), equalTo("src/b.cpp:2:1: warning: second\n"));
+	}
+
+	@Test
+	void routesLinesLongerThanParsedLineToTheirSourceFile() {
+		DiagnosticsOutput a = new DiagnosticsOutput(null);
+		DiagnosticsOutput b = new DiagnosticsOutput(null);
+		DiagnosticsOutput.PerSourceOutput subject = new DiagnosticsOutput.PerSourceOutput(outputsOf("src/a.cpp", a, "src/b.cpp", b));
+		String longLine = "src/b.cpp:2:1: error: " + new String(repeat('x', 10 * 1024), StandardCharsets.UTF_8) + "\n";
+		write(subject, "src/a.cpp:1:1: error: first\n".getBytes(StandardCharsets.UTF_8));
+		byte[] bytes = longLine.getBytes(StandardCharsets.UTF_8);
+		for (int i = 0; i < bytes.length; i += 1000) {
+			write(subject, Arrays.copyOfRange(bytes, i, Math.min(i + 1000, bytes.length)));
+		}
+		write(subject, "src/a.cpp:3:1: error: third\n".getBytes(StandardCharsets.UTF_8));
+		subject.close();
+
+		assertThat(subject.summaryOf("src/a.cpp"), equalTo("src/a.cpp:1:1: error: first\nsrc/a.cpp:3:1: error: third\n"));
+		assertThat(subject.summaryOf("src/b.cpp"), equalTo(longLine));
+	}
+
+	@Test
+	void keepsLinesIntactWhenStandardAndErrorOutputsInterleave() throws Exception {
+		DiagnosticsOutput a = new DiagnosticsOutput(null);
+		DiagnosticsOutput b = new DiagnosticsOutput(null);
+		DiagnosticsOutput.PerSourceOutput subject = new DiagnosticsOutput.PerSourceOutput(outputsOf("src/a.cpp", a, "src/b.cpp", b));
+
+		// Same as the pumping threads of the standard and error outputs, each writing whole lines
+		List<Future<?>> pumps = new ArrayList<>();
+		for (String sourceFile : Arrays.asList("src/a.cpp", "src/b.cpp")) {
+			pumps.add(executor.submit(() -> {
+				for (int i = 1; i <= 1000; ++i) {
+					write(subject, (sourceFile + ":" + i + ":1: error: message\n").getBytes(StandardCharsets.UTF_8));
+				}
+			}));
+		}
+		for (Future<?> pump : pumps) {
+			pump.get(5, TimeUnit.SECONDS);
+		}
+		subject.close();
+
+		for (String sourceFile : Arrays.asList("src/a.cpp", "src/b.cpp")) {
+			String[] lines = subject.summaryOf(sourceFile).split("\n");
+			assertThat(lines.length, equalTo(1000));
+			for (int i = 0; i < lines.length; ++i) {
+				assertThat(lines[i], equalTo(sourceFile + ":" + (i + 1) + ":1: error: message"));
+			}
+		}
+	}
+
+	private static LinkedHashMap<String, DiagnosticsOutput> outputsOf(String sourceFile1, DiagnosticsOutput output1, String sourceFile2, DiagnosticsOutput output2) {
+		LinkedHashMap<String, DiagnosticsOutput> result = new LinkedHashMap<>();
+		result.put(sourceFile1, output1);
+		result.put(sourceFile2, output2);
+		return result;
+	}
+
+	private static void write(OutputStream outStream, byte[] bytes) {
+		try {
+			outStream.write(bytes, 0, bytes.length);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private static byte[] repeat(char c, int count) {
+		byte[] result = new byte[count];
+		Arrays.fill(result, (byte) c);
+		return result;
+	}
+
+	private static byte[] repeat(String s, int count) {
+		StringBuilder result = new StringBuilder();
+		for (int i = 0; i < count; ++i) {
+			result.append(s);
+		}
+		return result.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static byte[] concat(byte[] first, byte[] second) {
+		byte[] result = Arrays.copyOf(first, first.length + second.length);
+		System.arraycopy(second, 0, result, first.length, second.length);
+		return result;
+	}
+}
@@ -0,0 +1,183 @@
+package dev.nokee.companion.features;
+
+import com.google.common.collect.ImmutableList;
+import org.gradle.api.Project;
+import org.gradle.api.internal.TaskOutputsInternal;
+import org.gradle.api.internal.file.collections.DirectoryFileTreeFactory;
+import org.gradle.api.internal.project.ProjectInternal;
+import org.gradle.api.tasks.WorkResults;
+import org.gradle.internal.file.Deleter;
+import org.gradle.internal.hash.HashCode;
+import org.gradle.internal.hash.Hashing;
+import org.gradle.internal.vfs.FileSystemAccess;
+import org.gradle.language.base.internal.compile.Compiler;
+import org.gradle.language.base.internal.compile.VersionAwareCompiler;
+import org.gradle.language.nativeplatform.internal.incremental.CompilationState;
+import org.gradle.language.nativeplatform.internal.incremental.DefaultHeaderDependenciesCollector;
+import org.gradle.language.nativeplatform.internal.incremental.DefaultSourceIncludesParser;
+import org.gradle.language.nativeplatform.internal.incremental.IncludeFileEdge;
+import org.gradle.language.nativeplatform.internal.incremental.IncrementalCompilation;
+import org.gradle.language.nativeplatform.internal.incremental.IncrementalNativeCompiler;
+import org.gradle.language.nativeplatform.internal.incremental.SourceFileState;
+import org.gradle.language.nativeplatform.internal.incremental.sourceparser.DefaultIncludeDirectives;
+import org.gradle.language.nativeplatform.internal.incremental.sourceparser.RegexBackedCSourceParser;
+import org.gradle.nativeplatform.internal.CompilerOutputFileNamingSchemeFactory;
+import org.gradle.nativeplatform.toolchain.internal.OutputCleaningCompiler;
+import org.gradle.nativeplatform.toolchain.internal.compilespec.CppCompileSpec;
+import org.gradle.testfixtures.ProjectBuilder;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+// Builds each accessor against the Gradle version under test
+class GradleInternalsIntegrationTests {
+	@TempDir Path testDirectory;
+	ProjectInternal project;
+	FileSystemAccess fileSystemAccess;
+
+	@BeforeEach
+	void setup() {
+		project = (ProjectInternal) ProjectBuilder.builder().withProjectDir(testDirectory.toFile()).build();
+		fileSystemAccess = project.getServices().get(FileSystemAccess.class);
+	}
+
+	@Test
+	void resolvesEveryMember() throws IllegalAccessException {
+		List<String> members = new ArrayList<>();
+		for (Field field : GradleInternals.class.getDeclaredFields()) {
+			if (Modifier.isStatic(field.getModifiers()) && field.getType().equals(String.class)) {
+				members.add((String) field.get(null));
+			}
+		}
+
+		assertThat(members, not(empty()));
+		for (String member : members) {
+			assertThat(member, GradleInternals.isAvailable(member), is(true));
+		}
+		GradleInternals.assertAvailable("incremental-compilation", GradleInternals.INCREMENTAL_COMPILATION_MEMBERS);
+		GradleInternals.assertAvailable("transactional-compilation", GradleInternals.TRANSACTIONAL_COMPILATION_MEMBERS);
+		assertThat(members, hasItems(GradleInternals.INCREMENTAL_COMPILATION_MEMBERS));
+		assertThat(members, hasItems(GradleInternals.TRANSACTIONAL_COMPILATION_MEMBERS));
+	}
+
+	@Test
+	void readsFileSystemHashes() throws IOException {
+		File header = write("include/a.h", "#pragma once");
+		File otherHeader = write("include/other/a.h", "#pragma once", "#define OTHER");
+
+		Optional<HashCode> hash = GradleInternals.readRegularFileContentHash(fileSystemAccess, header.getAbsolutePath());
+		assertThat(hash.isPresent(), is(true));
+		assertThat(GradleInternals.readRegularFileContentHash(fileSystemAccess, otherHeader.getAbsolutePath()), not(equalTo(hash)));
+		assertThat(GradleInternals.readRegularFileContentHash(fileSystemAccess, file("include/missing.h").getAbsolutePath()), equalTo(Optional.empty()));
+		assertThat(GradleInternals.readRegularFileContentHash(fileSystemAccess, file("include").getAbsolutePath()), equalTo(Optional.empty()));
+
+		HashCode directoryHash = GradleInternals.readHash(fileSystemAccess, file("include").getAbsolutePath());
+		write("include/b.h", "#pragma once");
+		fileSystemAccess.invalidate(Collections.singleton(file("include").getAbsolutePath()));
+		assertThat(GradleInternals.readHash(fileSystemAccess, file("include").getAbsolutePath()), not(equalTo(directoryHash)));
+	}
+
+	@Test
+	void createsSourceFileStates() {
+		Set<IncludeFileEdge> edges = new LinkedHashSet<>(Arrays.asList(new IncludeFileEdge("a.h", null, Hashing.hashString("a.h")), new IncludeFileEdge("b.h", Hashing.hashString("a.cpp"), Hashing.hashString("b.h"))));
+		Set<IncludeFileEdge> immutableEdges = GradleInternals.immutableEdges(edges);
+		SourceFileState state = GradleInternals.newSourceFileState(Hashing.hashString("a.cpp"), true, immutableEdges);
+
+		assertThat(state.getHash(), equalTo(Hashing.hashString("a.cpp")));
+		assertThat(state.isHasUnresolved(), is(true));
+		assertThat(new ArrayList<>(GradleInternals.edgesOf(state)), equalTo(new ArrayList<>(edges)));
+		assertThat("copying an immutable set returns the same instance", GradleInternals.immutableEdges(immutableEdges), sameInstance(immutableEdges));
+	}
+
+	@Test
+	void accessesObjectHolder() {
+		Object holder = newObjectHolder(new AtomicReference<>());
+		CompilationState state = new CompilationState();
+
+		assertThat(GradleInternals.objectHolderType().isInstance(holder), is(true));
+		GradleInternals.objectHolderSet(holder, state);
+		assertThat(GradleInternals.objectHolderGet(holder), sameInstance(state));
+		GradleInternals.objectHolderSet(holder, null);
+		assertThat(GradleInternals.objectHolderGet(holder), nullValue());
+	}
+
+	@Test
+	void createsIncrementalNativeCompiler() throws IOException {
+		TaskOutputsInternal taskOutputs = (TaskOutputsInternal) project.getTasks().register("compile").get().getOutputs();
+		Compiler<CppCompileSpec> compiler = spec -> WorkResults.didWork(true);
+
+		Compiler<CppCompileSpec> result = GradleInternals.newIncrementalNativeCompiler(taskOutputs, compiler, project.getServices().get(Deleter.class), newObjectHolder(new AtomicReference<>()), analysisOf(write("src/a.cpp", "#include \"a.h\"")));
+		assertThat(result, instanceOf(IncrementalNativeCompiler.class));
+	}
+
+	@Test
+	void collectsExistingHeaderDependencies() throws IOException {
+		File header = write("include/a.h", "#pragma once");
+		IncrementalCompilation incrementalCompilation = analysisOf(write("src/a.cpp", "#include \"a.h\""));
+
+		DefaultHeaderDependenciesCollector collector = new DefaultHeaderDependenciesCollector(project.getServices().get(DirectoryFileTreeFactory.class));
+		assertThat(GradleInternals.collectExistingHeaderDependencies(collector, ":compile", Arrays.asList(file("include")), incrementalCompilation), hasItem(header));
+	}
+
+	@Test
+	void accessesCompilerChainMembers() {
+		Compiler<CppCompileSpec> compiler = spec -> WorkResults.didWork(true);
+		OutputCleaningCompiler<CppCompileSpec> outputCleaningCompiler = new OutputCleaningCompiler<>(compiler, new CompilerOutputFileNamingSchemeFactory(project.getFileResolver()), ".o");
+		VersionAwareCompiler<CppCompileSpec> versionAwareCompiler = new VersionAwareCompiler<>(outputCleaningCompiler, null);
+
+		assertThat(GradleInternals.delegateOf(versionAwareCompiler), sameInstance(outputCleaningCompiler));
+		File objectFile = GradleInternals.objectFileOf(outputCleaningCompiler, file("build/objs"), file("src/a.cpp"));
+		assertThat(objectFile.getName(), equalTo("a.o"));
+		assertThat(objectFile.getParentFile().getParentFile(), equalTo(file("build/objs")));
+	}
+
+	private IncrementalCompilation analysisOf(File sourceFile) {
+		IncludeDirectivesParser parser = IncludeDirectivesParser.of(new DefaultSourceIncludesParser(new RegexBackedCSourceParser(), false));
+		DefaultSourceIncludesResolver resolver = new DefaultSourceIncludesResolver(Arrays.asList(file("include")), fileSystemAccess);
+		IncrementalCompileFilesFactory.DefaultIncrementalCompileSourceProcessor processor = new IncrementalCompileFilesFactory(DefaultIncludeDirectives.of(ImmutableList.of(), ImmutableList.of(), ImmutableList.of()), parser, resolver, fileSystemAccess).files(new CompilationState());
+		processor.processSource(sourceFile);
+		return processor.getResult();
+	}
+
+	// ObjectHolder<CompilationState>, the interface type depends on the Gradle version
+	private static Object newObjectHolder(AtomicReference<Object> value) {
+		Class<?> type = GradleInternals.objectHolderType();
+		return Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type}, (proxy, method, args) -> {
+			switch (method.getName()) {
+				case "get": return value.get();
+				case "set": value.set(args[0]); return null;
+				default: throw new UnsupportedOperationException(method.getName());
+			}
+		});
+	}
+
+	private File file(String path) {
+		return testDirectory.resolve(path).toFile();
+	}
+
+	private File write(String path, String... lines) throws IOException {
+		File result = file(path);
+		Files.createDirectories(result.getParentFile().toPath());
+		Files.write(result.toPath(), Arrays.asList(lines));
+		return result;
+	}
+}
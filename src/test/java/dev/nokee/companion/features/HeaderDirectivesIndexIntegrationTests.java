@@ -0,0 +1,169 @@
+package dev.nokee.companion.features;
+
+import com.google.common.collect.ImmutableList;
+import org.gradle.internal.hash.HashCode;
+import org.gradle.internal.hash.Hashing;
+import org.gradle.language.nativeplatform.internal.Include;
+import org.gradle.language.nativeplatform.internal.IncludeDirectives;
+import org.gradle.language.nativeplatform.internal.IncludeType;
+import org.gradle.language.nativeplatform.internal.incremental.sourceparser.DefaultIncludeDirectives;
+import org.gradle.language.nativeplatform.internal.incremental.sourceparser.IncludeWithSimpleExpression;
+import org.gradle.util.GradleVersion;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.stream.Stream;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+class HeaderDirectivesIndexIntegrationTests {
+	@TempDir Path testDirectory;
+	File indexDirectory;
+	Path indexFile;
+
+	@BeforeEach
+	void setup() {
+		indexDirectory = testDirectory.resolve("index").toFile();
+		indexFile = indexDirectory.toPath().resolve(GradleVersion.current().getVersion()).resolve("directives.bin");
+	}
+
+	@Test
+	void findsStoredDirectivesAfterReopening() {
+		try (HeaderDirectivesIndex index = HeaderDirectivesIndex.open(indexDirectory, true)) {
+			index.store(hashOf("a"), false, directivesOf("a.h"));
+			index.store(hashOf("a"), true, directivesOf("a-imported.h"));
+		}
+
+		try (HeaderDirectivesIndex index = HeaderDirectivesIndex.open(indexDirectory, true)) {
+			assertThat(index.size(), equalTo(2));
+			assertThat(index.find(hashOf("a"), false), equalTo(directivesOf("a.h")));
+			assertThat(index.find(hashOf("a"), true), equalTo(directivesOf("a-imported.h")));
+			assertThat(index.find(hashOf("b"), false), nullValue());
+		}
+	}
+
+	@Test
+	void doesNotWriteReadOnlySeed() throws IOException {
+		try (HeaderDirectivesIndex index = HeaderDirectivesIndex.open(indexDirectory, false)) {
+			index.store(hashOf("a"), false, directivesOf("a.h"));
+		}
+		assertThat("missing seed is not created", Files.exists(indexFile), is(false));
+
+		try (HeaderDirectivesIndex index = HeaderDirectivesIndex.open(indexDirectory, true)) {
+			index.store(hashOf("a"), false, directivesOf("a.h"));
+		}
+		byte[] seed = Files.readAllBytes(indexFile);
+
+		try (HeaderDirectivesIndex index = HeaderDirectivesIndex.open(indexDirectory, false)) {
+			assertThat(index.find(hashOf("a"), false), equalTo(directivesOf("a.h")));
+			index.store(hashOf("b"), false, directivesOf("b.h"));
+		}
+		assertThat(Files.readAllBytes(indexFile), equalTo(seed));
+	}
+
+	@Test
+	void dropsPartiallyWrittenRecordOnNextWrite() throws IOException {
+		try (HeaderDirectivesIndex index = HeaderDirectivesIndex.open(indexDirectory, true)) {
+			index.store(hashOf("a"), false, directivesOf("a.h"));
+		}
+		// an interrupted writer, the record claims 100 bytes
+		Files.write(indexFile, new byte[] {0, 0, 0, 100, 1, 2, 3}, StandardOpenOption.APPEND);
+
+		try (HeaderDirectivesIndex index = HeaderDirectivesIndex.open(indexDirectory, true)) {
+			assertThat(index.size(), equalTo(1));
+			assertThat(index.find(hashOf("a"), false), equalTo(directivesOf("a.h")));
+			index.store(hashOf("b"), false, directivesOf("b.h"));
+		}
+
+		try (HeaderDirectivesIndex index = HeaderDirectivesIndex.open(indexDirectory, true)) {
+			assertThat(index.size(), equalTo(2));
+			assertThat(index.find(hashOf("a"), false), equalTo(directivesOf("a.h")));
+			assertThat(index.find(hashOf("b"), false), equalTo(directivesOf("b.h")));
+		}
+	}
+
+	@Test
+	void ignoresTruncatedRecords() throws IOException {
+		try (HeaderDirectivesIndex index = HeaderDirectivesIndex.open(indexDirectory, true)) {
+			index.store(hashOf("a"), false, directivesOf("a.h"));
+		}
+		long lengthWithA = Files.size(indexFile);
+		try (HeaderDirectivesIndex index = HeaderDirectivesIndex.open(indexDirectory, true)) {
+			index.store(hashOf("b"), false, directivesOf("b.h"));
+		}
+		truncate(lengthWithA + 3);
+
+		try (HeaderDirectivesIndex index = HeaderDirectivesIndex.open(indexDirectory, true)) {
+			assertThat(index.size(), equalTo(1));
+			assertThat(index.find(hashOf("a"), false), equalTo(directivesOf("a.h")));
+			assertThat(index.find(hashOf("b"), false), nullValue());
+		}
+	}
+
+	@Test
+	void rewritesIndexWithTruncatedHeader() throws IOException {
+		try (HeaderDirectivesIndex index = HeaderDirectivesIndex.open(indexDirectory, true)) {
+			index.store(hashOf("a"), false, directivesOf("a.h"));
+		}
+		truncate(5);
+
+		try (HeaderDirectivesIndex index = HeaderDirectivesIndex.open(indexDirectory, true)) {
+			assertThat(index.size(), equalTo(0));
+			index.store(hashOf("b"), false, directivesOf("b.h"));
+		}
+
+		try (HeaderDirectivesIndex index = HeaderDirectivesIndex.open(indexDirectory, true)) {
+			assertThat(index.size(), equalTo(1));
+			assertThat(index.find(hashOf("b"), false), equalTo(directivesOf("b.h")));
+		}
+	}
+
+	@Test
+	void keepsOnlyUsedDirectivesWhenIndexIsFull() throws IOException {
+		try (HeaderDirectivesIndex index = HeaderDirectivesIndex.open(indexDirectory, true)) {
+			index.store(hashOf("a"), false, directivesOf("a.h"));
+			index.store(hashOf("b"), false, directivesOf("b.h"));
+			index.store(hashOf("c"), false, directivesOf("c.h"));
+		}
+		long maxIndexSize = Files.size(indexFile) + 10; // not enough for another record
+
+		try (HeaderDirectivesIndex index = HeaderDirectivesIndex.open(indexDirectory, true, maxIndexSize)) {
+			assertThat(index.find(hashOf("a"), false), equalTo(directivesOf("a.h")));
+			index.store(hashOf("d"), false, directivesOf("d.h"));
+		}
+
+		try (HeaderDirectivesIndex index = HeaderDirectivesIndex.open(indexDirectory, true, maxIndexSize)) {
+			assertThat(index.size(), equalTo(2));
+			assertThat(index.find(hashOf("a"), false), equalTo(directivesOf("a.h")));
+			assertThat(index.find(hashOf("b"), false), nullValue());
+			assertThat(index.find(hashOf("c"), false), nullValue());
+			assertThat(index.find(hashOf("d"), false), equalTo(directivesOf("d.h")));
+		}
+		assertThat(Files.size(indexFile), lessThan(maxIndexSize));
+		try (Stream<Path> files = Files.list(indexFile.getParent())) {
+			assertThat("no leftover temporary file", files.count(), equalTo(1L));
+		}
+	}
+
+	private void truncate(long length) throws IOException {
+		try (FileChannel channel = FileChannel.open(indexFile, StandardOpenOption.WRITE)) {
+			channel.truncate(length);
+		}
+	}
+
+	private static HashCode hashOf(String content) {
+		return Hashing.hashString(content);
+	}
+
+	private static IncludeDirectives directivesOf(String header) {
+		return DefaultIncludeDirectives.of(ImmutableList.<Include>of(IncludeWithSimpleExpression.create(header, false, IncludeType.QUOTED)), ImmutableList.of(), ImmutableList.of());
+	}
+}
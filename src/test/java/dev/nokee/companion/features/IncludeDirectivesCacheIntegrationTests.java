@@ -0,0 +1,124 @@
+package dev.nokee.companion.features;
+
+import com.google.common.collect.ImmutableList;
+import org.gradle.api.model.ObjectFactory;
+import org.gradle.internal.hash.HashCode;
+import org.gradle.internal.hash.Hashing;
+import org.gradle.language.nativeplatform.internal.Include;
+import org.gradle.language.nativeplatform.internal.IncludeDirectives;
+import org.gradle.language.nativeplatform.internal.IncludeType;
+import org.gradle.language.nativeplatform.internal.incremental.sourceparser.DefaultIncludeDirectives;
+import org.gradle.language.nativeplatform.internal.incremental.sourceparser.IncludeWithSimpleExpression;
+import org.gradle.testfixtures.ProjectBuilder;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+class IncludeDirectivesCacheIntegrationTests {
+	@TempDir Path testDirectory;
+	IncludeDirectivesCache.Parameters parameters;
+	IncludeDirectivesCache cache;
+	List<String> parsedHeaders = new ArrayList<>();
+
+	@BeforeEach
+	void setup() {
+		ObjectFactory objects = ProjectBuilder.builder().withProjectDir(testDirectory.toFile()).build().getObjects();
+		parameters = objects.newInstance(IncludeDirectivesCache.Parameters.class);
+		parameters.getMaxEntries().set(2);
+		cache = new IncludeDirectivesCache() {
+			@Override
+			public Parameters getParameters() {
+				return parameters;
+			}
+		};
+	}
+
+	@AfterEach
+	void tearDown() {
+		cache.close();
+	}
+
+	@Test
+	void parsesEachHeaderOnce() {
+		assertThat(parse("a.h"), equalTo(directivesOf("a.h")));
+		assertThat(parse("a.h"), equalTo(directivesOf("a.h")));
+
+		assertThat(parsedHeaders, contains("a.h"));
+		assertThat(cache.getHitCount(), equalTo(1L));
+		assertThat(cache.getMissCount(), equalTo(1L));
+	}
+
+	@Test
+	void keepsImportAwareDirectivesApart() {
+		parse("a.h", false);
+		parse("a.h", true);
+
+		assertThat(parsedHeaders, contains("a.h", "a.h"));
+	}
+
+	@Test
+	void evictsLeastRecentlyUsedDirectives() {
+		parse("a.h");
+		parse("b.h");
+		parse("a.h"); // b.h is now the least recently used
+		parse("c.h");
+
+		assertThat(cache.size(), equalTo(2));
+		parsedHeaders.clear();
+		parse("a.h");
+		parse("c.h");
+		assertThat("kept the recently used directives", parsedHeaders, empty());
+		parse("b.h");
+		assertThat("evicted the least recently used directives", parsedHeaders, contains("b.h"));
+	}
+
+	@Test
+	void keepsCacheBoundedOnManyHeaders() {
+		for (int i = 0; i < 100; ++i) {
+			parse("header" + i + ".h");
+		}
+
+		assertThat(cache.size(), equalTo(2));
+	}
+
+	@Test
+	void findsEvictedDirectivesInIndex() {
+		parameters.getIndexDirectory().set(testDirectory.resolve("index").toFile());
+		parse("a.h");
+		parse("b.h");
+		parse("c.h");
+
+		parsedHeaders.clear();
+		assertThat(parse("a.h"), equalTo(directivesOf("a.h")));
+		assertThat(parsedHeaders, empty());
+		assertThat(cache.getIndexHitCount(), equalTo(1L));
+	}
+
+	private IncludeDirectives parse(String header) {
+		return parse(header, false);
+	}
+
+	private IncludeDirectives parse(String header, boolean importAware) {
+		return cache.parserFor(importAware, (file, contentHash) -> {
+			parsedHeaders.add(file.getName());
+			return directivesOf(file.getName());
+		}).parseIncludes(new File(testDirectory.toFile(), header), hashOf(header));
+	}
+
+	private static HashCode hashOf(String content) {
+		return Hashing.hashString(content);
+	}
+
+	private static IncludeDirectives directivesOf(String header) {
+		return DefaultIncludeDirectives.of(ImmutableList.<Include>of(IncludeWithSimpleExpression.create(header, false, IncludeType.QUOTED)), ImmutableList.of(), ImmutableList.of());
+	}
+}
@@ -0,0 +1,136 @@
+package dev.nokee.companion.features;
+
+import org.gradle.api.internal.project.ProjectInternal;
+import org.gradle.api.services.BuildServiceParameters;
+import org.gradle.internal.event.ListenerManager;
+import org.gradle.internal.execution.OutputChangeListener;
+import org.gradle.testfixtures.ProjectBuilder;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+class IncludeDirectoryIndexIntegrationTests {
+	@TempDir Path testDirectory;
+	ListenerManager listenerManager;
+	IncludeDirectoryIndex index;
+	List<String> probes = new ArrayList<>();
+
+	@BeforeEach
+	void setup() {
+		listenerManager = ((ProjectInternal) ProjectBuilder.builder().withProjectDir(testDirectory.toFile()).build()).getServices().get(ListenerManager.class);
+		index = new IncludeDirectoryIndex(listenerManager) {
+			@Override
+			public BuildServiceParameters.None getParameters() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	@AfterEach
+	void tearDown() {
+		index.close();
+	}
+
+	@Test
+	void memoizesFoundAndMissingIncludeFiles() {
+		assertThat(lookup("include", "found.h"), equalTo("found"));
+		assertThat(lookup("include", "missing.h"), equalTo("missing"));
+		assertThat(lookup("include", "found.h"), equalTo("found"));
+		assertThat(lookup("include", "missing.h"), equalTo("missing"));
+
+		assertThat(probes, contains("found.h", "missing.h"));
+	}
+
+	@Test
+	void keepsLookupsOfEachDirectoryApart() {
+		lookup("include1", "missing.h");
+		lookup("include2", "missing.h");
+
+		assertThat(probes, contains("missing.h", "missing.h"));
+	}
+
+	@Test
+	void stopsMemoizingLookupsInsideTaskOutput() {
+		lookup("include", "generated.h");
+		lookup("other", "missing.h");
+		outputChanged("include");
+
+		lookup("include", "generated.h");
+		lookup("include", "generated.h");
+		lookup("other", "missing.h");
+		assertThat("probed on each lookup for the remainder of the build", probes, contains("generated.h", "missing.h", "generated.h", "generated.h"));
+	}
+
+	@Test
+	void stopsMemoizingLookupsInsideAndAroundTaskOutput() {
+		lookup("include", "missing.h");
+		lookup("include/sub", "missing.h");
+		outputChanged("include/sub/generated.h");
+
+		lookup("include", "missing.h");
+		lookup("include/sub", "missing.h");
+		assertThat("include directories containing the output", probes, hasSize(4));
+
+		probes.clear();
+		outputChanged("generated");
+		lookup("generated/nested", "missing.h");
+		lookup("generated/nested", "missing.h");
+		assertThat("include directories inside the output", probes, hasSize(2));
+	}
+
+	@Test
+	void doesNotConfuseSiblingWithTaskOutput() {
+		lookup("include-generated", "missing.h");
+		outputChanged("include");
+
+		lookup("include-generated", "missing.h");
+		assertThat(probes, hasSize(1));
+	}
+
+	@Test
+	void dropsListingsInsideTaskOutput() {
+		List<File> listed = new ArrayList<>();
+		listingOf("include", listed);
+		listingOf("include", listed);
+		assertThat(listed, hasSize(1));
+
+		outputChanged("include");
+		listingOf("include", listed);
+		listingOf("include", listed);
+		assertThat(listed, hasSize(3));
+	}
+
+	private String lookup(String directory, String includePath) {
+		return index.lookup(file(directory), includePath, it -> {
+			probes.add(it);
+			return it.startsWith("found") ? "found" : "missing";
+		});
+	}
+
+	private Optional<Map<String, String>> listingOf(String directory, List<File> listed) {
+		return index.listingOf(file(directory), it -> {
+			listed.add(it);
+			return Optional.of(Collections.emptyMap());
+		});
+	}
+
+	private void outputChanged(String path) {
+		listenerManager.getBroadcaster(OutputChangeListener.class).invalidateCachesFor(Collections.singleton(file(path).getAbsolutePath()));
+	}
+
+	private File file(String path) {
+		return testDirectory.resolve(path).toFile();
+	}
+}
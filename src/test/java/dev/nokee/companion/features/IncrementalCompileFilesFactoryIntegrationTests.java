@@ -0,0 +1,321 @@
+package dev.nokee.companion.features;
+
+import com.google.common.collect.ImmutableList;
+import org.gradle.api.internal.project.ProjectInternal;
+import org.gradle.internal.hash.HashCode;
+import org.gradle.internal.hash.Hashing;
+import org.gradle.internal.vfs.FileSystemAccess;
+import org.gradle.language.nativeplatform.internal.Include;
+import org.gradle.language.nativeplatform.internal.IncludeType;
+import org.gradle.language.nativeplatform.internal.incremental.CompilationState;
+import org.gradle.language.nativeplatform.internal.incremental.DefaultSourceIncludesParser;
+import org.gradle.language.nativeplatform.internal.incremental.IncludeFileEdge;
+import org.gradle.language.nativeplatform.internal.incremental.IncrementalCompilation;
+import org.gradle.language.nativeplatform.internal.incremental.MacroLookup;
+import org.gradle.language.nativeplatform.internal.incremental.SourceFileState;
+import org.gradle.language.nativeplatform.internal.incremental.SourceIncludesResolver;
+import org.gradle.language.nativeplatform.internal.incremental.sourceparser.DefaultIncludeDirectives;
+import org.gradle.language.nativeplatform.internal.incremental.sourceparser.RegexBackedCSourceParser;
+import org.gradle.testfixtures.ProjectBuilder;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Function;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+class IncrementalCompileFilesFactoryIntegrationTests {
+	@TempDir Path testDirectory;
+	FileSystemAccess fileSystemAccess;
+	List<File> sourceFiles;
+
+	/*
+	a.cpp -> x.h -> y.h -> x.h (cycle)
+	         x.h -> MACRO_HEADER (w.h)
+	b.cpp -> y.h -> z.h -> Z_HEADER (v.h) -> y.h (cycle)
+	c.cpp -> z.h
+	d.cpp -> v.h
+	 */
+	@BeforeEach
+	void setup() throws IOException {
+		fileSystemAccess = ((ProjectInternal) ProjectBuilder.builder().withProjectDir(testDirectory.toFile()).build()).getServices().get(FileSystemAccess.class);
+		write("src/x.h", "#pragma once", "#define MACRO_HEADER \"w.h\"", "#include \"y.h\"", "#include MACRO_HEADER");
+		write("src/y.h", "#pragma once", "#include \"x.h\"", "#include \"z.h\"");
+		write("src/z.h", "#pragma once", "#define Z_HEADER \"v.h\"", "#include Z_HEADER");
+		write("src/v.h", "#pragma once", "#include \"y.h\"");
+		write("src/w.h", "#pragma once");
+		sourceFiles = Arrays.asList(
+			write("src/a.cpp", "#include \"x.h\""),
+			write("src/b.cpp", "#include \"y.h\""),
+			write("src/c.cpp", "#include \"z.h\""),
+			write("src/d.cpp", "#include \"v.h\"")
+		);
+	}
+
+	@Test
+	void concurrentAnalysisYieldsSameIncludeGraphsAsSerialAnalysis() {
+		IncrementalCompilation serial = serialAnalysis();
+		for (int i = 0; i < 20; ++i) { // the concurrent source files visit the shared headers in any order
+			IncrementalCompilation concurrent = concurrentAnalysis();
+			assertThat(concurrent.getRecompile(), equalTo(serial.getRecompile()));
+			assertThat(concurrent.getExistingHeaders(), equalTo(serial.getExistingHeaders()));
+			assertThat(concurrent.isUnresolvedHeaders(), equalTo(serial.isUnresolvedHeaders()));
+			for (File sourceFile : sourceFiles) {
+				SourceFileState expected = serial.getFinalState().getState(sourceFile);
+				SourceFileState actual = concurrent.getFinalState().getState(sourceFile);
+				assertThat(actual.getHash(), equalTo(expected.getHash()));
+				assertThat(actual.isHasUnresolved(), equalTo(expected.isHasUnresolved()));
+				assertThat(new HashSet<IncludeFileEdge>(IncrementalCompileFilesFactory.edgesOf(actual)), equalTo(new HashSet<IncludeFileEdge>(IncrementalCompileFilesFactory.edgesOf(expected))));
+			}
+		}
+	}
+
+	@Test
+	void resolvesMacroIncludesThroughCycles() {
+		IncrementalCompilation result = concurrentAnalysis();
+		assertThat(result.getExistingHeaders(), hasItems(file("src/w.h"), file("src/v.h")));
+		for (File sourceFile : sourceFiles) {
+			assertThat(result.getFinalState().getState(sourceFile).isHasUnresolved(), is(false));
+		}
+	}
+
+	@Test
+	void resolvesMacroIncludeOfSharedHeaderPerMacroEnvironment() throws IOException {
+		List<File> sources = Arrays.asList(writeMacroSelectedSource("s0.cpp", 0), writeMacroSelectedSource("s1.cpp", 1), writeMacroSelectedSource("again-0.cpp", 0));
+
+		List<File> macroIncludeResolutions = new ArrayList<>();
+		IncrementalCompilation result = macroSelectedAnalysisOf(sources, macroIncludeResolutions);
+		assertThat(includePathsOf(result, sources.get(0)), hasItem("impl-0.h"));
+		assertThat(includePathsOf(result, sources.get(1)), allOf(hasItem("impl-1.h"), not(hasItem("impl-0.h"))));
+		assertThat(includePathsOf(result, sources.get(2)), allOf(hasItem("impl-0.h"), not(hasItem("impl-1.h"))));
+		assertThat("again-0.cpp reuses the graph of select.h resolved for s0.cpp", macroIncludeResolutions, hasSize(2));
+	}
+
+	@Test
+	void keepsMostRecentMacroResultsOfSharedHeader() throws IOException {
+		List<File> sources = new ArrayList<>();
+		for (int i = 0; i < 10; ++i) {
+			sources.add(writeMacroSelectedSource("s" + i + ".cpp", i));
+		}
+		sources.add(writeMacroSelectedSource("again-9.cpp", 9));
+		sources.add(writeMacroSelectedSource("again-0.cpp", 0));
+
+		List<File> macroIncludeResolutions = new ArrayList<>();
+		IncrementalCompilation result = macroSelectedAnalysisOf(sources, macroIncludeResolutions);
+		assertThat(includePathsOf(result, sources.get(10)), hasItem("impl-9.h"));
+		assertThat(includePathsOf(result, sources.get(11)), hasItem("impl-0.h"));
+		assertThat("only the 8 most recent macro environments are memoized", macroIncludeResolutions, hasSize(11));
+	}
+
+	@Test
+	void doesNotResolveIncludesAgainWhenNoIncludeRootChanged() throws IOException {
+		File sourceFile = writeIncludeRoots();
+		IncrementalCompilation previous = analysisOf(sourceFile, new CompilationState(), null);
+
+		List<String> resolvedIncludes = new ArrayList<>();
+		IncrementalCompilation result = analysisOf(sourceFile, previous.getFinalState(), unchangedDirectories(previous, "src", "include1", "include2"), resolvedIncludes);
+		assertThat(result.getRecompile(), empty());
+		assertThat(result.getExistingHeaders(), containsInAnyOrder(file("include1/p.h"), file("include2/q.h")));
+		assertThat(resolvedIncludes, empty());
+	}
+
+	@Test
+	void resolvesAgainOnlyIncludesUnderChangedIncludeRoot() throws IOException {
+		File sourceFile = writeIncludeRoots();
+		IncrementalCompilation previous = analysisOf(sourceFile, new CompilationState(), null);
+		write("include2/r.h", "#pragma once");
+
+		List<String> resolvedIncludes = new ArrayList<>();
+		IncrementalCompilation result = analysisOf(sourceFile, previous.getFinalState(), unchangedDirectories(previous, "src", "include1"), resolvedIncludes);
+		assertThat(result.getRecompile(), empty());
+		assertThat(result.getExistingHeaders(), containsInAnyOrder(file("include1/p.h"), file("include2/q.h")));
+		assertThat(resolvedIncludes, contains("q.h"));
+	}
+
+	@Test
+	void recompilesWhenHeaderAddedToEarlierIncludeRootShadowsExistingHeader() throws IOException {
+		File sourceFile = writeIncludeRoots();
+		IncrementalCompilation previous = analysisOf(sourceFile, new CompilationState(), null);
+		write("include1/q.h", "#pragma once", "#define SHADOWING_Q");
+
+		IncrementalCompilation result = analysisOf(sourceFile, previous.getFinalState(), unchangedDirectories(previous, "src", "include2"), new ArrayList<>());
+		assertThat(result.getRecompile(), contains(sourceFile));
+		assertThat(result.getExistingHeaders(), hasItem(file("include1/q.h")));
+	}
+
+	@Test
+	void fallsBackToIncludeParsingWithoutDependencyFile() throws IOException {
+		File sourceFile = writeIncludeRoots();
+		IncrementalCompilation previous = analysisOf(sourceFile, new CompilationState(), null);
+
+		List<String> resolvedIncludes = new ArrayList<>();
+		IncrementalCompilation result = analysisOf(sourceFile, previous.getFinalState(), null, resolvedIncludes, it -> null);
+		assertThat(result.getRecompile(), empty());
+		assertThat(resolvedIncludes, containsInAnyOrder("p.h", "q.h"));
+	}
+
+	@Test
+	void trustsHeadersReportedByCompiler() throws IOException {
+		File sourceFile = writeIncludeRoots();
+		File header = write("include dir/p #1.h", "#pragma once");
+		IncrementalCompilation previous = analysisOf(sourceFile, new CompilationState(), null);
+		Map<File, HashCode> dependencies = Collections.singletonMap(header, GradleInternals.readRegularFileContentHash(fileSystemAccess, header.getAbsolutePath()).get());
+
+		List<String> resolvedIncludes = new ArrayList<>();
+		IncrementalCompilation result = analysisOf(sourceFile, previous.getFinalState(), null, resolvedIncludes, it -> dependencies);
+		assertThat(result.getRecompile(), empty());
+		assertThat(result.getExistingHeaders(), hasItem(header));
+		assertThat(resolvedIncludes, empty());
+	}
+
+	@Test
+	void recompilesWhenHeaderReportedByCompilerChangedOrRemoved() throws IOException {
+		File sourceFile = writeIncludeRoots();
+		IncrementalCompilation previous = analysisOf(sourceFile, new CompilationState(), null);
+
+		Map<File, HashCode> staleDependencies = Collections.singletonMap(file("include1/p.h"), Hashing.hashString("previous content"));
+		assertThat(analysisOf(sourceFile, previous.getFinalState(), null, new ArrayList<>(), it -> staleDependencies).getRecompile(), contains(sourceFile));
+
+		Map<File, HashCode> removedDependencies = Collections.singletonMap(file("include1/removed.h"), Hashing.hashString("removed content"));
+		assertThat(analysisOf(sourceFile, previous.getFinalState(), null, new ArrayList<>(), it -> removedDependencies).getRecompile(), contains(sourceFile));
+	}
+
+	// src/<name> -> config-<n>.h (CONFIG_HEADER), select.h -> CONFIG_HEADER (impl-<n>.h)
+	private File writeMacroSelectedSource(String name, int n) throws IOException {
+		write("include/select.h", "#include CONFIG_HEADER");
+		write("include/config-" + n + ".h", "#define CONFIG_HEADER \"impl-" + n + ".h\"");
+		write("include/impl-" + n + ".h", "#pragma once");
+		return write("src/" + name, "// " + name, "#include \"config-" + n + ".h\"", "#include \"select.h\"");
+	}
+
+	private IncrementalCompilation macroSelectedAnalysisOf(List<File> sourceFiles, List<File> macroIncludeResolutions) {
+		IncludeDirectivesParser parser = IncludeDirectivesParser.of(new DefaultSourceIncludesParser(new RegexBackedCSourceParser(), false));
+		DefaultSourceIncludesResolver resolver = new DefaultSourceIncludesResolver(Arrays.asList(file("include")), fileSystemAccess);
+		SourceIncludesResolver recordingResolver = new SourceIncludesResolver() {
+			@Override
+			public IncludeResolutionResult resolveInclude(@Nullable File sourceFile, Include include, MacroLookup visibleMacros) {
+				if (include.getType() == IncludeType.MACRO) {
+					macroIncludeResolutions.add(sourceFile);
+				}
+				return resolver.resolveInclude(sourceFile, include, visibleMacros);
+			}
+
+			@Override
+			public IncludeFile resolveInclude(@Nullable File sourceFile, String includePath) {
+				return resolver.resolveInclude(sourceFile, includePath);
+			}
+		};
+		IncrementalCompileFilesFactory factory = new IncrementalCompileFilesFactory(DefaultIncludeDirectives.of(ImmutableList.of(), ImmutableList.of(), ImmutableList.of()), parser, recordingResolver, fileSystemAccess);
+		IncrementalCompileFilesFactory.DefaultIncrementalCompileSourceProcessor processor = factory.files(new CompilationState());
+		sourceFiles.forEach(processor::processSource);
+		return processor.getResult();
+	}
+
+	private static List<String> includePathsOf(IncrementalCompilation result, File sourceFile) {
+		List<String> includePaths = new ArrayList<>();
+		for (IncludeFileEdge edge : IncrementalCompileFilesFactory.edgesOf(result.getFinalState().getState(sourceFile))) {
+			includePaths.add(edge.getIncludePath());
+		}
+		return includePaths;
+	}
+
+	// src/e.cpp -> p.h (include1), q.h (include2)
+	private File writeIncludeRoots() throws IOException {
+		write("include1/p.h", "#pragma once");
+		write("include2/q.h", "#pragma once");
+		return write("src/e.cpp", "#include \"p.h\"", "#include \"q.h\"");
+	}
+
+	private CompilationStateStore.UnchangedDirectories unchangedDirectories(IncrementalCompilation previous, String... directories) {
+		Set<File> result = new HashSet<>();
+		for (String directory : directories) {
+			result.add(file(directory));
+		}
+		// never all, exercises the resolution of each edge
+		return new CompilationStateStore.UnchangedDirectories(includeRoots(), result, false, previous.getExistingHeaders());
+	}
+
+	private IncrementalCompilation analysisOf(File sourceFile, CompilationState previous, @Nullable CompilationStateStore.UnchangedDirectories unchangedDirectories) {
+		return analysisOf(sourceFile, previous, unchangedDirectories, new ArrayList<>());
+	}
+
+	private IncrementalCompilation analysisOf(File sourceFile, CompilationState previous, @Nullable CompilationStateStore.UnchangedDirectories unchangedDirectories, List<String> resolvedIncludes) {
+		return analysisOf(sourceFile, previous, unchangedDirectories, resolvedIncludes, it -> null);
+	}
+
+	private IncrementalCompilation analysisOf(File sourceFile, CompilationState previous, @Nullable CompilationStateStore.UnchangedDirectories unchangedDirectories, List<String> resolvedIncludes, Function<? super File, ? extends Map<File, HashCode>> previousDependencies) {
+		// the files written since the previous analysis
+		fileSystemAccess.invalidate(Collections.singleton(testDirectory.toString()));
+		IncludeDirectivesParser parser = IncludeDirectivesParser.of(new DefaultSourceIncludesParser(new RegexBackedCSourceParser(), false));
+		DefaultSourceIncludesResolver resolver = new DefaultSourceIncludesResolver(includeRoots(), fileSystemAccess);
+		SourceIncludesResolver recordingResolver = new SourceIncludesResolver() {
+			@Override
+			public IncludeResolutionResult resolveInclude(@Nullable File sourceFile, Include include, MacroLookup visibleMacros) {
+				return resolver.resolveInclude(sourceFile, include, visibleMacros);
+			}
+
+			@Override
+			public IncludeFile resolveInclude(@Nullable File sourceFile, String includePath) {
+				resolvedIncludes.add(includePath);
+				return resolver.resolveInclude(sourceFile, includePath);
+			}
+		};
+		IncrementalCompileFilesFactory factory = new IncrementalCompileFilesFactory(DefaultIncludeDirectives.of(ImmutableList.of(), ImmutableList.of(), ImmutableList.of()), parser, recordingResolver, fileSystemAccess, unchangedDirectories, previousDependencies);
+		IncrementalCompileFilesFactory.DefaultIncrementalCompileSourceProcessor processor = factory.files(previous);
+		processor.processSource(sourceFile);
+		return processor.getResult();
+	}
+
+	private List<File> includeRoots() {
+		return Arrays.asList(file("include1"), file("include2"));
+	}
+
+	private IncrementalCompilation serialAnalysis() {
+		IncrementalCompileFilesFactory.DefaultIncrementalCompileSourceProcessor processor = newFactory().files(new CompilationState());
+		sourceFiles.forEach(processor::processSource);
+		return processor.getResult();
+	}
+
+	private IncrementalCompilation concurrentAnalysis() {
+		IncrementalCompileFilesFactory.DefaultIncrementalCompileSourceProcessor processor = newFactory().files(new CompilationState());
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			processor.processSources(sourceFiles, pool);
+		} finally {
+			pool.shutdown();
+		}
+		return processor.getResult();
+	}
+
+	private IncrementalCompileFilesFactory newFactory() {
+		IncludeDirectivesParser parser = IncludeDirectivesParser.of(new DefaultSourceIncludesParser(new RegexBackedCSourceParser(), false));
+		DefaultSourceIncludesResolver resolver = new DefaultSourceIncludesResolver(Arrays.asList(file("src")), fileSystemAccess);
+		return new IncrementalCompileFilesFactory(DefaultIncludeDirectives.of(ImmutableList.of(), ImmutableList.of(), ImmutableList.of()), parser, resolver, fileSystemAccess);
+	}
+
+	private File file(String path) {
+		return testDirectory.resolve(path).toFile();
+	}
+
+	private File write(String path, String... lines) throws IOException {
+		File result = file(path);
+		Files.createDirectories(result.getParentFile().toPath());
+		Files.write(result.toPath(), Arrays.asList(lines));
+		return result;
+	}
+}
@@ -0,0 +1,182 @@
+package dev.nokee.companion.features;
+
+import com.google.common.collect.ImmutableList;
+import org.gradle.api.internal.project.ProjectInternal;
+import org.gradle.internal.vfs.FileSystemAccess;
+import org.gradle.language.nativeplatform.internal.Expression;
+import org.gradle.language.nativeplatform.internal.Include;
+import org.gradle.language.nativeplatform.internal.IncludeDirectives;
+import org.gradle.language.nativeplatform.internal.Macro;
+import org.gradle.language.nativeplatform.internal.MacroFunction;
+import org.gradle.language.nativeplatform.internal.incremental.CollectingMacroLookup;
+import org.gradle.language.nativeplatform.internal.incremental.SourceIncludesResolver;
+import org.gradle.language.nativeplatform.internal.incremental.sourceparser.DefaultIncludeDirectives;
+import org.gradle.language.nativeplatform.internal.incremental.sourceparser.MacroWithSimpleExpression;
+import org.gradle.language.nativeplatform.internal.incremental.sourceparser.RegexBackedCSourceParser;
+import org.gradle.testfixtures.ProjectBuilder;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+class MacroEnvironmentIntegrationTests {
+	private static final List<String> NAMES = Arrays.asList("HEADER", "INDIRECT", "SELECT", "WRAP", "UNDEFINED");
+	@TempDir Path testDirectory;
+	FileSystemAccess fileSystemAccess;
+	File source;
+	IncludeDirectives initialDirectives;
+
+	/*
+	first.h: HEADER -> "first.h", SELECT(x) -> x
+	second.h: HEADER -> "second.h" (redefined), SELECT(x) -> "second.h" (redefined), INDIRECT -> HEADER
+	third.h: INDIRECT -> "third.h" (redefined), WRAP(x) -> SELECT(x)
+	 */
+	@BeforeEach
+	void setup() throws IOException {
+		fileSystemAccess = ((ProjectInternal) ProjectBuilder.builder().withProjectDir(testDirectory.toFile()).build()).getServices().get(FileSystemAccess.class);
+		write("include/first.h", "#define HEADER \"first.h\"", "#define SELECT(x) x");
+		write("include/second.h", "#undef HEADER", "#define HEADER \"second.h\"", "#undef SELECT", "#define SELECT(x) \"second.h\"", "#define INDIRECT HEADER");
+		write("include/third.h", "#undef INDIRECT", "#define INDIRECT \"third.h\"", "#define WRAP(x) SELECT(x)");
+		source = write("src/main.cpp", "#include HEADER", "#include INDIRECT", "#include SELECT(\"third.h\")", "#include WRAP(HEADER)", "#include UNDEFINED");
+
+		Expression expression = RegexBackedCSourceParser.parseExpression("\"third.h\"");
+		initialDirectives = DefaultIncludeDirectives.of(ImmutableList.of(), ImmutableList.<Macro>of(new MacroWithSimpleExpression("HEADER", expression.getType(), expression.getValue())), ImmutableList.of());
+	}
+
+	@Test
+	void seesSameDefinitionsAsCollectingMacroLookupAtEachMark() {
+		CollectingMacroLookup expected = new CollectingMacroLookup(initialDirectives);
+		MacroEnvironment actual = new MacroEnvironment(initialDirectives);
+		List<List<List<Object>>> expectedAtMarks = new ArrayList<>();
+		List<Integer> marks = new ArrayList<>();
+		for (String header : Arrays.asList("first.h", "second.h", "first.h", "third.h", "second.h")) { // headers included again are visible once
+			IncludeDirectives directives = parse("include/" + header);
+			expected.append(file("include/" + header), directives);
+			actual.append(file("include/" + header), directives);
+			expectedAtMarks.add(definitionsOf(expected));
+			marks.add(actual.mark());
+		}
+
+		assertThat(listOf(actual), equalTo(listOf(expected)));
+		for (int i = 0; i < marks.size(); ++i) {
+			assertThat("definitions visible at mark " + i, definitionsOf(actual, marks.get(i)), equalTo(expectedAtMarks.get(i)));
+		}
+	}
+
+	@Test
+	void seesSameDefinitionsAsCollectingMacroLookupThroughAppendedEnvironments() {
+		CollectingMacroLookup expectedReused = new CollectingMacroLookup();
+		MacroEnvironment actualReused = new MacroEnvironment();
+		for (String header : Arrays.asList("second.h", "third.h")) {
+			expectedReused.append(file("include/" + header), parse("include/" + header));
+			actualReused.append(file("include/" + header), parse("include/" + header));
+		}
+
+		CollectingMacroLookup expected = new CollectingMacroLookup(initialDirectives);
+		MacroEnvironment actual = new MacroEnvironment(initialDirectives);
+		IncludeDirectives first = parse("include/first.h");
+		expected.append(file("include/first.h"), first);
+		actual.append(file("include/first.h"), first);
+		expectedReused.appendTo(expected);
+		actual.append(actualReused);
+		expectedReused.appendTo(expected); // reused twice
+		actual.append(actualReused);
+
+		assertThat(definitionsOf(actual, actual.mark()), equalTo(definitionsOf(expected)));
+		assertThat(definitionsOf(actualReused, actualReused.mark()), equalTo(definitionsOf(expectedReused)));
+	}
+
+	@Test
+	void resolvesMacroIncludesToSameHeadersAsCollectingMacroLookup() {
+		List<File> includeRoots = Arrays.asList(file("include"));
+		org.gradle.language.nativeplatform.internal.incremental.DefaultSourceIncludesResolver expectedResolver = new org.gradle.language.nativeplatform.internal.incremental.DefaultSourceIncludesResolver(includeRoots, fileSystemAccess);
+		DefaultSourceIncludesResolver actualResolver = new DefaultSourceIncludesResolver(includeRoots, fileSystemAccess);
+
+		CollectingMacroLookup expected = new CollectingMacroLookup(initialDirectives);
+		MacroEnvironment actual = new MacroEnvironment(initialDirectives);
+		for (String header : Arrays.asList("first.h", "second.h", "third.h")) {
+			IncludeDirectives directives = parse("include/" + header);
+			expected.append(file("include/" + header), directives);
+			actual.append(file("include/" + header), directives);
+
+			for (Include include : parse("src/main.cpp").getAll()) {
+				SourceIncludesResolver.IncludeResolutionResult expectedResult = expectedResolver.resolveInclude(source, include, expected);
+				SourceIncludesResolver.IncludeResolutionResult actualResult = actualResolver.resolveInclude(source, include, actual);
+				assertThat(include + " after " + header, actualResult.isComplete(), equalTo(expectedResult.isComplete()));
+				assertThat(include + " after " + header, filesOf(actualResult), equalTo(filesOf(expectedResult)));
+			}
+		}
+	}
+
+	// Definitions by name, as the resolver consults the visible directives
+	private static List<List<Object>> definitionsOf(Iterable<IncludeDirectives> lookup) {
+		List<List<Object>> result = new ArrayList<>();
+		for (String name : NAMES) {
+			List<Object> definitions = new ArrayList<>();
+			for (IncludeDirectives directives : lookup) {
+				directives.getMacros(name).forEach(definitions::add);
+			}
+			for (IncludeDirectives directives : lookup) {
+				directives.getMacroFunctions(name).forEach(definitions::add);
+			}
+			result.add(definitions);
+		}
+		return result;
+	}
+
+	private static List<List<Object>> definitionsOf(MacroEnvironment environment, int mark) {
+		List<List<Object>> result = new ArrayList<>();
+		for (String name : NAMES) {
+			List<Object> definitions = new ArrayList<>();
+			for (Macro macro : environment.macrosOf(name, mark)) {
+				definitions.add(macro);
+			}
+			for (MacroFunction macroFunction : environment.macroFunctionsOf(name, mark)) {
+				definitions.add(macroFunction);
+			}
+			result.add(definitions);
+		}
+		return result;
+	}
+
+	private static List<IncludeDirectives> listOf(Iterable<IncludeDirectives> lookup) {
+		List<IncludeDirectives> result = new ArrayList<>();
+		lookup.forEach(result::add);
+		return result;
+	}
+
+	private static Set<File> filesOf(SourceIncludesResolver.IncludeResolutionResult result) {
+		Set<File> files = new HashSet<>();
+		for (SourceIncludesResolver.IncludeFile includeFile : result.getFiles()) {
+			files.add(includeFile.getFile());
+		}
+		return files;
+	}
+
+	private IncludeDirectives parse(String path) {
+		return new RegexBackedCSourceParser().parseSource(file(path));
+	}
+
+	private File file(String path) {
+		return testDirectory.resolve(path).toFile();
+	}
+
+	private File write(String path, String... lines) throws IOException {
+		File result = file(path);
+		Files.createDirectories(result.getParentFile().toPath());
+		Files.write(result.toPath(), Arrays.asList(lines));
+		return result;
+	}
+}
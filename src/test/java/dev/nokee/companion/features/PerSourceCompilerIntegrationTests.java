@@ -0,0 +1,170 @@
+package dev.nokee.companion.features;
+
+import org.gradle.api.Action;
+import org.gradle.api.tasks.WorkResults;
+import org.gradle.internal.hash.HashCode;
+import org.gradle.language.cpp.tasks.internal.DefaultCppCompileSpec;
+import org.gradle.nativeplatform.toolchain.internal.compilespec.CppCompileSpec;
+import org.gradle.workers.WorkAction;
+import org.gradle.workers.WorkParameters;
+import org.gradle.workers.WorkQueue;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+class PerSourceCompilerIntegrationTests {
+	@TempDir Path testDirectory;
+	File sourceA;
+	File sourceB;
+	File sourceC;
+	File preCompiledHeaderObjectFile;
+	List<File> flagsDirectories = new ArrayList<>();
+	List<HashCode> headerGraphHashes = new ArrayList<>();
+	@Nullable HashCode includeGraphHash = HashCode.fromString("0123456789abcdef");
+
+	@BeforeEach
+	void setup() {
+		sourceA = write("src/a.cpp", "#include \"pch.h\"");
+		sourceB = write("src/b.cpp", "#include \"pch.h\"");
+		sourceC = write("src/c.cpp", "int c() { return 0; }");
+		preCompiledHeaderObjectFile = write("build/pch-objs/prefix-headers.h.pch", "default precompiled header");
+	}
+
+	@Test
+	void passesThroughOnlyWarningAndDiagnosticFlags() {
+		for (String arg : Arrays.asList("-w", "-Wall", "-Wextra", "-Wno-unused-function", "-Wshadow=local", "-fdiagnostics-color=always")) {
+			assertThat(arg, PerSourceCompiler.isPreCompiledHeaderNeutral(arg), is(true));
+		}
+		for (String arg : Arrays.asList("-Werror", "-Werror=shadow", "-Wno-error", "-Wfatal-errors", "-Wp,-DFOO", "-Wa,--noexecstack", "-Wl,-rpath", "-DFOO", "-UFOO", "-O2", "-std=c++17", "-Iinclude", "-fno-exceptions")) {
+			assertThat(arg, PerSourceCompiler.isPreCompiledHeaderNeutral(arg), is(false));
+		}
+	}
+
+	@Test
+	void sharesDefaultPreCompiledHeaderWithBucketsOfNeutralFlags() {
+		CppCompileSpec bucket = newSpec(Arrays.asList(sourceA), "-O0", "-Wall", "-Wno-unused-function");
+		compile(bucket);
+
+		assertThat(flagsDirectories, empty());
+		assertThat(bucket.getPreCompiledHeaderObjectFile(), equalTo(preCompiledHeaderObjectFile));
+	}
+
+	@Test
+	void compilesPreCompiledHeaderOncePerDistinctIncompatibleFlags() {
+		CppCompileSpec bucket1 = newSpec(Arrays.asList(sourceA), "-O0", "-DFOO");
+		CppCompileSpec bucket2 = newSpec(Arrays.asList(sourceB), "-O0", "-DFOO");
+		CppCompileSpec bucket3 = newSpec(Arrays.asList(sourceA, sourceB), "-O2");
+		compile(bucket1, bucket2, bucket3);
+
+		assertThat(flagsDirectories, hasSize(2));
+		assertThat(flagsDirectories.get(0), not(equalTo(flagsDirectories.get(1))));
+		assertThat(bucket1.getPreCompiledHeaderObjectFile().getName(), equalTo("prefix-headers.h.pch"));
+		assertThat(bucket1.getPreCompiledHeaderObjectFile(), equalTo(bucket2.getPreCompiledHeaderObjectFile()));
+		assertThat(bucket1.getPreCompiledHeaderObjectFile(), not(equalTo(bucket3.getPreCompiledHeaderObjectFile())));
+	}
+
+	@Test
+	void doesNotCompilePreCompiledHeaderForBucketsWithoutSourcesUsingIt() {
+		compile(newSpec(Arrays.asList(sourceC), "-O0", "-DFOO"));
+
+		assertThat(flagsDirectories, empty());
+	}
+
+	@Test
+	void keysPreCompiledHeaderOnResolvedIncludeGraph() {
+		compile(newSpec(Arrays.asList(sourceA), "-O0", "-DFOO"));
+		compile(newSpec(Arrays.asList(sourceA), "-O0", "-DFOO"));
+		includeGraphHash = HashCode.fromString("fedcba9876543210");
+		compile(newSpec(Arrays.asList(sourceA), "-O0", "-DFOO"));
+
+		assertThat(headerGraphHashes, hasSize(3));
+		assertThat("same include graph", headerGraphHashes.get(0), equalTo(headerGraphHashes.get(1)));
+		assertThat("changed include graph", headerGraphHashes.get(0), not(equalTo(headerGraphHashes.get(2))));
+	}
+
+	@Test
+	void doesNotKeyPreCompiledHeaderOnUnknownIncludeGraph() {
+		includeGraphHash = null;
+		compile(newSpec(Arrays.asList(sourceA), "-O0", "-DFOO"));
+
+		assertThat(headerGraphHashes, contains(nullValue()));
+	}
+
+	private void compile(CppCompileSpec... buckets) {
+		CppCompileSpec defaultSpec = newSpec(Arrays.asList(sourceA, sourceB, sourceC), "-O0");
+		ObjectCache.InputHasher inputHasher = new ObjectCache.InputHasher() {
+			@Override
+			public HashCode hashOf(File sourceFile) {
+				return null;
+			}
+
+			@Override
+			public HashCode headerGraphHashOf(File sourceFile, String includePath) {
+				assertThat(includePath, equalTo("pch.h"));
+				return includeGraphHash;
+			}
+		};
+		PerSourceCompiler<CppCompileSpec> compiler = new PerSourceCompiler<>(spec -> WorkResults.didWork(true), files -> Arrays.asList(buckets), this::compilePreCompiledHeader, inputHasher, new NoOpWorkQueue());
+		compiler.execute(defaultSpec);
+	}
+
+	private File compilePreCompiledHeader(CppCompileSpec spec, File flagsDirectory, @Nullable HashCode headerGraphHash) {
+		flagsDirectories.add(flagsDirectory);
+		headerGraphHashes.add(headerGraphHash);
+		File result = new File(flagsDirectory, (headerGraphHash == null ? "unknown" : headerGraphHash.toString()) + "/prefix-headers.h.pch");
+		write(result, "precompiled header of " + String.join(" ", spec.getArgs()));
+		return result;
+	}
+
+	// Same as the default spec copied for each bucket, see CppCompileTask#copyOf
+	private CppCompileSpec newSpec(List<File> sourceFiles, String... args) {
+		CppCompileSpec result = new DefaultCppCompileSpec();
+		result.setTempDir(testDirectory.resolve("build/tmp").toFile());
+		result.setObjectFileDir(testDirectory.resolve("build/objs").toFile());
+		result.setSourceFiles(new ArrayList<>(sourceFiles));
+		result.getArgs().addAll(Arrays.asList(args));
+		result.setPreCompiledHeader("pch.h");
+		result.setPrefixHeaderFile(write("build/tmp/pch/prefix-headers.h", "#include \"pch.h\""));
+		result.setPreCompiledHeaderObjectFile(preCompiledHeaderObjectFile);
+		result.setSourceFilesForPch(Arrays.asList(sourceA, sourceB));
+		return result;
+	}
+
+	private File write(String path, String content) {
+		return write(testDirectory.resolve(path).toFile(), content);
+	}
+
+	private static File write(File file, String content) {
+		try {
+			Files.createDirectories(file.getParentFile().toPath());
+			Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+			return file;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private static final class NoOpWorkQueue implements WorkQueue {
+		@Override
+		public <T extends WorkParameters> void submit(Class<? extends WorkAction<T>> workActionClass, Action<? super T> parameterAction) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void await() {}
+	}
+}
@@ -0,0 +1,145 @@
+package dev.nokee.companion.features;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+class SourceBucketsIntegrationTests {
+	@TempDir Path testDirectory;
+	File bucketsFile;
+	File top;
+	File subY;
+	File subX;
+	File subZ;
+	// Overlapping rules, in declaration order, a source file accumulates the arguments of each matching rule
+	List<Rule> rules;
+
+	@BeforeEach
+	void setup() {
+		bucketsFile = testDirectory.resolve("compile/source-buckets.bin").toFile();
+		top = testDirectory.resolve("src/top.cpp").toFile();
+		subY = testDirectory.resolve("src/sub/y.cpp").toFile();
+		subX = testDirectory.resolve("src/sub/x.cpp").toFile();
+		subZ = testDirectory.resolve("src/sub/z.cpp").toFile();
+		rules = Arrays.asList(
+			new Rule(it -> it.getPath().startsWith(testDirectory.resolve("src").toString()), "-DALL"),
+			new Rule(it -> it.getParentFile().getName().equals("sub"), "-DSUB"),
+			new Rule(it -> it.equals(subX), "-DX"),
+			new Rule(it -> it.getName().equals("top.cpp"), "-DTOP")
+		);
+	}
+
+	@Test
+	void assignsOverlappingRulesLikeEvaluatingEverySourceFile() {
+		List<File> sourceFiles = Arrays.asList(top, subY, subX);
+		SourceBuckets subject = SourceBuckets.load(bucketsFile, true);
+		evaluate(subject, subject.unassigned(sourceFiles));
+
+		assertThat(argsOf(subject.groupedByBucket(sourceFiles)), equalTo(evaluateEverySourceFile(sourceFiles)));
+	}
+
+	@Test
+	void evaluatesOnlyNewSourceFilesOfIncrementalExecution() {
+		SourceBuckets previous = SourceBuckets.load(bucketsFile, true);
+		evaluate(previous, Arrays.asList(top, subY, subX));
+
+		List<File> sourceFiles = Arrays.asList(top, subY, subZ, subX);
+		SourceBuckets subject = SourceBuckets.load(bucketsFile, true);
+		assertThat(subject.unassigned(sourceFiles), contains(subZ));
+		evaluate(subject, subject.unassigned(sourceFiles));
+
+		assertThat(argsOf(subject.groupedByBucket(sourceFiles)), equalTo(evaluateEverySourceFile(sourceFiles)));
+	}
+
+	@Test
+	void startsOverOnNonIncrementalExecution() {
+		SourceBuckets previous = SourceBuckets.load(bucketsFile, true);
+		evaluate(previous, Arrays.asList(top, subY, subX));
+
+		// e.g. changed rules
+		rules = Collections.singletonList(new Rule(it -> it.equals(subY), "-DY"));
+		List<File> sourceFiles = Arrays.asList(top, subY, subX);
+		SourceBuckets subject = SourceBuckets.load(bucketsFile, false);
+		assertThat(subject.unassigned(sourceFiles), contains(top, subY, subX));
+		evaluate(subject, subject.unassigned(sourceFiles));
+
+		assertThat(argsOf(subject.groupedByBucket(sourceFiles)), equalTo(evaluateEverySourceFile(sourceFiles)));
+		assertThat(argsOf(SourceBuckets.load(bucketsFile, true).groupedByBucket(sourceFiles)), equalTo(evaluateEverySourceFile(sourceFiles)));
+	}
+
+	@Test
+	void startsOverWithUnreadableAssignments() throws IOException {
+		Files.createDirectories(bucketsFile.getParentFile().toPath());
+		Files.write(bucketsFile.toPath(), new byte[] {0x4e, 0x4b, 0x53, 0x42, 0, 0, 0, 1, 0, 0, 0, 5});
+
+		List<File> sourceFiles = Arrays.asList(top, subY, subX);
+		SourceBuckets subject = SourceBuckets.load(bucketsFile, true);
+		assertThat(subject.unassigned(sourceFiles), contains(top, subY, subX));
+	}
+
+	@Test
+	void doesNotGroupSourceFilesWithoutOptions() {
+		File other = testDirectory.resolve("other/other.cpp").toFile();
+		List<File> sourceFiles = Arrays.asList(top, other);
+		SourceBuckets subject = SourceBuckets.load(bucketsFile, true);
+		evaluate(subject, sourceFiles);
+
+		assertThat(subject.unassigned(sourceFiles), empty());
+		assertThat(subject.groupedByBucket(sourceFiles).values(), contains(contains(top)));
+	}
+
+	// Same as CppCompileTask, assigns the per-source options groups of the unassigned files then the default bucket
+	private void evaluate(SourceBuckets buckets, List<File> sourceFiles) {
+		evaluateEverySourceFile(sourceFiles).forEach((args, files) -> buckets.assign(String.join("", args), args, files));
+		buckets.assignDefault(sourceFiles);
+		buckets.save();
+	}
+
+	// The original evaluation, each source file against each rule
+	private Map<List<String>, List<File>> evaluateEverySourceFile(List<File> sourceFiles) {
+		Map<List<String>, List<File>> result = new LinkedHashMap<>();
+		for (File sourceFile : sourceFiles) {
+			List<String> args = new ArrayList<>();
+			for (Rule rule : rules) {
+				if (rule.spec.test(sourceFile)) {
+					args.add(rule.arg);
+				}
+			}
+			if (!args.isEmpty()) {
+				result.computeIfAbsent(args, it -> new ArrayList<>()).add(sourceFile);
+			}
+		}
+		return result;
+	}
+
+	private static Map<List<String>, List<File>> argsOf(Map<SourceBuckets.Bucket, List<File>> buckets) {
+		Map<List<String>, List<File>> result = new LinkedHashMap<>();
+		buckets.forEach((bucket, files) -> result.put(bucket.getArgs(), files));
+		return result;
+	}
+
+	private static final class Rule {
+		private final Predicate<File> spec;
+		private final String arg;
+
+		private Rule(Predicate<File> spec, String arg) {
+			this.spec = spec;
+			this.arg = arg;
+		}
+	}
+}
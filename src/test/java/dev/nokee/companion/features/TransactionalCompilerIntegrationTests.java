@@ -0,0 +1,294 @@
+package dev.nokee.companion.features;
+
+import org.gradle.api.file.FileSystemOperations;
+import org.gradle.api.tasks.WorkResult;
+import org.gradle.api.tasks.WorkResults;
+import org.gradle.internal.hash.HashCode;
+import org.gradle.internal.hash.Hashing;
+import org.gradle.internal.operations.logging.BuildOperationLogger;
+import org.gradle.language.base.internal.compile.Compiler;
+import org.gradle.language.cpp.tasks.internal.DefaultCppCompileSpec;
+import org.gradle.nativeplatform.toolchain.internal.compilespec.CppCompileSpec;
+import org.gradle.testfixtures.ProjectBuilder;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.inject.Inject;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+class TransactionalCompilerIntegrationTests {
+	@TempDir Path testDirectory;
+	FileSystemOperations fileOperations;
+	File objectFileDir;
+	File sourceA;
+	File sourceB;
+	List<File> compiledSourceFiles = new ArrayList<>();
+	Consumer<File> beforeCompile = it -> {};
+
+	@BeforeEach
+	void setup() throws IOException {
+		fileOperations = ProjectBuilder.builder().withProjectDir(testDirectory.toFile()).build().getObjects().newInstance(Services.class).getFileOperations();
+		objectFileDir = testDirectory.resolve("build/objs").toFile();
+		sourceA = write("src/a.cpp", "a");
+		sourceB = write("src/b.cpp", "b");
+		assertThat(compile(sourceA, sourceB), is(false));
+		compiledSourceFiles.clear();
+	}
+
+	@Test
+	void rollsBackObjectFilesOfFailedCompilation() throws IOException {
+		write("src/a.cpp", "a-changed");
+		write("src/b.cpp", "broken");
+
+		assertThat(compile(sourceA, sourceB), is(true));
+		assertThat(contentOf(objectFileOf(sourceA)), equalTo("object of a"));
+		assertThat(contentOf(objectFileOf(sourceB)), equalTo("object of b"));
+	}
+
+	@Test
+	void restoresCommittedTranslationUnitsOnNextCompilation() throws IOException {
+		write("src/a.cpp", "a-changed");
+		write("src/b.cpp", "broken");
+		compile(sourceA, sourceB);
+		compiledSourceFiles.clear();
+
+		write("src/b.cpp", "b-fixed");
+		assertThat(compile(sourceA, sourceB), is(false));
+		assertThat(compiledSourceFiles, contains(sourceB));
+		assertThat(contentOf(objectFileOf(sourceA)), equalTo("object of a-changed"));
+		assertThat(contentOf(objectFileOf(sourceB)), equalTo("object of b-fixed"));
+	}
+
+	@Test
+	void doesNotCommitTranslationUnitLeavingOnlyNonObjectFiles() throws IOException {
+		write("src/a.cpp", "a-changed");
+		write("src/b.cpp", "broken leaving dependency file");
+		compile(sourceA, sourceB);
+		compiledSourceFiles.clear();
+
+		// b.cpp is still broken, restoring its dependency file as the translation unit would succeed
+		assertThat(compile(sourceA, sourceB), is(true));
+		assertThat(compiledSourceFiles, contains(sourceB));
+	}
+
+	@Test
+	void doesNotCommitTranslationUnitLeavingEmptyObjectFile() throws IOException {
+		write("src/a.cpp", "a-changed");
+		write("src/b.cpp", "broken leaving empty object file");
+		compile(sourceA, sourceB);
+		compiledSourceFiles.clear();
+
+		assertThat(compile(sourceA, sourceB), is(true));
+		assertThat(compiledSourceFiles, contains(sourceB));
+		assertThat(contentOf(objectFileOf(sourceB)), equalTo("object of b"));
+	}
+
+	@Test
+	void stashesTranslationUnitsOnlyWhenDispatched() {
+		File sourceC = write("src/c.cpp", "c");
+		compile(sourceA, sourceB, sourceC);
+		write("src/a.cpp", "a-changed");
+		write("src/b.cpp", "b-changed");
+		write("src/c.cpp", "c-changed");
+
+		List<String> objectFilesInPlace = new ArrayList<>();
+		beforeCompile = sourceFile -> {
+			if (sourceFile.equals(sourceA)) {
+				for (File other : Arrays.asList(sourceA, sourceB, sourceC)) {
+					if (objectFileOf(other).exists()) {
+						objectFilesInPlace.add(other.getName());
+					}
+				}
+			}
+		};
+		compile(Arrays.asList(Arrays.asList(sourceA), Arrays.asList(sourceB, sourceC)));
+		assertThat("only the dispatched translation unit is stashed", objectFilesInPlace, contains("b.cpp", "c.cpp"));
+	}
+
+	@Test
+	void rollsBackFailureInTheMiddleOfBatch() {
+		File sourceC = write("src/c.cpp", "c");
+		compile(sourceA, sourceB, sourceC);
+		compiledSourceFiles.clear();
+		write("src/a.cpp", "a-changed");
+		write("src/b.cpp", "broken");
+		write("src/c.cpp", "c-changed");
+
+		assertThat(compile(Arrays.asList(Arrays.asList(sourceA, sourceB, sourceC))), is(true));
+		assertThat(contentOf(objectFileOf(sourceA)), equalTo("object of a"));
+		assertThat(contentOf(objectFileOf(sourceB)), equalTo("object of b"));
+		assertThat(contentOf(objectFileOf(sourceC)), equalTo("object of c"));
+		compiledSourceFiles.clear();
+
+		write("src/b.cpp", "b-fixed");
+		assertThat(compile(Arrays.asList(Arrays.asList(sourceA, sourceB, sourceC))), is(false));
+		assertThat("the units compiled before and after the failure are committed", compiledSourceFiles, contains(sourceB));
+		assertThat(contentOf(objectFileOf(sourceA)), equalTo("object of a-changed"));
+		assertThat(contentOf(objectFileOf(sourceC)), equalTo("object of c-changed"));
+	}
+
+	@Test
+	void copiesOutputDirectoryThatCannotBeMoved() throws IOException {
+		write("src/a.cpp", "a-changed");
+		write("src/b.cpp", "broken");
+
+		// The stash location is occupied, the output directory cannot be renamed there
+		File stashedDirectory = testDirectory.resolve("build/tmp/compile-transaction/stash/" + Hashing.hashString(objectFileOf(sourceA).getParentFile().getAbsolutePath())).toFile();
+		TransactionalCompiler transaction = new TransactionalCompiler(this::objectFileOf, this::contentHashOf, fileOperations);
+		Compiler<CppCompileSpec> unitCompiler = transaction.unitCompiler(this::toolCompile);
+		Compiler<CppCompileSpec> compiler = transaction.compiler(spec -> {
+			write(new File(stashedDirectory, "occupied"), ""); // after the transaction cleaned its directory
+			return unitCompiler.execute(spec);
+		});
+		CppCompileSpec spec = newSpec(Arrays.asList(sourceA, sourceB));
+		RecordingOperationLogger logger = new RecordingOperationLogger();
+		spec.setOperationLogger(logger);
+		compiler.execute(spec);
+		spec.getOperationLogger().done();
+
+		assertThat(logger.failed, is(true));
+		assertThat(contentOf(objectFileOf(sourceA)), equalTo("object of a"));
+		assertThat(contentOf(objectFileOf(sourceB)), equalTo("object of b"));
+		compiledSourceFiles.clear();
+
+		// The copied output directory isn't committed, its translation unit compiles again
+		write("src/b.cpp", "b-fixed");
+		assertThat(compile(sourceA, sourceB), is(false));
+		assertThat(compiledSourceFiles, contains(sourceA, sourceB));
+	}
+
+	// Returns true if the compilation failed, the outputs are then rolled back
+	private boolean compile(File... sourceFiles) {
+		return compile(Collections.singletonList(Arrays.asList(sourceFiles)));
+	}
+
+	// Each batch compiles as its own spec, one after the other, same as the translation unit queue
+	private boolean compile(List<List<File>> batches) {
+		TransactionalCompiler transaction = new TransactionalCompiler(this::objectFileOf, this::contentHashOf, fileOperations);
+		Compiler<CppCompileSpec> unitCompiler = transaction.unitCompiler(this::toolCompile);
+		Compiler<CppCompileSpec> compiler = transaction.compiler(spec -> {
+			for (List<File> batch : batches) {
+				CppCompileSpec batchSpec = newSpec(batch);
+				batchSpec.setOperationLogger(spec.getOperationLogger());
+				unitCompiler.execute(batchSpec);
+			}
+			return WorkResults.didWork(true);
+		});
+
+		CppCompileSpec spec = newSpec(batches.stream().flatMap(List::stream).collect(Collectors.toList()));
+		RecordingOperationLogger logger = new RecordingOperationLogger();
+		spec.setOperationLogger(logger);
+
+		compiler.execute(spec);
+		spec.getOperationLogger().done();
+		return logger.failed;
+	}
+
+	private CppCompileSpec newSpec(List<File> sourceFiles) {
+		CppCompileSpec result = new DefaultCppCompileSpec();
+		result.setTempDir(testDirectory.resolve("build/tmp").toFile());
+		result.setObjectFileDir(objectFileDir);
+		result.setSourceFiles(sourceFiles);
+		result.setIncrementalCompile(true);
+		return result;
+	}
+
+	// Same as the toolchain compiler, one object file per source file
+	private WorkResult toolCompile(CppCompileSpec spec) {
+		for (File sourceFile : spec.getSourceFiles()) {
+			beforeCompile.accept(sourceFile);
+			compiledSourceFiles.add(sourceFile);
+			String content = contentOf(sourceFile);
+			File objectFile = objectFileOf(sourceFile, spec.getObjectFileDir());
+			if (content.startsWith("broken")) {
+				if (content.endsWith("dependency file")) {
+					write(new File(objectFile.getParentFile(), "b.d"), "b.o: src/b.cpp");
+				} else if (content.endsWith("empty object file")) {
+					write(objectFile, "");
+				}
+				spec.getOperationLogger().operationFailed("compiling " + sourceFile.getName(), "error: broken");
+			} else {
+				write(objectFile, "object of " + content);
+				spec.getOperationLogger().operationSuccess("compiling " + sourceFile.getName(), "");
+			}
+		}
+		return WorkResults.didWork(true);
+	}
+
+	private File objectFileOf(File sourceFile) {
+		return objectFileOf(sourceFile, objectFileDir);
+	}
+
+	private File objectFileOf(File sourceFile, File objectFileDir) {
+		return new File(objectFileDir, Hashing.hashString(sourceFile.getAbsolutePath()) + "/" + sourceFile.getName().replace(".cpp", ".o"));
+	}
+
+	private HashCode contentHashOf(File sourceFile) {
+		return Hashing.hashString(contentOf(sourceFile));
+	}
+
+	private File write(String path, String content) {
+		return write(testDirectory.resolve(path).toFile(), content);
+	}
+
+	private static File write(File file, String content) {
+		try {
+			Files.createDirectories(file.getParentFile().toPath());
+			Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+			return file;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private static String contentOf(File file) {
+		try {
+			return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	static abstract class Services {
+		@Inject
+		public abstract FileSystemOperations getFileOperations();
+	}
+
+	private static final class RecordingOperationLogger implements BuildOperationLogger {
+		private boolean failed = false;
+
+		@Override
+		public void start() {}
+
+		@Override
+		public void operationSuccess(String description, String output) {}
+
+		@Override
+		public void operationFailed(String description, String output) {
+			failed = true;
+		}
+
+		@Override
+		public void done() {}
+
+		@Override
+		public String getLogLocation() {
+			return "";
+		}
+	}
+}
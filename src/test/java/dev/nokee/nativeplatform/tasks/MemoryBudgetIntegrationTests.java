@@ -0,0 +1,136 @@
+package dev.nokee.nativeplatform.tasks;
+
+import org.gradle.testfixtures.ProjectBuilder;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+class MemoryBudgetIntegrationTests {
+	private static final long MB = 1024 * 1024;
+	@TempDir Path testDirectory;
+	MemoryBudget.Parameters parameters;
+	MemoryBudget budget;
+	ExecutorService executor = Executors.newCachedThreadPool();
+
+	@BeforeEach
+	void setup() {
+		parameters = ProjectBuilder.builder().withProjectDir(testDirectory.toFile()).build().getObjects().newInstance(MemoryBudget.Parameters.class);
+		parameters.getMaxMemoryInBytes().set(100 * MB);
+		parameters.getDefaultCostInBytes().set(30 * MB);
+		budget = new MemoryBudget() {
+			@Override
+			public Parameters getParameters() {
+				return parameters;
+			}
+		};
+	}
+
+	@AfterEach
+	void tearDown() {
+		executor.shutdownNow();
+		budget.close();
+	}
+
+	@Test
+	void admitsProcessesFittingTheBudget() throws Exception {
+		MemoryBudget.Lease first = admit("a.cpp", 40 * MB).get(5, TimeUnit.SECONDS);
+		MemoryBudget.Lease second = admit("b.cpp", 40 * MB).get(5, TimeUnit.SECONDS);
+
+		Future<MemoryBudget.Lease> third = admit("c.cpp", 40 * MB);
+		assertBlocked(third);
+		first.close();
+		third.get(5, TimeUnit.SECONDS).close();
+		second.close();
+	}
+
+	@Test
+	void admitsProcessExceedingTheWholeBudgetWhenAlone() throws Exception {
+		MemoryBudget.Lease lease = admit("huge.cpp", 500 * MB).get(5, TimeUnit.SECONDS);
+
+		Future<MemoryBudget.Lease> next = admit("a.cpp", 10 * MB);
+		assertBlocked(next);
+		lease.close();
+		next.get(5, TimeUnit.SECONDS).close();
+	}
+
+	@Test
+	void admitsProcessExceedingTheWholeBudgetOnceOthersCompleted() throws Exception {
+		MemoryBudget.Lease first = admit("a.cpp", 40 * MB).get(5, TimeUnit.SECONDS);
+		MemoryBudget.Lease second = admit("b.cpp", 40 * MB).get(5, TimeUnit.SECONDS);
+
+		Future<MemoryBudget.Lease> huge = admit("huge.cpp", 500 * MB);
+		assertBlocked(huge);
+		first.close();
+		assertBlocked(huge);
+		second.close();
+		huge.get(5, TimeUnit.SECONDS).close(); // no deadlock
+	}
+
+	@Test
+	void estimatesUnknownProcessesWithDefaultCost() throws Exception {
+		MemoryBudget.Lease first = admit("a.cpp", 0).get(5, TimeUnit.SECONDS);
+		MemoryBudget.Lease second = admit("b.cpp", 0).get(5, TimeUnit.SECONDS);
+		MemoryBudget.Lease third = admit("c.cpp", 0).get(5, TimeUnit.SECONDS);
+
+		Future<MemoryBudget.Lease> fourth = admit("d.cpp", 0);
+		assertBlocked(fourth); // 4 x 30 MB
+		third.close();
+		fourth.get(5, TimeUnit.SECONDS).close();
+		first.close();
+		second.close();
+	}
+
+	@Test
+	void runsActionWithEstimateOfPreviousExecution() throws Exception {
+		File estimateFile = testDirectory.resolve("link.estimate").toFile();
+		Files.write(estimateFile.toPath(), String.valueOf(90 * MB).getBytes(StandardCharsets.UTF_8));
+		MemoryBudget.Lease lease = admit("a.cpp", 20 * MB).get(5, TimeUnit.SECONDS);
+
+		AtomicLong runCount = new AtomicLong();
+		Future<?> run = executor.submit(() -> budget.run("liba.so", estimateFile, runCount::incrementAndGet));
+		assertBlocked(run);
+		assertThat(runCount.get(), equalTo(0L));
+		lease.close();
+		run.get(5, TimeUnit.SECONDS);
+		assertThat(runCount.get(), equalTo(1L));
+	}
+
+	@Test
+	void ignoresUnreadableEstimate() throws Exception {
+		File estimateFile = testDirectory.resolve("link.estimate").toFile();
+		Files.write(estimateFile.toPath(), "not a number".getBytes(StandardCharsets.UTF_8));
+
+		AtomicLong runCount = new AtomicLong();
+		executor.submit(() -> budget.run("liba.so", estimateFile, runCount::incrementAndGet)).get(5, TimeUnit.SECONDS);
+		assertThat(runCount.get(), equalTo(1L));
+	}
+
+	private Future<MemoryBudget.Lease> admit(String marker, long estimatedBytes) {
+		return executor.submit(() -> budget.admit(marker, estimatedBytes));
+	}
+
+	private static void assertBlocked(Future<?> admission) throws InterruptedException, ExecutionException {
+		try {
+			admission.get(500, TimeUnit.MILLISECONDS);
+			throw new AssertionError("expected the admission to wait");
+		} catch (TimeoutException e) {
+			// still waiting
+		}
+	}
+}